@@ -23,8 +23,9 @@ import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Point;
+import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Display;
@@ -55,6 +56,9 @@ import com.budrotech.jukebox.service.DownloadFile;
 import com.budrotech.jukebox.service.DownloadService;
 import com.budrotech.jukebox.service.MusicService;
 import com.budrotech.jukebox.service.MusicServiceFactory;
+import com.budrotech.jukebox.service.NowPlaying;
+import com.budrotech.jukebox.service.PlaybackClock;
+import com.budrotech.jukebox.service.PlaybackStateBus;
 import com.budrotech.jukebox.util.Constants;
 import com.budrotech.jukebox.util.SilentBackgroundTask;
 import com.budrotech.jukebox.util.Util;
@@ -69,9 +73,6 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import static com.budrotech.jukebox.domain.PlayerState.COMPLETED;
 import static com.budrotech.jukebox.domain.PlayerState.IDLE;
@@ -83,6 +84,8 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 	private static final String TAG = DownloadActivity.class.getSimpleName();
 	private static final int DIALOG_SAVE_PLAYLIST = 100;
 	private static final int PERCENTAGE_OF_SCREEN_FOR_SWIPE = 5;
+	private static final long FRAME_INTERVAL = 16L;
+	private static final long REFRESH_INTERVAL = 1000L;
 
 	private ViewFlipper playlistFlipper;
 	private TextView emptyTextView;
@@ -100,7 +103,23 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 	private View stopButton;
 	private View startButton;
 	private ImageView starButton;
-	private ScheduledExecutorService executorService;
+	private final ProgressRenderer progressRenderer = new ProgressRenderer();
+	private final PlaybackStateBus.Subscriber nowPlayingSubscriber = new PlaybackStateBus.Subscriber()
+	{
+		@Override
+		public void onNowPlaying(NowPlaying previous, NowPlaying current)
+		{
+			runOnUiThread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					progressRenderer.onChange();
+				}
+			});
+		}
+	};
+	private boolean seeking;
 	private DownloadFile currentPlaying;
 	private Entry currentSong;
 	private long currentRevision;
@@ -369,6 +388,8 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 			@Override
 			public void onStopTrackingTouch(final SeekBar seekBar)
 			{
+				seeking = false;
+
 				new SilentBackgroundTask<Void>(DownloadActivity.this)
 				{
 					@Override
@@ -389,6 +410,7 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 			@Override
 			public void onStartTrackingTouch(final SeekBar seekBar)
 			{
+				seeking = true;
 			}
 
 			@Override
@@ -467,25 +489,8 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 			playlistFlipper.setDisplayedChild(1);
 		}
 
-		final Handler handler = new Handler();
-		final Runnable runnable = new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				handler.post(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						update();
-					}
-				});
-			}
-		};
-
-		executorService = Executors.newSingleThreadScheduledExecutor();
-		executorService.scheduleWithFixedDelay(runnable, 0L, 250L, TimeUnit.MILLISECONDS);
+		PlaybackStateBus.getInstance().subscribe(nowPlayingSubscriber);
+		progressRenderer.start();
 
 		if (downloadService != null && downloadService.getKeepScreenOn())
 		{
@@ -538,7 +543,8 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 	protected void onPause()
 	{
 		super.onPause();
-		executorService.shutdown();
+		PlaybackStateBus.getInstance().unsubscribe(nowPlayingSubscriber);
+		progressRenderer.stop();
 	}
 
 	@Override
@@ -1093,6 +1099,7 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 					adapter.notifyDataSetChanged();
 					adapter.insert(item, to);
 					adapter.notifyDataSetChanged();
+					downloadService.move(from, to);
 				}
 			}
 
@@ -1120,6 +1127,7 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 					getDownloadService().next();
 				}
 
+				downloadService.remove(item);
 				adapter.remove(item);
 				adapter.notifyDataSetChanged();
 
@@ -1234,7 +1242,7 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 				switch (playerState)
 				{
 					case DOWNLOADING:
-						final long bytes = currentPlaying != null ? currentPlaying.getPartialFile().length() : 0;
+						final long bytes = currentPlaying != null ? currentPlaying.getBytesDownloaded() : 0;
 						String downloadStatus = getResources().getString(R.string.download_playerstate_downloading, Util.formatLocalizedBytes(bytes, DownloadActivity.this));
 						setActionBarSubtitle(downloadStatus);
 						break;
@@ -1294,6 +1302,26 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 		onProgressChangedTask.execute();
 	}
 
+	/**
+	 * Moves the seek bar and the position to the current position of the playback clock.
+	 */
+	private void drawProgress(PlaybackClock clock)
+	{
+		if (currentPlaying == null || seeking)
+		{
+			return;
+		}
+
+		int position = clock.getPosition();
+
+		if (position / 1000 != progressBar.getProgress() / 1000)
+		{
+			positionTextView.setText(Util.formatTotalDuration(position, true));
+		}
+
+		progressBar.setProgress(position);
+	}
+
 	private void changeProgress(final int ms)
 	{
 		final DownloadService downloadService = getDownloadService();
@@ -1428,4 +1456,76 @@ public class DownloadActivity extends JukeboxTabActivity implements OnGestureLis
 	{
 		return progressBar;
 	}
+
+	/**
+	 * Keeps the screen up to date while the activity is visible. While a song plays, the seek
+	 * bar is redrawn on every frame from the playback clock, without asking the player. The
+	 * rest of the screen is refreshed once a second, such as whether the song can be seeked
+	 * once it is downloaded, and at once whenever the service publishes a new song or player
+	 * state.
+	 */
+	private class ProgressRenderer implements Runnable
+	{
+		private boolean running;
+		private boolean changed;
+		private long updatedAt;
+
+		public void start()
+		{
+			running = true;
+			onChange();
+		}
+
+		public void onChange()
+		{
+			changed = true;
+			run();
+		}
+
+		public void stop()
+		{
+			running = false;
+			progressBar.removeCallbacks(this);
+		}
+
+		@Override
+		public void run()
+		{
+			if (!running)
+			{
+				return;
+			}
+
+			progressBar.removeCallbacks(this);
+			DownloadService downloadService = getDownloadService();
+			PlaybackClock clock = downloadService == null ? null : downloadService.getPlaybackClock();
+
+			boolean playing = clock != null && clock.isRunning();
+			long now = SystemClock.elapsedRealtime();
+
+			if (changed || !playing || now - updatedAt >= REFRESH_INTERVAL || currentRevision != downloadService.getDownloadListUpdateRevision() || currentPlaying != downloadService.getCurrentPlaying())
+			{
+				changed = false;
+				updatedAt = now;
+				update();
+			}
+
+			if (!playing)
+			{
+				progressBar.postDelayed(this, REFRESH_INTERVAL);
+				return;
+			}
+
+			drawProgress(clock);
+
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			{
+				progressBar.postOnAnimation(this);
+			}
+			else
+			{
+				progressBar.postDelayed(this, FRAME_INTERVAL);
+			}
+		}
+	}
 }
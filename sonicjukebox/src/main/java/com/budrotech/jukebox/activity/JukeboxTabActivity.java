@@ -66,8 +66,10 @@ import com.budrotech.jukebox.util.Constants;
 import com.budrotech.jukebox.util.EntryByDiscAndTrackComparator;
 import com.budrotech.jukebox.util.ImageLoader;
 import com.budrotech.jukebox.util.ModalBackgroundTask;
+import com.budrotech.jukebox.util.ProgressListener;
 import com.budrotech.jukebox.util.ShareDetails;
 import com.budrotech.jukebox.util.SilentBackgroundTask;
+import com.budrotech.jukebox.util.SongTreeWalker;
 import com.budrotech.jukebox.util.TabActivityBackgroundTask;
 import com.budrotech.jukebox.util.TimeSpan;
 import com.budrotech.jukebox.util.TimeSpanPicker;
@@ -79,9 +81,7 @@ import net.simonvt.menudrawer.Position;
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -969,111 +969,120 @@ public class JukeboxTabActivity extends ResultActivity implements OnClickListene
 
 	protected void downloadRecursively(final String id, final String name, final boolean isShare, final boolean isDirectory, final boolean save, final boolean append, final boolean autoplay, final boolean shuffle, final boolean background, final boolean playNext, final boolean unpin, final boolean isArtist)
 	{
+		// Play now starts with the first songs found, unless the songs are shuffled or sorted
+		final boolean stream = autoplay && !append && !playNext && !shuffle && !background && !unpin && !Util.getShouldSortByDisc(this);
+
 		ModalBackgroundTask<List<Entry>> task = new ModalBackgroundTask<List<Entry>>(this, false)
 		{
 			private static final int MAX_SONGS = 500;
+			private static final int MAX_PARALLEL_REQUESTS = 4;
+
+			private boolean streamed;
 
 			@Override
 			protected List<Entry> doInBackground() throws Throwable
 			{
-				MusicService musicService = MusicServiceFactory.getMusicService(JukeboxTabActivity.this);
-				List<Entry> songs = new LinkedList<Entry>();
+				final MusicService musicService = MusicServiceFactory.getMusicService(JukeboxTabActivity.this);
+				final boolean useId3Tags = !Util.isOffline(JukeboxTabActivity.this) && Util.getShouldUseId3Tags(JukeboxTabActivity.this);
+				final ProgressListener progressListener = this;
 				MusicDirectory root;
 
-				if (!Util.isOffline(JukeboxTabActivity.this) && isArtist && Util.getShouldUseId3Tags(JukeboxTabActivity.this))
+				if (useId3Tags && isArtist)
 				{
-					getSongsForArtist(id, songs);
+					root = musicService.getArtist(id, "", false, JukeboxTabActivity.this, this);
 				}
-				else
+				else if (isDirectory)
 				{
-					if (isDirectory)
-					{
-						root = !Util.isOffline(JukeboxTabActivity.this) && Util.getShouldUseId3Tags(JukeboxTabActivity.this) ? musicService.getAlbum(id, name, false, JukeboxTabActivity.this, this) : musicService.getMusicDirectory(id, name, false, JukeboxTabActivity.this, this);
-					}
-					else if (isShare)
-					{
-						root = new MusicDirectory();
+					root = useId3Tags ? musicService.getAlbum(id, name, false, JukeboxTabActivity.this, this) : musicService.getMusicDirectory(id, name, false, JukeboxTabActivity.this, this);
+				}
+				else if (isShare)
+				{
+					root = new MusicDirectory();
 
-						List<Share> shares = musicService.getShares(true, JukeboxTabActivity.this, this);
+					List<Share> shares = musicService.getShares(true, JukeboxTabActivity.this, this);
 
-						for (Share share : shares)
+					for (Share share : shares)
+					{
+						if (share.getId().equals(id))
 						{
-							if (share.getId().equals(id))
+							for (Entry entry : share.getEntries())
 							{
-								for (Entry entry : share.getEntries())
-								{
-									root.addChild(entry);
-								}
-
-								break;
+								root.addChild(entry);
 							}
+
+							break;
 						}
 					}
-					else
-					{
-						root = musicService.getPlaylist(id, name, JukeboxTabActivity.this, this);
-					}
-
-					getSongsRecursively(root, songs);
 				}
-
-				return songs;
-			}
-
-			private void getSongsRecursively(MusicDirectory parent, List<Entry> songs) throws Exception
-			{
-				if (songs.size() > MAX_SONGS)
+				else
 				{
-					return;
+					root = musicService.getPlaylist(id, name, JukeboxTabActivity.this, this, null);
 				}
 
-				for (Entry song : parent.getChildren(false, true))
+				SongTreeWalker walker = new SongTreeWalker(new SongTreeWalker.DirectoryLoader()
 				{
-					if (!song.isVideo())
+					@Override
+					public MusicDirectory load(Entry dir) throws Exception
 					{
-						songs.add(song);
+						return useId3Tags ? musicService.getAlbum(dir.getId(), dir.getTitle(), false, JukeboxTabActivity.this, progressListener) : musicService.getMusicDirectory(dir.getId(), dir.getTitle(), false, JukeboxTabActivity.this, progressListener);
 					}
-				}
+				}, MAX_PARALLEL_REQUESTS, MAX_SONGS);
 
-				MusicService musicService = MusicServiceFactory.getMusicService(JukeboxTabActivity.this);
-
-				for (Entry dir : parent.getChildren(true, false))
+				return walker.walk(root, stream ? new SongTreeWalker.Listener()
 				{
-					MusicDirectory root;
-
-					root = !Util.isOffline(JukeboxTabActivity.this) && Util.getShouldUseId3Tags(JukeboxTabActivity.this) ? musicService.getAlbum(dir.getId(), dir.getTitle(), false, JukeboxTabActivity.this, this) : musicService.getMusicDirectory(dir.getId(), dir.getTitle(), false, JukeboxTabActivity.this, this);
-
-					getSongsRecursively(root, songs);
-				}
+					@Override
+					public void onSongs(final List<Entry> songs)
+					{
+						getHandler().post(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								play(songs);
+							}
+						});
+					}
+				} : null);
 			}
 
-			private void getSongsForArtist(String id, Collection<Entry> songs) throws Exception
+			/**
+			 * Plays the first songs found and queues the rest as they are found.
+			 */
+			private void play(List<Entry> songs)
 			{
-				if (songs.size() > MAX_SONGS)
+				DownloadService downloadService = getDownloadService();
+
+				if (isCancelled() || downloadService == null)
 				{
 					return;
 				}
 
-				MusicService musicService = MusicServiceFactory.getMusicService(JukeboxTabActivity.this);
-				MusicDirectory artist = musicService.getArtist(id, "", false, JukeboxTabActivity.this, this);
-
-				for (Entry album : artist.getChildren())
+				if (!streamed)
 				{
-					MusicDirectory albumDirectory = musicService.getAlbum(album.getId(), "", false, JukeboxTabActivity.this, this);
-
-					for (Entry song : albumDirectory.getChildren())
-					{
-						if (!song.isVideo())
-						{
-							songs.add(song);
-						}
-					}
+					downloadService.clear();
+					warnIfNetworkOrStorageUnavailable();
+					downloadService.download(songs, save, true, false, false, false);
+					streamed = true;
+				}
+				else
+				{
+					downloadService.download(songs, save, false, false, false, false);
 				}
 			}
 
 			@Override
 			protected void done(List<Entry> songs)
 			{
+				if (streamed)
+				{
+					if (Util.getShouldTransitionOnPlaybackPreference(JukeboxTabActivity.this))
+					{
+						Util.startActivityForResultWithoutTransition(JukeboxTabActivity.this, DownloadActivity.class);
+					}
+
+					return;
+				}
+
 				if (Util.getShouldSortByDisc(JukeboxTabActivity.this))
 				{
 					Collections.sort(songs, new EntryByDiscAndTrackComparator());
@@ -42,6 +42,7 @@ import com.budrotech.jukebox.service.MusicServiceFactory;
 import com.budrotech.jukebox.util.BackgroundTask;
 import com.budrotech.jukebox.util.Constants;
 import com.budrotech.jukebox.util.MergeAdapter;
+import com.budrotech.jukebox.util.SearchIndex;
 import com.budrotech.jukebox.util.TabActivityBackgroundTask;
 import com.budrotech.jukebox.util.Util;
 import com.budrotech.jukebox.view.ArtistAdapter;
@@ -163,6 +164,12 @@ public class SearchActivity extends JukeboxTabActivity
 
 		registerForContextMenu(list);
 
+		if (Util.isOffline(this))
+		{
+			// Starts loading the index, so that it's likely ready by the time a query is typed
+			SearchIndex.getInstance(this);
+		}
+
 		onNewIntent(getIntent());
 	}
 
@@ -38,6 +38,7 @@ import com.budrotech.jukebox.domain.Share;
 import com.budrotech.jukebox.service.DownloadFile;
 import com.budrotech.jukebox.service.MusicService;
 import com.budrotech.jukebox.service.MusicServiceFactory;
+import com.budrotech.jukebox.service.parser.MusicDirectoryEntryParser;
 import com.budrotech.jukebox.util.AlbumHeader;
 import com.budrotech.jukebox.util.Constants;
 import com.budrotech.jukebox.util.EntryByDiscAndTrackComparator;
@@ -61,6 +62,10 @@ public class SelectAlbumActivity extends JukeboxTabActivity
 {
 
 	public static final String allSongsId = "-1";
+
+	// Entries of a list being loaded are shown in batches of this size.
+	private static final int PARTIAL_LIST_BATCH = 100;
+
 	private PullToRefreshListView refreshAlbumListView;
 	private ListView albumListView;
 	private View header;
@@ -769,7 +774,7 @@ public class SelectAlbumActivity extends JukeboxTabActivity
 			@Override
 			protected MusicDirectory load(MusicService service) throws Exception
 			{
-				return service.getPlaylist(playlistId, playlistName, SelectAlbumActivity.this, this);
+				return service.getPlaylist(playlistId, playlistName, SelectAlbumActivity.this, this, createEntryListener());
 			}
 		}.execute();
 	}
@@ -1018,6 +1023,7 @@ public class SelectAlbumActivity extends JukeboxTabActivity
 
 	private abstract class LoadTask extends TabActivityBackgroundTask<Pair<MusicDirectory, Boolean>>
 	{
+		private EntryAdapter partialAdapter;
 
 		public LoadTask()
 		{
@@ -1026,6 +1032,55 @@ public class SelectAlbumActivity extends JukeboxTabActivity
 
 		protected abstract MusicDirectory load(MusicService service) throws Exception;
 
+		/**
+		 * Returns a listener which shows the entries as they are parsed, so that the first rows
+		 * of a long list appear before the rest of it has been received. The list is replaced
+		 * by the complete one when loading is done.
+		 */
+		protected MusicDirectoryEntryParser.EntryListener createEntryListener()
+		{
+			return new MusicDirectoryEntryParser.EntryListener()
+			{
+				private List<MusicDirectory.Entry> batch = new ArrayList<MusicDirectory.Entry>();
+
+				@Override
+				public void onEntry(MusicDirectory.Entry entry)
+				{
+					batch.add(entry);
+
+					if (batch.size() < PARTIAL_LIST_BATCH)
+					{
+						return;
+					}
+
+					final List<MusicDirectory.Entry> entries = batch;
+					batch = new ArrayList<MusicDirectory.Entry>();
+
+					getHandler().post(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							showPartial(entries);
+						}
+					});
+				}
+			};
+		}
+
+		private void showPartial(List<MusicDirectory.Entry> entries)
+		{
+			if (partialAdapter == null)
+			{
+				partialAdapter = new EntryAdapter(SelectAlbumActivity.this, getImageLoader(), new ArrayList<MusicDirectory.Entry>(entries), true);
+				albumListView.setAdapter(partialAdapter);
+			}
+			else
+			{
+				partialAdapter.addAll(entries);
+			}
+		}
+
 		@Override
 		protected Pair<MusicDirectory, Boolean> doInBackground() throws Throwable
 		{
@@ -1038,6 +1093,15 @@ public class SelectAlbumActivity extends JukeboxTabActivity
 		@Override
 		protected void done(Pair<MusicDirectory, Boolean> result)
 		{
+			int firstVisiblePosition = 0;
+
+			if (partialAdapter != null)
+			{
+				// Headers can only be added to a list without an adapter
+				firstVisiblePosition = albumListView.getFirstVisiblePosition();
+				albumListView.setAdapter(null);
+			}
+
 			MusicDirectory musicDirectory = result.getFirst();
 			List<MusicDirectory.Entry> entries = musicDirectory.getChildren();
 
@@ -1154,6 +1218,7 @@ public class SelectAlbumActivity extends JukeboxTabActivity
 			}
 
 			albumListView.setAdapter(new EntryAdapter(SelectAlbumActivity.this, getImageLoader(), entries, true));
+			albumListView.setSelection(firstVisiblePosition);
 			licenseValid = result.getSecond();
 
 			boolean playAll = getIntent().getBooleanExtra(Constants.INTENT_EXTRA_NAME_AUTOPLAY, false);
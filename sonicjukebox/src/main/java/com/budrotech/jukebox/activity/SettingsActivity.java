@@ -72,6 +72,8 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 	private ListPreference cacheSize;
 	private EditTextPreference cacheLocation;
 	private ListPreference preloadCount;
+	private ListPreference downloadConcurrency;
+	private ListPreference offlineShuffleMode;
 	private ListPreference bufferLength;
 	private ListPreference incrementTime;
 	private ListPreference networkTimeout;
@@ -164,6 +166,8 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		cacheSize = (ListPreference) findPreference(Constants.PREFERENCES_KEY_CACHE_SIZE);
 		cacheLocation = (EditTextPreference) findPreference(Constants.PREFERENCES_KEY_CACHE_LOCATION);
 		preloadCount = (ListPreference) findPreference(Constants.PREFERENCES_KEY_PRELOAD_COUNT);
+		downloadConcurrency = (ListPreference) findPreference(Constants.PREFERENCES_KEY_DOWNLOAD_CONCURRENCY);
+		offlineShuffleMode = (ListPreference) findPreference(Constants.PREFERENCES_KEY_OFFLINE_SHUFFLE_MODE);
 		bufferLength = (ListPreference) findPreference(Constants.PREFERENCES_KEY_BUFFER_LENGTH);
 		incrementTime = (ListPreference) findPreference(Constants.PREFERENCES_KEY_INCREMENT_TIME);
 		networkTimeout = (ListPreference) findPreference(Constants.PREFERENCES_KEY_NETWORK_TIMEOUT);
@@ -381,6 +385,18 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		jukeboxEnabledPreference.setKey(Constants.PREFERENCES_KEY_JUKEBOX_BY_DEFAULT + instance);
 		jukeboxEnabledPreference.setTitle(R.string.jukebox_is_default);
 
+		final CheckBoxPreference useJsonPreference = new CheckBoxPreference(this);
+		useJsonPreference.setDefaultValue(false);
+		useJsonPreference.setKey(Constants.PREFERENCES_KEY_USE_JSON + instance);
+		useJsonPreference.setTitle(R.string.settings_server_use_json);
+		useJsonPreference.setSummary(R.string.settings_server_use_json_summary);
+
+		final CheckBoxPreference allowSelfSignedPreference = new CheckBoxPreference(this);
+		allowSelfSignedPreference.setDefaultValue(false);
+		allowSelfSignedPreference.setKey(Constants.PREFERENCES_KEY_ALLOW_SELF_SIGNED_CERTIFICATE + instance);
+		allowSelfSignedPreference.setTitle(R.string.settings_server_allow_self_signed);
+		allowSelfSignedPreference.setSummary(R.string.settings_server_allow_self_signed_summary);
+
 		Preference serverRemoveServerPreference = new Preference(this);
 		serverRemoveServerPreference.setKey(Constants.PREFERENCES_KEY_REMOVE_SERVER + instance);
 		serverRemoveServerPreference.setPersistent(false);
@@ -404,6 +420,8 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 				serverPasswordPreference.setText(null);
 				serverEnabledPreference.setChecked(true);
 				jukeboxEnabledPreference.setChecked(false);
+				useJsonPreference.setChecked(false);
+				allowSelfSignedPreference.setChecked(false);
 
 				if (instance < activeServers)
 				{
@@ -461,6 +479,8 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 			screen.addPreference(serverPasswordPreference);
 			screen.addPreference(serverEnabledPreference);
 			screen.addPreference(jukeboxEnabledPreference);
+			screen.addPreference(useJsonPreference);
+			screen.addPreference(allowSelfSignedPreference);
 			screen.addPreference(serverRemoveServerPreference);
 			screen.addPreference(serverTestConnectionPreference);
 		}
@@ -533,6 +553,8 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		cacheSize.setSummary(cacheSize.getEntry());
 		cacheLocation.setSummary(cacheLocation.getText());
 		preloadCount.setSummary(preloadCount.getEntry());
+		downloadConcurrency.setSummary(downloadConcurrency.getEntry());
+		offlineShuffleMode.setSummary(offlineShuffleMode.getEntry());
 		bufferLength.setSummary(bufferLength.getEntry());
 		incrementTime.setSummary(incrementTime.getEntry());
 		networkTimeout.setSummary(networkTimeout.getEntry());
@@ -718,15 +740,19 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 		private EditTextPreference serverName;
 		private EditTextPreference serverUrl;
 		private EditTextPreference username;
+		private CheckBoxPreference allowSelfSigned;
 		private PreferenceScreen screen;
+		private final int instance;
 
 		private ServerSettings(String instance)
 		{
+			this.instance = Integer.parseInt(instance);
 
 			screen = (PreferenceScreen) findPreference("server" + instance);
 			serverName = (EditTextPreference) findPreference(Constants.PREFERENCES_KEY_SERVER_NAME + instance);
 			serverUrl = (EditTextPreference) findPreference(Constants.PREFERENCES_KEY_SERVER_URL + instance);
 			username = (EditTextPreference) findPreference(Constants.PREFERENCES_KEY_USERNAME + instance);
+			allowSelfSigned = (CheckBoxPreference) findPreference(Constants.PREFERENCES_KEY_ALLOW_SELF_SIGNED_CERTIFICATE + instance);
 
 			serverUrl.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener()
 			{
@@ -747,6 +773,20 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 						new ErrorDialog(SettingsActivity.this, R.string.settings_invalid_url, false);
 						return false;
 					}
+
+					// The certificate accepted for the old address says nothing about the new one
+					Util.setPinnedCertificate(SettingsActivity.this, ServerSettings.this.instance, null);
+					return true;
+				}
+			});
+
+			allowSelfSigned.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener()
+			{
+				@Override
+				public boolean onPreferenceChange(Preference preference, Object value)
+				{
+					// Turning it off or on again forgets the accepted certificate
+					Util.setPinnedCertificate(SettingsActivity.this, ServerSettings.this.instance, null);
 					return true;
 				}
 			});
@@ -774,6 +814,17 @@ public class SettingsActivity extends PreferenceResultActivity implements Shared
 			username.setSummary(username.getText());
 			screen.setSummary(serverUrl.getText());
 			screen.setTitle(serverName.getText());
+
+			String pinnedCertificate = Util.getPinnedCertificate(SettingsActivity.this, instance);
+
+			if (allowSelfSigned.isChecked() && pinnedCertificate != null)
+			{
+				allowSelfSigned.setSummary(getResources().getString(R.string.settings_server_allow_self_signed_pinned, pinnedCertificate));
+			}
+			else
+			{
+				allowSelfSigned.setSummary(R.string.settings_server_allow_self_signed_summary);
+			}
 		}
 	}
 
@@ -417,6 +417,11 @@ public class MusicDirectory
 			}
 		}
 
+		public void setCreated(Date created)
+		{
+			this.created = created;
+		}
+
 		public int getCloseness()
 		{
 			return closeness;
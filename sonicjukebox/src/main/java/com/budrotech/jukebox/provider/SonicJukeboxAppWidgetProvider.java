@@ -9,7 +9,6 @@ import android.content.Intent;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.os.Environment;
-import android.util.Log;
 import android.view.KeyEvent;
 import android.widget.RemoteViews;
 
@@ -19,12 +18,11 @@ import com.budrotech.jukebox.activity.MainActivity;
 import com.budrotech.jukebox.domain.MusicDirectory;
 import com.budrotech.jukebox.service.DownloadService;
 import com.budrotech.jukebox.service.DownloadServiceImpl;
-import com.budrotech.jukebox.util.FileUtil;
+import com.budrotech.jukebox.service.NowPlaying;
 
 public class SonicJukeboxAppWidgetProvider extends AppWidgetProvider
 {
 
-	private final static String TAG = SonicJukeboxAppWidgetProvider.class.getSimpleName();
 	protected int layoutId;
 
 	@Override
@@ -68,12 +66,14 @@ public class SonicJukeboxAppWidgetProvider extends AppWidgetProvider
 
 	/**
 	 * Handle a change notification coming over from {@link DownloadService}
+	 *
+	 * @param coverArt The cover art of the current song, or null if it has none.
 	 */
-	public void notifyChange(Context context, DownloadService service, boolean playing, boolean setAlbum)
+	public void notifyChange(Context context, NowPlaying nowPlaying, Bitmap coverArt, boolean setAlbum)
 	{
 		if (hasInstances(context))
 		{
-			performUpdate(context, service, null, playing, setAlbum);
+			performUpdate(context, nowPlaying, coverArt, null, setAlbum);
 		}
 	}
 
@@ -96,12 +96,13 @@ public class SonicJukeboxAppWidgetProvider extends AppWidgetProvider
 	/**
 	 * Update all active widget instances by pushing changes
 	 */
-	private void performUpdate(Context context, DownloadService service, int[] appWidgetIds, boolean playing, boolean setAlbum)
+	private void performUpdate(Context context, NowPlaying nowPlaying, Bitmap coverArt, int[] appWidgetIds, boolean setAlbum)
 	{
 		final Resources res = context.getResources();
 		final RemoteViews views = new RemoteViews(context.getPackageName(), this.layoutId);
 
-		MusicDirectory.Entry currentPlaying = service.getCurrentPlaying() == null ? null : service.getCurrentPlaying().getSong();
+		MusicDirectory.Entry currentPlaying = nowPlaying.getSong();
+		boolean playing = nowPlaying.isPlaying();
 		String title = currentPlaying == null ? null : currentPlaying.getTitle();
 		String artist = currentPlaying == null ? null : currentPlaying.getArtist();
 		String album = currentPlaying == null ? null : currentPlaying.getAlbum();
@@ -155,24 +156,14 @@ public class SonicJukeboxAppWidgetProvider extends AppWidgetProvider
 		}
 
 		// Set the cover art
-		try
+		if (currentPlaying == null || coverArt == null)
 		{
-			Bitmap bitmap = currentPlaying == null ? null : FileUtil.getAlbumArtBitmap(context, currentPlaying, 240, true);
-
-			if (bitmap == null)
-			{
-				// Set default cover art
-				views.setImageViewResource(R.id.appwidget_coverart, R.drawable.unknown_album_large);
-			}
-			else
-			{
-				views.setImageViewBitmap(R.id.appwidget_coverart, bitmap);
-			}
+			// Set default cover art
+			views.setImageViewResource(R.id.appwidget_coverart, R.drawable.unknown_album_large);
 		}
-		catch (Exception x)
+		else
 		{
-			Log.e(TAG, "Failed to load cover art", x);
-			views.setImageViewResource(R.id.appwidget_coverart, R.drawable.unknown_album_large);
+			views.setImageViewBitmap(R.id.appwidget_coverart, coverArt);
 		}
 
 		// Link actions buttons to intents
@@ -0,0 +1,312 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.budrotech.jukebox.R;
+import com.budrotech.jukebox.domain.MusicDirectory;
+import com.budrotech.jukebox.util.Util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the bit rate of songs downloaded for playback when their download starts. Songs
+ * to be saved and background downloads are fetched at the configured max bit rate.
+ * <p/>
+ * The throughput is that of all running downloads together, as averaged by the
+ * {@link PrefetchPlanner}, since concurrent downloads share the connection. The bit rate
+ * steps down the ladder of the max bit rate setting as soon as the buffered audio runs low
+ * or the connection can't sustain the current rate, and steps up one rung at a time once
+ * the buffer is full and the connection is fast enough with room to spare. The different
+ * margins for stepping up and down keep the rate from flapping. The configured max bit
+ * rate of the network is never exceeded.
+ * <p/>
+ * The chosen rate and the number of times playback ran out of data are recorded per song,
+ * and are logged by {@link #toString()}.
+ *
+ * @author Sindre Mehus
+ */
+public class BitRateController
+{
+	private static final String TAG = BitRateController.class.getSimpleName();
+
+	// Step down when the next song is likely to stall, and sooner with little buffered audio.
+	private static final double DOWNSHIFT_STALL_RISK = 0.8;
+	private static final long LOW_BUFFER_SECONDS = 20;
+	private static final double LOW_BUFFER_STALL_RISK = 0.5;
+	private static final double DOWNSHIFT_HEADROOM = 1.5;
+
+	// Step up only with this much buffered audio and a much faster connection.
+	private static final long HIGH_BUFFER_SECONDS = 60;
+	private static final double UPSHIFT_STALL_RISK = 0.3;
+	private static final double UPSHIFT_HEADROOM = 2.0;
+
+	private static final int MAX_RECORDS = 100;
+	private static final int ORIGINAL_BIT_RATE = 320;
+
+	private static BitRateController instance;
+
+	private final Context context;
+	private final PrefetchPlanner planner;
+	private final int[] ladder;
+	private final Map<String, Record> records = new LinkedHashMap<String, Record>()
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Record> eldest)
+		{
+			return size() > MAX_RECORDS;
+		}
+	};
+	private int level = -1;
+	private long bytesPerSecond;
+	private int networkType = -1;
+
+	private BitRateController(Context context)
+	{
+		this.context = context;
+		planner = PrefetchPlanner.getInstance(context);
+
+		// Ordered from the lowest bit rate to the original file
+		String[] values = context.getResources().getStringArray(R.array.maxBitrateValues);
+		ladder = new int[values.length];
+
+		for (int i = 0; i < values.length; i++)
+		{
+			ladder[i] = Integer.parseInt(values[i]);
+		}
+	}
+
+	public static synchronized BitRateController getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new BitRateController(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Returns the bit rate to request a download at without choosing a new one, where 0
+	 * means the original file.
+	 */
+	public synchronized int getMaxBitRate()
+	{
+		int ceiling = getCeiling();
+		return ladder[level < 0 ? ceiling : Math.min(level, ceiling)];
+	}
+
+	/**
+	 * Chooses the bit rate to download the song at, where 0 means the original file.
+	 */
+	public synchronized int chooseBitRate(MusicDirectory.Entry song)
+	{
+		int ceiling = getCeiling();
+		checkNetwork();
+		bytesPerSecond = planner.getThroughput();
+
+		if (level < 0)
+		{
+			level = ceiling;
+		}
+
+		if (bytesPerSecond > 0)
+		{
+			PrefetchPlanner.Plan plan = planner.getLastPlan();
+			long secondsBuffered = plan == null ? -1 : plan.getSecondsBuffered();
+			double stallRisk = plan == null ? -1 : plan.getStallRisk();
+			long kbps = bytesPerSecond * 8 / 1000;
+			boolean draining = stallRisk >= DOWNSHIFT_STALL_RISK || (secondsBuffered < LOW_BUFFER_SECONDS && stallRisk >= LOW_BUFFER_STALL_RISK);
+			int sustainable = getSustainableLevel(song, kbps / DOWNSHIFT_HEADROOM);
+
+			if (draining || sustainable < level)
+			{
+				level = Math.max(0, Math.min(sustainable, draining ? level - 1 : level));
+			}
+			else if (secondsBuffered >= HIGH_BUFFER_SECONDS && stallRisk >= 0 && stallRisk < UPSHIFT_STALL_RISK && level + 1 < ladder.length && getBitRateAt(song, level + 1) * UPSHIFT_HEADROOM <= kbps)
+			{
+				level++;
+			}
+		}
+
+		level = Math.min(level, ceiling);
+
+		int bitRate = ladder[level];
+		Record record = new Record(song, bitRate, bytesPerSecond);
+		records.remove(song.getId());
+		records.put(song.getId(), record);
+
+		Log.i(TAG, String.format("Chose bit rate %d for %s at %s/s", bitRate, song, Util.formatBytes(bytesPerSecond)));
+		return bitRate;
+	}
+
+	/**
+	 * Records that playback of the song ran out of downloaded data.
+	 */
+	public synchronized void recordRebuffer(MusicDirectory.Entry song)
+	{
+		Record record = records.get(song.getId());
+
+		if (record != null)
+		{
+			record.rebuffers++;
+		}
+
+		Log.i(TAG, String.format("Rebuffering %s at bit rate %s", song, record == null ? "unknown" : record.bitRate));
+	}
+
+	/**
+	 * Returns the chosen bit rates and rebuffer counts of the most recent songs.
+	 */
+	public synchronized List<Record> getRecords()
+	{
+		List<Record> result = new ArrayList<Record>(records.size());
+
+		for (Record record : records.values())
+		{
+			result.add(new Record(record));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Starts over from the top of the ladder when the network changes.
+	 */
+	private void checkNetwork()
+	{
+		int type = planner.getNetworkType();
+
+		if (type != networkType)
+		{
+			networkType = type;
+			level = -1;
+		}
+	}
+
+	private int getCeiling()
+	{
+		int maxBitRate = Util.getMaxBitRate(context);
+
+		for (int i = 0; i < ladder.length; i++)
+		{
+			if (ladder[i] == maxBitRate)
+			{
+				return i;
+			}
+		}
+
+		return ladder.length - 1;
+	}
+
+	private int getSustainableLevel(MusicDirectory.Entry song, double kbps)
+	{
+		int sustainable = 0;
+
+		for (int i = 0; i < ladder.length; i++)
+		{
+			if (getBitRateAt(song, i) <= kbps)
+			{
+				sustainable = i;
+			}
+		}
+
+		return sustainable;
+	}
+
+	/**
+	 * Returns the bit rate of a rung of the ladder in kbps, taking the original file to be
+	 * at the bit rate of the song.
+	 */
+	private int getBitRateAt(MusicDirectory.Entry song, int level)
+	{
+		int bitRate = ladder[level];
+		return bitRate > 0 ? bitRate : song.getBitRate() == null ? ORIGINAL_BIT_RATE : song.getBitRate();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder builder = new StringBuilder(String.format("Bit rate %d at %s/s", level < 0 ? -1 : ladder[level], Util.formatBytes(bytesPerSecond)));
+
+		for (Record record : records.values())
+		{
+			builder.append(String.format("\n  %s: bit rate %d at %s/s, %d rebuffers", record.title, record.bitRate, Util.formatBytes(record.bytesPerSecond), record.rebuffers));
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * The bit rate chosen for a song, and how often its playback rebuffered.
+	 */
+	public static class Record
+	{
+		private final String title;
+		private final int bitRate;
+		private final long bytesPerSecond;
+		private int rebuffers;
+
+		Record(MusicDirectory.Entry song, int bitRate, long bytesPerSecond)
+		{
+			title = song.getTitle();
+			this.bitRate = bitRate;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		Record(Record record)
+		{
+			title = record.title;
+			bitRate = record.bitRate;
+			bytesPerSecond = record.bytesPerSecond;
+			rebuffers = record.rebuffers;
+		}
+
+		public String getTitle()
+		{
+			return title;
+		}
+
+		/**
+		 * Returns the bit rate requested for the song, where 0 means the original file.
+		 */
+		public int getBitRate()
+		{
+			return bitRate;
+		}
+
+		/**
+		 * Returns the throughput estimate the bit rate was chosen by.
+		 */
+		public long getBytesPerSecond()
+		{
+			return bytesPerSecond;
+		}
+
+		public int getRebuffers()
+		{
+			return rebuffers;
+		}
+	}
+}
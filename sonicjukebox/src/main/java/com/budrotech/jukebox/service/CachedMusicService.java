@@ -20,6 +20,7 @@ package com.budrotech.jukebox.service;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.util.Log;
 
 import com.budrotech.jukebox.domain.Bookmark;
 import com.budrotech.jukebox.domain.ChatMessage;
@@ -35,15 +36,22 @@ import com.budrotech.jukebox.domain.SearchResult;
 import com.budrotech.jukebox.domain.Share;
 import com.budrotech.jukebox.domain.UserInfo;
 import com.budrotech.jukebox.domain.Version;
+import com.budrotech.jukebox.service.parser.MusicDirectoryEntryParser.EntryListener;
 import com.budrotech.jukebox.util.CancellableTask;
 import com.budrotech.jukebox.util.LRUCache;
 import com.budrotech.jukebox.util.ProgressListener;
+import com.budrotech.jukebox.util.SingleFlight;
 import com.budrotech.jukebox.util.TimeLimitedCache;
 import com.budrotech.jukebox.util.Util;
 
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.Response;
@@ -54,7 +62,18 @@ import okhttp3.Response;
 public class CachedMusicService implements MusicService
 {
 
+	private static final String TAG = CachedMusicService.class.getSimpleName();
 	private static final int MUSIC_DIR_CACHE_SIZE = 100;
+	private static final int MUSIC_DIR_CACHE_CHILDREN = 10000;
+	private static final LRUCache.Weigher<String, TimeLimitedCache<MusicDirectory>> MUSIC_DIR_WEIGHER = new LRUCache.Weigher<String, TimeLimitedCache<MusicDirectory>>()
+	{
+		@Override
+		public int weigh(String key, TimeLimitedCache<MusicDirectory> value)
+		{
+			MusicDirectory dir = value.get();
+			return dir == null ? 1 : dir.getChildren().size();
+		}
+	};
 
 	private final MusicService musicService;
 	private final LRUCache<String, TimeLimitedCache<MusicDirectory>> cachedMusicDirectories;
@@ -68,14 +87,32 @@ public class CachedMusicService implements MusicService
 	private final TimeLimitedCache<List<MusicFolder>> cachedMusicFolders = new TimeLimitedCache<List<MusicFolder>>(10 * 3600, TimeUnit.SECONDS);
 	private final TimeLimitedCache<List<Genre>> cachedGenres = new TimeLimitedCache<List<Genre>>(10 * 3600, TimeUnit.SECONDS);
 
+	private final SingleFlight<String, MusicDirectory> directoryLoads = new SingleFlight<String, MusicDirectory>();
+	private final SingleFlight<String, Indexes> indexLoads = new SingleFlight<String, Indexes>();
+	private final SingleFlight<String, List<MusicFolder>> musicFolderLoads = new SingleFlight<String, List<MusicFolder>>();
+	private final SingleFlight<String, Bitmap> coverArtLoads = new SingleFlight<String, Bitmap>();
+	private final PersistentMusicDirectoryCache persistentCache = new PersistentMusicDirectoryCache();
+	private final Set<String> pendingRevalidations = new HashSet<String>();
+	private final ExecutorService revalidationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable runnable)
+		{
+			// Must not keep the process alive
+			Thread thread = new Thread(runnable, "CachedMusicService");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	private String restUrl;
 
 	public CachedMusicService(MusicService musicService)
 	{
 		this.musicService = musicService;
-		cachedMusicDirectories = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_SIZE);
-		cachedArtist = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_SIZE);
-		cachedAlbum = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_SIZE);
+		cachedMusicDirectories = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_CHILDREN, MUSIC_DIR_WEIGHER);
+		cachedArtist = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_CHILDREN, MUSIC_DIR_WEIGHER);
+		cachedAlbum = new LRUCache<String, TimeLimitedCache<MusicDirectory>>(MUSIC_DIR_CACHE_CHILDREN, MUSIC_DIR_WEIGHER);
 		cachedUserInfo = new LRUCache<String, TimeLimitedCache<UserInfo>>(MUSIC_DIR_CACHE_SIZE);
 	}
 
@@ -100,7 +137,7 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public List<MusicFolder> getMusicFolders(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public List<MusicFolder> getMusicFolders(final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
 		if (refresh)
@@ -110,14 +147,22 @@ public class CachedMusicService implements MusicService
 		List<MusicFolder> result = cachedMusicFolders.get();
 		if (result == null)
 		{
-			result = musicService.getMusicFolders(refresh, context, progressListener);
-			cachedMusicFolders.set(result);
+			result = musicFolderLoads.execute(restUrl + refresh, progressListener, new SingleFlight.Load<List<MusicFolder>>()
+			{
+				@Override
+				public List<MusicFolder> load(ProgressListener progressListener) throws Exception
+				{
+					List<MusicFolder> result = musicService.getMusicFolders(refresh, context, progressListener);
+					cachedMusicFolders.set(result);
+					return result;
+				}
+			});
 		}
 		return result;
 	}
 
 	@Override
-	public Indexes getIndexes(String musicFolderId, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public Indexes getIndexes(final String musicFolderId, final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
 		if (refresh)
@@ -129,14 +174,22 @@ public class CachedMusicService implements MusicService
 		Indexes result = cachedIndexes.get();
 		if (result == null)
 		{
-			result = musicService.getIndexes(musicFolderId, refresh, context, progressListener);
-			cachedIndexes.set(result);
+			result = indexLoads.execute(restUrl + "getIndexes" + musicFolderId + refresh, progressListener, new SingleFlight.Load<Indexes>()
+			{
+				@Override
+				public Indexes load(ProgressListener progressListener) throws Exception
+				{
+					Indexes result = musicService.getIndexes(musicFolderId, refresh, context, progressListener);
+					cachedIndexes.set(result);
+					return result;
+				}
+			});
 		}
 		return result;
 	}
 
 	@Override
-	public Indexes getArtists(boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public Indexes getArtists(final boolean refresh, final Context context, final ProgressListener progressListener) throws Exception
 	{
 		checkSettingsChanged(context);
 		if (refresh)
@@ -146,60 +199,158 @@ public class CachedMusicService implements MusicService
 		Indexes result = cachedArtists.get();
 		if (result == null)
 		{
-			result = musicService.getArtists(refresh, context, progressListener);
-			cachedArtists.set(result);
+			result = indexLoads.execute(restUrl + "getArtists" + refresh, progressListener, new SingleFlight.Load<Indexes>()
+			{
+				@Override
+				public Indexes load(ProgressListener progressListener) throws Exception
+				{
+					Indexes result = musicService.getArtists(refresh, context, progressListener);
+					cachedArtists.set(result);
+					return result;
+				}
+			});
 		}
 		return result;
 	}
 
 	@Override
-	public MusicDirectory getMusicDirectory(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getMusicDirectory(final String id, final String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
-		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedMusicDirectories.get(id);
-
-		MusicDirectory dir = cache == null ? null : cache.get();
+		return getDirectory("getMusicDirectory", id, refresh, context, progressListener, cachedMusicDirectories, new DirectoryLoader()
+		{
+			@Override
+			public MusicDirectory load(Context context, boolean refresh, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getMusicDirectory(id, name, refresh, context, progressListener);
+			}
+		});
+	}
 
-		if (dir == null)
+	@Override
+	public MusicDirectory getArtist(final String id, final String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	{
+		return getDirectory("getArtist", id, refresh, context, progressListener, cachedArtist, new DirectoryLoader()
 		{
-			dir = musicService.getMusicDirectory(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedMusicDirectories.put(id, cache);
-		}
-		return dir;
+			@Override
+			public MusicDirectory load(Context context, boolean refresh, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getArtist(id, name, refresh, context, progressListener);
+			}
+		});
 	}
 
 	@Override
-	public MusicDirectory getArtist(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getAlbum(final String id, final String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	{
+		return getDirectory("getAlbum", id, refresh, context, progressListener, cachedAlbum, new DirectoryLoader()
+		{
+			@Override
+			public MusicDirectory load(Context context, boolean refresh, ProgressListener progressListener) throws Exception
+			{
+				return musicService.getAlbum(id, name, refresh, context, progressListener);
+			}
+		});
+	}
+
+	/**
+	 * Looks up a directory in the memory cache, then in the persistent cache, and only then
+	 * asks the wrapped service. A persistent entry older than the directory cache time is
+	 * still returned immediately, while a fresh copy is fetched in the background.
+	 */
+	private MusicDirectory getDirectory(String method, String id, boolean refresh, Context context, ProgressListener progressListener, LRUCache<String, TimeLimitedCache<MusicDirectory>> memoryCache, DirectoryLoader loader) throws Exception
 	{
 		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedArtist.get(id);
+		TimeLimitedCache<MusicDirectory> cache = refresh ? null : memoryCache.get(id);
 		MusicDirectory dir = cache == null ? null : cache.get();
-		if (dir == null)
+
+		if (dir != null)
 		{
-			dir = musicService.getArtist(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedArtist.put(id, cache);
+			return dir;
 		}
-		return dir;
+
+		if (!refresh)
+		{
+			PersistentMusicDirectoryCache.CachedDirectory cached = persistentCache.read(context, method, id);
+
+			if (cached != null)
+			{
+				dir = cached.getDirectory();
+				putInMemory(context, memoryCache, id, dir);
+
+				if (cached.isStale(TimeUnit.SECONDS.toMillis(Util.getDirectoryCacheTime(context))))
+				{
+					revalidate(method, id, context, memoryCache, loader);
+				}
+
+				return dir;
+			}
+		}
+
+		return fetchDirectory(method, id, context, refresh, progressListener, memoryCache, loader);
 	}
 
-	@Override
-	public MusicDirectory getAlbum(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
+	/**
+	 * Loads a directory from the wrapped service and stores it in both cache tiers. Concurrent
+	 * calls for the same directory share a single request.
+	 */
+	private MusicDirectory fetchDirectory(final String method, final String id, final Context context, final boolean refresh, final ProgressListener progressListener, final LRUCache<String, TimeLimitedCache<MusicDirectory>> memoryCache, final DirectoryLoader loader) throws Exception
 	{
-		checkSettingsChanged(context);
-		TimeLimitedCache<MusicDirectory> cache = refresh ? null : cachedAlbum.get(id);
-		MusicDirectory dir = cache == null ? null : cache.get();
-		if (dir == null)
+		return directoryLoads.execute(restUrl + method + id, progressListener, new SingleFlight.Load<MusicDirectory>()
+		{
+			@Override
+			public MusicDirectory load(ProgressListener progressListener) throws Exception
+			{
+				MusicDirectory dir = loader.load(context, refresh, progressListener);
+				putInMemory(context, memoryCache, id, dir);
+				persistentCache.write(context, method, id, dir);
+				return dir;
+			}
+		});
+	}
+
+	private void revalidate(final String method, final String id, Context context, final LRUCache<String, TimeLimitedCache<MusicDirectory>> memoryCache, final DirectoryLoader loader)
+	{
+		final String key = method + id;
+
+		synchronized (pendingRevalidations)
 		{
-			dir = musicService.getAlbum(id, name, refresh, context, progressListener);
-			cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
-			cache.set(dir);
-			cachedAlbum.put(id, cache);
+			if (!pendingRevalidations.add(key))
+			{
+				return;
+			}
 		}
-		return dir;
+
+		final Context appContext = context.getApplicationContext();
+
+		revalidationExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					fetchDirectory(method, id, appContext, true, null, memoryCache, loader);
+				}
+				catch (Exception x)
+				{
+					Log.w(TAG, String.format("Failed to revalidate %s %s", method, id), x);
+				}
+				finally
+				{
+					synchronized (pendingRevalidations)
+					{
+						pendingRevalidations.remove(key);
+					}
+				}
+			}
+		});
+	}
+
+	private static void putInMemory(Context context, LRUCache<String, TimeLimitedCache<MusicDirectory>> memoryCache, String id, MusicDirectory dir)
+	{
+		TimeLimitedCache<MusicDirectory> cache = new TimeLimitedCache<MusicDirectory>(Util.getDirectoryCacheTime(context), TimeUnit.SECONDS);
+		cache.set(dir);
+		memoryCache.put(id, cache);
 	}
 
 	@Override
@@ -209,9 +360,9 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public MusicDirectory getPlaylist(String id, String name, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getPlaylist(String id, String name, Context context, ProgressListener progressListener, EntryListener entryListener) throws Exception
 	{
-		return musicService.getPlaylist(id, name, context, progressListener);
+		return musicService.getPlaylist(id, name, context, progressListener, entryListener);
 	}
 
 	@Override
@@ -301,9 +452,25 @@ public class CachedMusicService implements MusicService
 	}
 
 	@Override
-	public Bitmap getCoverArt(Context context, MusicDirectory.Entry entry, int size, boolean saveToFile, boolean highQuality, ProgressListener progressListener) throws Exception
+	public Bitmap getCoverArt(final Context context, final MusicDirectory.Entry entry, final int size, final boolean saveToFile, final boolean highQuality, final ProgressListener progressListener) throws Exception
 	{
-		return musicService.getCoverArt(context, entry, size, saveToFile, highQuality, progressListener);
+		if (entry == null || entry.getCoverArt() == null)
+		{
+			return musicService.getCoverArt(context, entry, size, saveToFile, highQuality, progressListener);
+		}
+
+		// Coalesce on the cover art id rather than the entry, since all songs of an album share
+		// it, but not across servers, as each has its own ids
+		String key = String.format("%s:%s:%d:%b:%b", Util.getRestUrl(context, null), entry.getCoverArt(), size, saveToFile, highQuality);
+
+		return coverArtLoads.execute(key, progressListener, new SingleFlight.Load<Bitmap>()
+		{
+			@Override
+			public Bitmap load(ProgressListener progressListener) throws Exception
+			{
+				return musicService.getCoverArt(context, entry, size, saveToFile, highQuality, progressListener);
+			}
+		});
 	}
 
 	@Override
@@ -312,6 +479,12 @@ public class CachedMusicService implements MusicService
 		return musicService.getDownloadInputStream(context, song, offset, maxBitrate, task);
 	}
 
+	@Override
+	public Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, CancellableTask task) throws Exception
+	{
+		return musicService.getDownloadInputStream(context, song, offset, length, maxBitrate, task);
+	}
+
 	@Override
 	public Version getLocalVersion(Context context) throws Exception
 	{
@@ -368,6 +541,23 @@ public class CachedMusicService implements MusicService
 			cachedAlbum.clear();
 			cachedArtist.clear();
 			cachedUserInfo.clear();
+
+			// Entries of a server used in an earlier run are left to the cache cleaner
+			if (restUrl != null)
+			{
+				final Context appContext = context.getApplicationContext();
+				final String oldUrl = restUrl;
+
+				revalidationExecutor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						persistentCache.clear(appContext, oldUrl);
+					}
+				});
+			}
+
 			restUrl = newUrl;
 		}
 	}
@@ -494,4 +684,9 @@ public class CachedMusicService implements MusicService
 	{
 		return musicService.getAvatar(context, username, size, saveToFile, highQuality, progressListener);
 	}
+
+	private interface DirectoryLoader
+	{
+		MusicDirectory load(Context context, boolean refresh, ProgressListener progressListener) throws Exception;
+	}
 }
@@ -20,13 +20,19 @@ package com.budrotech.jukebox.service;
 
 import android.content.Context;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.PowerManager;
 import android.util.Log;
 
 import com.budrotech.jukebox.domain.MusicDirectory;
 import com.budrotech.jukebox.util.CacheCleaner;
+import com.budrotech.jukebox.util.CacheIndex;
 import com.budrotech.jukebox.util.CancellableTask;
 import com.budrotech.jukebox.util.FileUtil;
+import com.budrotech.jukebox.util.MetadataStore;
+import com.budrotech.jukebox.util.SearchIndex;
+import com.budrotech.jukebox.util.SongCatalog;
 import com.budrotech.jukebox.util.Util;
 
 import java.io.File;
@@ -36,6 +42,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import okhttp3.Response;
 
@@ -51,11 +58,19 @@ public class DownloadFile
 {
 
 	private static final String TAG = DownloadFile.class.getSimpleName();
+
+	/**
+	 * The bit rate in Kbps assumed for a song whose bit rate is unknown.
+	 */
+	public static final int DEFAULT_BIT_RATE = 160;
+
+	private static Handler indexHandler;
 	private final Context context;
 	private final MusicDirectory.Entry song;
 	private final File partialFile;
 	private final File completeFile;
 	private final File saveFile;
+	private final File segmentStateFile;
 
 	private final MediaStoreService mediaStoreService;
 	private CancellableTask downloadTask;
@@ -66,6 +81,10 @@ public class DownloadFile
 	private volatile boolean saveWhenDone;
 	private volatile boolean completeWhenDone;
 	private Integer contentLength;
+	private volatile SegmentedDownloader segmentedDownloader;
+	private final Object progressMonitor = new Object();
+	private long progressRevision;
+	private final AtomicBoolean indexUpdatePending = new AtomicBoolean(false);
 
 	public DownloadFile(Context context, MusicDirectory.Entry song, boolean save)
 	{
@@ -75,9 +94,10 @@ public class DownloadFile
 		this.save = save;
 
 		saveFile = FileUtil.getSongFile(context, song);
-		bitRate = Util.getMaxBitRate(context);
+		bitRate = getTargetBitRate();
 		partialFile = new File(saveFile.getParent(), String.format("%s.partial.%s", FileUtil.getBaseName(saveFile.getName()), FileUtil.getExtension(saveFile.getName())));
 		completeFile = new File(saveFile.getParent(), String.format("%s.complete.%s", FileUtil.getBaseName(saveFile.getName()), FileUtil.getExtension(saveFile.getName())));
+		segmentStateFile = SegmentedDownloader.getStateFile(partialFile);
 		mediaStoreService = new MediaStoreService(context);
 	}
 
@@ -93,7 +113,7 @@ public class DownloadFile
 	{
 		if (!partialFile.exists())
 		{
-			bitRate = Util.getMaxBitRate(context);
+			bitRate = getTargetBitRate();
 		}
 
 		if (bitRate > 0)
@@ -101,7 +121,8 @@ public class DownloadFile
 			return bitRate;
 		}
 
-		return song.getBitRate() == null ? 160 : song.getBitRate();
+		Integer songBitRate = song.getBitRate();
+		return songBitRate == null || songBitRate <= 0 ? DEFAULT_BIT_RATE : songBitRate;
 	}
 
 	public Integer getContentLength()
@@ -109,18 +130,167 @@ public class DownloadFile
 		return contentLength;
 	}
 
-	public synchronized void download()
+	/**
+	 * Returns the number of bytes downloaded so far, including ranges which are not yet
+	 * contiguous with the start of the file.
+	 */
+	public long getBytesDownloaded()
+	{
+		if (isCompleteFileAvailable())
+		{
+			return getCompleteFile().length();
+		}
+
+		SegmentedDownloader segmented = segmentedDownloader;
+		return segmented != null ? segmented.getBytesDownloaded() : partialFile.length();
+	}
+
+	/**
+	 * Returns the number of bytes which can be read from the start of the partial file.
+	 * A segmented download preallocates the partial file, so its length is not the amount
+	 * of data available.
+	 */
+	public long getBufferedLength()
+	{
+		if (isCompleteFileAvailable())
+		{
+			return getCompleteFile().length();
+		}
+
+		SegmentedDownloader segmented = segmentedDownloader;
+
+		if (segmented != null)
+		{
+			return segmented.getContiguousLength();
+		}
+
+		return segmentStateFile.exists() ? 0 : partialFile.length();
+	}
+
+	/**
+	 * Returns the expected size of the downloaded file, or -1 if unknown.
+	 */
+	public long getExpectedLength()
+	{
+		SegmentedDownloader segmented = segmentedDownloader;
+
+		if (segmented != null)
+		{
+			return segmented.getLength();
+		}
+
+		if (contentLength != null)
+		{
+			return contentLength;
+		}
+
+		if (bitRate == 0 && song.getTranscodedSuffix() == null && song.getSize() != null)
+		{
+			return song.getSize();
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns a counter which is incremented whenever data is downloaded or the download
+	 * ends. Read it before checking a condition, and pass it to {@link #awaitProgress} to
+	 * wait for the condition to change without missing an update.
+	 */
+	public long getProgressRevision()
+	{
+		synchronized (progressMonitor)
+		{
+			return progressRevision;
+		}
+	}
+
+	/**
+	 * Blocks until the progress revision differs from the given one, or the timeout elapses.
+	 */
+	public void awaitProgress(long revision, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		synchronized (progressMonitor)
+		{
+			long remaining = timeoutMillis;
+
+			while (progressRevision == revision && remaining > 0)
+			{
+				progressMonitor.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Wakes up everyone waiting in {@link #awaitProgress}.
+	 */
+	void notifyProgress()
+	{
+		synchronized (progressMonitor)
+		{
+			progressRevision++;
+			progressMonitor.notifyAll();
+		}
+
+		DownloadStateStore.getInstance(context).publishProgress(this);
+	}
+
+	/**
+	 * Returns the download progress in percent, or -1 if the size of the file is unknown.
+	 */
+	public int getDownloadProgress()
+	{
+		if (isCompleteFileAvailable())
+		{
+			return 100;
+		}
+
+		long expectedLength = getExpectedLength();
+		return expectedLength <= 0 ? -1 : (int) Math.min(100, getBytesDownloaded() * 100 / expectedLength);
+	}
+
+	/**
+	 * Returns the bit rate a new download is expected at. Songs to be saved are kept at the
+	 * configured maximum, since a copy at a lowered rate would stay in the cache for good.
+	 */
+	private int getTargetBitRate()
+	{
+		return save ? Util.getMaxBitRate(context) : BitRateController.getInstance(context).getMaxBitRate();
+	}
+
+	/**
+	 * @param priority        {@link CancellableTask#PRIORITY_PLAYBACK} if the song is being played.
+	 * @param adaptiveBitRate Whether the bit rate may be lowered for the throughput, as for
+	 *                        songs streamed or prefetched for playback. Otherwise, and for songs
+	 *                        to be saved, the configured maximum is used.
+	 */
+	public synchronized void download(int priority, boolean adaptiveBitRate)
 	{
 		FileUtil.createDirectoryForParent(saveFile);
 		failed = false;
 
 		if (!partialFile.exists())
 		{
-			bitRate = Util.getMaxBitRate(context);
+			bitRate = adaptiveBitRate && !save ? BitRateController.getInstance(context).chooseBitRate(song) : Util.getMaxBitRate(context);
 		}
 
-		downloadTask = new DownloadTask();
+		downloadTask = new DownloadTask(priority);
 		downloadTask.start();
+		DownloadStateStore.getInstance(context).publish(this);
+	}
+
+	/**
+	 * Changes the priority of the running download, and of the ranges it waits for.
+	 */
+	public synchronized void setDownloadPriority(int priority)
+	{
+		if (downloadTask != null)
+		{
+			downloadTask.setPriority(priority);
+		}
 	}
 
 	public synchronized void cancelDownload()
@@ -151,6 +321,11 @@ public class DownloadFile
 		return partialFile;
 	}
 
+	public File getSegmentStateFile()
+	{
+		return segmentStateFile;
+	}
+
 	public boolean isSaved()
 	{
 		return saveFile.exists();
@@ -190,9 +365,12 @@ public class DownloadFile
 	{
 		cancelDownload();
 		Util.delete(partialFile);
+		Util.delete(segmentStateFile);
 		Util.delete(completeFile);
 		Util.delete(saveFile);
+		segmentedDownloader = null;
 		mediaStoreService.deleteFromMediaStore(this);
+		updateCacheIndex();
 	}
 
 	public void unpin()
@@ -200,6 +378,7 @@ public class DownloadFile
 		if (saveFile.exists())
 		{
 			saveFile.renameTo(completeFile);
+			updateCacheIndex();
 		}
 	}
 
@@ -210,6 +389,7 @@ public class DownloadFile
 		if (completeFile.exists() || saveFile.exists())
 		{
 			ok = Util.delete(partialFile);
+			ok &= Util.delete(segmentStateFile);
 		}
 
 		if (saveFile.exists())
@@ -217,15 +397,83 @@ public class DownloadFile
 			ok &= Util.delete(completeFile);
 		}
 
+		updateCacheIndex();
 		return ok;
 	}
 
-	// In support of LRU caching.
+	// In support of LRU caching. Called when the song is played, so the files are touched in
+	// the background.
 	public void updateModificationDate()
 	{
-		updateModificationDate(saveFile);
-		updateModificationDate(partialFile);
-		updateModificationDate(completeFile);
+		getIndexHandler().post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				updateModificationDate(saveFile);
+				updateModificationDate(partialFile);
+				updateModificationDate(completeFile);
+			}
+		});
+
+		updateCacheIndex();
+	}
+
+	/**
+	 * Records the state of the files of this song in the cache index, the search index and
+	 * the metadata store in the background, and publishes it to the views of the song.
+	 * Updates requested while one is waiting are merged into it, as it reads the state of
+	 * the files when it runs.
+	 */
+	private void updateCacheIndex()
+	{
+		if (indexUpdatePending.compareAndSet(false, true))
+		{
+			getIndexHandler().post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					indexUpdatePending.set(false);
+					writeCacheIndex();
+				}
+			});
+		}
+	}
+
+	private void writeCacheIndex()
+	{
+		CacheIndex cacheIndex = CacheIndex.getInstance(context);
+		cacheIndex.update(partialFile);
+		cacheIndex.update(completeFile);
+		cacheIndex.update(saveFile);
+
+		if (saveFile.exists() || completeFile.exists())
+		{
+			SearchIndex.getInstance(context).add(saveFile, song);
+			MetadataStore.getInstance(context).put(saveFile.exists() ? saveFile : completeFile, song);
+			SongCatalog.getInstance(context).add(saveFile);
+		}
+		else
+		{
+			SearchIndex.getInstance(context).remove(saveFile);
+			MetadataStore.getInstance(context).remove(saveFile);
+			SongCatalog.getInstance(context).remove(saveFile);
+		}
+
+		DownloadStateStore.getInstance(context).publish(this);
+	}
+
+	private static synchronized Handler getIndexHandler()
+	{
+		if (indexHandler == null)
+		{
+			HandlerThread thread = new HandlerThread("CacheIndexUpdater");
+			thread.start();
+			indexHandler = new Handler(thread.getLooper());
+		}
+
+		return indexHandler;
 	}
 
 	private static void updateModificationDate(File file)
@@ -264,6 +512,7 @@ public class DownloadFile
 			{
 				Util.renameFile(completeFile, saveFile);
 				saveWhenDone = false;
+				updateCacheIndex();
 			}
 			else if (completeWhenDone && !isPlaying)
 			{
@@ -278,6 +527,7 @@ public class DownloadFile
 				}
 
 				completeWhenDone = false;
+				updateCacheIndex();
 			}
 		}
 		catch (IOException ex)
@@ -286,6 +536,7 @@ public class DownloadFile
 		}
 
 		this.isPlaying = isPlaying;
+		notifyProgress();
 	}
 
 	@Override
@@ -296,6 +547,34 @@ public class DownloadFile
 
 	private class DownloadTask extends CancellableTask
 	{
+		private long bytesCopied;
+		private long bytesReported;
+		private volatile SegmentedDownloader segmented;
+
+		DownloadTask(int priority)
+		{
+			setPriority(priority);
+		}
+
+		// A segmented download waits for its segments, and any other download transfers on
+		// the thread the pool keeps for it
+		@Override
+		protected boolean waitsForTasks()
+		{
+			return true;
+		}
+
+		@Override
+		protected void onPriorityChanged(int priority)
+		{
+			SegmentedDownloader current = segmented;
+
+			if (current != null)
+			{
+				current.setPriority(priority);
+			}
+		}
+
 		@Override
 		public void execute()
 		{
@@ -303,6 +582,7 @@ public class DownloadFile
 			FileOutputStream out = null;
 			PowerManager.WakeLock wakeLock = null;
 			WifiManager.WifiLock wifiLock = null;
+			boolean started = false;
 
 			try
 			{
@@ -343,6 +623,8 @@ public class DownloadFile
 				}
 
 				MusicService musicService = MusicServiceFactory.getMusicService(context);
+				PrefetchPlanner.getInstance(context).downloadStarted();
+				started = true;
 
 				// Some devices seem to throw error on partial file which doesn't exist
 				boolean compare;
@@ -365,24 +647,30 @@ public class DownloadFile
 					compare = true;
 				}
 
-				if (compare)
+				if (compare && downloadSegmented(musicService))
+				{
+					downloadAndSaveCoverArt(musicService);
+				}
+				else if (compare)
 				{
 					// Attempt partial HTTP GET, appending to the file if it exists.
-					Response response = musicService.getDownloadInputStream(context, song, partialFile.length(), bitRate, DownloadTask.this);
+					long offset = partialFile.length();
+					Response response = musicService.getDownloadInputStream(context, song, offset, bitRate, DownloadTask.this);
 					String contentLengthHeader = response.header("Content-Length");
 
-					if (contentLengthHeader != null)
-					{
-							Log.i(TAG, "Content Length: " + contentLengthHeader);
-							contentLength = Integer.parseInt(contentLengthHeader);
-					}
-
 					in = response.body().byteStream();
 					boolean partial = response.code() == HttpURLConnection.HTTP_PARTIAL;
 
 					if (partial)
 					{
-						Log.i(TAG, String.format("Executed partial HTTP GET, skipping %d bytes", partialFile.length()));
+						Log.i(TAG, String.format("Executed partial HTTP GET, skipping %d bytes", offset));
+					}
+
+					if (contentLengthHeader != null)
+					{
+						// The length of a partial response does not include the skipped bytes
+						Log.i(TAG, "Content Length: " + contentLengthHeader);
+						contentLength = (int) ((partial ? offset : 0) + Long.parseLong(contentLengthHeader));
 					}
 
 					out = new FileOutputStream(partialFile, partial);
@@ -453,6 +741,14 @@ public class DownloadFile
 					wifiLock.release();
 				}
 
+				if (started)
+				{
+					PrefetchPlanner.getInstance(context).downloadStopped();
+				}
+
+				notifyProgress();
+				updateCacheIndex();
+
 				new CacheCleaner(context, DownloadServiceImpl.getInstance()).cleanSpace();
 
 				if (DownloadServiceImpl.getInstance() != null)
@@ -462,12 +758,82 @@ public class DownloadFile
 			}
 		}
 
+		@Override
+		protected void onFinished()
+		{
+			DownloadStateStore.getInstance(context).publish(DownloadFile.this);
+		}
+
 		@Override
 		public String toString()
 		{
 			return String.format("DownloadTask (%s)", song);
 		}
 
+		/**
+		 * Fetches the song in ranges over several connections, resuming an interrupted
+		 * segmented download if there is one. Returns false if the song should be
+		 * downloaded in one piece instead.
+		 */
+		private boolean downloadSegmented(MusicService musicService) throws Exception
+		{
+			boolean resume = segmentStateFile.exists();
+
+			if (!resume && (partialFile.length() > 0 || !Util.getShouldUseSegmentedDownloads(context) || !SegmentedDownloader.canDownload(song, bitRate)))
+			{
+				return false;
+			}
+
+			SegmentedDownloader downloader = new SegmentedDownloader(context, song, partialFile, new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					SegmentedDownloader current = segmented;
+
+					if (current != null)
+					{
+						reportBytes();
+					}
+
+					notifyProgress();
+				}
+			});
+			segmentedDownloader = downloader;
+			segmented = downloader;
+
+			if (!downloader.download(musicService, this))
+			{
+				segmentedDownloader = null;
+				return false;
+			}
+
+			Log.i(TAG, String.format("Downloaded %d bytes to %s in ranges", downloader.getLength(), partialFile));
+
+			if (isCancelled())
+			{
+				throw new Exception(String.format("Download of '%s' was cancelled", song));
+			}
+
+			return true;
+		}
+
+		/**
+		 * Reports the data transferred since the last call to the planner. Called from the
+		 * segment threads as well as the copy loop.
+		 */
+		private synchronized void reportBytes()
+		{
+			SegmentedDownloader current = segmented;
+			long total = bytesCopied + (current == null ? 0 : current.getBytesTransferred());
+
+			if (total > bytesReported)
+			{
+				PrefetchPlanner.getInstance(context).bytesTransferred(total - bytesReported);
+				bytesReported = total;
+			}
+		}
+
 		private void downloadAndSaveCoverArt(MusicService musicService)
 		{
 			try
@@ -484,33 +850,12 @@ public class DownloadFile
 			}
 		}
 
+		/**
+		 * Cancelling the task cancels the HTTP call and interrupts this thread, either of
+		 * which makes the read fail, so the copy returns promptly.
+		 */
 		private long copy(final InputStream in, OutputStream out) throws IOException
 		{
-			// Start a thread that will close the input stream if the task is
-			// cancelled, thus causing the copy() method to return.
-			new Thread()
-			{
-				@Override
-				public void run()
-				{
-					while (true)
-					{
-						Util.sleepQuietly(3000L);
-
-						if (isCancelled())
-						{
-							Util.close(in);
-							return;
-						}
-
-						if (!isRunning())
-						{
-							return;
-						}
-					}
-				}
-			}.start();
-
 			byte[] buffer = new byte[1024 * 16];
 			long count = 0;
 			int n;
@@ -520,6 +865,9 @@ public class DownloadFile
 			{
 				out.write(buffer, 0, n);
 				count += n;
+				bytesCopied += n;
+				reportBytes();
+				notifyProgress();
 
 				long now = System.currentTimeMillis();
 				if (now - lastLog > 3000L)
@@ -66,6 +66,11 @@ public interface DownloadService
 
 	void remove(DownloadFile downloadFile);
 
+	/**
+	 * Moves the song at the given position of the play queue to another position.
+	 */
+	void move(int from, int to);
+
 	long getDownloadListDuration();
 
 	List<DownloadFile> getSongs();
@@ -80,6 +85,8 @@ public interface DownloadService
 
 	DownloadFile getCurrentDownloading();
 
+	List<DownloadFile> getCurrentDownloads();
+
 	void play(int index);
 
 	void seekTo(int position);
@@ -102,6 +109,12 @@ public interface DownloadService
 
 	int getPlayerDuration();
 
+	/**
+	 * Returns the last reading of the player position, from which the current position can
+	 * be worked out without asking the service again.
+	 */
+	PlaybackClock getPlaybackClock();
+
 	void delete(List<MusicDirectory.Entry> songs);
 
 	void unpin(List<MusicDirectory.Entry> songs);
@@ -110,6 +123,12 @@ public interface DownloadService
 
 	long getDownloadListUpdateRevision();
 
+	/**
+	 * Returns the milliseconds from the last request to play a song until its audio started,
+	 * or -1 if no song has been started yet.
+	 */
+	long getTimeToFirstAudio();
+
 	void setSuggestedPlaylistName(String name);
 
 	String getSuggestedPlaylistName();
@@ -34,9 +34,11 @@ import android.media.RemoteControlClient;
 import android.media.audiofx.AudioEffect;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.RemoteViews;
 import android.widget.SeekBar;
@@ -54,10 +56,11 @@ import com.budrotech.jukebox.provider.SonicJukeboxAppWidgetProvider4X2;
 import com.budrotech.jukebox.provider.SonicJukeboxAppWidgetProvider4X3;
 import com.budrotech.jukebox.provider.SonicJukeboxAppWidgetProvider4X4;
 import com.budrotech.jukebox.receiver.MediaButtonIntentReceiver;
+import com.budrotech.jukebox.util.ArtworkCache;
 import com.budrotech.jukebox.util.CancellableTask;
 import com.budrotech.jukebox.util.Constants;
-import com.budrotech.jukebox.util.FileUtil;
 import com.budrotech.jukebox.util.LRUCache;
+import com.budrotech.jukebox.util.LockStats;
 import com.budrotech.jukebox.util.ShufflePlayBuffer;
 import com.budrotech.jukebox.util.SimpleServiceBinder;
 import com.budrotech.jukebox.util.StreamProxy;
@@ -72,6 +75,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author Sindre Mehus, Joshua Bahnsen
@@ -80,6 +85,11 @@ import java.util.Random;
 public class DownloadServiceImpl extends Service implements DownloadService {
     private static final String TAG = DownloadServiceImpl.class.getSimpleName();
 
+    // Buffering is driven by download progress; these only bound the wait for other changes.
+    private static final long BUFFER_CHECK_INTERVAL = 5000L;
+    private static final long COMPLETION_CHECK_INTERVAL = 5000L;
+    private static final int WIDGET_IMAGE_SIZE = 240;
+
     public static final String CMD_PLAY = "com.budrotech.jukebox.CMD_PLAY";
     public static final String CMD_TOGGLEPAUSE = "com.budrotech.jukebox.CMD_TOGGLEPAUSE";
     public static final String CMD_PAUSE = "com.budrotech.jukebox.CMD_PAUSE";
@@ -92,8 +102,8 @@ public class DownloadServiceImpl extends Service implements DownloadService {
     private MediaPlayer mediaPlayer;
     private MediaPlayer nextMediaPlayer;
     private boolean nextSetup;
-    private final List<DownloadFile> downloadList = new ArrayList<DownloadFile>();
-    private final List<DownloadFile> backgroundDownloadList = new ArrayList<DownloadFile>();
+    private final PlayQueue downloadList = new PlayQueue();
+    private final PlayQueue backgroundDownloadList = new PlayQueue();
     private final Handler handler = new Handler();
     private Handler mediaPlayerHandler;
     private final DownloadServiceLifecycleSupport lifecycleSupport = new DownloadServiceLifecycleSupport(this);
@@ -101,34 +111,45 @@ public class DownloadServiceImpl extends Service implements DownloadService {
 
     private final LRUCache<MusicDirectory.Entry, DownloadFile> downloadFileCache = new LRUCache<MusicDirectory.Entry, DownloadFile>(100);
     private final List<DownloadFile> cleanupCandidates = new ArrayList<DownloadFile>();
+    private final Object downloadLock = new Object();
+    private final AtomicBoolean downloadCheckPending = new AtomicBoolean();
+    private final LockStats serviceLockStats = new LockStats("service lock");
+    private final LockStats downloadLockStats = new LockStats("download lock");
+    private Handler downloadHandler;
     private final Scrobbler scrobbler = new Scrobbler();
     private final JukeboxService jukeboxService = new JukeboxService(this);
+    private final PlaybackStateBus playbackStateBus = PlaybackStateBus.getInstance();
+    private final List<PlaybackStateBus.Subscriber> subscribers = new ArrayList<PlaybackStateBus.Subscriber>();
     private Notification notification = new Notification(R.drawable.ic_stat_jukebox, null, System.currentTimeMillis());
 
-    private DownloadFile currentPlaying;
+    private volatile DownloadFile currentPlaying;
     private DownloadFile nextPlaying;
-    private DownloadFile currentDownloading;
+    // Modified only while holding downloadLock, but read without locking
+    private final List<DownloadFile> currentDownloads = new CopyOnWriteArrayList<DownloadFile>();
     private CancellableTask bufferTask;
     private CancellableTask nextPlayingTask;
-    private PlayerState playerState = PlayerState.IDLE;
-    private PlayerState nextPlayerState = PlayerState.IDLE;
-    private boolean shufflePlay;
-    private long revision;
+    private volatile PlayerState playerState = PlayerState.IDLE;
+    private volatile PlayerState nextPlayerState = PlayerState.IDLE;
+    private volatile boolean shufflePlay;
+    private volatile long revision;
     private static DownloadService instance;
     private String suggestedPlaylistName;
     private PowerManager.WakeLock wakeLock;
     private boolean keepScreenOn;
-    private int cachedPosition;
+    private volatile PlaybackClock playbackClock = PlaybackClock.STOPPED;
+    private volatile boolean stalled;
+    private volatile int cachedDuration;
 
     private static boolean equalizerAvailable;
     private EqualizerController equalizerController;
-    private boolean jukeboxEnabled;
-    private PositionCache positionCache;
+    private volatile boolean jukeboxEnabled;
     private StreamProxy proxy;
     public RemoteControlClient remoteControlClient;
     private AudioManager audioManager;
     private int secondaryProgress = -1;
     private boolean autoPlayStart;
+    private long playRequestedAt;
+    private volatile long timeToFirstAudio = -1;
 
     static {
         try {
@@ -226,6 +247,19 @@ public class DownloadServiceImpl extends Service implements DownloadService {
         wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, this.getClass().getName());
         wakeLock.setReferenceCounted(false);
 
+        HandlerThread downloadThread = new HandlerThread("DownloadScheduler");
+        downloadThread.start();
+        downloadHandler = new Handler(downloadThread.getLooper());
+
+        subscribers.add(new BroadcastSubscriber());
+        subscribers.add(new RemoteControlSubscriber());
+        subscribers.add(new WidgetSubscriber());
+        subscribers.add(new NotificationSubscriber());
+
+        for (PlaybackStateBus.Subscriber subscriber : subscribers) {
+            playbackStateBus.subscribe(subscriber);
+        }
+
         instance = this;
         lifecycleSupport.onCreate();
     }
@@ -243,6 +277,11 @@ public class DownloadServiceImpl extends Service implements DownloadService {
 
         try {
             instance = null;
+
+            for (PlaybackStateBus.Subscriber subscriber : subscribers) {
+                playbackStateBus.unsubscribe(subscriber);
+            }
+
             lifecycleSupport.onDestroy();
             mediaPlayer.release();
 
@@ -251,7 +290,13 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             }
 
             mediaPlayerLooper.quit();
+            downloadHandler.getLooper().quit();
             shufflePlayBuffer.shutdown();
+            Log.i(TAG, serviceLockStats.toString());
+            Log.i(TAG, downloadLockStats.toString());
+            Log.i(TAG, jukeboxService.getStats());
+            Log.i(TAG, HttpClientRegistry.getStats());
+            Log.i(TAG, BitRateController.getInstance(this).toString());
 
             if (equalizerController != null) {
                 equalizerController.release();
@@ -374,6 +419,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             if (currentPlaying == null) {
                 currentPlaying = downloadList.get(0);
                 currentPlaying.setPlaying(true);
+                DownloadStateStore.getInstance(this).setCurrentPlaying(currentPlaying);
             }
 
             checkDownloads();
@@ -426,6 +472,45 @@ public class DownloadServiceImpl extends Service implements DownloadService {
         }
     }
 
+    /**
+     * Adds songs read from the saved queue after the songs restored before them. If the queue
+     * was changed since, they are inserted after the last song restored before, or appended
+     * if that song was removed, so that they are kept either way.
+     *
+     * @param after    The last song restored before.
+     * @param revision The revision returned by the previous call, or -1.
+     * @return The revision of the queue with the songs added.
+     */
+    synchronized long restoreMore(List<MusicDirectory.Entry> songs, MusicDirectory.Entry after, long revision) {
+        int position = downloadList.size();
+
+        if (revision != this.revision) {
+            List<DownloadFile> downloadFiles = downloadList.find(after);
+
+            if (!downloadFiles.isEmpty()) {
+                position = downloadList.indexOf(downloadFiles.get(downloadFiles.size() - 1)) + 1;
+            }
+        }
+
+        boolean afterCurrent = position > 0 && position - 1 == getCurrentPlayingIndex();
+
+        for (MusicDirectory.Entry song : songs) {
+            if (!song.isDirectory()) {
+                downloadList.add(position++, new DownloadFile(this, song, false));
+            }
+        }
+
+        revision = ++this.revision;
+        updateJukeboxPlaylist();
+
+        if (afterCurrent) {
+            setNextPlaying();
+        }
+
+        checkDownloads();
+        return revision;
+    }
+
     @Override
     public void stopJukeboxService() {
         jukeboxService.stopJukeboxService();
@@ -487,8 +572,10 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             }
         }
 
+        int size = downloadList.size();
+        List<DownloadFile> shuffled = new ArrayList<DownloadFile>(size);
         List<DownloadFile> slots = new ArrayList<DownloadFile>(keys.size());
-        for (int shuffledIndex = 0, insertIndex = 0; insertIndex < downloadList.size(); shuffledIndex++) {
+        for (int shuffledIndex = 0; shuffled.size() < size; shuffledIndex++) {
             slots.clear();
             for (int keyIndex = 0; keyIndex < keys.size(); keyIndex++) {
                 if (shuffledLists[keyIndex][shuffledIndex] != null) {
@@ -497,15 +584,16 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             }
 
             Collections.shuffle(slots);
-            for (DownloadFile downloadFile : slots) {
-                downloadList.set(insertIndex++, downloadFile);
-            }
+            shuffled.addAll(slots);
         }
 
-        if (currentPlaying != null) {
-            downloadList.remove(getCurrentPlayingIndex());
-            downloadList.add(0, currentPlaying);
+        if (currentPlaying != null && shuffled.remove(currentPlaying)) {
+            shuffled.add(0, currentPlaying);
         }
+
+        // A download file can only be queued once, so the queue is rebuilt in the new order
+        downloadList.clear();
+        downloadList.addAll(shuffled);
         revision++;
         lifecycleSupport.serializeDownloadQueue();
         updateJukeboxPlaylist();
@@ -534,16 +622,15 @@ public class DownloadServiceImpl extends Service implements DownloadService {
     }
 
     @Override
-    public synchronized DownloadFile forSong(MusicDirectory.Entry song) {
-        for (DownloadFile downloadFile : downloadList) {
-            if (downloadFile.getSong().equals(song) && ((downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && downloadFile.getPartialFile().exists()) || downloadFile.isWorkDone())) {
+    public DownloadFile forSong(MusicDirectory.Entry song) {
+        for (DownloadFile downloadFile : downloadList.find(song)) {
+            if ((downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && downloadFile.getPartialFile().exists()) || downloadFile.isWorkDone()) {
                 return downloadFile;
             }
         }
-        for (DownloadFile downloadFile : backgroundDownloadList) {
-            if (downloadFile.getSong().equals(song)) {
-                return downloadFile;
-            }
+        List<DownloadFile> backgroundDownloads = backgroundDownloadList.find(song);
+        if (!backgroundDownloads.isEmpty()) {
+            return backgroundDownloads.get(0);
         }
 
         DownloadFile downloadFile = downloadFileCache.get(song);
@@ -561,9 +648,8 @@ public class DownloadServiceImpl extends Service implements DownloadService {
 
     @Override
     public synchronized void clearBackground() {
-        if (currentDownloading != null && backgroundDownloadList.contains(currentDownloading)) {
-            currentDownloading.cancelDownload();
-            currentDownloading = null;
+        for (DownloadFile downloadFile : backgroundDownloadList) {
+            cancelDownload(downloadFile);
         }
         backgroundDownloadList.clear();
     }
@@ -580,12 +666,13 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             }
         }
 
+        revision++;
         lifecycleSupport.serializeDownloadQueue();
         updateJukeboxPlaylist();
     }
 
     @Override
-    public synchronized int size() {
+    public int size() {
         return downloadList.size();
     }
 
@@ -593,10 +680,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
         reset();
         downloadList.clear();
         revision++;
-        if (currentDownloading != null) {
-            currentDownloading.cancelDownload();
-            currentDownloading = null;
-        }
+        cancelDownloads();
         setCurrentPlaying(null);
 
         if (serialize) {
@@ -607,11 +691,21 @@ public class DownloadServiceImpl extends Service implements DownloadService {
     }
 
     @Override
-    public synchronized void remove(DownloadFile downloadFile) {
-        if (downloadFile == currentDownloading) {
-            currentDownloading.cancelDownload();
-            currentDownloading = null;
+    public synchronized void move(int from, int to) {
+        if (from == to) {
+            return;
         }
+
+        downloadList.move(from, to);
+        revision++;
+        lifecycleSupport.serializeDownloadQueue();
+        updateJukeboxPlaylist();
+        setNextPlaying();
+    }
+
+    @Override
+    public synchronized void remove(DownloadFile downloadFile) {
+        cancelDownload(downloadFile);
         if (downloadFile == currentPlaying) {
             reset();
             setCurrentPlaying(null);
@@ -650,39 +744,18 @@ public class DownloadServiceImpl extends Service implements DownloadService {
 
     synchronized void setCurrentPlaying(DownloadFile currentPlaying) {
         this.currentPlaying = currentPlaying;
+        DownloadStateStore.getInstance(this).setCurrentPlaying(currentPlaying);
+        publishNowPlaying();
+    }
 
-        if (currentPlaying != null) {
-            Util.broadcastNewTrackInfo(this, currentPlaying.getSong());
-            Util.broadcastA2dpMetaDataChange(this, instance);
-        } else {
-            Util.broadcastNewTrackInfo(this, null);
-            Util.broadcastA2dpMetaDataChange(this, null);
-        }
-
-        updateRemoteControl();
-
-        // Update widget
-        SonicJukeboxAppWidgetProvider4X1.getInstance().notifyChange(this, this, playerState == PlayerState.STARTED, false);
-        SonicJukeboxAppWidgetProvider4X2.getInstance().notifyChange(this, this, playerState == PlayerState.STARTED, true);
-        SonicJukeboxAppWidgetProvider4X3.getInstance().notifyChange(this, this, playerState == PlayerState.STARTED, false);
-        SonicJukeboxAppWidgetProvider4X4.getInstance().notifyChange(this, this, playerState == PlayerState.STARTED, false);
-        JukeboxTabActivity tabInstance = JukeboxTabActivity.getInstance();
-
-        if (currentPlaying != null) {
-            if (tabInstance != null) {
-                int size = Util.getNotificationImageSize(this);
-
-                tabInstance.nowPlayingImage = FileUtil.getAlbumArtBitmap(this, currentPlaying.getSong(), size, true);
-                tabInstance.showNotification(handler, currentPlaying.getSong(), this, this.notification, this.playerState);
-                tabInstance.showNowPlaying();
-            }
-        } else {
-            if (tabInstance != null) {
-                tabInstance.nowPlayingImage = null;
-                tabInstance.hidePlayingNotification(handler, this);
-                tabInstance.hideNowPlaying();
-            }
-        }
+    /**
+     * Publishes the current song and player state to the notification, the widgets, the lock
+     * screen and Bluetooth devices, which are updated on the thread of the bus.
+     */
+    private void publishNowPlaying() {
+        DownloadFile currentPlaying = this.currentPlaying;
+        MusicDirectory.Entry song = currentPlaying == null ? null : currentPlaying.getSong();
+        playbackStateBus.publish(new NowPlaying(song, playerState, getCurrentPlayingIndex(), size(), getPlayerPosition(), getPlayerDuration()));
     }
 
     synchronized void setNextPlaying() {
@@ -728,7 +801,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
     }
 
     @Override
-    public synchronized int getCurrentPlayingIndex() {
+    public int getCurrentPlayingIndex() {
         return downloadList.indexOf(currentPlaying);
     }
 
@@ -739,19 +812,25 @@ public class DownloadServiceImpl extends Service implements DownloadService {
 
     @Override
     public DownloadFile getCurrentDownloading() {
-        return currentDownloading;
+        Iterator<DownloadFile> iterator = currentDownloads.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    public List<DownloadFile> getCurrentDownloads() {
+        return new ArrayList<DownloadFile>(currentDownloads);
     }
 
     @Override
     public List<DownloadFile> getSongs() {
-        return downloadList;
+        return new ArrayList<DownloadFile>(downloadList);
     }
 
     @Override
     public long getDownloadListDuration() {
         long totalDuration = 0;
 
-        for (DownloadFile downloadFile : downloadList) {
+        for (DownloadFile downloadFile : getSongs()) {
             MusicDirectory.Entry entry = downloadFile.getSong();
 
             if (!entry.isDirectory()) {
@@ -769,7 +848,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
     }
 
     @Override
-    public synchronized List<DownloadFile> getDownloads() {
+    public List<DownloadFile> getDownloads() {
         List<DownloadFile> temp = new ArrayList<DownloadFile>();
         temp.addAll(downloadList);
         temp.addAll(backgroundDownloadList);
@@ -778,7 +857,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
 
     @Override
     public List<DownloadFile> getBackgroundDownloads() {
-        return backgroundDownloadList;
+        return new ArrayList<DownloadFile>(backgroundDownloadList);
     }
 
     /**
@@ -794,12 +873,17 @@ public class DownloadServiceImpl extends Service implements DownloadService {
     }
 
     @Override
-    public synchronized void play(int index) {
-        play(index, true);
+    public void play(final int index) {
+        locked("play", new Runnable() {
+            @Override
+            public void run() {
+                play(index, true);
+            }
+        });
     }
 
     private synchronized void play(int index, boolean start) {
-        updateRemoteControl();
+        publishNowPlaying();
 
         if (index < 0 || index >= size()) {
             resetPlayback();
@@ -835,6 +919,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
         MediaPlayer tmp = mediaPlayer;
         mediaPlayer = nextMediaPlayer;
         nextMediaPlayer = tmp;
+        cachedDuration = mediaPlayer.getDuration();
         setCurrentPlaying(nextPlaying);
         setPlayerState(PlayerState.STARTED);
         setupHandlers(currentPlaying, false);
@@ -851,54 +936,74 @@ public class DownloadServiceImpl extends Service implements DownloadService {
      * Plays or resumes the playback, depending on the current player state.
      */
     @Override
-    public synchronized void togglePlayPause() {
-        if (playerState == PlayerState.PAUSED || playerState == PlayerState.COMPLETED || playerState == PlayerState.STOPPED) {
-            start();
-        } else if (playerState == PlayerState.IDLE) {
-            autoPlayStart = true;
-            play();
-        } else if (playerState == PlayerState.STARTED) {
-            pause();
-        }
+    public void togglePlayPause() {
+        locked("togglePlayPause", new Runnable() {
+            @Override
+            public void run() {
+                if (playerState == PlayerState.PAUSED || playerState == PlayerState.COMPLETED || playerState == PlayerState.STOPPED) {
+                    start();
+                } else if (playerState == PlayerState.IDLE) {
+                    autoPlayStart = true;
+                    play();
+                } else if (playerState == PlayerState.STARTED) {
+                    pause();
+                }
+            }
+        });
     }
 
     @Override
-    public synchronized void seekTo(int position) {
-        try {
-            if (jukeboxEnabled) {
-                jukeboxService.skip(getCurrentPlayingIndex(), position / 1000);
-            } else {
-                mediaPlayer.seekTo(position);
-                cachedPosition = position;
+    public void seekTo(final int position) {
+        locked("seekTo", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (jukeboxEnabled) {
+                        jukeboxService.skip(getCurrentPlayingIndex(), position / 1000);
+                    } else {
+                        mediaPlayer.seekTo(position);
+                        playbackClock = new PlaybackClock(position, playbackClock.isRunning() ? 1.0f : 0.0f, getPlayerDuration());
 
-                updateRemoteControl();
+                        publishNowPlaying();
+                    }
+                } catch (Exception x) {
+                    handleError(x);
+                }
             }
-        } catch (Exception x) {
-            handleError(x);
-        }
+        });
     }
 
     @Override
-    public synchronized void previous() {
-        int index = getCurrentPlayingIndex();
-        if (index == -1) {
-            return;
-        }
+    public void previous() {
+        locked("previous", new Runnable() {
+            @Override
+            public void run() {
+                int index = getCurrentPlayingIndex();
+                if (index == -1) {
+                    return;
+                }
 
-        // Restart song if played more than five seconds.
-        if (getPlayerPosition() > 5000 || index == 0) {
-            play(index);
-        } else {
-            play(index - 1);
-        }
+                // Restart song if played more than five seconds.
+                if (getPlayerPosition() > 5000 || index == 0) {
+                    play(index, true);
+                } else {
+                    play(index - 1, true);
+                }
+            }
+        });
     }
 
     @Override
-    public synchronized void next() {
-        int index = getCurrentPlayingIndex();
-        if (index != -1) {
-            play(index + 1);
-        }
+    public void next() {
+        locked("next", new Runnable() {
+            @Override
+            public void run() {
+                int index = getCurrentPlayingIndex();
+                if (index != -1) {
+                    play(index + 1, true);
+                }
+            }
+        });
     }
 
     private void onSongCompleted() {
@@ -944,50 +1049,87 @@ public class DownloadServiceImpl extends Service implements DownloadService {
     }
 
     @Override
-    public synchronized void pause() {
-        try {
-            if (playerState == PlayerState.STARTED) {
-                if (jukeboxEnabled) {
-                    jukeboxService.stop();
-                } else {
-                    mediaPlayer.pause();
+    public void pause() {
+        locked("pause", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (playerState == PlayerState.STARTED) {
+                        if (jukeboxEnabled) {
+                            jukeboxService.stop();
+                        } else {
+                            mediaPlayer.pause();
+                        }
+                        setPlayerState(PlayerState.PAUSED);
+                    }
+                } catch (Exception x) {
+                    handleError(x);
                 }
-                setPlayerState(PlayerState.PAUSED);
             }
-        } catch (Exception x) {
-            handleError(x);
-        }
+        });
     }
 
     @Override
-    public synchronized void stop() {
-        try {
-            if (playerState == PlayerState.STARTED) {
-                if (jukeboxEnabled) {
-                    jukeboxService.stop();
-                } else {
-                    mediaPlayer.pause();
+    public void stop() {
+        locked("stop", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (playerState == PlayerState.STARTED) {
+                        if (jukeboxEnabled) {
+                            jukeboxService.stop();
+                        } else {
+                            mediaPlayer.pause();
+                        }
+                        setPlayerState(PlayerState.STOPPED);
+                    } else if (playerState == PlayerState.PAUSED) {
+                        setPlayerState(PlayerState.STOPPED);
+                    }
+                } catch (Exception x) {
+                    handleError(x);
                 }
-                setPlayerState(PlayerState.STOPPED);
-            } else if (playerState == PlayerState.PAUSED) {
-                setPlayerState(PlayerState.STOPPED);
             }
-        } catch (Exception x) {
-            handleError(x);
-        }
+        });
     }
 
     @Override
-    public synchronized void start() {
-        try {
-            if (jukeboxEnabled) {
-                jukeboxService.start();
-            } else {
-                mediaPlayer.start();
+    public void start() {
+        locked("start", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (jukeboxEnabled) {
+                        jukeboxService.start();
+                    } else {
+                        mediaPlayer.start();
+                    }
+                    setPlayerState(PlayerState.STARTED);
+                } catch (Exception x) {
+                    handleError(x);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a player operation on the service lock, and records in the lock statistics how
+     * long it waited for the lock and held it. An operation called by another one is run
+     * directly, so that only the outermost operation is counted.
+     */
+    private void locked(String operation, Runnable body) {
+        if (Thread.holdsLock(this)) {
+            body.run();
+            return;
+        }
+
+        long requestedAt = serviceLockStats.requested();
+        synchronized (this) {
+            long acquiredAt = serviceLockStats.acquired(operation, requestedAt);
+            try {
+                body.run();
+            } finally {
+                serviceLockStats.released(operation, acquiredAt);
             }
-            setPlayerState(PlayerState.STARTED);
-        } catch (Exception x) {
-            handleError(x);
         }
     }
 
@@ -1001,19 +1143,24 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             mediaPlayer.setOnErrorListener(null);
             mediaPlayer.setOnCompletionListener(null);
             mediaPlayer.reset();
+            cachedDuration = 0;
         } catch (Exception x) {
             handleError(x);
         }
     }
 
+    /**
+     * Reads the position from the playback clock without locking, so that it never waits for
+     * the player.
+     */
     @Override
-    public synchronized int getPlayerPosition() {
+    public int getPlayerPosition() {
         try {
             if (playerState == PlayerState.IDLE || playerState == PlayerState.DOWNLOADING || playerState == PlayerState.PREPARING) {
                 return 0;
             }
 
-            return jukeboxEnabled ? jukeboxService.getPositionSeconds() * 1000 : cachedPosition;
+            return jukeboxEnabled ? jukeboxService.getPositionSeconds() * 1000 : playbackClock.getPosition();
         } catch (Exception x) {
             handleError(x);
             return 0;
@@ -1021,23 +1168,67 @@ public class DownloadServiceImpl extends Service implements DownloadService {
     }
 
     @Override
-    public synchronized int getPlayerDuration() {
+    public int getPlayerDuration() {
+        DownloadFile currentPlaying = this.currentPlaying;
         if (currentPlaying != null) {
             Integer duration = currentPlaying.getSong().getDuration();
             if (duration != null) {
                 return duration * 1000;
             }
         }
+        PlayerState playerState = this.playerState;
         if (playerState != PlayerState.IDLE && playerState != PlayerState.DOWNLOADING && playerState != PlayerState.PREPARING) {
-            try {
-                return mediaPlayer.getDuration();
-            } catch (Exception x) {
-                handleError(x);
-            }
+            return cachedDuration;
         }
         return 0;
     }
 
+    @Override
+    public PlaybackClock getPlaybackClock() {
+        return jukeboxEnabled ? new PlaybackClock(getPlayerPosition(), 0.0f, getPlayerDuration()) : playbackClock;
+    }
+
+    /**
+     * Takes a new reading of the player position for the playback clock to run from, and
+     * returns the position.
+     */
+    private int syncPlaybackClock() {
+        PlayerState playerState = this.playerState;
+        int position = playbackClock.getPosition();
+
+        try {
+            if (!jukeboxEnabled && (playerState == PlayerState.PREPARED || playerState == PlayerState.STARTED || playerState == PlayerState.PAUSED || playerState == PlayerState.COMPLETED)) {
+                position = mediaPlayer.getCurrentPosition();
+            }
+        } catch (Exception x) {
+            Log.w(TAG, "Failed to get the player position", x);
+        }
+
+        boolean running = playerState == PlayerState.STARTED && !stalled;
+        playbackClock = new PlaybackClock(position, running ? 1.0f : 0.0f, getPlayerDuration());
+        return position;
+    }
+
+    /**
+     * Takes a new reading of the player position while playing, so that a stall the player
+     * didn't report doesn't leave the playback clock running ahead of it. Called every few
+     * seconds along with the check for downloads.
+     */
+    void resyncPlaybackClock() {
+        if (jukeboxEnabled || playerState != PlayerState.STARTED) {
+            return;
+        }
+
+        locked("resyncPlaybackClock", new Runnable() {
+            @Override
+            public void run() {
+                if (playerState == PlayerState.STARTED) {
+                    syncPlaybackClock();
+                }
+            }
+        });
+    }
+
     @Override
     public PlayerState getPlayerState() {
         return playerState;
@@ -1056,80 +1247,30 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             Util.requestAudioFocus(this);
         }
 
-        boolean showWhenPaused = (this.playerState != PlayerState.STOPPED && Util.isNotificationAlwaysEnabled(this));
-        boolean show = this.playerState == PlayerState.STARTED || showWhenPaused;
-
-        Util.broadcastPlaybackStatusChange(this, this.playerState);
-        Util.broadcastA2dpPlayStatusChange(this, this.playerState, instance);
-
-        if (this.playerState == PlayerState.STARTED || this.playerState == PlayerState.PAUSED) {
-            // Set remote control
-            updateRemoteControl();
-        }
-
-        // Update widget
-        SonicJukeboxAppWidgetProvider4X1.getInstance().notifyChange(this, this, this.playerState == PlayerState.STARTED, false);
-        SonicJukeboxAppWidgetProvider4X2.getInstance().notifyChange(this, this, this.playerState == PlayerState.STARTED, true);
-        SonicJukeboxAppWidgetProvider4X3.getInstance().notifyChange(this, this, this.playerState == PlayerState.STARTED, false);
-        SonicJukeboxAppWidgetProvider4X4.getInstance().notifyChange(this, this, this.playerState == PlayerState.STARTED, false);
-        JukeboxTabActivity tabInstance = JukeboxTabActivity.getInstance();
-
-        MusicDirectory.Entry song = null;
-
-        if (currentPlaying != null) {
-            song = currentPlaying.getSong();
+        // The next player may be prepared once this one is running
+        if ((this.playerState == PlayerState.STARTED || this.playerState == PlayerState.PAUSED) && nextPlaying != null) {
+            nextPlaying.notifyProgress();
         }
 
-        if (show) {
-            if (tabInstance != null) {
-                if (JukeboxTabActivity.currentSong != song) {
-                    int size = Util.getNotificationImageSize(this);
-                    tabInstance.nowPlayingImage = FileUtil.getAlbumArtBitmap(this, song, size, true);
-                }
-
-                // Only update notification is player state is one that will change the icon
-                if (this.playerState == PlayerState.STARTED || this.playerState == PlayerState.PAUSED) {
-                    tabInstance.showNotification(handler, song, this, this.notification, this.playerState);
-                    tabInstance.showNowPlaying();
-                }
-            }
-        } else {
-            if (tabInstance != null) {
-                tabInstance.nowPlayingImage = null;
-                tabInstance.hidePlayingNotification(handler, this);
-                tabInstance.hideNowPlaying();
-            }
-        }
+        syncPlaybackClock();
+        publishNowPlaying();
 
         if (this.playerState == PlayerState.STARTED) {
             scrobbler.scrobble(this, currentPlaying, false);
         } else if (this.playerState == PlayerState.COMPLETED) {
             scrobbler.scrobble(this, currentPlaying, true);
         }
-
-        if (playerState == PlayerState.STARTED && positionCache == null) {
-            positionCache = new PositionCache();
-            Thread thread = new Thread(positionCache);
-            thread.start();
-        } else if (playerState != PlayerState.STARTED && positionCache != null) {
-            positionCache.stop();
-            positionCache = null;
-        }
     }
 
     private void setPlayerStateCompleted() {
         Log.i(TAG, String.format("%s -> %s (%s)", this.playerState.name(), PlayerState.COMPLETED, currentPlaying));
         this.playerState = PlayerState.COMPLETED;
-
-        if (positionCache != null) {
-            positionCache.stop();
-            positionCache = null;
-        }
+        syncPlaybackClock();
 
         scrobbler.scrobble(this, currentPlaying, true);
     }
 
-    private synchronized void setNextPlayerState(PlayerState playerState) {
+    private void setNextPlayerState(PlayerState playerState) {
         Log.i(TAG, String.format("Next: %s -> %s (%s)", this.nextPlayerState.name(), playerState.name(), nextPlaying));
         this.nextPlayerState = playerState;
     }
@@ -1208,9 +1349,9 @@ public class DownloadServiceImpl extends Service implements DownloadService {
 
             reset();
 
-            // Cancel current download, if necessary.
-            if (currentDownloading != null) {
-                currentDownloading.cancelDownload();
+            // Cancel current downloads, if necessary.
+            synchronized (this) {
+                cancelDownloads();
             }
         } else {
             jukeboxService.stopJukeboxService();
@@ -1273,7 +1414,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
         }
     }
 
-    private void updateRemoteControl() {
+    private void updateRemoteControl(NowPlaying nowPlaying) {
         if (!Util.isLockScreenEnabled(this)) {
             clearRemoteControl();
             return;
@@ -1286,29 +1427,29 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             setUpRemoteControlClient();
         }
 
-        Log.i(TAG, String.format("In updateRemoteControl, playerState: %s [%d]", playerState, getPlayerPosition()));
+        Log.i(TAG, String.format("In updateRemoteControl, playerState: %s [%d]", nowPlaying.getPlayerState(), nowPlaying.getPosition()));
 
-        switch (playerState) {
+        switch (nowPlaying.getPlayerState()) {
             case STARTED:
                 if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
                     remoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_PLAYING);
                 } else {
-                    remoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_PLAYING, getPlayerPosition(), 1.0f);
+                    remoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_PLAYING, nowPlaying.getPosition(), 1.0f);
                 }
                 break;
             default:
                 if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
                     remoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_PAUSED);
                 } else {
-                    remoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_PAUSED, getPlayerPosition(), 1.0f);
+                    remoteControlClient.setPlaybackState(RemoteControlClient.PLAYSTATE_PAUSED, nowPlaying.getPosition(), 1.0f);
                 }
                 break;
         }
 
-        if (currentPlaying != null) {
-            MusicDirectory.Entry currentSong = currentPlaying.getSong();
+        MusicDirectory.Entry currentSong = nowPlaying.getSong();
 
-            Bitmap lockScreenBitmap = FileUtil.getAlbumArtBitmap(this, currentSong, Util.getMinDisplayMetric(this), true);
+        if (currentSong != null) {
+            Bitmap lockScreenBitmap = ArtworkCache.getInstance(this).getArtwork(currentSong, Util.getMinDisplayMetric(this));
 
             String artist = currentSong.getArtist();
             String album = currentSong.getAlbum();
@@ -1318,12 +1459,15 @@ public class DownloadServiceImpl extends Service implements DownloadService {
 
             if (currentSongDuration != null) duration = (long) currentSongDuration * 1000;
 
+            // Shared with the other subscribers, so the editor must not recycle it
             remoteControlClient.editMetadata(true).putString(MediaMetadataRetriever.METADATA_KEY_ARTIST, artist).putString(MediaMetadataRetriever.METADATA_KEY_ALBUMARTIST, artist).putString(MediaMetadataRetriever.METADATA_KEY_ALBUM, album).putString(MediaMetadataRetriever.METADATA_KEY_TITLE, title).putLong(MediaMetadataRetriever.METADATA_KEY_DURATION, duration)
                     .putBitmap(RemoteControlClient.MetadataEditor.BITMAP_KEY_ARTWORK, lockScreenBitmap).apply();
         }
     }
 
     private synchronized void bufferAndPlay() {
+        playRequestedAt = SystemClock.elapsedRealtime();
+
         if (playerState != PlayerState.PREPARED) {
             reset();
 
@@ -1390,6 +1534,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
                 public void onPrepared(MediaPlayer mp) {
                     Log.i(TAG, "Media player prepared");
 
+                    cachedDuration = mp.getDuration();
                     setPlayerState(PlayerState.PREPARED);
 
                     SeekBar progressBar = DownloadActivity.getProgressBar();
@@ -1404,11 +1549,17 @@ public class DownloadServiceImpl extends Service implements DownloadService {
                             Log.i(TAG, String.format("Restarting player from position %d", position));
                             seekTo(position);
                         }
-                        cachedPosition = position;
+                        playbackClock = new PlaybackClock(position, 0.0f, getPlayerDuration());
 
                         if (start) {
                             mediaPlayer.start();
                             setPlayerState(PlayerState.STARTED);
+
+                            if (playRequestedAt != 0) {
+                                timeToFirstAudio = SystemClock.elapsedRealtime() - playRequestedAt;
+                                playRequestedAt = 0;
+                                Log.i(TAG, String.format("Time to first audio: %d ms (%s)", timeToFirstAudio, downloadFile));
+                            }
                         } else {
                             setPlayerState(PlayerState.PAUSED);
                         }
@@ -1480,11 +1631,13 @@ public class DownloadServiceImpl extends Service implements DownloadService {
     }
 
     private void setupHandlers(final DownloadFile downloadFile, final boolean isPartial) {
+        stalled = false;
+
         mediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
             @Override
             public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
                 Log.w(TAG, String.format("Error on playing file (%d, %d): %s", what, extra, downloadFile));
-                int pos = cachedPosition;
+                int pos = playbackClock.getPosition();
                 reset();
                 downloadFile.setPlaying(false);
                 doPlay(downloadFile, pos, true);
@@ -1493,6 +1646,25 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             }
         });
 
+        mediaPlayer.setOnInfoListener(new MediaPlayer.OnInfoListener() {
+            @Override
+            public boolean onInfo(MediaPlayer mediaPlayer, int what, int extra) {
+                if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START || what == MediaPlayer.MEDIA_INFO_BUFFERING_END) {
+                    stalled = what == MediaPlayer.MEDIA_INFO_BUFFERING_START;
+                    syncPlaybackClock();
+                }
+
+                return false;
+            }
+        });
+
+        mediaPlayer.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+            @Override
+            public void onSeekComplete(MediaPlayer mediaPlayer) {
+                syncPlaybackClock();
+            }
+        });
+
         final int duration = downloadFile.getSong().getDuration() == null ? 0 : downloadFile.getSong().getDuration() * 1000;
 
         mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
@@ -1503,7 +1675,8 @@ public class DownloadServiceImpl extends Service implements DownloadService {
                 // and allow the device to go to sleep.
                 wakeLock.acquire(60000);
 
-                int pos = cachedPosition;
+                // The clock may have run on through a stall the player didn't report
+                int pos = syncPlaybackClock();
                 Log.i(TAG, String.format("Ending position %d of %d", pos, duration));
 
                 if (!isPartial || (downloadFile.isWorkDone() && (Math.abs(duration - pos) < 1000))) {
@@ -1533,6 +1706,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
                         downloadFile.setPlaying(true);
                     } else {
                         Log.i(TAG, String.format("Requesting restart from %d of %d", pos, duration));
+                        BitRateController.getInstance(DownloadServiceImpl.this).recordRebuffer(downloadFile.getSong());
                         reset();
                         bufferTask = new BufferTask(downloadFile, pos);
                         bufferTask.start();
@@ -1567,7 +1741,34 @@ public class DownloadServiceImpl extends Service implements DownloadService {
         setNextPlayerState(PlayerState.IDLE);
     }
 
-    protected synchronized void checkDownloads() {
+    /**
+     * Schedules a check for songs to download on the download scheduler thread. Requests
+     * made while a check is pending are merged into it, and the caller never waits for it.
+     */
+    protected void checkDownloads() {
+        Handler downloadHandler = this.downloadHandler;
+
+        if (downloadHandler != null && downloadCheckPending.compareAndSet(false, true)) {
+            downloadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    downloadCheckPending.set(false);
+
+                    try {
+                        doCheckDownloads();
+                    } catch (Throwable x) {
+                        Log.e(TAG, "checkDownloads() failed.", x);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts and cancels downloads. Runs on the download scheduler thread and holds only the
+     * download lock, never the service lock, so it does not block the player or the UI.
+     */
+    private void doCheckDownloads() {
         if (!Util.isExternalStoragePresent() || !lifecycleSupport.isExternalStorageAvailable()) {
             return;
         }
@@ -1584,77 +1785,131 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             return;
         }
 
-        // Need to download current playing?
-        if (currentPlaying != null && currentPlaying != currentDownloading && !currentPlaying.isWorkDone()) {
-            // Cancel current download, if necessary.
-            if (currentDownloading != null) {
-                currentDownloading.cancelDownload();
+        long requestedAt = downloadLockStats.requested();
+
+        synchronized (downloadLock) {
+            long acquiredAt = downloadLockStats.acquired("checkDownloads", requestedAt);
+
+            try {
+                scheduleDownloads();
+            } finally {
+                downloadLockStats.released("checkDownloads", acquiredAt);
+            }
+        }
+
+        // Delete obsolete .partial and .complete files.
+        cleanup();
+    }
+
+    private void scheduleDownloads() {
+        DownloadFile currentPlaying = this.currentPlaying;
+
+        // Forget downloads which have finished or were cancelled. Failed ones are retried below.
+        List<DownloadFile> finished = new ArrayList<DownloadFile>();
+        for (DownloadFile downloadFile : currentDownloads) {
+            if (downloadFile.isWorkDone() || downloadFile.isFailed() || downloadFile.isDownloadCancelled()) {
+                finished.add(downloadFile);
             }
+        }
+        currentDownloads.removeAll(finished);
+
+        int maxDownloads = Util.getDownloadConcurrency(this);
+        CancellableTask.setWaitingPoolSize(maxDownloads);
 
-            currentDownloading = currentPlaying;
-            currentDownloading.download();
-            cleanupCandidates.add(currentDownloading);
+        // A prefetched song which is now playing is needed first, and one which no longer is
+        // can wait
+        for (DownloadFile downloadFile : currentDownloads) {
+            downloadFile.setDownloadPriority(downloadFile == currentPlaying ? CancellableTask.PRIORITY_PLAYBACK : CancellableTask.PRIORITY_DOWNLOAD);
         }
 
-        // Find a suitable target for download.
-        else {
-            if (currentDownloading == null || currentDownloading.isWorkDone() || currentDownloading.isFailed() && (!downloadList.isEmpty() || !backgroundDownloadList.isEmpty())) {
-                currentDownloading = null;
-                int n = size();
+        // Need to download current playing?
+        if (currentPlaying != null && !currentPlaying.isWorkDone() && !currentDownloads.contains(currentPlaying)) {
+            // Make room by cancelling the most recently started download, if necessary.
+            if (currentDownloads.size() >= maxDownloads) {
+                cancelDownload(currentDownloads.get(currentDownloads.size() - 1));
+            }
 
-                int preloaded = 0;
+            startDownload(currentPlaying, true);
+        }
 
-                if (n != 0) {
-                    int start = currentPlaying == null ? 0 : getCurrentPlayingIndex();
-                    if (start == -1) {
-                        start = 0;
-                    }
-                    int i = start;
-                    do {
-                        DownloadFile downloadFile = downloadList.get(i);
-                        if (!downloadFile.isWorkDone()) {
-                            if (downloadFile.shouldSave() || preloaded < Util.getPreloadCount(this)) {
-                                currentDownloading = downloadFile;
-                                currentDownloading.download();
-                                cleanupCandidates.add(currentDownloading);
-                                if (i == (start + 1)) {
-                                    setNextPlayerState(PlayerState.DOWNLOADING);
-                                }
-                                break;
-                            }
-                        } else if (currentPlaying != downloadFile) {
-                            preloaded++;
-                        }
+        // Find suitable targets for download. The queues may be changed by other threads
+        // meanwhile, so snapshots of them are scheduled.
+        if (currentDownloads.size() < maxDownloads) {
+            List<DownloadFile> songs = getSongs();
+            PrefetchPlanner.Plan plan = PrefetchPlanner.getInstance(this).plan(songs, currentPlaying, getPlayerPosition(), getRepeatMode());
+            List<DownloadFile> queue = plan.getQueue();
+            boolean prefetched = true;
 
-                        i = (i + 1) % n;
-                    } while (i != start);
+            for (int i = 0; i < queue.size(); i++) {
+                DownloadFile downloadFile = queue.get(i);
+                if (downloadFile.isWorkDone() || currentDownloads.contains(downloadFile)) {
+                    continue;
                 }
+                if (currentDownloads.size() >= maxDownloads) {
+                    prefetched = false;
+                    break;
+                }
+                startDownload(downloadFile, true);
+                if (i == 1) {
+                    setNextPlayerState(PlayerState.DOWNLOADING);
+                }
+            }
 
-                if ((preloaded + 1 == n || preloaded >= Util.getPreloadCount(this) || downloadList.isEmpty()) && !backgroundDownloadList.isEmpty()) {
-                    for (int i = 0; i < backgroundDownloadList.size(); i++) {
-                        DownloadFile downloadFile = backgroundDownloadList.get(i);
-                        if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved())) {
-                            if (Util.getShouldScanMedia(this)) {
-                                Util.scanMedia(this, downloadFile.getCompleteFile());
-                            }
+            // Songs to be saved are downloaded whether or not they will be played soon.
+            for (int i = 0; i < songs.size() && currentDownloads.size() < maxDownloads; i++) {
+                DownloadFile downloadFile = songs.get(i);
+                if (downloadFile.shouldSave() && !downloadFile.isWorkDone() && !currentDownloads.contains(downloadFile)) {
+                    startDownload(downloadFile, false);
+                }
+            }
 
-                            // Don't need to keep list like active song list
-                            backgroundDownloadList.remove(i);
-                            revision++;
-                            i--;
-                        } else {
-                            currentDownloading = downloadFile;
-                            currentDownloading.download();
-                            cleanupCandidates.add(currentDownloading);
-                            break;
+            List<DownloadFile> backgroundDownloads = getBackgroundDownloads();
+            if (prefetched && !backgroundDownloads.isEmpty()) {
+                for (int i = 0; i < backgroundDownloads.size() && currentDownloads.size() < maxDownloads; i++) {
+                    DownloadFile downloadFile = backgroundDownloads.get(i);
+                    if (downloadFile.isWorkDone() && (!downloadFile.shouldSave() || downloadFile.isSaved())) {
+                        if (Util.getShouldScanMedia(this)) {
+                            Util.scanMedia(this, downloadFile.getCompleteFile());
                         }
+
+                        // Don't need to keep list like active song list
+                        backgroundDownloadList.remove(downloadFile);
+                        revision++;
+                    } else if (!currentDownloads.contains(downloadFile)) {
+                        startDownload(downloadFile, false);
                     }
                 }
             }
         }
+    }
 
-        // Delete obsolete .partial and .complete files.
-        cleanup();
+    /**
+     * @param adaptiveBitRate Whether the song is downloaded for playback, so that its bit rate
+     *                        may be lowered to keep up with it.
+     */
+    private void startDownload(DownloadFile downloadFile, boolean adaptiveBitRate) {
+        synchronized (downloadLock) {
+            currentDownloads.add(downloadFile);
+            downloadFile.download(downloadFile == currentPlaying ? CancellableTask.PRIORITY_PLAYBACK : CancellableTask.PRIORITY_DOWNLOAD, adaptiveBitRate);
+            cleanupCandidates.add(downloadFile);
+        }
+    }
+
+    private void cancelDownload(DownloadFile downloadFile) {
+        synchronized (downloadLock) {
+            if (currentDownloads.remove(downloadFile)) {
+                downloadFile.cancelDownload();
+            }
+        }
+    }
+
+    private void cancelDownloads() {
+        synchronized (downloadLock) {
+            for (DownloadFile downloadFile : currentDownloads) {
+                downloadFile.cancelDownload();
+            }
+            currentDownloads.clear();
+        }
     }
 
     private synchronized void checkShufflePlay() {
@@ -1681,7 +1936,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             int songsToShift = currIndex - 2;
             for (MusicDirectory.Entry song : shufflePlayBuffer.get(songsToShift)) {
                 downloadList.add(new DownloadFile(this, song, false));
-                downloadList.get(0).cancelDownload();
+                cancelDownload(downloadList.get(0));
                 downloadList.remove(0);
                 revision++;
             }
@@ -1701,16 +1956,107 @@ public class DownloadServiceImpl extends Service implements DownloadService {
         return revision;
     }
 
-    private synchronized void cleanup() {
-        Iterator<DownloadFile> iterator = cleanupCandidates.iterator();
-        while (iterator.hasNext()) {
-            DownloadFile downloadFile = iterator.next();
-            if (downloadFile != currentPlaying && downloadFile != currentDownloading) {
-                if (downloadFile.cleanup()) {
-                    iterator.remove();
+    @Override
+    public long getTimeToFirstAudio() {
+        return timeToFirstAudio;
+    }
+
+    /**
+     * Deletes the obsolete files of finished downloads. The files are deleted without
+     * holding any lock.
+     */
+    private void cleanup() {
+        List<DownloadFile> candidates = new ArrayList<DownloadFile>();
+        synchronized (downloadLock) {
+            for (DownloadFile downloadFile : cleanupCandidates) {
+                if (downloadFile != currentPlaying && !currentDownloads.contains(downloadFile)) {
+                    candidates.add(downloadFile);
                 }
             }
         }
+
+        List<DownloadFile> cleaned = new ArrayList<DownloadFile>();
+        for (DownloadFile downloadFile : candidates) {
+            if (downloadFile.cleanup()) {
+                cleaned.add(downloadFile);
+            }
+        }
+
+        synchronized (downloadLock) {
+            cleanupCandidates.removeAll(cleaned);
+        }
+    }
+
+    private class BroadcastSubscriber implements PlaybackStateBus.Subscriber {
+        @Override
+        public void onNowPlaying(NowPlaying previous, NowPlaying current) {
+            if (current.isOtherSong(previous)) {
+                Util.broadcastNewTrackInfo(DownloadServiceImpl.this, current.getSong());
+                Util.broadcastA2dpMetaDataChange(DownloadServiceImpl.this, current);
+            }
+
+            if (current.getPlayerState() != previous.getPlayerState()) {
+                Util.broadcastPlaybackStatusChange(DownloadServiceImpl.this, current.getPlayerState());
+                Util.broadcastA2dpPlayStatusChange(DownloadServiceImpl.this, current);
+            }
+        }
+    }
+
+    private class RemoteControlSubscriber implements PlaybackStateBus.Subscriber {
+        @Override
+        public void onNowPlaying(NowPlaying previous, NowPlaying current) {
+            updateRemoteControl(current);
+        }
+    }
+
+    private class WidgetSubscriber implements PlaybackStateBus.Subscriber {
+        @Override
+        public void onNowPlaying(NowPlaying previous, NowPlaying current) {
+            if (!current.isOtherSong(previous) && current.isPlaying() == previous.isPlaying()) {
+                return;
+            }
+
+            Context context = DownloadServiceImpl.this;
+            Bitmap coverArt = ArtworkCache.getInstance(context).getArtwork(current.getSong(), WIDGET_IMAGE_SIZE);
+
+            SonicJukeboxAppWidgetProvider4X1.getInstance().notifyChange(context, current, coverArt, false);
+            SonicJukeboxAppWidgetProvider4X2.getInstance().notifyChange(context, current, coverArt, true);
+            SonicJukeboxAppWidgetProvider4X3.getInstance().notifyChange(context, current, coverArt, false);
+            SonicJukeboxAppWidgetProvider4X4.getInstance().notifyChange(context, current, coverArt, false);
+        }
+    }
+
+    private class NotificationSubscriber implements PlaybackStateBus.Subscriber {
+        @Override
+        public void onNowPlaying(NowPlaying previous, NowPlaying current) {
+            JukeboxTabActivity tabInstance = JukeboxTabActivity.getInstance();
+
+            if (tabInstance == null) {
+                return;
+            }
+
+            DownloadServiceImpl service = DownloadServiceImpl.this;
+            MusicDirectory.Entry song = current.getSong();
+            PlayerState state = current.getPlayerState();
+            boolean showWhenPaused = state != PlayerState.STOPPED && Util.isNotificationAlwaysEnabled(service);
+            boolean show = song != null && (state == PlayerState.STARTED || showWhenPaused);
+
+            if (show) {
+                if (JukeboxTabActivity.currentSong != song) {
+                    tabInstance.nowPlayingImage = ArtworkCache.getInstance(service).getArtwork(song, Util.getNotificationImageSize(service));
+                }
+
+                // Only update notification if the song changed or the player state will change the icon
+                if (current.isOtherSong(previous) || state == PlayerState.STARTED || state == PlayerState.PAUSED) {
+                    tabInstance.showNotification(handler, song, service, notification, state);
+                    tabInstance.showNowPlaying();
+                }
+            } else {
+                tabInstance.nowPlayingImage = null;
+                tabInstance.hidePlayingNotification(handler, service);
+                tabInstance.hideNowPlaying();
+            }
+        }
     }
 
     private class BufferTask extends CancellableTask {
@@ -1740,25 +2086,47 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             expectedFileSize = (position * bitRate / 8) + byteCount;
         }
 
+        @Override
+        protected boolean isPlayerTask() {
+            return true;
+        }
+
         @Override
         public void execute() {
             setPlayerState(PlayerState.DOWNLOADING);
+            Log.i(TAG, String.format("Buffering %s (%d bytes)", partialFile, expectedFileSize));
 
-            while (!bufferComplete() && !Util.isOffline(DownloadServiceImpl.this)) {
-                Util.sleepQuietly(1000L);
-                if (isCancelled()) {
-                    return;
+            addOnCancelListener(new OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    downloadFile.notifyProgress();
+                }
+            });
+
+            try {
+                while (true) {
+                    long progressRevision = downloadFile.getProgressRevision();
+
+                    if (bufferComplete() || Util.isOffline(DownloadServiceImpl.this)) {
+                        break;
+                    }
+
+                    downloadFile.awaitProgress(progressRevision, BUFFER_CHECK_INTERVAL);
+
+                    if (isCancelled()) {
+                        return;
+                    }
                 }
+            } catch (InterruptedException x) {
+                return;
             }
+
+            Log.i(TAG, String.format("Buffered %s (%d/%d, %s)", partialFile, downloadFile.getBufferedLength(), expectedFileSize, downloadFile.isWorkDone()));
             doPlay(downloadFile, position, true);
         }
 
         private boolean bufferComplete() {
-            boolean completeFileAvailable = downloadFile.isWorkDone();
-            long size = partialFile.length();
-
-            Log.i(TAG, String.format("Buffering %s (%d/%d, %s)", partialFile, size, expectedFileSize, completeFileAvailable));
-            return completeFileAvailable || size >= expectedFileSize;
+            return downloadFile.isWorkDone() || downloadFile.getBufferedLength() >= expectedFileSize;
         }
 
         @Override
@@ -1767,34 +2135,6 @@ public class DownloadServiceImpl extends Service implements DownloadService {
         }
     }
 
-    private class PositionCache implements Runnable {
-        boolean isRunning = true;
-
-        public void stop() {
-            isRunning = false;
-        }
-
-        @Override
-        public void run() {
-            Thread.currentThread().setName("PositionCache");
-
-            // Stop checking position before the song reaches completion
-            while (isRunning) {
-                try {
-                    if (mediaPlayer != null && playerState == PlayerState.STARTED) {
-                        cachedPosition = mediaPlayer.getCurrentPosition();
-                    }
-
-                    Util.sleepQuietly(25L);
-                } catch (Exception e) {
-                    Log.w(TAG, "Crashed getting current position", e);
-                    isRunning = false;
-                    positionCache = null;
-                }
-            }
-        }
-    }
-
     private class CheckCompletionTask extends CancellableTask {
         private final DownloadFile downloadFile;
         private final File partialFile;
@@ -1808,6 +2148,11 @@ public class DownloadServiceImpl extends Service implements DownloadService {
             partialFile = downloadFile != null ? downloadFile.getPartialFile() : null;
         }
 
+        @Override
+        protected boolean isPlayerTask() {
+            return true;
+        }
+
         @Override
         public void execute() {
             Thread.currentThread().setName("CheckCompletionTask");
@@ -1816,17 +2161,35 @@ public class DownloadServiceImpl extends Service implements DownloadService {
                 return;
             }
 
-            // Do an initial sleep so this prepare can't compete with main prepare
-            Util.sleepQuietly(5000L);
+            addOnCancelListener(new OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    downloadFile.notifyProgress();
+                }
+            });
 
-            while (!bufferComplete()) {
-                Util.sleepQuietly(5000L);
+            // Woken up by download progress, and when the main player has been prepared so
+            // this prepare can't compete with it.
+            try {
+                while (true) {
+                    long progressRevision = downloadFile.getProgressRevision();
 
-                if (isCancelled()) {
-                    return;
+                    if (bufferComplete()) {
+                        break;
+                    }
+
+                    downloadFile.awaitProgress(progressRevision, COMPLETION_CHECK_INTERVAL);
+
+                    if (isCancelled()) {
+                        return;
+                    }
                 }
+            } catch (InterruptedException x) {
+                return;
             }
 
+            Log.i(TAG, String.format("Buffered next %s (%d)", partialFile, partialFile.length()));
+
             // Start the setup of the next media player
             mediaPlayerHandler.post(new Runnable() {
                 @Override
@@ -1837,9 +2200,7 @@ public class DownloadServiceImpl extends Service implements DownloadService {
         }
 
         private boolean bufferComplete() {
-            boolean completeFileAvailable = downloadFile.isWorkDone();
-            Log.i(TAG, String.format("Buffering next %s (%d)", partialFile, partialFile.length()));
-            return completeFileAvailable && (playerState == PlayerState.STARTED || playerState == PlayerState.PAUSED);
+            return downloadFile.isWorkDone() && (playerState == PlayerState.STARTED || playerState == PlayerState.PAUSED);
         }
 
         @Override
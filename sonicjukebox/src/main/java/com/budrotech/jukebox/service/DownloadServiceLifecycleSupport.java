@@ -35,6 +35,7 @@ import com.budrotech.jukebox.util.CacheCleaner;
 import com.budrotech.jukebox.util.FileUtil;
 import com.budrotech.jukebox.util.Util;
 
+import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -54,7 +55,15 @@ public class DownloadServiceLifecycleSupport
 	private static final String TAG = DownloadServiceLifecycleSupport.class.getSimpleName();
 	private static final String FILENAME_DOWNLOADS_SER = "downloadstate.ser";
 
+	// Number of songs restored before the rest of the queue is read, about a screen full.
+	private static final int FIRST_RESTORE_COUNT = 20;
+
+	// Number of songs added to the queue at a time once the first ones are restored.
+	private static final int MORE_RESTORE_COUNT = 200;
+
 	private final DownloadServiceImpl downloadService;
+	private final PlayQueueSnapshot snapshot;
+	private long snapshotRevision = -1;
 	private ScheduledExecutorService executorService;
 	private BroadcastReceiver headsetEventReceiver;
 	private BroadcastReceiver ejectEventReceiver;
@@ -105,6 +114,7 @@ public class DownloadServiceLifecycleSupport
 	public DownloadServiceLifecycleSupport(DownloadServiceImpl downloadService)
 	{
 		this.downloadService = downloadService;
+		snapshot = new PlayQueueSnapshot(downloadService);
 	}
 
 	public void onCreate()
@@ -117,6 +127,7 @@ public class DownloadServiceLifecycleSupport
 				try
 				{
 					downloadService.checkDownloads();
+					downloadService.resyncPlaybackClock();
 				}
 				catch (Throwable x)
 				{
@@ -244,17 +255,45 @@ public class DownloadServiceLifecycleSupport
 
 	public void serializeDownloadQueueNow()
 	{
-		Iterable<DownloadFile> songs = new ArrayList<DownloadFile>(downloadService.getSongs());
-		State state = new State();
-		for (DownloadFile downloadFile : songs)
+		// Until the saved queue is restored in full, the file is the only copy of the songs
+		// which are still to be added
+		if (!setup.get())
+		{
+			Log.i(TAG, "Not serializing the play queue while it is being restored");
+			return;
+		}
+
+		long revision;
+		int currentPlayingIndex;
+		int currentPlayingPosition;
+		List<DownloadFile> downloadFiles;
+
+		// The service lock, so that the songs, the index and the revision match
+		synchronized (downloadService)
 		{
-			state.songs.add(downloadFile.getSong());
+			revision = downloadService.getDownloadListUpdateRevision();
+			currentPlayingIndex = downloadService.getCurrentPlayingIndex();
+			currentPlayingPosition = downloadService.getPlayerPosition();
+			downloadFiles = downloadService.getSongs();
 		}
-		state.currentPlayingIndex = downloadService.getCurrentPlayingIndex();
-		state.currentPlayingPosition = downloadService.getPlayerPosition();
 
-		Log.i(TAG, String.format("Serialized currentPlayingIndex: %d, currentPlayingPosition: %d", state.currentPlayingIndex, state.currentPlayingPosition));
-		FileUtil.serialize(downloadService, state, FILENAME_DOWNLOADS_SER);
+		synchronized (snapshot)
+		{
+			if (revision == snapshotRevision && snapshot.writePosition(currentPlayingIndex, currentPlayingPosition))
+			{
+				return;
+			}
+
+			List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>(downloadFiles.size());
+
+			for (DownloadFile downloadFile : downloadFiles)
+			{
+				songs.add(downloadFile.getSong());
+			}
+
+			Log.i(TAG, String.format("Serialized currentPlayingIndex: %d, currentPlayingPosition: %d", currentPlayingIndex, currentPlayingPosition));
+			snapshotRevision = snapshot.write(songs, currentPlayingIndex, currentPlayingPosition) ? revision : -1;
+		}
 	}
 
 	private void deserializeDownloadQueue()
@@ -263,6 +302,53 @@ public class DownloadServiceLifecycleSupport
 	}
 
 	private void deserializeDownloadQueueNow()
+	{
+		PlayQueueSnapshot.Reader reader = snapshot.open();
+
+		if (reader == null)
+		{
+			deserializeLegacyDownloadQueue();
+			return;
+		}
+
+		try
+		{
+			int currentPlayingIndex = reader.getCurrentPlayingIndex();
+			int currentPlayingPosition = reader.getCurrentPlayingPosition();
+			Log.i(TAG, String.format("Deserialized currentPlayingIndex: %d, currentPlayingPosition: %d, %d songs", currentPlayingIndex, currentPlayingPosition, reader.getCount()));
+
+			// Restore the first screen and the current song right away, and add the rest a
+			// batch at a time as it is read, so the service lock is only held briefly.
+			List<MusicDirectory.Entry> songs = reader.read(Math.max(FIRST_RESTORE_COUNT, currentPlayingIndex + 2));
+			downloadService.restore(songs, currentPlayingIndex, currentPlayingPosition, false, false);
+
+			long revision = -1L;
+
+			while (!songs.isEmpty())
+			{
+				MusicDirectory.Entry last = songs.get(songs.size() - 1);
+				songs = reader.read(MORE_RESTORE_COUNT);
+
+				if (!songs.isEmpty())
+				{
+					revision = downloadService.restoreMore(songs, last, revision);
+				}
+			}
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, "Failed to restore play queue", x);
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Restores the queue saved by earlier versions with Java serialization, once.
+	 */
+	private void deserializeLegacyDownloadQueue()
 	{
 		State state = FileUtil.deserialize(downloadService, FILENAME_DOWNLOADS_SER);
 		if (state == null)
@@ -271,9 +357,7 @@ public class DownloadServiceLifecycleSupport
 		}
 		Log.i(TAG, "Deserialized currentPlayingIndex: " + state.currentPlayingIndex + ", currentPlayingPosition: " + state.currentPlayingPosition);
 		downloadService.restore(state.songs, state.currentPlayingIndex, state.currentPlayingPosition, false, false);
-
-		// Work-around: Serialize again, as the restore() method creates a serialization without current playing info.
-		serializeDownloadQueue();
+		Util.delete(new File(downloadService.getCacheDir(), FILENAME_DOWNLOADS_SER));
 	}
 
 	private void handleKeyEvent(KeyEvent event)
@@ -349,6 +433,9 @@ public class DownloadServiceLifecycleSupport
 		}
 	}
 
+	/**
+	 * The play queue as written by earlier versions.
+	 */
 	private static class State implements Serializable
 	{
 		private static final long serialVersionUID = -6346438781062572270L;
@@ -390,6 +477,9 @@ public class DownloadServiceLifecycleSupport
 				lock.lock();
 				deserializeDownloadQueueNow();
 				setup.set(true);
+
+				// Serialize once the whole queue is restored, with the current playing info
+				serializeDownloadQueueNow();
 			}
 			finally
 			{
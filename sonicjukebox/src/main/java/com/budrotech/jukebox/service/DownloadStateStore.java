@@ -0,0 +1,323 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+import com.budrotech.jukebox.util.Util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Holds the download and playback state of every song shown in a list, and notifies the
+ * views of a song when its state changes.
+ * <p/>
+ * {@link DownloadFile} and {@link DownloadServiceImpl} publish here whenever a download
+ * starts, progresses or ends, or the current song changes. The state is read from the file
+ * system on a background thread, and listeners are called on the main thread only if the
+ * state of their song actually changed. Download progress is published at most once per
+ * view refresh interval.
+ *
+ * @author Sindre Mehus
+ */
+public class DownloadStateStore
+{
+	private static final String TAG = DownloadStateStore.class.getSimpleName();
+
+	private static DownloadStateStore instance;
+
+	private final Context context;
+	private final Handler uiHandler = new Handler(Looper.getMainLooper());
+	private final Handler backgroundHandler;
+	private final Map<String, State> states = Collections.synchronizedMap(new HashMap<String, State>());
+	private final Map<String, Set<Listener>> listeners = new HashMap<String, Set<Listener>>();
+	private final Set<DownloadFile> pendingProgress = new HashSet<DownloadFile>();
+	private volatile DownloadFile currentPlaying;
+
+	private DownloadStateStore(Context context)
+	{
+		this.context = context;
+
+		HandlerThread thread = new HandlerThread("DownloadStateStore");
+		thread.start();
+		backgroundHandler = new Handler(thread.getLooper());
+	}
+
+	public static synchronized DownloadStateStore getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new DownloadStateStore(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Registers a listener for the given song. Must be called on the main thread.
+	 *
+	 * @return The last known state of the song, or null if it is not known yet, in which case
+	 * the listener is called once it has been read.
+	 */
+	public State addListener(final MusicDirectory.Entry song, Listener listener)
+	{
+		Set<Listener> songListeners = listeners.get(song.getId());
+
+		if (songListeners == null)
+		{
+			songListeners = Collections.newSetFromMap(new WeakHashMap<Listener, Boolean>());
+			listeners.put(song.getId(), songListeners);
+		}
+
+		songListeners.add(listener);
+		State state = states.get(song.getId());
+
+		if (state == null)
+		{
+			backgroundHandler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					DownloadService downloadService = DownloadServiceImpl.getInstance();
+
+					if (downloadService != null)
+					{
+						update(downloadService.forSong(song));
+					}
+				}
+			});
+		}
+
+		return state;
+	}
+
+	/**
+	 * Unregisters a listener. Must be called on the main thread.
+	 */
+	public void removeListener(MusicDirectory.Entry song, Listener listener)
+	{
+		Set<Listener> songListeners = listeners.get(song.getId());
+
+		if (songListeners != null)
+		{
+			songListeners.remove(listener);
+
+			if (songListeners.isEmpty())
+			{
+				listeners.remove(song.getId());
+				states.remove(song.getId());
+			}
+		}
+	}
+
+	/**
+	 * Publishes a change to the files or the download task of the song.
+	 */
+	public void publish(final DownloadFile downloadFile)
+	{
+		backgroundHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				update(downloadFile);
+			}
+		});
+	}
+
+	/**
+	 * Publishes download progress. Progress published during the refresh interval is
+	 * merged into a single update.
+	 */
+	public void publishProgress(final DownloadFile downloadFile)
+	{
+		synchronized (pendingProgress)
+		{
+			if (!pendingProgress.add(downloadFile))
+			{
+				return;
+			}
+		}
+
+		backgroundHandler.postDelayed(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (pendingProgress)
+				{
+					pendingProgress.remove(downloadFile);
+				}
+
+				update(downloadFile);
+			}
+		}, Util.getViewRefreshInterval(context));
+	}
+
+	/**
+	 * Publishes a change of the current song.
+	 */
+	public void setCurrentPlaying(DownloadFile downloadFile)
+	{
+		DownloadFile previous = currentPlaying;
+		currentPlaying = downloadFile;
+
+		if (previous != null && previous != downloadFile)
+		{
+			publish(previous);
+		}
+
+		if (downloadFile != null)
+		{
+			publish(downloadFile);
+		}
+	}
+
+	private void update(DownloadFile downloadFile)
+	{
+		try
+		{
+			final String id = downloadFile.getSong().getId();
+			DownloadFile playing = currentPlaying;
+			final State state = new State(downloadFile, playing != null && id.equals(playing.getSong().getId()));
+
+			if (state.equals(states.put(id, state)))
+			{
+				return;
+			}
+
+			uiHandler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					Set<Listener> songListeners = listeners.get(id);
+
+					if (songListeners == null)
+					{
+						return;
+					}
+
+					for (Listener listener : new ArrayList<Listener>(songListeners))
+					{
+						listener.onStateChanged(state);
+					}
+				}
+			});
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to update state of %s", downloadFile), x);
+		}
+	}
+
+	public interface Listener
+	{
+		/**
+		 * Called on the main thread whenever the state of the song changes.
+		 */
+		void onStateChanged(State state);
+	}
+
+	/**
+	 * An immutable snapshot of the state of a song.
+	 */
+	public static class State
+	{
+		private final boolean workDone;
+		private final boolean saved;
+		private final boolean downloading;
+		private final long bytesDownloaded;
+		private final boolean playing;
+
+		State(DownloadFile downloadFile, boolean playing)
+		{
+			workDone = downloadFile.isWorkDone();
+			saved = downloadFile.isSaved();
+			downloading = downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && downloadFile.getPartialFile().exists();
+			bytesDownloaded = downloading ? downloadFile.getBytesDownloaded() : 0;
+			this.playing = playing;
+		}
+
+		public boolean isWorkDone()
+		{
+			return workDone;
+		}
+
+		public boolean isSaved()
+		{
+			return saved;
+		}
+
+		public boolean isDownloading()
+		{
+			return downloading;
+		}
+
+		public long getBytesDownloaded()
+		{
+			return bytesDownloaded;
+		}
+
+		public boolean isPlaying()
+		{
+			return playing;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+			{
+				return true;
+			}
+
+			if (!(o instanceof State))
+			{
+				return false;
+			}
+
+			State other = (State) o;
+			return workDone == other.workDone && saved == other.saved && downloading == other.downloading && bytesDownloaded == other.bytesDownloaded && playing == other.playing;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = workDone ? 1 : 0;
+			result = 31 * result + (saved ? 1 : 0);
+			result = 31 * result + (downloading ? 1 : 0);
+			result = 31 * result + (int) (bytesDownloaded ^ (bytesDownloaded >>> 32));
+			result = 31 * result + (playing ? 1 : 0);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,447 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.budrotech.jukebox.service.ssl.PinnedCertificateStrategy;
+import com.budrotech.jukebox.service.ssl.TrustManagerDecorator;
+import com.budrotech.jukebox.service.ssl.TrustStrategy;
+import com.budrotech.jukebox.util.Constants;
+import com.budrotech.jukebox.util.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Keeps one HTTP client per server, so that connections to the server are kept alive and
+ * shared by all requests, using HTTP/2 where the server offers it.
+ * <p/>
+ * A client is built from the settings of its server, and built again when they change. If
+ * the settings of the server allow it, the client also accepts the one self-signed
+ * certificate pinned for the server, still checking that it was issued for the host name.
+ * The client retries failed requests with growing pauses, and measures how long each request
+ * takes to connect, negotiate TLS and get the first byte of the response.
+ *
+ * @author Sindre Mehus
+ */
+public class HttpClientRegistry
+{
+	private static final String TAG = HttpClientRegistry.class.getSimpleName();
+
+	private static final int MAX_IDLE_CONNECTIONS = 8;
+	private static final long KEEP_ALIVE_MINUTES = 5L;
+	private static final long RETRY_PAUSE_MILLIS = 1000L;
+	private static final long MAX_RETRY_PAUSE_MILLIS = 8000L;
+	private static final long SLOW_MILLIS = 2000L;
+
+	private static final Map<Integer, OkHttpClient> clients = new HashMap<Integer, OkHttpClient>();
+	private static final Map<Integer, String> clientSettings = new HashMap<Integer, String>();
+	private static final RequestStats stats = new RequestStats();
+
+	private HttpClientRegistry()
+	{
+	}
+
+	/**
+	 * Returns the client of the active server.
+	 */
+	public static synchronized OkHttpClient getClient(Context context)
+	{
+		int instance = Util.getActiveServer(context);
+		SharedPreferences preferences = Util.getPreferences(context);
+		int networkTimeout = Util.getNetworkTimeout(context);
+		boolean allowSelfSigned = Util.getAllowSelfSignedCertificate(context, instance);
+		String pinnedCertificate = Util.getPinnedCertificate(context, instance);
+		String settings = String.format("%s %d %s %s", preferences.getString(Constants.PREFERENCES_KEY_SERVER_URL + instance, null), networkTimeout, allowSelfSigned, pinnedCertificate);
+		OkHttpClient client = clients.get(instance);
+
+		if (client != null && settings.equals(clientSettings.get(instance)))
+		{
+			return client;
+		}
+
+		if (client != null)
+		{
+			client.connectionPool().evictAll();
+		}
+
+		client = createClient(networkTimeout, allowSelfSigned ? new PinnedCertificateStrategy(pinnedCertificate, new Pinner(context.getApplicationContext(), instance)) : null);
+		clients.put(instance, client);
+		clientSettings.put(instance, settings);
+		Log.i(TAG, String.format("Created HTTP client for server %d", instance));
+
+		return client;
+	}
+
+	/**
+	 * Returns the number of requests per method, and how long they took to connect, negotiate
+	 * TLS and get the first byte of the response.
+	 */
+	public static String getStats()
+	{
+		return stats.toString();
+	}
+
+	/**
+	 * @param trustStrategy Trusts certificates beyond the default ones, or null.
+	 */
+	private static OkHttpClient createClient(int networkTimeout, TrustStrategy trustStrategy)
+	{
+		OkHttpClient.Builder builder = new OkHttpClient.Builder()
+				.connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+				.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+				.connectTimeout(networkTimeout, TimeUnit.MILLISECONDS)
+				.readTimeout(networkTimeout, TimeUnit.MILLISECONDS)
+				.addInterceptor(new RetryInterceptor())
+				.eventListenerFactory(new EventListener.Factory()
+				{
+					@Override
+					public EventListener create(Call call)
+					{
+						return new TimingListener();
+					}
+				});
+
+		if (trustStrategy != null)
+		{
+			try
+			{
+				X509TrustManager trustManager = new TrustManagerDecorator(getDefaultTrustManager(), trustStrategy);
+				SSLContext sslContext = SSLContext.getInstance("TLS");
+				sslContext.init(null, new TrustManager[]{trustManager}, null);
+
+				builder.sslSocketFactory(sslContext.getSocketFactory(), trustManager);
+			}
+			catch (GeneralSecurityException x)
+			{
+				Log.e(TAG, "Failed to accept self-signed certificates, using default.", x);
+			}
+		}
+
+		return builder.build();
+	}
+
+	private static X509TrustManager getDefaultTrustManager() throws GeneralSecurityException
+	{
+		TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		factory.init((KeyStore) null);
+
+		for (TrustManager trustManager : factory.getTrustManagers())
+		{
+			if (trustManager instanceof X509TrustManager)
+			{
+				return (X509TrustManager) trustManager;
+			}
+		}
+
+		throw new KeyStoreException("No X509 trust manager");
+	}
+
+	/**
+	 * Settings of a single request, passed to the client as a tag of the request.
+	 */
+	public static class RequestOptions
+	{
+		private final long connectTimeout;
+		private final long readTimeout;
+		private final RetryListener retryListener;
+
+		/**
+		 * @param retryListener Told about each retry, or null.
+		 */
+		public RequestOptions(long connectTimeout, long readTimeout, RetryListener retryListener)
+		{
+			this.connectTimeout = connectTimeout;
+			this.readTimeout = readTimeout;
+			this.retryListener = retryListener;
+		}
+	}
+
+	public interface RetryListener
+	{
+		void onRetry(int attempt, int maxAttempts);
+	}
+
+	/**
+	 * Applies the timeouts of the request, and retries it on failure with growing pauses and
+	 * timeouts, unless the call is cancelled.
+	 */
+	private static class RetryInterceptor implements Interceptor
+	{
+		@Override
+		public Response intercept(Chain chain) throws IOException
+		{
+			Request request = chain.request();
+			RequestOptions options = request.tag(RequestOptions.class);
+			long connectTimeout = options == null ? chain.connectTimeoutMillis() : options.connectTimeout;
+			long readTimeout = options == null ? chain.readTimeoutMillis() : options.readTimeout;
+			long pause = RETRY_PAUSE_MILLIS;
+
+			for (int attempt = 1; ; attempt++)
+			{
+				try
+				{
+					return chain.withConnectTimeout((int) connectTimeout, TimeUnit.MILLISECONDS).withReadTimeout((int) readTimeout, TimeUnit.MILLISECONDS).proceed(request);
+				}
+				catch (IOException x)
+				{
+					if (attempt >= RESTMusicService.HTTP_REQUEST_MAX_ATTEMPTS || chain.call().isCanceled())
+					{
+						throw x;
+					}
+
+					Log.w(TAG, String.format("Got IOException (%d), will retry in %d ms", attempt, pause), x);
+
+					if (options != null && options.retryListener != null)
+					{
+						options.retryListener.onRetry(attempt, RESTMusicService.HTTP_REQUEST_MAX_ATTEMPTS);
+					}
+
+					try
+					{
+						Thread.sleep(pause);
+					}
+					catch (InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+
+					if (chain.call().isCanceled())
+					{
+						throw x;
+					}
+
+					// A slow server gets more time on each attempt
+					connectTimeout = (long) (connectTimeout * 1.3F);
+					readTimeout = (long) (readTimeout * 1.5F);
+					pause = Math.min(pause * 2, MAX_RETRY_PAUSE_MILLIS);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores the self-signed certificate first accepted for a server, so that only that one
+	 * is accepted from then on.
+	 */
+	private static class Pinner implements PinnedCertificateStrategy.Listener
+	{
+		private final Context context;
+		private final int instance;
+
+		private Pinner(Context context, int instance)
+		{
+			this.context = context;
+			this.instance = instance;
+		}
+
+		@Override
+		public void onPinned(String fingerprint)
+		{
+			Log.i(TAG, String.format("Pinned self-signed certificate %s for server %d", fingerprint, instance));
+			Util.setPinnedCertificate(context, instance, fingerprint);
+		}
+	}
+
+	/**
+	 * Times the phases of a call, up to the headers of the response. A call that is retried
+	 * is timed by its last attempt.
+	 */
+	private static class TimingListener extends EventListener
+	{
+		private long connectStart;
+		private long secureConnectStart;
+		private long requestStart;
+		private long connectMillis = -1;
+		private long tlsMillis = -1;
+		private Protocol protocol;
+
+		@Override
+		public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy)
+		{
+			connectStart = SystemClock.elapsedRealtime();
+			tlsMillis = -1;
+		}
+
+		@Override
+		public void secureConnectStart(Call call)
+		{
+			secureConnectStart = SystemClock.elapsedRealtime();
+		}
+
+		@Override
+		public void secureConnectEnd(Call call, Handshake handshake)
+		{
+			tlsMillis = SystemClock.elapsedRealtime() - secureConnectStart;
+		}
+
+		@Override
+		public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol)
+		{
+			connectMillis = SystemClock.elapsedRealtime() - connectStart;
+		}
+
+		@Override
+		public void connectionAcquired(Call call, Connection connection)
+		{
+			protocol = connection.protocol();
+		}
+
+		@Override
+		public void requestHeadersStart(Call call)
+		{
+			requestStart = SystemClock.elapsedRealtime();
+		}
+
+		@Override
+		public void responseHeadersStart(Call call)
+		{
+			long firstByteMillis = SystemClock.elapsedRealtime() - requestStart;
+			stats.record(getMethod(call), protocol, connectMillis, tlsMillis, firstByteMillis);
+		}
+
+		@Override
+		public void callFailed(Call call, IOException x)
+		{
+			stats.failed(getMethod(call));
+		}
+
+		private static String getMethod(Call call)
+		{
+			List<String> segments = call.request().url().pathSegments();
+			String method = segments.isEmpty() ? "" : segments.get(segments.size() - 1);
+			return method.endsWith(".view") ? method.substring(0, method.length() - 5) : method;
+		}
+	}
+
+	/**
+	 * Adds up the timings of the requests per method. Requests slower than
+	 * {@link #SLOW_MILLIS} to answer are logged as they happen.
+	 */
+	private static class RequestStats
+	{
+		private final Map<String, Timings> timings = new TreeMap<String, Timings>();
+
+		/**
+		 * @param connectMillis The time to open a new connection, or -1 if a pooled one was used.
+		 * @param tlsMillis     The part of that spent on the TLS handshake, or -1 if none.
+		 */
+		synchronized void record(String method, Protocol protocol, long connectMillis, long tlsMillis, long firstByteMillis)
+		{
+			String message = String.format("%s over %s: connect %d ms, TLS %d ms, first byte %d ms", method, protocol, connectMillis, tlsMillis, firstByteMillis);
+
+			if (firstByteMillis + Math.max(0, connectMillis) > SLOW_MILLIS)
+			{
+				Log.w(TAG, message);
+			}
+			else
+			{
+				Log.d(TAG, message);
+			}
+
+			Timings methodTimings = getTimings(method);
+			methodTimings.count++;
+			methodTimings.totalFirstByte += firstByteMillis;
+			methodTimings.maxFirstByte = Math.max(methodTimings.maxFirstByte, firstByteMillis);
+
+			if (connectMillis >= 0)
+			{
+				methodTimings.connects++;
+				methodTimings.totalConnect += connectMillis;
+				methodTimings.totalTls += Math.max(0, tlsMillis);
+			}
+		}
+
+		synchronized void failed(String method)
+		{
+			getTimings(method).failed++;
+		}
+
+		private Timings getTimings(String method)
+		{
+			Timings methodTimings = timings.get(method);
+
+			if (methodTimings == null)
+			{
+				methodTimings = new Timings();
+				timings.put(method, methodTimings);
+			}
+
+			return methodTimings;
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			StringBuilder builder = new StringBuilder("HTTP requests");
+
+			for (Map.Entry<String, Timings> entry : timings.entrySet())
+			{
+				Timings methodTimings = entry.getValue();
+				long connects = Math.max(1, methodTimings.connects);
+				long count = Math.max(1, methodTimings.count);
+				builder.append(String.format("\n  %s: %d answered, %d failed, %d new connections (connect %d ms, TLS %d ms), first byte %d ms (max %d)", entry.getKey(), methodTimings.count, methodTimings.failed, methodTimings.connects, methodTimings.totalConnect / connects, methodTimings.totalTls / connects, methodTimings.totalFirstByte / count, methodTimings.maxFirstByte));
+			}
+
+			return builder.toString();
+		}
+
+		private static class Timings
+		{
+			private long count;
+			private long failed;
+			private long connects;
+			private long totalConnect;
+			private long totalTls;
+			private long totalFirstByte;
+			private long maxFirstByte;
+		}
+	}
+}
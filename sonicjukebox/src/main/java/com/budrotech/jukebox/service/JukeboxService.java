@@ -20,6 +20,7 @@ package com.budrotech.jukebox.service;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -35,17 +36,21 @@ import com.budrotech.jukebox.util.Util;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides an asynchronous interface to the remote jukebox on the Subsonic server.
+ * <p/>
+ * Commands are queued and sent one at a time. A command replaces the queued commands it
+ * makes pointless, so that only the latest volume, skip or playlist is sent, and volume,
+ * skip and playlist commands are held back briefly so that a burst of them is sent once.
+ * While the jukebox plays, its status is polled soon after each command and then less and
+ * less often, but never much later than the end of the current song.
  *
  * @author Sindre Mehus
  * @version $Id$
@@ -54,25 +59,30 @@ public class JukeboxService
 {
 
 	private static final String TAG = JukeboxService.class.getSimpleName();
-	private static final long STATUS_UPDATE_INTERVAL_SECONDS = 5L;
+	private static final long COALESCE_MILLIS = 150L;
+	private static final long MIN_STATUS_INTERVAL_MILLIS = 1000L;
+	private static final long MAX_STATUS_INTERVAL_MILLIS = 30000L;
+	private static final long TRACK_END_MARGIN_MILLIS = 1000L;
+	private static final long OFFLINE_CHECK_INTERVAL_MILLIS = 1000L;
+	private static final long SLOW_MILLIS = 2000L;
+	private static final long STATS_INTERVAL_MILLIS = 60000L;
 
 	private final Handler handler = new Handler();
-	private final TaskQueue tasks = new TaskQueue();
+	private final CommandStats stats = new CommandStats();
+	private final CommandQueue tasks = new CommandQueue();
 	private final DownloadServiceImpl downloadService;
-	private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
-	private ScheduledFuture<?> statusUpdateFuture;
 	private final AtomicLong timeOfLastUpdate = new AtomicLong();
 	private JukeboxStatus jukeboxStatus;
 	private float gain = 0.5f;
 	private VolumeToast volumeToast;
 	private AtomicBoolean running = new AtomicBoolean();
 	private Thread serviceThread;
+	private long statsLoggedAt;
 
 	// TODO: Report warning if queue fills up.
 	// TODO: Create shutdown method?
 	// TODO: Disable repeat.
 	// TODO: Persist RC state?
-	// TODO: Minimize status updates.
 
 	public JukeboxService(DownloadServiceImpl downloadService)
 	{
@@ -87,6 +97,7 @@ public class JukeboxService
 		}
 
 		running.set(true);
+		statsLoggedAt = SystemClock.elapsedRealtime();
 		startProcessTasks();
 	}
 
@@ -115,32 +126,6 @@ public class JukeboxService
 		serviceThread.start();
 	}
 
-	private synchronized void startStatusUpdate()
-	{
-		stopStatusUpdate();
-
-		Runnable updateTask = new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				tasks.remove(GetStatus.class);
-				tasks.add(new GetStatus());
-			}
-		};
-
-		statusUpdateFuture = executorService.scheduleWithFixedDelay(updateTask, STATUS_UPDATE_INTERVAL_SECONDS, STATUS_UPDATE_INTERVAL_SECONDS, TimeUnit.SECONDS);
-	}
-
-	private synchronized void stopStatusUpdate()
-	{
-		if (statusUpdateFuture != null)
-		{
-			statusUpdateFuture.cancel(false);
-			statusUpdateFuture = null;
-		}
-	}
-
 	private void processTasks()
 	{
 		while (running.get())
@@ -149,12 +134,27 @@ public class JukeboxService
 
 			try
 			{
-				if (!Util.isOffline(downloadService))
+				if (Util.isOffline(downloadService))
+				{
+					Util.sleepQuietly(OFFLINE_CHECK_INTERVAL_MILLIS);
+					continue;
+				}
+
+				task = tasks.take();
+				long start = SystemClock.elapsedRealtime();
+				JukeboxStatus status;
+
+				try
 				{
-					task = tasks.take();
-					JukeboxStatus status = task.execute();
-					onStatusUpdate(status);
+					status = task.execute();
 				}
+				finally
+				{
+					stats.sent(task, SystemClock.elapsedRealtime() - start);
+				}
+
+				onStatusUpdate(status);
+				tasks.onStatus(!(task instanceof GetStatus), getMillisUntilTrackEnd(status));
 			}
 			catch (InterruptedException ignored)
 			{
@@ -162,11 +162,47 @@ public class JukeboxService
 			}
 			catch (Throwable x)
 			{
+				stats.failed(task);
 				onError(task, x);
+
+				// Polls again later rather than at once, and less often while it keeps failing
+				tasks.onStatus(false, 0);
 			}
 
-			Util.sleepQuietly(1);
+			logStats();
+		}
+
+		Log.i(TAG, getStats());
+	}
+
+	/**
+	 * Logs the command statistics every minute while the jukebox is on, so that they can be
+	 * followed in the log while it is used.
+	 */
+	private void logStats()
+	{
+		long now = SystemClock.elapsedRealtime();
+
+		if (now - statsLoggedAt >= STATS_INTERVAL_MILLIS)
+		{
+			statsLoggedAt = now;
+			Log.i(TAG, getStats());
+		}
+	}
+
+	/**
+	 * Returns how long until the current song ends, or 0 if unknown or not playing.
+	 */
+	private long getMillisUntilTrackEnd(JukeboxStatus status)
+	{
+		int duration = downloadService.getPlayerDuration();
+
+		if (!status.isPlaying() || status.getPositionSeconds() == null || duration == 0)
+		{
+			return 0;
 		}
+
+		return Math.max(0, duration - status.getPositionSeconds() * 1000L);
 	}
 
 	private void onStatusUpdate(JukeboxStatus jukeboxStatus)
@@ -221,26 +257,12 @@ public class JukeboxService
 
 	public void updatePlaylist()
 	{
-		tasks.remove(Skip.class);
-		tasks.remove(Stop.class);
-		tasks.remove(Start.class);
-
-		List<String> ids = new ArrayList<String>();
-		for (DownloadFile file : downloadService.getDownloads())
-		{
-			ids.add(file.getSong().getId());
-		}
-
-		tasks.add(new SetPlaylist(ids));
+		tasks.add(new SetPlaylist());
 	}
 
 	public void skip(final int index, final int offsetSeconds)
 	{
-		tasks.remove(Skip.class);
-		tasks.remove(Stop.class);
-		tasks.remove(Start.class);
-
-		startStatusUpdate();
+		tasks.startPolling();
 
 		if (jukeboxStatus != null)
 		{
@@ -253,20 +275,13 @@ public class JukeboxService
 
 	public void stop()
 	{
-		tasks.remove(Stop.class);
-		tasks.remove(Start.class);
-
-		stopStatusUpdate();
-
+		tasks.stopPolling();
 		tasks.add(new Stop());
 	}
 
 	public void start()
 	{
-		tasks.remove(Stop.class);
-		tasks.remove(Start.class);
-
-		startStatusUpdate();
+		tasks.startPolling();
 		tasks.add(new Start());
 	}
 
@@ -277,7 +292,6 @@ public class JukeboxService
 		gain = Math.max(gain, 0.0f);
 		gain = Math.min(gain, 1.0f);
 
-		tasks.remove(SetGain.class);
 		tasks.add(new SetGain(gain));
 
 		if (volumeToast == null)
@@ -308,6 +322,14 @@ public class JukeboxService
 		return jukeboxStatus.getPositionSeconds();
 	}
 
+	/**
+	 * Returns the number of commands queued, replaced and sent, and their round trip times.
+	 */
+	public String getStats()
+	{
+		return stats.toString();
+	}
+
 	public void setEnabled(boolean enabled)
 	{
 		tasks.clear();
@@ -322,52 +344,211 @@ public class JukeboxService
 		downloadService.setPlayerState(PlayerState.IDLE);
 	}
 
-	private static class TaskQueue
+	/**
+	 * The commands waiting to be sent, in order, and the schedule of status polls.
+	 */
+	private class CommandQueue
 	{
-		private final LinkedBlockingQueue<JukeboxTask> queue = new LinkedBlockingQueue<JukeboxTask>();
+		private final LinkedList<JukeboxTask> queue = new LinkedList<JukeboxTask>();
+		private boolean polling;
+		private long statusInterval = MIN_STATUS_INTERVAL_MILLIS;
+		private long nextStatusAt;
 
-		void add(JukeboxTask jukeboxTask)
+		synchronized void add(JukeboxTask task)
 		{
-			queue.add(jukeboxTask);
-		}
+			task.dueAt = SystemClock.elapsedRealtime() + task.getDelay();
+			Iterator<JukeboxTask> iterator = queue.iterator();
 
-		JukeboxTask take() throws InterruptedException
-		{
-			return queue.take();
+			while (iterator.hasNext())
+			{
+				JukeboxTask queued = iterator.next();
+
+				if (task.supersedes(queued))
+				{
+					// A burst of the same command is sent no later than its first one would have been
+					if (queued.getClass().equals(task.getClass()))
+					{
+						task.dueAt = Math.min(task.dueAt, queued.dueAt);
+					}
+
+					iterator.remove();
+					stats.superseded(queued);
+				}
+			}
+
+			queue.add(task);
+			stats.queued(task);
+			notifyAll();
 		}
 
-		void remove(Class<? extends JukeboxTask> taskClass)
+		/**
+		 * Returns the next command when it's due, or a status poll when one is due and no
+		 * command is queued, since every command returns the status as well.
+		 */
+		synchronized JukeboxTask take() throws InterruptedException
 		{
-			try
+			while (true)
 			{
-				Iterator<JukeboxTask> iterator = queue.iterator();
+				long now = SystemClock.elapsedRealtime();
+				JukeboxTask task = queue.peek();
 
-				while (iterator.hasNext())
+				if (task != null && task.dueAt <= now)
 				{
-					JukeboxTask task = iterator.next();
+					return queue.poll();
+				}
 
-					if (taskClass.equals(task.getClass()))
-					{
-						iterator.remove();
-					}
+				if (task == null && polling && nextStatusAt <= now)
+				{
+					return new GetStatus();
 				}
+
+				wait(task != null ? task.dueAt - now : polling ? nextStatusAt - now : 0);
 			}
-			catch (Throwable x)
+		}
+
+		/**
+		 * Schedules the next status poll: soon after a command, and less often while nothing
+		 * happens, but in time to notice the next song.
+		 */
+		synchronized void onStatus(boolean afterCommand, long millisUntilTrackEnd)
+		{
+			statusInterval = afterCommand ? MIN_STATUS_INTERVAL_MILLIS : Math.min(statusInterval * 2, MAX_STATUS_INTERVAL_MILLIS);
+			long delay = statusInterval;
+
+			if (millisUntilTrackEnd > 0)
 			{
-				Log.w(TAG, "Failed to clean-up task queue.", x);
+				delay = Math.min(delay, millisUntilTrackEnd + TRACK_END_MARGIN_MILLIS);
 			}
+
+			nextStatusAt = SystemClock.elapsedRealtime() + delay;
+			notifyAll();
+		}
+
+		synchronized void startPolling()
+		{
+			polling = true;
+			statusInterval = MIN_STATUS_INTERVAL_MILLIS;
+			nextStatusAt = SystemClock.elapsedRealtime() + statusInterval;
+			notifyAll();
 		}
 
-		void clear()
+		synchronized void stopPolling()
+		{
+			polling = false;
+			notifyAll();
+		}
+
+		synchronized void clear()
 		{
 			queue.clear();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Counts the commands of each kind and measures their round trips to the server. Round
+	 * trips slower than {@link #SLOW_MILLIS} are logged as they happen.
+	 */
+	private static class CommandStats
+	{
+		private final Map<String, Counts> counts = new TreeMap<String, Counts>();
+
+		synchronized void queued(JukeboxTask task)
+		{
+			getCounts(task).queued++;
+		}
+
+		synchronized void superseded(JukeboxTask task)
+		{
+			getCounts(task).superseded++;
+		}
+
+		synchronized void sent(JukeboxTask task, long millis)
+		{
+			if (millis > SLOW_MILLIS)
+			{
+				Log.w(TAG, String.format("%s took %d ms", task, millis));
+			}
+			else
+			{
+				Log.d(TAG, String.format("%s took %d ms", task, millis));
+			}
+
+			Counts taskCounts = getCounts(task);
+			taskCounts.sent++;
+			taskCounts.totalMillis += millis;
+			taskCounts.maxMillis = Math.max(taskCounts.maxMillis, millis);
+		}
+
+		synchronized void failed(JukeboxTask task)
+		{
+			if (task != null)
+			{
+				getCounts(task).failed++;
+			}
+		}
+
+		private Counts getCounts(JukeboxTask task)
+		{
+			Counts taskCounts = counts.get(task.toString());
+
+			if (taskCounts == null)
+			{
+				taskCounts = new Counts();
+				counts.put(task.toString(), taskCounts);
+			}
+
+			return taskCounts;
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			StringBuilder builder = new StringBuilder("jukebox commands");
+
+			for (Map.Entry<String, Counts> entry : counts.entrySet())
+			{
+				Counts taskCounts = entry.getValue();
+				long average = taskCounts.sent == 0 ? 0 : taskCounts.totalMillis / taskCounts.sent;
+				builder.append(String.format("\n  %s: %d queued, %d superseded, %d sent, %d failed, round trip %d ms (max %d)", entry.getKey(), taskCounts.queued, taskCounts.superseded, taskCounts.sent, taskCounts.failed, average, taskCounts.maxMillis));
+			}
+
+			return builder.toString();
+		}
+
+		private static class Counts
+		{
+			private long queued;
+			private long superseded;
+			private long sent;
+			private long failed;
+			private long totalMillis;
+			private long maxMillis;
 		}
 	}
 
 	private abstract class JukeboxTask
 	{
+		private long dueAt;
+
 		abstract JukeboxStatus execute() throws Exception;
 
+		/**
+		 * Returns how long the command is held back for later commands to replace it.
+		 */
+		long getDelay()
+		{
+			return 0;
+		}
+
+		/**
+		 * Returns whether the other command needn't be sent once this one is queued.
+		 */
+		boolean supersedes(JukeboxTask other)
+		{
+			return other.getClass().equals(getClass());
+		}
+
 		@Override
 		public String toString()
 		{
@@ -384,19 +565,35 @@ public class JukeboxService
 		}
 	}
 
+	/**
+	 * Sends the play queue as it is when the command is sent, so that one command covers
+	 * all the changes made since the last one.
+	 */
 	private class SetPlaylist extends JukeboxTask
 	{
-		private final List<String> ids;
+		@Override
+		JukeboxStatus execute() throws Exception
+		{
+			List<String> ids = new ArrayList<String>();
 
-		SetPlaylist(List<String> ids)
+			for (DownloadFile file : downloadService.getDownloads())
+			{
+				ids.add(file.getSong().getId());
+			}
+
+			return getMusicService().updateJukeboxPlaylist(ids, downloadService, null);
+		}
+
+		@Override
+		long getDelay()
 		{
-			this.ids = ids;
+			return COALESCE_MILLIS;
 		}
 
 		@Override
-		JukeboxStatus execute() throws Exception
+		boolean supersedes(JukeboxTask other)
 		{
-			return getMusicService().updateJukeboxPlaylist(ids, downloadService, null);
+			return other instanceof SetPlaylist || other instanceof Skip || other instanceof Stop || other instanceof Start;
 		}
 	}
 
@@ -416,6 +613,18 @@ public class JukeboxService
 		{
 			return getMusicService().skipJukebox(index, offsetSeconds, downloadService, null);
 		}
+
+		@Override
+		long getDelay()
+		{
+			return COALESCE_MILLIS;
+		}
+
+		@Override
+		boolean supersedes(JukeboxTask other)
+		{
+			return other instanceof Skip || other instanceof Stop || other instanceof Start;
+		}
 	}
 
 	private class Stop extends JukeboxTask
@@ -425,6 +634,12 @@ public class JukeboxService
 		{
 			return getMusicService().stopJukebox(downloadService, null);
 		}
+
+		@Override
+		boolean supersedes(JukeboxTask other)
+		{
+			return other instanceof Stop || other instanceof Start;
+		}
 	}
 
 	private class Start extends JukeboxTask
@@ -434,6 +649,12 @@ public class JukeboxService
 		{
 			return getMusicService().startJukebox(downloadService, null);
 		}
+
+		@Override
+		boolean supersedes(JukeboxTask other)
+		{
+			return other instanceof Stop || other instanceof Start;
+		}
 	}
 
 	private class SetGain extends JukeboxTask
@@ -451,6 +672,12 @@ public class JukeboxService
 		{
 			return getMusicService().setJukeboxGain(gain, downloadService, null);
 		}
+
+		@Override
+		long getDelay()
+		{
+			return COALESCE_MILLIS;
+		}
 	}
 
 	private static class VolumeToast extends Toast
@@ -35,6 +35,7 @@ import com.budrotech.jukebox.domain.SearchResult;
 import com.budrotech.jukebox.domain.Share;
 import com.budrotech.jukebox.domain.UserInfo;
 import com.budrotech.jukebox.domain.Version;
+import com.budrotech.jukebox.service.parser.MusicDirectoryEntryParser.EntryListener;
 import com.budrotech.jukebox.util.CancellableTask;
 import com.budrotech.jukebox.util.ProgressListener;
 
@@ -72,7 +73,11 @@ public interface MusicService
 
 	SearchResult search(SearchCriteria criteria, Context context, ProgressListener progressListener) throws Exception;
 
-	MusicDirectory getPlaylist(String id, String name, Context context, ProgressListener progressListener) throws Exception;
+	/**
+	 * @param entryListener Receives the entries as they are parsed, or null. Only called for
+	 *                      playlists read from the server.
+	 */
+	MusicDirectory getPlaylist(String id, String name, Context context, ProgressListener progressListener, EntryListener entryListener) throws Exception;
 
 	List<Playlist> getPlaylists(boolean refresh, Context context, ProgressListener progressListener) throws Exception;
 
@@ -106,6 +111,8 @@ public interface MusicService
 
 	Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception;
 
+	Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, CancellableTask task) throws Exception;
+
 	Version getLocalVersion(Context context) throws Exception;
 
 	JukeboxStatus updateJukeboxPlaylist(List<String> ids, Context context, ProgressListener progressListener) throws Exception;
@@ -0,0 +1,123 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.os.SystemClock;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+import com.budrotech.jukebox.domain.PlayerState;
+
+/**
+ * Immutable snapshot of the current song and player state, as published on the
+ * {@link PlaybackStateBus}.
+ *
+ * @author Sindre Mehus
+ */
+public class NowPlaying
+{
+	public static final NowPlaying NONE = new NowPlaying(null, PlayerState.IDLE, -1, 0, 0, 0);
+
+	private final MusicDirectory.Entry song;
+	private final PlayerState playerState;
+	private final int index;
+	private final int queueSize;
+	private final int position;
+	private final int duration;
+	private final long takenAt;
+
+	public NowPlaying(MusicDirectory.Entry song, PlayerState playerState, int index, int queueSize, int position, int duration)
+	{
+		this.song = song;
+		this.playerState = playerState;
+		this.index = index;
+		this.queueSize = queueSize;
+		this.position = position;
+		this.duration = duration;
+		takenAt = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Returns the current song, or null if there is none.
+	 */
+	public MusicDirectory.Entry getSong()
+	{
+		return song;
+	}
+
+	public PlayerState getPlayerState()
+	{
+		return playerState;
+	}
+
+	public boolean isPlaying()
+	{
+		return playerState == PlayerState.STARTED;
+	}
+
+	/**
+	 * Returns the index of the current song in the play queue, or -1 if there is none.
+	 */
+	public int getIndex()
+	{
+		return index;
+	}
+
+	public int getQueueSize()
+	{
+		return queueSize;
+	}
+
+	/**
+	 * Returns the position in the current song in milliseconds, when the snapshot was taken.
+	 */
+	public int getPosition()
+	{
+		return position;
+	}
+
+	/**
+	 * Returns the duration of the current song in milliseconds, or 0 if unknown.
+	 */
+	public int getDuration()
+	{
+		return duration;
+	}
+
+	/**
+	 * Returns when the snapshot was taken, in {@link SystemClock#elapsedRealtime()} time.
+	 */
+	public long getTakenAt()
+	{
+		return takenAt;
+	}
+
+	/**
+	 * Returns whether the other snapshot is of a different song.
+	 */
+	public boolean isOtherSong(NowPlaying other)
+	{
+		return song != other.song;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s %s [%d/%d] at %d ms", playerState, song, index + 1, queueSize, position);
+	}
+}
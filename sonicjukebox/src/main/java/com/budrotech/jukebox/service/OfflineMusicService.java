@@ -35,9 +35,13 @@ import com.budrotech.jukebox.domain.SearchCriteria;
 import com.budrotech.jukebox.domain.SearchResult;
 import com.budrotech.jukebox.domain.Share;
 import com.budrotech.jukebox.domain.UserInfo;
+import com.budrotech.jukebox.service.parser.MusicDirectoryEntryParser.EntryListener;
 import com.budrotech.jukebox.util.Constants;
 import com.budrotech.jukebox.util.FileUtil;
+import com.budrotech.jukebox.util.MetadataStore;
 import com.budrotech.jukebox.util.ProgressListener;
+import com.budrotech.jukebox.util.SearchIndex;
+import com.budrotech.jukebox.util.SongCatalog;
 import com.budrotech.jukebox.util.Util;
 
 import java.io.BufferedReader;
@@ -51,9 +55,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
 import java.util.SortedSet;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
@@ -65,6 +67,19 @@ public class OfflineMusicService extends RESTMusicService
 {
 	private static final String TAG = OfflineMusicService.class.getSimpleName();
 	private static final Pattern COMPILE = Pattern.compile(" ");
+	private static final Comparator<MusicDirectory.Entry> BY_CLOSENESS = new Comparator<MusicDirectory.Entry>()
+	{
+		@Override
+		public int compare(MusicDirectory.Entry lhs, MusicDirectory.Entry rhs)
+		{
+			if (lhs.getCloseness() == rhs.getCloseness())
+			{
+				return 0;
+			}
+
+			else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
+		}
+	};
 
 	@Override
 	public boolean isLicenseValid(Context context, ProgressListener progressListener) throws Exception
@@ -190,142 +205,166 @@ public class OfflineMusicService extends RESTMusicService
 
 		if (file.isFile())
 		{
-			String artist = null;
-			String album = null;
-			String title = null;
-			String track = null;
-			String disc = null;
-			String year = null;
-			String genre = null;
-			String duration = null;
-			String hasVideo = null;
-
-			try
-			{
-				MediaMetadataRetriever mmr = new MediaMetadataRetriever();
-				mmr.setDataSource(file.getPath());
-				artist = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
-				album = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
-				title = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
-				track = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER);
-				disc = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DISC_NUMBER);
-				year = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR);
-				genre = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE);
-				duration = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-				hasVideo = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_VIDEO);
-				mmr.release();
-			}
-			catch (Exception ignored)
-			{
-			}
-
-			entry.setArtist(artist != null ? artist : file.getParentFile().getParentFile().getName());
-			entry.setAlbum(album != null ? album : file.getParentFile().getName());
-
-			if (title != null)
-			{
-				entry.setTitle(title);
-			}
+			setTags(entry, getTags(context, file), file);
+		}
 
-			entry.setIsVideo(hasVideo != null);
+		entry.setSuffix(FileUtil.getExtension(file.getName().replace(".complete", "")));
 
-			Log.i("OfflineMusicService", String.format("Offline Stuff: %s", track));
+		File albumArt = FileUtil.getAlbumArtFile(context, entry);
 
-			if (track != null)
-			{
+		if (albumArt.exists())
+		{
+			entry.setCoverArt(albumArt.getPath());
+		}
 
-				int trackValue = 0;
+		return entry;
+	}
 
-				try
-				{
-					int slashIndex = track.indexOf('/');
+	/**
+	 * Returns the tags of a song file from the metadata store, and reads them from the file
+	 * only if it isn't stored or has changed.
+	 */
+	private static MusicDirectory.Entry getTags(Context context, File file)
+	{
+		MetadataStore metadataStore = MetadataStore.getInstance(context);
+		MusicDirectory.Entry tags = metadataStore.get(file);
 
-					if (slashIndex > 0)
-					{
-						track = track.substring(0, slashIndex);
-					}
+		if (tags == null)
+		{
+			tags = readTags(file);
+			metadataStore.put(file, tags);
+		}
 
-					trackValue = Integer.parseInt(track);
-				}
-				catch (Exception ex)
-				{
-					Log.e("OfflineMusicService", String.format("Offline Stuff: %s", ex));
-				}
+		return tags;
+	}
 
-				Log.i("OfflineMusicService", String.format("Offline Stuff: Setting Track: %d", trackValue));
+	private static MusicDirectory.Entry readTags(File file)
+	{
+		MusicDirectory.Entry tags = new MusicDirectory.Entry();
+		String track = null;
+		String disc = null;
+		String year = null;
+		String duration = null;
+		MediaMetadataRetriever mmr = new MediaMetadataRetriever();
 
-				entry.setTrack(trackValue);
-			}
+		try
+		{
+			mmr.setDataSource(file.getPath());
+			tags.setArtist(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST));
+			tags.setAlbum(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM));
+			tags.setTitle(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE));
+			tags.setGenre(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE));
+			tags.setIsVideo(mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_VIDEO) != null);
+			track = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER);
+			disc = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DISC_NUMBER);
+			year = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR);
+			duration = mmr.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+		}
+		catch (Exception ignored)
+		{
+		}
+		finally
+		{
+			mmr.release();
+		}
 
-			if (disc != null)
-			{
-				int discValue = 0;
+		if (track != null)
+		{
+			tags.setTrack(parseNumber(track));
+		}
 
-				try
-				{
-					int slashIndex = disc.indexOf('/');
+		if (disc != null)
+		{
+			tags.setDiscNumber(parseNumber(disc));
+		}
 
-					if (slashIndex > 0)
-					{
-						disc = disc.substring(0, slashIndex);
-					}
+		if (year != null)
+		{
+			tags.setYear(parseNumber(year));
+		}
 
-					discValue = Integer.parseInt(disc);
-				}
-				catch (Exception ignored)
-				{
-				}
+		if (duration != null)
+		{
+			long durationValue = 0;
 
-				entry.setDiscNumber(discValue);
+			try
+			{
+				durationValue = Long.parseLong(duration);
+				durationValue = TimeUnit.MILLISECONDS.toSeconds(durationValue);
 			}
-
-			if (year != null)
+			catch (Exception ignored)
 			{
-				int yearValue = 0;
+			}
 
-				try
-				{
-					yearValue = Integer.parseInt(year);
-				}
-				catch (Exception ignored)
-				{
-				}
+			tags.setDuration(durationValue);
+		}
 
-				entry.setYear(yearValue);
-			}
+		return tags;
+	}
+
+	/**
+	 * Parses a tag like "3" or "3/12", returning 0 if it isn't a number.
+	 */
+	private static int parseNumber(String value)
+	{
+		try
+		{
+			int slashIndex = value.indexOf('/');
 
-			if (genre != null)
+			if (slashIndex > 0)
 			{
-				entry.setGenre(genre);
+				value = value.substring(0, slashIndex);
 			}
 
-			if (duration != null)
-			{
-				long durationValue = 0;
+			return Integer.parseInt(value.trim());
+		}
+		catch (Exception ex)
+		{
+			Log.w(TAG, String.format("Failed to parse tag %s", value));
+			return 0;
+		}
+	}
 
-				try
-				{
-					durationValue = Long.parseLong(duration);
-					durationValue = TimeUnit.MILLISECONDS.toSeconds(durationValue);
-				}
-				catch (Exception ignored)
-				{
-				}
+	/**
+	 * Copies the tags to the entry of a song file, using the directory names for a missing
+	 * artist or album.
+	 */
+	private static void setTags(MusicDirectory.Entry entry, MusicDirectory.Entry tags, File file)
+	{
+		entry.setArtist(tags.getArtist() != null ? tags.getArtist() : file.getParentFile().getParentFile().getName());
+		entry.setAlbum(tags.getAlbum() != null ? tags.getAlbum() : file.getParentFile().getName());
 
-				entry.setDuration(durationValue);
-			}
+		if (tags.getTitle() != null)
+		{
+			entry.setTitle(tags.getTitle());
 		}
 
-		entry.setSuffix(FileUtil.getExtension(file.getName().replace(".complete", "")));
+		entry.setIsVideo(tags.isVideo());
 
-		File albumArt = FileUtil.getAlbumArtFile(context, entry);
+		if (tags.getTrack() != 0)
+		{
+			entry.setTrack(tags.getTrack());
+		}
 
-		if (albumArt.exists())
+		if (tags.getDiscNumber() != null)
 		{
-			entry.setCoverArt(albumArt.getPath());
+			entry.setDiscNumber(tags.getDiscNumber());
 		}
 
-		return entry;
+		if (tags.getYear() != 0)
+		{
+			entry.setYear(tags.getYear());
+		}
+
+		if (tags.getGenre() != null)
+		{
+			entry.setGenre(tags.getGenre());
+		}
+
+		if (tags.getDuration() != null)
+		{
+			entry.setDuration(tags.getDuration());
+		}
 	}
 
 	@Override
@@ -376,6 +415,60 @@ public class OfflineMusicService extends RESTMusicService
 
 	@Override
 	public SearchResult search(SearchCriteria criteria, Context context, ProgressListener progressListener) throws Exception
+	{
+		SearchIndex index = SearchIndex.getInstance(context);
+
+		if (!index.isLoaded())
+		{
+			return scan(criteria, context);
+		}
+
+		if (!index.isReconciled())
+		{
+			List<File> files = new ArrayList<File>();
+			listFilesRecursively(FileUtil.getMusicDirectory(context), files);
+			index.reconcile(files);
+		}
+
+		SearchIndex.Result result = index.search(criteria.getQuery(), criteria.getArtistCount(), criteria.getAlbumCount(), criteria.getSongCount());
+		List<Artist> artists = new ArrayList<Artist>();
+		List<MusicDirectory.Entry> albums = new ArrayList<MusicDirectory.Entry>();
+		List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>();
+
+		for (SearchIndex.Hit hit : result.getArtists())
+		{
+			Artist artist = new Artist();
+			artist.setId(hit.getFile().getPath());
+			artist.setIndex(hit.getFile().getName().substring(0, 1));
+			artist.setName(hit.getFile().getName());
+			artist.setCloseness(hit.getScore());
+			artists.add(artist);
+		}
+
+		for (SearchIndex.Hit hit : result.getAlbums())
+		{
+			MusicDirectory.Entry album = createEntry(context, hit.getFile(), hit.getAlbum(), hit);
+			album.setIsDirectory(true);
+			albums.add(album);
+		}
+
+		for (SearchIndex.Hit hit : result.getSongs())
+		{
+			MusicDirectory.Entry song = createEntry(context, hit.getFile(), hit.getTitle(), hit);
+			song.setGenre(hit.getGenre());
+			setTags(song, getTags(context, hit.getFile()), hit.getFile());
+			song.setSuffix(FileUtil.getExtension(hit.getFile().getName().replace(".complete", "")));
+			songs.add(song);
+		}
+
+		return new SearchResult(artists, albums, songs);
+	}
+
+	/**
+	 * Searches by walking the music directory and matching whole words of the file names, for
+	 * while the search index is still loading.
+	 */
+	private static SearchResult scan(SearchCriteria criteria, Context context)
 	{
 		List<Artist> artists = new ArrayList<Artist>();
 		List<MusicDirectory.Entry> albums = new ArrayList<MusicDirectory.Entry>();
@@ -415,32 +508,8 @@ public class OfflineMusicService extends RESTMusicService
 				else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
 			}
 		});
-		Collections.sort(albums, new Comparator<MusicDirectory.Entry>()
-		{
-			@Override
-			public int compare(MusicDirectory.Entry lhs, MusicDirectory.Entry rhs)
-			{
-				if (lhs.getCloseness() == rhs.getCloseness())
-				{
-					return 0;
-				}
-
-				else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
-			}
-		});
-		Collections.sort(songs, new Comparator<MusicDirectory.Entry>()
-		{
-			@Override
-			public int compare(MusicDirectory.Entry lhs, MusicDirectory.Entry rhs)
-			{
-				if (lhs.getCloseness() == rhs.getCloseness())
-				{
-					return 0;
-				}
-
-				else return lhs.getCloseness() > rhs.getCloseness() ? -1 : 1;
-			}
-		});
+		Collections.sort(albums, BY_CLOSENESS);
+		Collections.sort(songs, BY_CLOSENESS);
 
 		return new SearchResult(artists, albums, songs);
 	}
@@ -472,7 +541,7 @@ public class OfflineMusicService extends RESTMusicService
 					}
 					else if ((closeness = matchCriteria(criteria, songName)) > 0)
 					{
-						MusicDirectory.Entry song = createEntry(context, albumFile, songName);
+						MusicDirectory.Entry song = createEntry(context, songFile, songName);
 						song.setArtist(artistName);
 						song.setAlbum(albumName);
 						song.setCloseness(closeness);
@@ -498,6 +567,11 @@ public class OfflineMusicService extends RESTMusicService
 
 	private static int matchCriteria(SearchCriteria criteria, String name)
 	{
+		if (name == null)
+		{
+			return 0;
+		}
+
 		String query = criteria.getQuery().toLowerCase();
 		String[] queryParts = COMPILE.split(query);
 		String[] nameParts = COMPILE.split(name.toLowerCase());
@@ -518,6 +592,32 @@ public class OfflineMusicService extends RESTMusicService
 		return closeness;
 	}
 
+	/**
+	 * Creates an entry from a search hit, without looking up the tags of the file.
+	 */
+	private static MusicDirectory.Entry createEntry(Context context, File file, String name, SearchIndex.Hit hit)
+	{
+		MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		entry.setId(file.getPath());
+		entry.setParent(file.getParent());
+		entry.setSize(file.length());
+		String root = FileUtil.getMusicDirectory(context).getPath();
+		entry.setPath(file.getPath().replaceFirst(String.format("^%s/", root), ""));
+		entry.setTitle(name);
+		entry.setArtist(hit.getArtist());
+		entry.setAlbum(hit.getAlbum());
+		entry.setCloseness(hit.getScore());
+
+		File albumArt = FileUtil.getAlbumArtFile(context, entry);
+
+		if (albumArt.exists())
+		{
+			entry.setCoverArt(albumArt.getPath());
+		}
+
+		return entry;
+	}
+
 	@Override
 	public List<Playlist> getPlaylists(boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
@@ -576,7 +676,7 @@ public class OfflineMusicService extends RESTMusicService
 	}
 
 	@Override
-	public MusicDirectory getPlaylist(String id, String name, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getPlaylist(String id, String name, Context context, ProgressListener progressListener, EntryListener entryListener) throws Exception
 	{
 		DownloadService downloadService = DownloadServiceImpl.getInstance();
 		if (downloadService == null)
@@ -742,20 +842,19 @@ public class OfflineMusicService extends RESTMusicService
 	@Override
 	public MusicDirectory getRandomSongs(int size, Context context, ProgressListener progressListener) throws Exception
 	{
-		File root = FileUtil.getMusicDirectory(context);
-		List<File> children = new LinkedList<File>();
-		listFilesRecursively(root, children);
-		MusicDirectory result = new MusicDirectory();
+		SongCatalog catalog = SongCatalog.getInstance(context);
 
-		if (children.isEmpty())
+		if (!catalog.isReconciled())
 		{
-			return result;
+			List<File> files = new ArrayList<File>();
+			listFilesRecursively(FileUtil.getMusicDirectory(context), files);
+			catalog.reconcile(files);
 		}
 
-		Random random = new java.security.SecureRandom();
-		for (int i = 0; i < size; i++)
+		MusicDirectory result = new MusicDirectory();
+
+		for (File file : catalog.pick(size, Util.getOfflineShuffleMode(context)))
 		{
-			File file = children.get(random.nextInt(children.size()));
 			result.addChild(createEntry(context, file, getName(file)));
 		}
 
@@ -0,0 +1,258 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+import com.budrotech.jukebox.util.EntryCodec;
+import com.budrotech.jukebox.util.FileUtil;
+import com.budrotech.jukebox.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Second-tier, on-disk cache for music directories, artists and albums.
+ * <p/>
+ * Entries are keyed by REST method and id, and are stored in the compact
+ * {@link EntryCodec} format in a directory of their server below the application cache
+ * directory. The cache
+ * never expires entries itself; it records when an entry was written so that the caller
+ * can decide to serve it stale while a fresh copy is fetched.
+ * <p/>
+ * The entries of a server are deleted when the settings move away from it, and
+ * {@link #trim(Context)} keeps the cache below {@link #MAX_SIZE} by deleting the least
+ * recently read entries of all servers.
+ *
+ * @author Sindre Mehus
+ */
+public class PersistentMusicDirectoryCache
+{
+	private static final String TAG = PersistentMusicDirectoryCache.class.getSimpleName();
+	private static final String DIRECTORY_NAME = "musicdirectories";
+	private static final int FORMAT_VERSION = 1;
+	private static final long MAX_SIZE = 16 * 1024L * 1024L;
+
+	public CachedDirectory read(Context context, String method, String id)
+	{
+		File file = getFile(context, method, id);
+
+		if (!file.isFile())
+		{
+			return null;
+		}
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			if (in.readInt() != FORMAT_VERSION)
+			{
+				return null;
+			}
+
+			long storedAt = in.readLong();
+			MusicDirectory directory = EntryCodec.readDirectory(in);
+
+			// The modification time orders the entries for trimming
+			file.setLastModified(System.currentTimeMillis());
+			return new CachedDirectory(directory, storedAt);
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to read cached directory from %s", file), x);
+			Util.delete(file);
+			return null;
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	public void write(Context context, String method, String id, MusicDirectory directory)
+	{
+		if (directory == null)
+		{
+			return;
+		}
+
+		File file = getFile(context, method, id);
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(System.currentTimeMillis());
+			EntryCodec.writeDirectory(out, directory);
+			out.close();
+			out = null;
+
+			Util.renameFile(tmp, file);
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to write cached directory to %s", file), x);
+			Util.delete(tmp);
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+
+	/**
+	 * Deletes the entries of a server. Does file I/O, so call it in the background.
+	 *
+	 * @param restUrl The REST URL of the server, as returned by {@link Util#getRestUrl}.
+	 */
+	public void clear(Context context, String restUrl)
+	{
+		File dir = getServerDirectory(context, restUrl);
+
+		if (!dir.isDirectory())
+		{
+			return;
+		}
+
+		for (File file : FileUtil.listFiles(dir))
+		{
+			Util.delete(file);
+		}
+
+		Util.delete(dir);
+		Log.i(TAG, String.format("Cleared cached directories of %s", restUrl));
+	}
+
+	/**
+	 * Deletes the least recently read entries until the cache is no larger than
+	 * {@link #MAX_SIZE}.
+	 */
+	public void trim(Context context)
+	{
+		List<File> files = new ArrayList<File>();
+
+		for (File file : FileUtil.listFiles(getDirectory(context)))
+		{
+			if (file.isDirectory())
+			{
+				files.addAll(FileUtil.listFiles(file));
+			}
+			else
+			{
+				files.add(file);
+			}
+		}
+
+		long size = 0;
+
+		for (File file : files)
+		{
+			size += file.length();
+		}
+
+		if (size <= MAX_SIZE)
+		{
+			return;
+		}
+
+		Collections.sort(files, new Comparator<File>()
+		{
+			@Override
+			public int compare(File a, File b)
+			{
+				long lhs = a.lastModified();
+				long rhs = b.lastModified();
+				return lhs < rhs ? -1 : lhs == rhs ? 0 : 1;
+			}
+		});
+
+		int deleted = 0;
+
+		for (File file : files)
+		{
+			if (size <= MAX_SIZE)
+			{
+				break;
+			}
+
+			size -= file.length();
+			Util.delete(file);
+			deleted++;
+		}
+
+		Log.i(TAG, String.format("Deleted %d cached directories, %s left", deleted, Util.formatBytes(size)));
+	}
+
+	private static File getFile(Context context, String method, String id)
+	{
+		File dir = getServerDirectory(context, Util.getRestUrl(context, null));
+		FileUtil.ensureDirectoryExistsAndIsReadWritable(dir);
+		return new File(dir, String.format("%s.bin", Util.md5Hex(method + id)));
+	}
+
+	private static File getServerDirectory(Context context, String restUrl)
+	{
+		return new File(getDirectory(context), Util.md5Hex(restUrl));
+	}
+
+	private static File getDirectory(Context context)
+	{
+		File dir = new File(context.getCacheDir(), DIRECTORY_NAME);
+		FileUtil.ensureDirectoryExistsAndIsReadWritable(dir);
+		return dir;
+	}
+
+	public static class CachedDirectory
+	{
+		private final MusicDirectory directory;
+		private final long storedAt;
+
+		CachedDirectory(MusicDirectory directory, long storedAt)
+		{
+			this.directory = directory;
+			this.storedAt = storedAt;
+		}
+
+		public MusicDirectory getDirectory()
+		{
+			return directory;
+		}
+
+		public boolean isStale(long ttlMillis)
+		{
+			return System.currentTimeMillis() - storedAt > ttlMillis;
+		}
+	}
+}
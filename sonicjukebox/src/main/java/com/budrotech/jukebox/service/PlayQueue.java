@@ -0,0 +1,509 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * An ordered list of songs to play or download, which is indexed by song.
+ * <p/>
+ * The songs are kept in a randomized balanced tree ordered by position, so that songs can
+ * be inserted, moved or removed at any position in O(log n). Every node knows its parent,
+ * so the position of a song is also found in O(log n), and an iterator walks the songs in
+ * O(1) per song. A map from song id to its download files finds the songs of an entry in
+ * constant time.
+ * <p/>
+ * All methods are synchronized on the queue itself, and not on the download service, so
+ * lookups don't wait for the service. Every {@link DownloadFile} may only be added once.
+ *
+ * @author Sindre Mehus
+ */
+public class PlayQueue extends AbstractList<DownloadFile>
+{
+	private final Random random = new Random();
+	private final Map<DownloadFile, Node> nodes = new IdentityHashMap<DownloadFile, Node>();
+	private final Map<String, List<DownloadFile>> songs = new HashMap<String, List<DownloadFile>>();
+	private Node root;
+
+	@Override
+	public synchronized DownloadFile get(int index)
+	{
+		checkIndex(index, size(root) - 1);
+		return nodeAt(index).downloadFile;
+	}
+
+	@Override
+	public synchronized int size()
+	{
+		return size(root);
+	}
+
+	@Override
+	public synchronized void add(int index, DownloadFile downloadFile)
+	{
+		checkIndex(index, size(root));
+
+		if (nodes.containsKey(downloadFile))
+		{
+			throw new IllegalArgumentException(String.format("%s is already queued", downloadFile));
+		}
+
+		Node node = new Node(downloadFile, random.nextInt());
+		Node[] parts = split(root, index);
+		root = merge(merge(parts[0], node), parts[1]);
+		root.parent = null;
+
+		nodes.put(downloadFile, node);
+		String id = downloadFile.getSong().getId();
+		List<DownloadFile> files = songs.get(id);
+
+		if (files == null)
+		{
+			files = new ArrayList<DownloadFile>(1);
+			songs.put(id, files);
+		}
+
+		files.add(downloadFile);
+		modCount++;
+	}
+
+	@Override
+	public synchronized DownloadFile remove(int index)
+	{
+		checkIndex(index, size(root) - 1);
+
+		Node[] head = split(root, index);
+		Node[] tail = split(head[1], 1);
+		root = merge(head[0], tail[1]);
+
+		if (root != null)
+		{
+			root.parent = null;
+		}
+
+		DownloadFile downloadFile = tail[0].downloadFile;
+		nodes.remove(downloadFile);
+		String id = downloadFile.getSong().getId();
+		List<DownloadFile> files = songs.get(id);
+
+		if (files != null)
+		{
+			files.remove(downloadFile);
+
+			if (files.isEmpty())
+			{
+				songs.remove(id);
+			}
+		}
+
+		modCount++;
+		return downloadFile;
+	}
+
+	@Override
+	public synchronized boolean remove(Object o)
+	{
+		int index = indexOf(o);
+
+		if (index == -1)
+		{
+			return false;
+		}
+
+		remove(index);
+		return true;
+	}
+
+	@Override
+	public synchronized DownloadFile set(int index, DownloadFile downloadFile)
+	{
+		DownloadFile previous = remove(index);
+		add(index, downloadFile);
+		return previous;
+	}
+
+	/**
+	 * Moves the song at the given position to another position.
+	 */
+	public synchronized void move(int from, int to)
+	{
+		add(to, remove(from));
+	}
+
+	@Override
+	public synchronized void clear()
+	{
+		root = null;
+		nodes.clear();
+		songs.clear();
+		modCount++;
+	}
+
+	@Override
+	public synchronized int indexOf(Object o)
+	{
+		Node node = nodes.get(o);
+
+		if (node == null)
+		{
+			return -1;
+		}
+
+		int index = size(node.left);
+
+		for (; node.parent != null; node = node.parent)
+		{
+			if (node == node.parent.right)
+			{
+				index += size(node.parent.left) + 1;
+			}
+		}
+
+		return index;
+	}
+
+	@Override
+	public synchronized int lastIndexOf(Object o)
+	{
+		return indexOf(o);
+	}
+
+	@Override
+	public synchronized boolean contains(Object o)
+	{
+		return nodes.containsKey(o);
+	}
+
+	/**
+	 * Returns the queued download files of the given song, in queue order.
+	 */
+	public synchronized List<DownloadFile> find(MusicDirectory.Entry song)
+	{
+		List<DownloadFile> files = songs.get(song.getId());
+
+		if (files == null)
+		{
+			return Collections.emptyList();
+		}
+
+		List<DownloadFile> result = new ArrayList<DownloadFile>(files);
+
+		if (result.size() > 1)
+		{
+			Collections.sort(result, new Comparator<DownloadFile>()
+			{
+				@Override
+				public int compare(DownloadFile a, DownloadFile b)
+				{
+					return indexOf(a) - indexOf(b);
+				}
+			});
+		}
+
+		return result;
+	}
+
+	@Override
+	public synchronized Object[] toArray()
+	{
+		List<DownloadFile> result = new ArrayList<DownloadFile>(size(root));
+		collect(root, result);
+		return result.toArray();
+	}
+
+	@Override
+	public synchronized <T> T[] toArray(T[] a)
+	{
+		List<DownloadFile> result = new ArrayList<DownloadFile>(size(root));
+		collect(root, result);
+		return result.toArray(a);
+	}
+
+	/**
+	 * Returns an iterator which walks the tree in order, rather than looking up every
+	 * position. Like that of any list, it fails once the queue is changed other than
+	 * through it.
+	 */
+	@Override
+	public Iterator<DownloadFile> iterator()
+	{
+		return new NodeIterator();
+	}
+
+	private static void collect(Node node, List<DownloadFile> result)
+	{
+		while (node != null)
+		{
+			collect(node.left, result);
+			result.add(node.downloadFile);
+			node = node.right;
+		}
+	}
+
+	private static Node first(Node node)
+	{
+		if (node != null)
+		{
+			while (node.left != null)
+			{
+				node = node.left;
+			}
+		}
+
+		return node;
+	}
+
+	private static Node successor(Node node)
+	{
+		if (node.right != null)
+		{
+			return first(node.right);
+		}
+
+		while (node.parent != null && node == node.parent.right)
+		{
+			node = node.parent;
+		}
+
+		return node.parent;
+	}
+
+	private Node nodeAt(int index)
+	{
+		Node node = root;
+
+		while (true)
+		{
+			int leftSize = size(node.left);
+
+			if (index < leftSize)
+			{
+				node = node.left;
+			}
+			else if (index > leftSize)
+			{
+				index -= leftSize + 1;
+				node = node.right;
+			}
+			else
+			{
+				return node;
+			}
+		}
+	}
+
+	/**
+	 * Splits the tree into the first {@code count} nodes and the rest.
+	 */
+	private static Node[] split(Node node, int count)
+	{
+		if (node == null)
+		{
+			return new Node[]{null, null};
+		}
+
+		if (size(node.left) >= count)
+		{
+			Node[] parts = split(node.left, count);
+			node.setLeft(parts[1]);
+			parts[1] = node;
+			node.parent = null;
+			setParentOfRoot(parts[0]);
+			return parts;
+		}
+
+		Node[] parts = split(node.right, count - size(node.left) - 1);
+		node.setRight(parts[0]);
+		parts[0] = node;
+		node.parent = null;
+		setParentOfRoot(parts[1]);
+		return parts;
+	}
+
+	private static Node merge(Node left, Node right)
+	{
+		if (left == null)
+		{
+			return right;
+		}
+
+		if (right == null)
+		{
+			return left;
+		}
+
+		if (left.priority > right.priority)
+		{
+			left.setRight(merge(left.right, right));
+			return left;
+		}
+
+		right.setLeft(merge(left, right.left));
+		return right;
+	}
+
+	private static void setParentOfRoot(Node node)
+	{
+		if (node != null)
+		{
+			node.parent = null;
+		}
+	}
+
+	private static int size(Node node)
+	{
+		return node == null ? 0 : node.size;
+	}
+
+	private void checkIndex(int index, int max)
+	{
+		if (index < 0 || index > max)
+		{
+			throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, size(root)));
+		}
+	}
+
+	private class NodeIterator implements Iterator<DownloadFile>
+	{
+		private Node next;
+		private Node lastReturned;
+		private int expectedModCount;
+
+		NodeIterator()
+		{
+			synchronized (PlayQueue.this)
+			{
+				next = first(root);
+				expectedModCount = modCount;
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			synchronized (PlayQueue.this)
+			{
+				return next != null;
+			}
+		}
+
+		@Override
+		public DownloadFile next()
+		{
+			synchronized (PlayQueue.this)
+			{
+				checkForComodification();
+
+				if (next == null)
+				{
+					throw new NoSuchElementException();
+				}
+
+				lastReturned = next;
+				next = successor(next);
+				return lastReturned.downloadFile;
+			}
+		}
+
+		@Override
+		public void remove()
+		{
+			synchronized (PlayQueue.this)
+			{
+				if (lastReturned == null)
+				{
+					throw new IllegalStateException();
+				}
+
+				checkForComodification();
+
+				// The nodes are kept when the tree is split and merged, so the next node stays valid
+				PlayQueue.this.remove(lastReturned.downloadFile);
+				lastReturned = null;
+				expectedModCount = modCount;
+			}
+		}
+
+		private void checkForComodification()
+		{
+			if (modCount != expectedModCount)
+			{
+				throw new ConcurrentModificationException();
+			}
+		}
+	}
+
+	private static class Node
+	{
+		private final DownloadFile downloadFile;
+		private final int priority;
+		private Node left;
+		private Node right;
+		private Node parent;
+		private int size = 1;
+
+		Node(DownloadFile downloadFile, int priority)
+		{
+			this.downloadFile = downloadFile;
+			this.priority = priority;
+		}
+
+		void setLeft(Node left)
+		{
+			this.left = left;
+
+			if (left != null)
+			{
+				left.parent = this;
+			}
+
+			updateSize();
+		}
+
+		void setRight(Node right)
+		{
+			this.right = right;
+
+			if (right != null)
+			{
+				right.parent = this;
+			}
+
+			updateSize();
+		}
+
+		private void updateSize()
+		{
+			size = 1 + PlayQueue.size(left) + PlayQueue.size(right);
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+import com.budrotech.jukebox.util.EntryCodec;
+import com.budrotech.jukebox.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary snapshot of the play queue, which is restored when the service starts.
+ * <p/>
+ * The file starts with a fixed size header holding the current song and position, followed
+ * by the songs encoded by {@link EntryCodec}. When only the position changed, just the
+ * header is overwritten in place; the songs are rewritten only when the queue changed. The
+ * songs are read in batches, so the first songs can be restored before the rest is decoded.
+ *
+ * @author Sindre Mehus
+ */
+public class PlayQueueSnapshot
+{
+	private static final String TAG = PlayQueueSnapshot.class.getSimpleName();
+	private static final String FILE_NAME = "playqueue.bin";
+	private static final int FORMAT_VERSION = 1;
+
+	// Offset of the current song and position, after the format version.
+	private static final long POSITION_OFFSET = 4;
+
+	private final File file;
+
+	public PlayQueueSnapshot(Context context)
+	{
+		file = new File(context.getCacheDir(), FILE_NAME);
+	}
+
+	/**
+	 * Writes the whole queue.
+	 */
+	public synchronized boolean write(List<MusicDirectory.Entry> songs, int currentPlayingIndex, int currentPlayingPosition)
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(currentPlayingIndex);
+			out.writeInt(currentPlayingPosition);
+			out.writeInt(songs.size());
+
+			for (MusicDirectory.Entry song : songs)
+			{
+				EntryCodec.writeEntry(out, song);
+			}
+
+			out.close();
+			out = null;
+
+			Util.renameFile(tmp, file);
+			Log.i(TAG, String.format("Wrote %d songs to %s", songs.size(), file));
+			return true;
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to write play queue to %s", file), x);
+			Util.delete(tmp);
+			return false;
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+
+	/**
+	 * Overwrites the current song and position of the last written queue.
+	 */
+	public synchronized boolean writePosition(int currentPlayingIndex, int currentPlayingPosition)
+	{
+		if (!file.isFile())
+		{
+			return false;
+		}
+
+		RandomAccessFile out = null;
+
+		try
+		{
+			out = new RandomAccessFile(file, "rw");
+			out.seek(POSITION_OFFSET);
+			out.writeInt(currentPlayingIndex);
+			out.writeInt(currentPlayingPosition);
+			return true;
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to write play queue position to %s", file), x);
+			return false;
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+
+	/**
+	 * Opens the snapshot for reading, or returns null if there is none.
+	 */
+	public Reader open()
+	{
+		if (!file.isFile())
+		{
+			return null;
+		}
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+			if (in.readInt() != FORMAT_VERSION)
+			{
+				Util.close(in);
+				return null;
+			}
+
+			return new Reader(in, in.readInt(), in.readInt(), in.readInt());
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to read play queue from %s", file), x);
+			Util.close(in);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the songs of a snapshot in order.
+	 */
+	public static class Reader implements Closeable
+	{
+		private final DataInputStream in;
+		private final int currentPlayingIndex;
+		private final int currentPlayingPosition;
+		private final int count;
+		private int read;
+
+		private Reader(DataInputStream in, int currentPlayingIndex, int currentPlayingPosition, int count)
+		{
+			this.in = in;
+			this.currentPlayingIndex = currentPlayingIndex;
+			this.currentPlayingPosition = currentPlayingPosition;
+			this.count = count;
+		}
+
+		public int getCurrentPlayingIndex()
+		{
+			return currentPlayingIndex;
+		}
+
+		public int getCurrentPlayingPosition()
+		{
+			return currentPlayingPosition;
+		}
+
+		public int getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * Reads up to the given number of the remaining songs.
+		 */
+		public List<MusicDirectory.Entry> read(int max) throws IOException
+		{
+			int n = Math.min(max, count - read);
+			List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>(n);
+
+			for (int i = 0; i < n; i++)
+			{
+				songs.add(EntryCodec.readEntry(in));
+			}
+
+			read += n;
+			return songs;
+		}
+
+		@Override
+		public void close()
+		{
+			Util.close(in);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.os.SystemClock;
+
+/**
+ * Immutable reading of the player position, from which the position at any later time is
+ * worked out without asking the player.
+ * <p/>
+ * {@link DownloadServiceImpl} takes a new reading from the media player whenever playback
+ * starts, stops, seeks or stalls, and every few seconds while playing in case of a stall the
+ * player didn't report. Between readings the position moves at a steady rate.
+ *
+ * @author Sindre Mehus
+ */
+public class PlaybackClock
+{
+	public static final PlaybackClock STOPPED = new PlaybackClock(0, 0.0f, 0);
+
+	private final int position;
+	private final float rate;
+	private final int duration;
+	private final long takenAt;
+
+	/**
+	 * @param position The position in milliseconds when the reading is taken.
+	 * @param rate     The speed of playback, 0 unless playing.
+	 * @param duration The duration in milliseconds, beyond which the position doesn't move,
+	 *                 or 0 if unknown.
+	 */
+	public PlaybackClock(int position, float rate, int duration)
+	{
+		this.position = position;
+		this.rate = rate;
+		this.duration = duration;
+		takenAt = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Returns the position in milliseconds now.
+	 */
+	public int getPosition()
+	{
+		return getPosition(SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * Returns the position in milliseconds at the given {@link SystemClock#elapsedRealtime()}
+	 * time.
+	 */
+	public int getPosition(long time)
+	{
+		if (rate == 0.0f)
+		{
+			return position;
+		}
+
+		long extrapolated = position + (long) ((time - takenAt) * rate);
+
+		if (duration > 0 && extrapolated > duration)
+		{
+			return duration;
+		}
+
+		return (int) Math.max(position, extrapolated);
+	}
+
+	public int getDuration()
+	{
+		return duration;
+	}
+
+	/**
+	 * Returns whether the position moves.
+	 */
+	public boolean isRunning()
+	{
+		return rate != 0.0f;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d ms at %.1fx", position, rate);
+	}
+}
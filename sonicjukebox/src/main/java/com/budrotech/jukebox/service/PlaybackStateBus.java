@@ -0,0 +1,153 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Delivers the current song and player state to everything that shows it outside the
+ * app: the notification, the widgets, the lock screen and Bluetooth devices.
+ * <p/>
+ * {@link DownloadServiceImpl} publishes a {@link NowPlaying} snapshot whenever the song or
+ * player state changes, which only stores it and returns, so that the service lock is never
+ * held while artwork is decoded or broadcasts are sent. The subscribers are called in
+ * order on a background thread. If snapshots are published faster than the subscribers
+ * handle them, the subscribers skip to the latest one.
+ *
+ * @author Sindre Mehus
+ */
+public class PlaybackStateBus
+{
+	private static final String TAG = PlaybackStateBus.class.getSimpleName();
+
+	private static PlaybackStateBus instance;
+
+	private final Handler handler;
+	private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+	private NowPlaying pending;
+	private volatile NowPlaying latest = NowPlaying.NONE;
+
+	private final Runnable deliver = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			deliver();
+		}
+	};
+
+	private PlaybackStateBus()
+	{
+		HandlerThread thread = new HandlerThread("PlaybackStateBus");
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	public static synchronized PlaybackStateBus getInstance()
+	{
+		if (instance == null)
+		{
+			instance = new PlaybackStateBus();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Adds a subscriber, which is called from the next published snapshot on.
+	 */
+	public void subscribe(Subscriber subscriber)
+	{
+		subscribers.add(subscriber);
+	}
+
+	public void unsubscribe(Subscriber subscriber)
+	{
+		subscribers.remove(subscriber);
+	}
+
+	/**
+	 * Publishes a new snapshot. Returns immediately.
+	 */
+	public synchronized void publish(NowPlaying nowPlaying)
+	{
+		if (pending == null)
+		{
+			handler.post(deliver);
+		}
+
+		pending = nowPlaying;
+	}
+
+	/**
+	 * Returns the last snapshot delivered to the subscribers.
+	 */
+	public NowPlaying getLatest()
+	{
+		return latest;
+	}
+
+	private void deliver()
+	{
+		NowPlaying nowPlaying;
+
+		synchronized (this)
+		{
+			nowPlaying = pending;
+			pending = null;
+		}
+
+		if (nowPlaying == null)
+		{
+			return;
+		}
+
+		NowPlaying previous = latest;
+		latest = nowPlaying;
+
+		for (Subscriber subscriber : subscribers)
+		{
+			try
+			{
+				subscriber.onNowPlaying(previous, nowPlaying);
+			}
+			catch (Throwable x)
+			{
+				// One failing subscriber must not keep the others from being updated
+				Log.w(TAG, String.format("Failed to notify %s", subscriber), x);
+			}
+		}
+	}
+
+	/**
+	 * Shows the current song and player state. Called on the thread of the bus.
+	 */
+	public interface Subscriber
+	{
+		/**
+		 * @param previous The snapshot delivered before, or {@link NowPlaying#NONE}.
+		 */
+		void onNowPlaying(NowPlaying previous, NowPlaying current);
+	}
+}
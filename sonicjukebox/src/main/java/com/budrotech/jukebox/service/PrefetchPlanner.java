@@ -0,0 +1,414 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.RepeatMode;
+import com.budrotech.jukebox.util.Util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static android.content.Context.CONNECTIVITY_SERVICE;
+
+/**
+ * Decides which songs to download ahead of playback, and at which bit rate.
+ * <p/>
+ * The downloads report the data they transfer, and the throughput of all running downloads
+ * together is averaged per network type. On Wi-Fi the configured number of songs is
+ * preloaded. On a mobile network only as many songs are fetched as needed to cover
+ * {@link #MOBILE_LOOKAHEAD_SECONDS} of playback, and only the next song while the current
+ * one is at risk of stalling, so that the downloads don't compete for a slow connection.
+ * The bit rate of new downloads is chosen by the {@link BitRateController}, which reads the
+ * buffer estimates of the last plan.
+ * <p/>
+ * The last plan is logged when it changes and is available from {@link #getLastPlan()}.
+ *
+ * @author Sindre Mehus
+ */
+public class PrefetchPlanner
+{
+	private static final String TAG = PrefetchPlanner.class.getSimpleName();
+
+	// Weight of a new throughput sample in the moving average.
+	private static final double SAMPLE_WEIGHT = 0.3;
+
+	// Samples of less than this are dominated by the request latency.
+	private static final long MIN_SAMPLE_BYTES = 64 * 1024L;
+
+	// Throughput is sampled at most this often while downloads are running.
+	private static final long SAMPLE_MILLIS = 10000L;
+
+	private static final int MOBILE_LOOKAHEAD_SECONDS = 600;
+
+	private static PrefetchPlanner instance;
+
+	private final Context context;
+	private final Map<Integer, Long> throughput = new HashMap<Integer, Long>();
+	private int activeDownloads;
+	private long periodStart;
+	private long periodBytes;
+	private Plan lastPlan;
+
+	private PrefetchPlanner(Context context)
+	{
+		this.context = context;
+	}
+
+	public static synchronized PrefetchPlanner getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new PrefetchPlanner(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Called when a download starts transferring data. While any download is running, the
+	 * bytes of all of them are added up over the wall time, since concurrent downloads share
+	 * the connection and each alone gets only part of it.
+	 */
+	public synchronized void downloadStarted()
+	{
+		if (activeDownloads++ == 0)
+		{
+			periodStart = SystemClock.elapsedRealtime();
+			periodBytes = 0;
+		}
+	}
+
+	/**
+	 * Called by a running download for the data it transferred.
+	 */
+	public synchronized void bytesTransferred(long bytes)
+	{
+		periodBytes += bytes;
+		long now = SystemClock.elapsedRealtime();
+
+		if (now - periodStart >= SAMPLE_MILLIS)
+		{
+			recordThroughput(periodBytes, now - periodStart);
+			periodStart = now;
+			periodBytes = 0;
+		}
+	}
+
+	/**
+	 * Called when a download stops, whether it finished, failed or was cancelled.
+	 */
+	public synchronized void downloadStopped()
+	{
+		if (activeDownloads > 0 && --activeDownloads == 0)
+		{
+			recordThroughput(periodBytes, SystemClock.elapsedRealtime() - periodStart);
+			periodBytes = 0;
+		}
+	}
+
+	/**
+	 * Records the throughput of the downloads on the current network.
+	 */
+	private void recordThroughput(long bytes, long millis)
+	{
+		if (bytes < MIN_SAMPLE_BYTES || millis <= 0)
+		{
+			return;
+		}
+
+		int networkType = getNetworkType();
+		long sample = bytes * 1000L / millis;
+		Long average = throughput.get(networkType);
+		long updated = average == null ? sample : (long) (SAMPLE_WEIGHT * sample + (1 - SAMPLE_WEIGHT) * average);
+		throughput.put(networkType, updated);
+
+		Log.d(TAG, String.format("Downloaded %s in %d ms, %s/s on network type %d", Util.formatBytes(bytes), millis, Util.formatBytes(updated), networkType));
+	}
+
+	/**
+	 * Returns the average throughput of downloads on the current network in bytes per
+	 * second, or 0 if nothing has been downloaded on it yet.
+	 */
+	public synchronized long getThroughput()
+	{
+		Long average = throughput.get(getNetworkType());
+		return average == null ? 0 : average;
+	}
+
+	/**
+	 * Plans the downloads ahead of the current song.
+	 *
+	 * @param songs          The play queue.
+	 * @param currentPlaying The current song, or null to plan from the start of the queue.
+	 * @param position       The position in the current song, in milliseconds.
+	 */
+	public Plan plan(List<DownloadFile> songs, DownloadFile currentPlaying, int position, RepeatMode repeatMode)
+	{
+		boolean unmetered = isUnmetered();
+		long bytesPerSecond = getThroughput();
+		int preloadCount = Util.getPreloadCount(context);
+		List<DownloadFile> ahead = getPlayOrder(songs, currentPlaying, repeatMode);
+
+		// Find how long the downloaded audio lasts, and whether the first song which isn't
+		// downloaded yet will be complete before playback reaches its end.
+		long secondsBuffered = 0;
+		double stallRisk = 0;
+
+		for (int i = 0; i < ahead.size(); i++)
+		{
+			DownloadFile downloadFile = ahead.get(i);
+			long offset = i == 0 && currentPlaying != null ? position / 1000 : 0;
+			Integer duration = downloadFile.getSong().getDuration();
+			long seconds = duration == null ? 0 : Math.max(0, duration - offset);
+
+			if (downloadFile.isWorkDone())
+			{
+				secondsBuffered += seconds;
+				continue;
+			}
+
+			int bitRate = downloadFile.getBitRate();
+			long bytesPerAudioSecond = (bitRate > 0 ? bitRate : DownloadFile.DEFAULT_BIT_RATE) * 1024L / 8L;
+			long buffered = downloadFile.getBufferedLength() / bytesPerAudioSecond;
+			long secondsToEnd = secondsBuffered + seconds;
+			secondsBuffered += Math.max(0, Math.min(seconds, buffered - offset));
+
+			if (bytesPerSecond == 0)
+			{
+				stallRisk = -1;
+			}
+			else if (duration != null)
+			{
+				long bytesRemaining = Math.max(0, duration * bytesPerAudioSecond - downloadFile.getBytesDownloaded());
+				double secondsToDownload = (double) bytesRemaining / bytesPerSecond;
+				stallRisk = secondsToDownload / Math.max(1, secondsToEnd);
+			}
+
+			break;
+		}
+
+		int lookahead = preloadCount;
+
+		if (!unmetered && bytesPerSecond > 0)
+		{
+			lookahead = stallRisk >= 1 ? 1 : getLookahead(ahead, MOBILE_LOOKAHEAD_SECONDS);
+			lookahead = Math.min(lookahead, preloadCount);
+		}
+
+		List<DownloadFile> queue = new ArrayList<DownloadFile>(ahead.subList(0, (int) Math.min(ahead.size(), (long) lookahead + 1)));
+		Plan plan = new Plan(queue, BitRateController.getInstance(context).getMaxBitRate(), bytesPerSecond, secondsBuffered, stallRisk, unmetered);
+
+		synchronized (this)
+		{
+			if (!plan.equals(lastPlan))
+			{
+				Log.i(TAG, plan.toString());
+			}
+
+			lastPlan = plan;
+		}
+
+		return plan;
+	}
+
+	/**
+	 * Returns the last plan, or null if nothing was planned yet.
+	 */
+	public synchronized Plan getLastPlan()
+	{
+		return lastPlan;
+	}
+
+	/**
+	 * Returns the current song followed by the songs which will be played after it.
+	 */
+	private static List<DownloadFile> getPlayOrder(List<DownloadFile> songs, DownloadFile currentPlaying, RepeatMode repeatMode)
+	{
+		List<DownloadFile> order = new ArrayList<DownloadFile>();
+		int n = songs.size();
+
+		if (n == 0)
+		{
+			return order;
+		}
+
+		int start = currentPlaying == null ? 0 : Math.max(0, songs.indexOf(currentPlaying));
+		order.add(songs.get(start));
+
+		if (repeatMode == RepeatMode.SINGLE && currentPlaying != null)
+		{
+			return order;
+		}
+
+		int end = repeatMode == RepeatMode.ALL ? start + n : n;
+
+		for (int i = start + 1; i < end; i++)
+		{
+			order.add(songs.get(i % n));
+		}
+
+		return order;
+	}
+
+	/**
+	 * Returns the number of songs after the current one which last for the given time.
+	 */
+	private static int getLookahead(List<DownloadFile> ahead, int seconds)
+	{
+		long total = 0;
+		int count = 0;
+
+		for (int i = 1; i < ahead.size() && total < seconds; i++)
+		{
+			Integer duration = ahead.get(i).getSong().getDuration();
+			total += duration == null ? 0 : duration;
+			count++;
+		}
+
+		return Math.max(1, count);
+	}
+
+	int getNetworkType()
+	{
+		NetworkInfo networkInfo = getNetworkInfo();
+		return networkInfo == null ? -1 : networkInfo.getType();
+	}
+
+	private boolean isUnmetered()
+	{
+		NetworkInfo networkInfo = getNetworkInfo();
+		return networkInfo != null && (networkInfo.getType() == ConnectivityManager.TYPE_WIFI || networkInfo.getType() == ConnectivityManager.TYPE_ETHERNET);
+	}
+
+	private NetworkInfo getNetworkInfo()
+	{
+		ConnectivityManager manager = (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE);
+		return manager.getActiveNetworkInfo();
+	}
+
+	/**
+	 * The songs to download ahead of playback and the estimates they were chosen by.
+	 */
+	public static class Plan
+	{
+		private final List<DownloadFile> queue;
+		private final int maxBitRate;
+		private final long bytesPerSecond;
+		private final long secondsBuffered;
+		private final double stallRisk;
+		private final boolean unmetered;
+
+		Plan(List<DownloadFile> queue, int maxBitRate, long bytesPerSecond, long secondsBuffered, double stallRisk, boolean unmetered)
+		{
+			this.queue = Collections.unmodifiableList(queue);
+			this.maxBitRate = maxBitRate;
+			this.bytesPerSecond = bytesPerSecond;
+			this.secondsBuffered = secondsBuffered;
+			this.stallRisk = stallRisk;
+			this.unmetered = unmetered;
+		}
+
+		/**
+		 * Returns the current song followed by the songs to download ahead of it, in the
+		 * order they will be played.
+		 */
+		public List<DownloadFile> getQueue()
+		{
+			return queue;
+		}
+
+		public int getMaxBitRate()
+		{
+			return maxBitRate;
+		}
+
+		/**
+		 * Returns the measured throughput in bytes per second, or 0 if unknown.
+		 */
+		public long getBytesPerSecond()
+		{
+			return bytesPerSecond;
+		}
+
+		/**
+		 * Returns how many seconds of downloaded audio are left ahead of the current position.
+		 */
+		public long getSecondsBuffered()
+		{
+			return secondsBuffered;
+		}
+
+		/**
+		 * Returns the time to finish the first incomplete song divided by the time until
+		 * playback reaches its end. Playback is expected to stall at 1 or more. Returns -1
+		 * if the throughput is unknown, and 0 if all songs ahead are downloaded.
+		 */
+		public double getStallRisk()
+		{
+			return stallRisk;
+		}
+
+		public boolean isUnmetered()
+		{
+			return unmetered;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+			{
+				return true;
+			}
+
+			if (!(o instanceof Plan))
+			{
+				return false;
+			}
+
+			// Progress alone doesn't make a new plan worth logging
+			Plan other = (Plan) o;
+			return queue.equals(other.queue) && maxBitRate == other.maxBitRate && unmetered == other.unmetered && (stallRisk >= 1) == (other.stallRisk >= 1);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = queue.hashCode();
+			result = 31 * result + maxBitRate;
+			result = 31 * result + (unmetered ? 1 : 0);
+			return result;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("Prefetching %d songs at bit rate %d on %s network, %s/s, %d s buffered, stall risk %.2f", queue.size() - 1, maxBitRate, unmetered ? "unmetered" : "metered", Util.formatBytes(bytesPerSecond), secondsBuffered, stallRisk);
+		}
+	}
+}
@@ -49,6 +49,7 @@ import com.budrotech.jukebox.service.parser.IndexesParser;
 import com.budrotech.jukebox.service.parser.JukeboxStatusParser;
 import com.budrotech.jukebox.service.parser.LicenseParser;
 import com.budrotech.jukebox.service.parser.LyricsParser;
+import com.budrotech.jukebox.service.parser.MusicDirectoryEntryParser.EntryListener;
 import com.budrotech.jukebox.service.parser.MusicDirectoryParser;
 import com.budrotech.jukebox.service.parser.MusicFoldersParser;
 import com.budrotech.jukebox.service.parser.PlaylistParser;
@@ -58,6 +59,9 @@ import com.budrotech.jukebox.service.parser.SearchResult2Parser;
 import com.budrotech.jukebox.service.parser.SearchResultParser;
 import com.budrotech.jukebox.service.parser.ShareParser;
 import com.budrotech.jukebox.service.parser.UserInfoParser;
+import com.budrotech.jukebox.service.parser.json.JsonEntryListParser;
+import com.budrotech.jukebox.service.parser.json.JsonIndexesParser;
+import com.budrotech.jukebox.service.parser.json.JsonMusicDirectoryParser;
 import com.budrotech.jukebox.service.ssl.SSLSocketFactory;
 import com.budrotech.jukebox.service.ssl.TrustSelfSignedStrategy;
 import com.budrotech.jukebox.util.CancellableTask;
@@ -81,8 +85,11 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import okhttp3.HttpUrl;
+import okhttp3.MediaType;
 import okhttp3.Response;
 
 import static java.util.Arrays.asList;
@@ -95,8 +102,6 @@ public class RESTMusicService implements MusicService
 
 	private static final String TAG = RESTMusicService.class.getSimpleName();
 
-	 static final int SOCKET_CONNECT_TIMEOUT = 10 * 1000;
-	static final int SOCKET_READ_TIMEOUT_DEFAULT = 10 * 1000;
 	private static final int SOCKET_READ_TIMEOUT_DOWNLOAD = 30 * 1000;
 	private static final int SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS = 60 * 1000;
 	private static final int SOCKET_READ_TIMEOUT_GET_PLAYLIST = 60 * 1000;
@@ -111,6 +116,10 @@ public class RESTMusicService implements MusicService
 
 	static final int HTTP_REQUEST_MAX_ATTEMPTS = 5;
 
+	// JSON responses were introduced in REST API version 1.4.0.
+	private static final Version JSON_MIN_VERSION = new Version("1.4.0");
+	private static final Set<Integer> JSON_UNSUPPORTED_SERVERS = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
 	public RESTMusicService()
 	{
 //
@@ -230,11 +239,12 @@ public class RESTMusicService implements MusicService
 			parameterValues.add(musicFolderId);
 		}
 
-		Reader reader = getReader(context, progressListener, "getIndexes", parameterNames, parameterValues);
+		Response response = getResponse(context, progressListener, "getIndexes", parameterNames, parameterValues, true);
+		Reader reader = response.body().charStream();
 
 		try
 		{
-			Indexes indexes = new IndexesParser(context).parse(reader, progressListener);
+			Indexes indexes = isJsonResponse(context, response) ? new JsonIndexesParser(context).parse(reader, progressListener) : new IndexesParser(context).parse(reader, progressListener);
 			if (indexes != null)
 			{
 				writeCachedIndexes(context, indexes, musicFolderId);
@@ -278,10 +288,11 @@ public class RESTMusicService implements MusicService
 			return cachedArtists;
 		}
 
-		Reader reader = getReader(context, progressListener, "getArtists");
+		Response response = getResponse(context, progressListener, "getArtists", null, null, true);
+		Reader reader = response.body().charStream();
 		try
 		{
-			Indexes indexes = new IndexesParser(context).parse(reader, progressListener);
+			Indexes indexes = isJsonResponse(context, response) ? new JsonIndexesParser(context).parse(reader, progressListener) : new IndexesParser(context).parse(reader, progressListener);
 			if (indexes != null)
 			{
 				writeCachedArtists(context, indexes);
@@ -410,9 +421,15 @@ public class RESTMusicService implements MusicService
 	@Override
 	public MusicDirectory getMusicDirectory(String id, String name, boolean refresh, Context context, ProgressListener progressListener) throws Exception
 	{
-		Reader reader = getReaderForId(context, progressListener, "getMusicDirectory", id);
+		Response response = getResponse(context, progressListener, "getMusicDirectory", Collections.singletonList("id"), Collections.<Object>singletonList(id), true);
+		Reader reader = response.body().charStream();
 		try
 		{
+			if (isJsonResponse(context, response))
+			{
+				return new JsonMusicDirectoryParser(context).parse(name, reader, progressListener, false);
+			}
+
 			return new MusicDirectoryParser(context).parse(name, reader, progressListener, false);
 		}
 		finally
@@ -426,9 +443,15 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.8", "Artist by ID3 tag not supported.");
 
-		Reader reader = getReaderForId(context, progressListener, "getArtist", id);
+		Response response = getResponse(context, progressListener, "getArtist", Collections.singletonList("id"), Collections.<Object>singletonList(id), true);
+		Reader reader = response.body().charStream();
 		try
 		{
+			if (isJsonResponse(context, response))
+			{
+				return new JsonMusicDirectoryParser(context).parse(name, reader, progressListener, false);
+			}
+
 			return new MusicDirectoryParser(context).parse(name, reader, progressListener, false);
 		}
 		finally
@@ -442,9 +465,15 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.8", "Album by ID3 tag not supported.");
 
-		Reader reader = getReaderForId(context, progressListener, "getAlbum", id);
+		Response response = getResponse(context, progressListener, "getAlbum", Collections.singletonList("id"), Collections.<Object>singletonList(id), true);
+		Reader reader = response.body().charStream();
 		try
 		{
+			if (isJsonResponse(context, response))
+			{
+				return new JsonMusicDirectoryParser(context).parse(name, reader, progressListener, true);
+			}
+
 			return new MusicDirectoryParser(context).parse(name, reader, progressListener, true);
 		}
 		finally
@@ -523,16 +552,18 @@ public class RESTMusicService implements MusicService
 	}
 
 	@Override
-	public MusicDirectory getPlaylist(String id, String name, Context context, ProgressListener progressListener) throws Exception
+	public MusicDirectory getPlaylist(String id, String name, Context context, ProgressListener progressListener, EntryListener entryListener) throws Exception
 	{
 		SubsonicRequest request = new SubsonicRequest(context, "getPlaylist")
 				.addQueryParameter("id", id)
 				.setSocketReadTimeout(SOCKET_READ_TIMEOUT_GET_PLAYLIST);
+		requestJson(context, request);
 
-		Reader reader = request.getResponse(progressListener, null).body().charStream();
+		Response response = request.getResponse(progressListener, null);
+		Reader reader = response.body().charStream();
 		try
 		{
-			MusicDirectory playlist = new PlaylistParser(context).parse(reader, progressListener);
+			MusicDirectory playlist = isJsonResponse(context, response) ? new JsonEntryListParser(context, "entry", false).parse(reader, progressListener, entryListener) : new PlaylistParser(context).parse(reader, progressListener, entryListener);
 
 			File playlistFile = FileUtil.getPlaylistFile(Util.getServerName(context), name);
 			FileWriter fw = new FileWriter(playlistFile);
@@ -732,9 +763,15 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.2", "Album list not supported.");
 
-		Reader reader = getReader(context, progressListener, "getAlbumList", asList("type", "size", "offset"), Arrays.<Object>asList(type, size, offset));
+		Response response = getResponse(context, progressListener, "getAlbumList", asList("type", "size", "offset"), Arrays.<Object>asList(type, size, offset), true);
+		Reader reader = response.body().charStream();
 		try
 		{
+			if (isJsonResponse(context, response))
+			{
+				return new JsonEntryListParser(context, "album", false).parse(reader, progressListener);
+			}
+
 			return new AlbumListParser(context).parse(reader, progressListener, false);
 		}
 		finally
@@ -748,9 +785,15 @@ public class RESTMusicService implements MusicService
 	{
 		checkServerVersion(context, "1.8", "Album list by ID3 tag not supported.");
 
-		Reader reader = getReader(context, progressListener, "getAlbumList2", asList("type", "size", "offset"), Arrays.<Object>asList(type, size, offset));
+		Response response = getResponse(context, progressListener, "getAlbumList2", asList("type", "size", "offset"), Arrays.<Object>asList(type, size, offset), true);
+		Reader reader = response.body().charStream();
 		try
 		{
+			if (isJsonResponse(context, response))
+			{
+				return new JsonEntryListParser(context, "album", true).parse(reader, progressListener);
+			}
+
 			return new AlbumListParser(context).parse(reader, progressListener, true);
 		}
 		finally
@@ -767,10 +810,17 @@ public class RESTMusicService implements MusicService
 		SubsonicRequest request = new SubsonicRequest(context, "getRandomSongs");
 		request.setSocketReadTimeout(SOCKET_READ_TIMEOUT_GET_RANDOM_SONGS);
 		request.addQueryParameter("size", String.valueOf(size));
+		requestJson(context, request);
 
-		Reader reader = request.getResponse(progressListener, null).body().charStream();
+		Response response = request.getResponse(progressListener, null);
+		Reader reader = response.body().charStream();
 		try
 		{
+			if (isJsonResponse(context, response))
+			{
+				return new JsonEntryListParser(context, "song", false).parse(reader, progressListener);
+			}
+
 			return new RandomSongsParser(context).parse(reader, progressListener);
 		}
 		finally
@@ -913,19 +963,35 @@ public class RESTMusicService implements MusicService
 
 	@Override
 	public Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, int maxBitrate, CancellableTask task) throws Exception
+	{
+		return getDownloadInputStream(context, song, offset, -1, maxBitrate, task);
+	}
+
+	@Override
+	public Response getDownloadInputStream(Context context, MusicDirectory.Entry song, long offset, long length, int maxBitrate, CancellableTask task) throws Exception
 	{
 		SubsonicRequest request = new SubsonicRequest(context, "stream");
 		request.addQueryParameter("id", song.getId());
 		request.addQueryParameter("maxBitRate", String.valueOf(maxBitrate));
 
-		// Set socket read timeout. Note: The timeout increases as the offset gets larger. This is
-		// to avoid the thrashing effect seen when offset is combined with transcoding/downsampling on the server.
-		// In that case, the server uses a long time before sending any data, causing the client to time out.
-		request.setSocketReadTimeout((int) (SOCKET_READ_TIMEOUT_DOWNLOAD + offset * TIMEOUT_MILLIS_PER_OFFSET_BYTE));
-
-		if (offset > 0)
+		if (length >= 0)
 		{
-			request.addBasicHeader("Range", String.format("bytes=%d-", offset));
+			// Bounded ranges are only requested for files which are not transcoded, so the
+			// server can seek to the offset directly.
+			request.setSocketReadTimeout(SOCKET_READ_TIMEOUT_DOWNLOAD);
+			request.addBasicHeader("Range", String.format("bytes=%d-%d", offset, offset + length - 1));
+		}
+		else
+		{
+			// Set socket read timeout. Note: The timeout increases as the offset gets larger. This is
+			// to avoid the thrashing effect seen when offset is combined with transcoding/downsampling on the server.
+			// In that case, the server uses a long time before sending any data, causing the client to time out.
+			request.setSocketReadTimeout((int) (SOCKET_READ_TIMEOUT_DOWNLOAD + offset * TIMEOUT_MILLIS_PER_OFFSET_BYTE));
+
+			if (offset > 0)
+			{
+				request.addBasicHeader("Range", String.format("bytes=%d-", offset));
+			}
 		}
 
 		Response response = request.getResponse(null, task);
@@ -1043,6 +1109,15 @@ public class RESTMusicService implements MusicService
 	}
 
 	private Reader getReader(Context context, ProgressListener progressListener, String method, List<String> parameterNames, List<Object> parameterValues) throws Exception
+	{
+		return getResponse(context, progressListener, method, parameterNames, parameterValues, false).body().charStream();
+	}
+
+	/**
+	 * @param allowJson Whether the caller can parse a JSON response. JSON is only requested
+	 *                  if it is enabled for the active server, see {@link #requestJson}.
+	 */
+	private Response getResponse(Context context, ProgressListener progressListener, String method, List<String> parameterNames, List<Object> parameterValues, boolean allowJson) throws Exception
 	{
 
 		if (progressListener != null)
@@ -1066,7 +1141,54 @@ public class RESTMusicService implements MusicService
 				}
 		}
 
-		return request.getResponse(progressListener, null).body().charStream();
+		if (allowJson)
+		{
+			requestJson(context, request);
+		}
+
+		return request.getResponse(progressListener, null);
+	}
+
+	/**
+	 * Asks for a JSON response if enabled for the active server, unless the server is known
+	 * to be too old to support it.
+	 */
+	private static void requestJson(Context context, SubsonicRequest request)
+	{
+		if (!Util.getShouldUseJson(context) || JSON_UNSUPPORTED_SERVERS.contains(Util.getActiveServer(context)))
+		{
+			return;
+		}
+
+		Version serverVersion = Util.getServerRestVersion(context);
+
+		if (serverVersion == null || serverVersion.compareTo(JSON_MIN_VERSION) >= 0)
+		{
+			request.addQueryParameter("f", "json");
+		}
+	}
+
+	/**
+	 * Returns whether a response is in JSON format. Servers that ignore a request for JSON
+	 * are remembered, and XML is requested from them from then on.
+	 */
+	private static boolean isJsonResponse(Context context, Response response)
+	{
+		if (!"json".equals(response.request().url().queryParameter("f")))
+		{
+			return false;
+		}
+
+		MediaType contentType = response.body().contentType();
+
+		if (contentType != null && "json".equals(contentType.subtype()))
+		{
+			return true;
+		}
+
+		Log.i(TAG, "Server does not support JSON responses, falling back to XML");
+		JSON_UNSUPPORTED_SERVERS.add(Util.getActiveServer(context));
+		return false;
 	}
 
 	@Override
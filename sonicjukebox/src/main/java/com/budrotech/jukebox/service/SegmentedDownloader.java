@@ -0,0 +1,547 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+import com.budrotech.jukebox.util.CancellableTask;
+import com.budrotech.jukebox.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import okhttp3.Response;
+
+/**
+ * Downloads a single song over several HTTP connections at once.
+ * <p/>
+ * The partial file is preallocated to the full size of the song and split into ranges,
+ * each of which is fetched by its own task with an HTTP Range request. As the partial
+ * file no longer grows from the start, the progress of every range is recorded in a state
+ * file next to it, and an interrupted download resumes every range where it stopped.
+ * Only the prefix up to the first incomplete range may be played.
+ *
+ * @author Sindre Mehus
+ */
+public class SegmentedDownloader
+{
+	private static final String TAG = SegmentedDownloader.class.getSimpleName();
+	private static final int STATE_VERSION = 1;
+	private static final int MAX_SEGMENTS = 4;
+	private static final long MIN_SEGMENT_SIZE = 2 * 1024 * 1024L;
+	private static final long STATE_SAVE_INTERVAL = 3000L;
+
+	private final Context context;
+	private final MusicDirectory.Entry song;
+	private final File partialFile;
+	private final File stateFile;
+	private final Runnable progressCallback;
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private volatile List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+	private long length;
+	private long resumedBytes;
+	private long lastStateSave;
+
+	/**
+	 * @param progressCallback Called from the download threads whenever data was written.
+	 */
+	public SegmentedDownloader(Context context, MusicDirectory.Entry song, File partialFile, Runnable progressCallback)
+	{
+		this.context = context;
+		this.song = song;
+		this.partialFile = partialFile;
+		this.progressCallback = progressCallback;
+		stateFile = getStateFile(partialFile);
+	}
+
+	/**
+	 * Returns the file recording the progress of an unfinished segmented download.
+	 */
+	public static File getStateFile(File partialFile)
+	{
+		return new File(partialFile.getPath() + ".segments");
+	}
+
+	/**
+	 * Ranges can only be requested when the server sends the original file, whose size is
+	 * known up front.
+	 */
+	public static boolean canDownload(MusicDirectory.Entry song, int bitRate)
+	{
+		Long size = song.getSize();
+		return bitRate == 0 && song.getTranscodedSuffix() == null && !song.isVideo() && size != null && size >= 2 * MIN_SEGMENT_SIZE;
+	}
+
+	/**
+	 * Downloads all missing ranges into the partial file. The ranges are requested at the
+	 * priority of the parent task, and follow it when it changes.
+	 *
+	 * @return false if the server does not honour range requests for this song, in which case
+	 * the partial file has been discarded and the song should be downloaded in one piece.
+	 */
+	public boolean download(MusicService musicService, CancellableTask parent) throws Exception
+	{
+		synchronized (this)
+		{
+			if (!readState())
+			{
+				if (song.getSize() == null)
+				{
+					Util.delete(stateFile);
+					Util.delete(partialFile);
+					return false;
+				}
+
+				createSegments(song.getSize());
+			}
+
+			resumedBytes = getBytesDownloaded();
+		}
+
+		RandomAccessFile file = new RandomAccessFile(partialFile, "rw");
+
+		try
+		{
+			if (file.length() != length)
+			{
+				file.setLength(length);
+			}
+		}
+		finally
+		{
+			Util.close(file);
+		}
+
+		saveState(true);
+
+		List<SegmentTask> tasks = new ArrayList<SegmentTask>();
+
+		for (Segment segment : segments)
+		{
+			if (!segment.isComplete())
+			{
+				tasks.add(new SegmentTask(musicService, segment, parent.getPriority()));
+			}
+		}
+
+		Log.i(TAG, String.format("Downloading %d of %d ranges of %s", tasks.size(), segments.size(), song));
+
+		// The priority may have changed while the tasks were created
+		this.tasks = tasks;
+		setPriority(parent.getPriority());
+
+		final CountDownLatch done = new CountDownLatch(tasks.size());
+		final List<SegmentTask> running = tasks;
+
+		parent.addOnCancelListener(new CancellableTask.OnCancelListener()
+		{
+			@Override
+			public void onCancel()
+			{
+				for (SegmentTask task : running)
+				{
+					task.cancel();
+				}
+			}
+		});
+
+		for (SegmentTask task : tasks)
+		{
+			task.start(done);
+		}
+
+		try
+		{
+			done.await();
+		}
+		finally
+		{
+			saveState(true);
+		}
+
+		for (SegmentTask task : tasks)
+		{
+			if (task.isRangeUnsupported())
+			{
+				Log.i(TAG, String.format("Server does not support ranges for %s, discarding partial file", song));
+				Util.delete(stateFile);
+				Util.delete(partialFile);
+				return false;
+			}
+		}
+
+		for (SegmentTask task : tasks)
+		{
+			if (task.getError() != null)
+			{
+				throw task.getError();
+			}
+		}
+
+		if (!isComplete())
+		{
+			throw new IOException(String.format("Download of '%s' is incomplete", song));
+		}
+
+		Util.delete(stateFile);
+		return true;
+	}
+
+	/**
+	 * Changes the priority of the range requests which are still waiting for a thread.
+	 */
+	public void setPriority(int priority)
+	{
+		for (SegmentTask task : tasks)
+		{
+			task.setPriority(priority);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes from the start of the file which have been downloaded.
+	 */
+	public synchronized long getContiguousLength()
+	{
+		for (Segment segment : segments)
+		{
+			if (!segment.isComplete())
+			{
+				return segment.position;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Returns the number of bytes downloaded in all ranges.
+	 */
+	public synchronized long getBytesDownloaded()
+	{
+		long count = 0;
+
+		for (Segment segment : segments)
+		{
+			count += segment.position - segment.start;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the number of bytes downloaded by this downloader, not counting the ranges of
+	 * an interrupted download which it resumed.
+	 */
+	public synchronized long getBytesTransferred()
+	{
+		return getBytesDownloaded() - resumedBytes;
+	}
+
+	public synchronized long getLength()
+	{
+		return length;
+	}
+
+	private boolean isComplete()
+	{
+		for (Segment segment : segments)
+		{
+			if (!segment.isComplete())
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private void createSegments(long length)
+	{
+		this.length = length;
+		segments.clear();
+
+		int count = (int) Math.max(1, Math.min(MAX_SEGMENTS, length / MIN_SEGMENT_SIZE));
+		long segmentSize = length / count;
+
+		for (int i = 0; i < count; i++)
+		{
+			long start = i * segmentSize;
+			long end = i == count - 1 ? length : start + segmentSize;
+			segments.add(new Segment(start, end, start));
+		}
+	}
+
+	private boolean readState()
+	{
+		if (!stateFile.isFile() || !partialFile.isFile())
+		{
+			return false;
+		}
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+
+			if (in.readInt() != STATE_VERSION)
+			{
+				return false;
+			}
+
+			long length = in.readLong();
+			int count = in.readInt();
+			List<Segment> segments = new ArrayList<Segment>(count);
+
+			for (int i = 0; i < count; i++)
+			{
+				segments.add(new Segment(in.readLong(), in.readLong(), in.readLong()));
+			}
+
+			this.length = length;
+			this.segments.clear();
+			this.segments.addAll(segments);
+
+			Log.i(TAG, String.format("Resuming download of %s from %s", song, stateFile));
+			return true;
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to read download state from %s", stateFile), x);
+			return false;
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	/**
+	 * Records the progress of every range. A range is recorded only after its bytes have been
+	 * written to the partial file, and the partial file is synced before the state replaces
+	 * the one before, so the recorded state never claims data which is missing, not even
+	 * after a power loss.
+	 */
+	private synchronized void saveState(boolean force)
+	{
+		long now = System.currentTimeMillis();
+
+		if (!force && now - lastStateSave < STATE_SAVE_INTERVAL)
+		{
+			return;
+		}
+
+		lastStateSave = now;
+		File tmp = new File(stateFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try
+		{
+			sync(partialFile);
+
+			FileOutputStream fileOut = new FileOutputStream(tmp);
+			out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			out.writeInt(STATE_VERSION);
+			out.writeLong(length);
+			out.writeInt(segments.size());
+
+			for (Segment segment : segments)
+			{
+				out.writeLong(segment.start);
+				out.writeLong(segment.end);
+				out.writeLong(segment.position);
+			}
+
+			out.flush();
+			fileOut.getFD().sync();
+			out.close();
+			out = null;
+
+			Util.renameFile(tmp, stateFile);
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to write download state to %s", stateFile), x);
+			Util.delete(tmp);
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+
+	/**
+	 * Writes the data of the file, as written through any descriptor, to the storage.
+	 */
+	private static void sync(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try
+		{
+			raf.getFD().sync();
+		}
+		finally
+		{
+			Util.close(raf);
+		}
+	}
+
+	private static long parseContentRangeLength(Response response)
+	{
+		// Content-Range: bytes <first>-<last>/<length>
+		String contentRange = response.header("Content-Range");
+
+		if (contentRange == null)
+		{
+			return -1;
+		}
+
+		int slash = contentRange.lastIndexOf('/');
+
+		try
+		{
+			return slash == -1 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+		}
+		catch (NumberFormatException x)
+		{
+			return -1;
+		}
+	}
+
+	private static class Segment
+	{
+		private final long start;
+		private final long end;
+		private volatile long position;
+
+		Segment(long start, long end, long position)
+		{
+			this.start = start;
+			this.end = end;
+			this.position = position;
+		}
+
+		boolean isComplete()
+		{
+			return position >= end;
+		}
+	}
+
+	private class SegmentTask extends CancellableTask
+	{
+		private final MusicService musicService;
+		private final Segment segment;
+		private CountDownLatch done;
+		private volatile Exception error;
+		private volatile boolean rangeUnsupported;
+
+		SegmentTask(MusicService musicService, Segment segment, int priority)
+		{
+			this.musicService = musicService;
+			this.segment = segment;
+			setPriority(priority);
+		}
+
+		void start(CountDownLatch done)
+		{
+			this.done = done;
+			start();
+		}
+
+		Exception getError()
+		{
+			return error;
+		}
+
+		boolean isRangeUnsupported()
+		{
+			return rangeUnsupported;
+		}
+
+		@Override
+		public void execute()
+		{
+			InputStream in = null;
+			RandomAccessFile out = null;
+
+			try
+			{
+				long offset = segment.position;
+				Response response = musicService.getDownloadInputStream(context, song, offset, segment.end - offset, 0, this);
+				in = response.body().byteStream();
+
+				if (response.code() != HttpURLConnection.HTTP_PARTIAL || parseContentRangeLength(response) != length)
+				{
+					rangeUnsupported = true;
+					return;
+				}
+
+				out = new RandomAccessFile(partialFile, "rw");
+				out.seek(offset);
+
+				byte[] buffer = new byte[1024 * 16];
+				int n;
+
+				while (!isCancelled() && segment.position < segment.end && (n = in.read(buffer, 0, (int) Math.min(buffer.length, segment.end - segment.position))) != -1)
+				{
+					out.write(buffer, 0, n);
+					segment.position += n;
+					saveState(false);
+					progressCallback.run();
+				}
+			}
+			catch (Exception x)
+			{
+				if (!isCancelled())
+				{
+					Log.w(TAG, String.format("Failed to download range %d-%d of '%s'", segment.start, segment.end, song), x);
+					error = x;
+				}
+			}
+			finally
+			{
+				Util.close(in);
+				Util.close(out);
+				done.countDown();
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("SegmentTask (%s, %d-%d)", song, segment.start, segment.end);
+		}
+	}
+}
@@ -9,30 +9,26 @@ import com.budrotech.jukebox.util.ProgressListener;
 import com.budrotech.jukebox.util.Util;
 
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 
 import okhttp3.Call;
-import okhttp3.ConnectionPool;
 import okhttp3.HttpUrl;
-import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
 public class SubsonicRequest {
     private static final String TAG = SubsonicRequest.class.getSimpleName();
 
-    private static final OkHttpClient sharedHttpClient = new OkHttpClient.Builder().build();
-    private final OkHttpClient.Builder httpClientBuilder = sharedHttpClient.newBuilder();
     private final Request.Builder requestBuilder = new Request.Builder();
     private final HttpUrl.Builder urlBuilder;
     private final Context context;
-    private long socketConnectTimeout = RESTMusicService.SOCKET_CONNECT_TIMEOUT;
-    private long socketReadTimeout = RESTMusicService.SOCKET_READ_TIMEOUT_DEFAULT;
+    private long socketConnectTimeout;
+    private long socketReadTimeout;
 
     public SubsonicRequest(Context context, String method) {
         this.context = context;
         urlBuilder = RESTMusicService.getSubsonicUrl(context, method);
+        socketConnectTimeout = Util.getNetworkTimeout(context);
+        socketReadTimeout = socketConnectTimeout;
     }
 
     public SubsonicRequest addQueryParameter(String name, String value) {
@@ -62,14 +58,9 @@ public class SubsonicRequest {
         return this;
     }
 
-    public Response getResponse(ProgressListener progressListener, CancellableTask cancellableTask) throws IOException {
-        ConnectionPool connectionPool = sharedHttpClient.connectionPool();
+    public Response getResponse(final ProgressListener progressListener, CancellableTask cancellableTask) throws IOException {
         HttpUrl url = urlBuilder.build();
-        Log.d(TAG, String.format("Connections in pool: %d; idle connections: %d", connectionPool.connectionCount(), connectionPool.idleConnectionCount()));
         Log.i(TAG, String.format("Using URL %s", url));
-        httpClientBuilder
-                .connectTimeout(socketConnectTimeout, TimeUnit.MILLISECONDS)
-                .readTimeout(socketReadTimeout, TimeUnit.MILLISECONDS);
 
         // TODO Set credentials to get through apache proxies that require authentication.
 //		SharedPreferences preferences = Util.getPreferences(context);
@@ -78,59 +69,39 @@ public class SubsonicRequest {
 //		String password = preferences.getString(Constants.PREFERENCES_KEY_PASSWORD + instance, null);
 //		sharedHttpClient.getCredentialsProvider().setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT), new UsernamePasswordCredentials(username, password));
 
-        final AtomicReference<Boolean> cancelled = new AtomicReference<Boolean>(false);
-        int attempts = 0;
+        HttpClientRegistry.RetryListener retryListener = new HttpClientRegistry.RetryListener() {
+            @Override
+            public void onRetry(int attempt, int maxAttempts) {
+                if (progressListener != null) {
+                    String msg = context.getResources().getString(R.string.music_service_retry, attempt, maxAttempts - 1);
+                    progressListener.updateProgress(msg);
+                }
+            }
+        };
 
         Request request = requestBuilder
                 .url(url)
+                .tag(HttpClientRegistry.RequestOptions.class, new HttpClientRegistry.RequestOptions(socketConnectTimeout, socketReadTimeout, retryListener))
                 .build();
 
-        while (true) {
-            attempts++;
-
-            OkHttpClient build = httpClientBuilder.build();
-            final Call call = build.newCall(request);
-
-            if (cancellableTask != null) {
-                // Attempt to abort the HTTP request if the task is cancelled.
-                cancellableTask.setOnCancelListener(new CancellableTask.OnCancelListener() {
-                    @Override
-                    public void onCancel() {
-                        new Thread(new Runnable() {
-                            @Override
-                            public void run() {
-                                try {
-                                    cancelled.set(true);
-                                    call.cancel();
-                                } catch (Exception e) {
-                                    Log.e(TAG, "Failed to stop http task");
-                                }
-                            }
-                        }).start();
+        // Retries are made by the client, within the same call.
+        final Call call = HttpClientRegistry.getClient(context).newCall(request);
+
+        if (cancellableTask != null) {
+            // Attempt to abort the HTTP request if the task is cancelled.
+            // Call.cancel() only closes the socket, so it may be called from any thread.
+            cancellableTask.addOnCancelListener(new CancellableTask.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    try {
+                        call.cancel();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Failed to stop http task");
                     }
-                });
-            }
-
-            try {
-                return call.execute();
-            } catch (IOException x) {
-                call.cancel();
-
-                if (attempts >= RESTMusicService.HTTP_REQUEST_MAX_ATTEMPTS || cancelled.get()) {
-                    throw x;
                 }
-
-                if (progressListener != null) {
-                    String msg = context.getResources().getString(R.string.music_service_retry, attempts, RESTMusicService.HTTP_REQUEST_MAX_ATTEMPTS - 1);
-                    progressListener.updateProgress(msg);
-                }
-
-                Log.w(TAG, String.format("Got IOException (%d), will retry", attempts), x);
-                httpClientBuilder.connectTimeout((long) (build.connectTimeoutMillis() * 1.3F), TimeUnit.MILLISECONDS);
-                httpClientBuilder.readTimeout((long) (build.readTimeoutMillis() * 1.5F), TimeUnit.MILLISECONDS);
-                Util.sleepQuietly(2000L);
-            }
+            });
         }
 
+        return call.execute();
     }
 }
@@ -29,6 +29,8 @@ import com.budrotech.jukebox.util.Util;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author Sindre Mehus
@@ -39,6 +41,9 @@ public abstract class AbstractParser
 	private final Context context;
 	private XmlPullParser parser;
 	private boolean rootElementFound;
+	private Map<String, String> attributes = new HashMap<String, String>();
+	private boolean attributesIndexed;
+	private final Map<String, String> stringPool = new HashMap<String, String>();
 
 	public AbstractParser(Context context)
 	{
@@ -52,7 +57,7 @@ public abstract class AbstractParser
 
 	protected void handleError() throws Exception
 	{
-		int code = getInteger("code");
+		int code = getInt("code", 0);
 		String message;
 		switch (code)
 		{
@@ -96,9 +101,65 @@ public abstract class AbstractParser
 		return parser.getText();
 	}
 
+	/**
+	 * Returns the named attribute of the current element. The attributes of an element are
+	 * indexed on first access, so each lookup is a hash lookup rather than a linear scan.
+	 */
 	protected String get(String name)
 	{
-		return parser.getAttributeValue(null, name);
+		if (!attributesIndexed)
+		{
+			indexAttributes();
+		}
+
+		return attributes.get(name);
+	}
+
+	/**
+	 * Like {@link #get(String)}, but returns a shared instance for values that repeat across
+	 * elements, such as artist, album, genre and content type.
+	 */
+	protected String getPooled(String name)
+	{
+		String value = get(name);
+
+		if (value == null)
+		{
+			return null;
+		}
+
+		String pooled = stringPool.get(value);
+
+		if (pooled == null)
+		{
+			stringPool.put(value, value);
+			pooled = value;
+		}
+
+		return pooled;
+	}
+
+	/**
+	 * Replaces the attributes of the current element, for parsers that do not read them
+	 * from the XML pull parser.
+	 */
+	protected void setAttributes(Map<String, String> attributes)
+	{
+		this.attributes = attributes;
+		attributesIndexed = true;
+	}
+
+	private void indexAttributes()
+	{
+		attributes.clear();
+		int count = parser.getAttributeCount();
+
+		for (int i = 0; i < count; i++)
+		{
+			attributes.put(parser.getAttributeName(i), parser.getAttributeValue(i));
+		}
+
+		attributesIndexed = true;
 	}
 
 	protected boolean getBoolean(String name)
@@ -118,6 +179,12 @@ public abstract class AbstractParser
 		return s == null ? null : Integer.valueOf(s);
 	}
 
+	protected int getInt(String name, int defaultValue)
+	{
+		String s = get(name);
+		return s == null ? defaultValue : Integer.parseInt(s);
+	}
+
 	protected Long getLong(String name)
 	{
 		String s = get(name);
@@ -135,10 +202,13 @@ public abstract class AbstractParser
 		parser = Xml.newPullParser();
 		parser.setInput(reader);
 		rootElementFound = false;
+		attributesIndexed = false;
+		stringPool.clear();
 	}
 
 	protected int nextParseEvent() throws Exception
 	{
+		attributesIndexed = false;
 		return parser.next();
 	}
 
@@ -28,12 +28,29 @@ import com.budrotech.jukebox.util.Constants;
  */
 public class MusicDirectoryEntryParser extends AbstractParser
 {
+	/**
+	 * Receives entries as soon as they are parsed, before the rest of the document is read.
+	 */
+	public interface EntryListener
+	{
+		void onEntry(MusicDirectory.Entry entry);
+	}
 
 	public MusicDirectoryEntryParser(Context context)
 	{
 		super(context);
 	}
 
+	protected static void addChild(MusicDirectory dir, MusicDirectory.Entry entry, EntryListener entryListener)
+	{
+		dir.addChild(entry);
+
+		if (entryListener != null)
+		{
+			entryListener.onEntry(entry);
+		}
+	}
+
 	protected MusicDirectory.Entry parseEntry(String artist, boolean isAlbum, int bookmarkPosition)
 	{
 		MusicDirectory.Entry entry = new MusicDirectory.Entry();
@@ -42,7 +59,7 @@ public class MusicDirectoryEntryParser extends AbstractParser
 		entry.setTitle(isAlbum ? get("name") : get("title"));
 		entry.setIsDirectory(getBoolean("isDir") || isAlbum);
 		entry.setCoverArt(get("coverArt"));
-		entry.setArtist(get("artist"));
+		entry.setArtist(getPooled("artist"));
 		entry.setArtistId(get("artistId"));
 		entry.setYear(getInteger("year"));
 		entry.setCreated(get("created"));
@@ -51,21 +68,21 @@ public class MusicDirectoryEntryParser extends AbstractParser
 
 		if (!entry.isDirectory())
 		{
-			entry.setAlbum(get("album"));
+			entry.setAlbum(getPooled("album"));
 			entry.setAlbumId(get("albumId"));
 			entry.setTrack(getInteger("track"));
-			entry.setGenre(get("genre"));
-			entry.setContentType(get("contentType"));
-			entry.setSuffix(get("suffix"));
-			entry.setTranscodedContentType(get("transcodedContentType"));
-			entry.setTranscodedSuffix(get("transcodedSuffix"));
+			entry.setGenre(getPooled("genre"));
+			entry.setContentType(getPooled("contentType"));
+			entry.setSuffix(getPooled("suffix"));
+			entry.setTranscodedContentType(getPooled("transcodedContentType"));
+			entry.setTranscodedSuffix(getPooled("transcodedSuffix"));
 			entry.setSize(getLong("size"));
 			entry.setDuration(getInteger("duration"));
 			entry.setBitRate(getInteger("bitRate"));
 			entry.setPath(get("path"));
 			entry.setIsVideo(getBoolean("isVideo"));
 			entry.setDiscNumber(getInteger("discNumber"));
-			entry.setType(get("type"));
+			entry.setType(getPooled("type"));
 			entry.setBookmarkPosition(bookmarkPosition);
 		}
 		else if (!"".equals(artist))
@@ -43,6 +43,11 @@ public class MusicDirectoryParser extends MusicDirectoryEntryParser
 	}
 
 	public MusicDirectory parse(String artist, Reader reader, ProgressListener progressListener, boolean isAlbum) throws Exception
+	{
+		return parse(artist, reader, progressListener, isAlbum, null);
+	}
+
+	public MusicDirectory parse(String artist, Reader reader, ProgressListener progressListener, boolean isAlbum, EntryListener entryListener) throws Exception
 	{
 
 		long t0 = System.currentTimeMillis();
@@ -60,11 +65,11 @@ public class MusicDirectoryParser extends MusicDirectoryEntryParser
 
 				if ("child".equals(name) || "song".equals(name) || "video".equals(name))
 				{
-					dir.addChild(parseEntry(artist, false, 0));
+					addChild(dir, parseEntry(artist, false, 0), entryListener);
 				}
 				else if ("album".equals(name) && !isAlbum)
 				{
-					dir.addChild(parseEntry(artist, true, 0));
+					addChild(dir, parseEntry(artist, true, 0), entryListener);
 				}
 				else if ("directory".equals(name) || "artist".equals(name))
 				{
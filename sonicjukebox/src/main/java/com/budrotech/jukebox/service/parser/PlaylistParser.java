@@ -40,6 +40,11 @@ public class PlaylistParser extends MusicDirectoryEntryParser
 	}
 
 	public MusicDirectory parse(Reader reader, ProgressListener progressListener) throws Exception
+	{
+		return parse(reader, progressListener, null);
+	}
+
+	public MusicDirectory parse(Reader reader, ProgressListener progressListener, EntryListener entryListener) throws Exception
 	{
 		updateProgress(progressListener, R.string.parser_reading);
 		init(reader);
@@ -54,7 +59,7 @@ public class PlaylistParser extends MusicDirectoryEntryParser
 				String name = getElementName();
 				if ("entry".equals(name))
 				{
-					dir.addChild(parseEntry("", false, 0));
+					addChild(dir, parseEntry("", false, 0), entryListener);
 				}
 				else if ("error".equals(name))
 				{
@@ -0,0 +1,220 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service.parser.json;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.budrotech.jukebox.R;
+import com.budrotech.jukebox.domain.Version;
+import com.budrotech.jukebox.service.parser.MusicDirectoryEntryParser;
+import com.budrotech.jukebox.util.Util;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class for parsers of REST responses in JSON format (f=json).
+ * <p/>
+ * The scalar members of every JSON object are exposed as the attributes of the current
+ * element, exactly like XML attributes, so entries are built by the same code as for XML.
+ * Nested objects and arrays are handed to an {@link ObjectHandler}.
+ *
+ * @author Sindre Mehus
+ */
+public abstract class AbstractJsonParser extends MusicDirectoryEntryParser
+{
+	private JsonReader reader;
+	private final List<Map<String, String>> levels = new ArrayList<Map<String, String>>();
+	private int depth;
+
+	public AbstractJsonParser(Context context)
+	{
+		super(context);
+	}
+
+	/**
+	 * Reads the "subsonic-response" envelope, handling version and error members, and
+	 * passes every other nested member to the given handler.
+	 */
+	protected void parseResponse(Reader in, final ObjectHandler handler) throws Exception
+	{
+		reader = new JsonReader(in);
+		depth = 0;
+		boolean rootFound = false;
+
+		reader.beginObject();
+
+		while (reader.hasNext())
+		{
+			if ("subsonic-response".equals(reader.nextName()))
+			{
+				rootFound = true;
+				readObjects(new ObjectHandler()
+				{
+					@Override
+					protected void onChild(String name) throws Exception
+					{
+						if ("error".equals(name))
+						{
+							readObjects(new ObjectHandler()
+							{
+								@Override
+								protected void onEnd() throws Exception
+								{
+									handleError();
+								}
+							});
+						}
+						else
+						{
+							handler.onChild(name);
+						}
+					}
+
+					@Override
+					protected void onEnd() throws Exception
+					{
+						String version = get("version");
+
+						if (version != null)
+						{
+							Util.setServerRestVersion(getContext(), new Version(version));
+						}
+					}
+				});
+			}
+			else
+			{
+				reader.skipValue();
+			}
+		}
+
+		reader.endObject();
+
+		if (!rootFound)
+		{
+			throw new Exception(getContext().getResources().getString(R.string.background_task_parse_error));
+		}
+	}
+
+	/**
+	 * Reads a single object, or every object of an array, calling the handler for each.
+	 */
+	protected void readObjects(ObjectHandler handler) throws Exception
+	{
+		JsonToken token = reader.peek();
+
+		if (token == JsonToken.BEGIN_ARRAY)
+		{
+			reader.beginArray();
+
+			while (reader.hasNext())
+			{
+				readObjects(handler);
+			}
+
+			reader.endArray();
+		}
+		else if (token == JsonToken.BEGIN_OBJECT)
+		{
+			readObject(handler);
+		}
+		else
+		{
+			reader.skipValue();
+		}
+	}
+
+	private void readObject(ObjectHandler handler) throws Exception
+	{
+		Map<String, String> attributes = enterLevel();
+		reader.beginObject();
+
+		while (reader.hasNext())
+		{
+			String name = reader.nextName();
+			JsonToken token = reader.peek();
+
+			if (token == JsonToken.BEGIN_OBJECT || token == JsonToken.BEGIN_ARRAY)
+			{
+				handler.onChild(name);
+				setAttributes(attributes);
+			}
+			else if (token == JsonToken.NULL)
+			{
+				reader.nextNull();
+			}
+			else if (token == JsonToken.BOOLEAN)
+			{
+				attributes.put(name, reader.nextBoolean() ? "true" : "false");
+			}
+			else
+			{
+				// Numbers are kept in their literal form, just like XML attributes
+				attributes.put(name, reader.nextString());
+			}
+		}
+
+		reader.endObject();
+		handler.onEnd();
+		depth--;
+	}
+
+	/**
+	 * Objects are nested only a few levels deep, so one attribute map per level is reused
+	 * for all objects at that level.
+	 */
+	private Map<String, String> enterLevel()
+	{
+		if (levels.size() <= depth)
+		{
+			levels.add(new HashMap<String, String>());
+		}
+
+		Map<String, String> attributes = levels.get(depth++);
+		attributes.clear();
+		setAttributes(attributes);
+		return attributes;
+	}
+
+	protected abstract class ObjectHandler
+	{
+		/**
+		 * Called for every member whose value is an object or an array. Implementations must
+		 * consume the value, typically with {@link #readObjects(ObjectHandler)}. The attributes
+		 * read so far belong to the enclosing object.
+		 */
+		protected void onChild(String name) throws Exception
+		{
+			reader.skipValue();
+		}
+
+		/**
+		 * Called when all members of an object have been read, with its attributes current.
+		 */
+		protected void onEnd() throws Exception
+		{
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service.parser.json;
+
+import android.content.Context;
+
+import com.budrotech.jukebox.R;
+import com.budrotech.jukebox.domain.MusicDirectory;
+import com.budrotech.jukebox.util.ProgressListener;
+
+import java.io.Reader;
+
+/**
+ * JSON counterpart of {@link com.budrotech.jukebox.service.parser.AlbumListParser},
+ * {@link com.budrotech.jukebox.service.parser.RandomSongsParser} and
+ * {@link com.budrotech.jukebox.service.parser.PlaylistParser}, which all read a flat list
+ * of entries below a single container.
+ *
+ * @author Sindre Mehus
+ */
+public class JsonEntryListParser extends JsonMusicDirectoryParser
+{
+	private final String entryName;
+	private final boolean isAlbum;
+
+	/**
+	 * @param entryName The name of the member holding the entries, e.g. "album", "song" or "entry".
+	 * @param isAlbum   Whether the entries are ID3 albums.
+	 */
+	public JsonEntryListParser(Context context, String entryName, boolean isAlbum)
+	{
+		super(context);
+		this.entryName = entryName;
+		this.isAlbum = isAlbum;
+	}
+
+	public MusicDirectory parse(Reader reader, ProgressListener progressListener) throws Exception
+	{
+		return parse(reader, progressListener, null);
+	}
+
+	public MusicDirectory parse(Reader reader, ProgressListener progressListener, final EntryListener entryListener) throws Exception
+	{
+		updateProgress(progressListener, R.string.parser_reading);
+
+		final MusicDirectory dir = new MusicDirectory();
+
+		parseResponse(reader, new ObjectHandler()
+		{
+			@Override
+			protected void onChild(String containerName) throws Exception
+			{
+				readObjects(new ObjectHandler()
+				{
+					@Override
+					protected void onChild(String name) throws Exception
+					{
+						if (entryName.equals(name))
+						{
+							readEntries(dir, "", isAlbum, entryListener);
+						}
+						else
+						{
+							super.onChild(name);
+						}
+					}
+				});
+			}
+		});
+
+		updateProgress(progressListener, R.string.parser_reading_done);
+
+		return dir;
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service.parser.json;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.budrotech.jukebox.R;
+import com.budrotech.jukebox.domain.Artist;
+import com.budrotech.jukebox.domain.Indexes;
+import com.budrotech.jukebox.util.ProgressListener;
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * JSON counterpart of {@link com.budrotech.jukebox.service.parser.IndexesParser}.
+ *
+ * @author Sindre Mehus
+ */
+public class JsonIndexesParser extends AbstractJsonParser
+{
+	private static final String TAG = JsonIndexesParser.class.getSimpleName();
+
+	private final List<Artist> artists = new ArrayList<Artist>();
+	private final List<Artist> shortcuts = new ArrayList<Artist>();
+	private Long lastModified;
+	private String ignoredArticles;
+	private boolean changed;
+
+	public JsonIndexesParser(Context context)
+	{
+		super(context);
+	}
+
+	public Indexes parse(Reader reader, final ProgressListener progressListener) throws Exception
+	{
+		long t0 = System.currentTimeMillis();
+		updateProgress(progressListener, R.string.parser_reading);
+
+		parseResponse(reader, new ObjectHandler()
+		{
+			@Override
+			protected void onChild(String name) throws Exception
+			{
+				if ("indexes".equals(name) || "artists".equals(name))
+				{
+					changed = true;
+					readIndexes(progressListener);
+				}
+				else
+				{
+					super.onChild(name);
+				}
+			}
+		});
+
+		if (!changed)
+		{
+			return null;
+		}
+
+		long t1 = System.currentTimeMillis();
+		Log.d(TAG, "Got " + artists.size() + " artist(s) in " + (t1 - t0) + "ms.");
+
+		String msg = getContext().getResources().getString(R.string.parser_artist_count, artists.size());
+		updateProgress(progressListener, msg);
+
+		return new Indexes(lastModified == null ? 0L : lastModified, ignoredArticles, shortcuts, artists);
+	}
+
+	private void readIndexes(final ProgressListener progressListener) throws Exception
+	{
+		readObjects(new ObjectHandler()
+		{
+			@Override
+			protected void onChild(String name) throws Exception
+			{
+				if ("index".equals(name))
+				{
+					readIndex(progressListener);
+				}
+				else if ("shortcut".equals(name))
+				{
+					readArtists("*", shortcuts, null);
+				}
+				else
+				{
+					super.onChild(name);
+				}
+			}
+
+			@Override
+			protected void onEnd() throws Exception
+			{
+				lastModified = getLong("lastModified");
+				ignoredArticles = get("ignoredArticles");
+			}
+		});
+	}
+
+	private void readIndex(final ProgressListener progressListener) throws Exception
+	{
+		readObjects(new ObjectHandler()
+		{
+			// The artists of the current index, which are read before its name if the name
+			// follows them in the object
+			private int first = artists.size();
+
+			@Override
+			protected void onChild(String name) throws Exception
+			{
+				if ("artist".equals(name))
+				{
+					readArtists(null, artists, progressListener);
+				}
+				else
+				{
+					super.onChild(name);
+				}
+			}
+
+			@Override
+			protected void onEnd() throws Exception
+			{
+				String index = get("name");
+
+				for (Artist artist : artists.subList(first, artists.size()))
+				{
+					artist.setIndex(index == null ? "#" : index);
+				}
+
+				first = artists.size();
+			}
+		});
+	}
+
+	/**
+	 * @param index The index of the artists, or null if it is set once the index is read.
+	 */
+	private void readArtists(final String index, final List<Artist> target, final ProgressListener progressListener) throws Exception
+	{
+		readObjects(new ObjectHandler()
+		{
+			@Override
+			protected void onEnd() throws Exception
+			{
+				Artist artist = new Artist();
+				artist.setId(get("id"));
+				artist.setName(get("name"));
+				artist.setIndex(index);
+
+				if (target == artists)
+				{
+					artist.setCoverArt(get("coverArt"));
+					artist.setAlbumCount(getLong("albumCount"));
+				}
+
+				target.add(artist);
+
+				if (progressListener != null && target.size() % 10 == 0)
+				{
+					String msg = getContext().getResources().getString(R.string.parser_artist_count, target.size());
+					updateProgress(progressListener, msg);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service.parser.json;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.budrotech.jukebox.R;
+import com.budrotech.jukebox.domain.MusicDirectory;
+import com.budrotech.jukebox.util.ProgressListener;
+
+import java.io.Reader;
+
+/**
+ * JSON counterpart of {@link com.budrotech.jukebox.service.parser.MusicDirectoryParser}.
+ *
+ * @author Sindre Mehus
+ */
+public class JsonMusicDirectoryParser extends AbstractJsonParser
+{
+	private static final String TAG = JsonMusicDirectoryParser.class.getSimpleName();
+
+	public JsonMusicDirectoryParser(Context context)
+	{
+		super(context);
+	}
+
+	public MusicDirectory parse(String artist, Reader reader, ProgressListener progressListener, boolean isAlbum) throws Exception
+	{
+		return parse(artist, reader, progressListener, isAlbum, null);
+	}
+
+	public MusicDirectory parse(final String artist, Reader reader, ProgressListener progressListener, final boolean isAlbum, final EntryListener entryListener) throws Exception
+	{
+		long t0 = System.currentTimeMillis();
+		updateProgress(progressListener, R.string.parser_reading);
+
+		final MusicDirectory dir = new MusicDirectory();
+
+		parseResponse(reader, new ObjectHandler()
+		{
+			@Override
+			protected void onChild(final String containerName) throws Exception
+			{
+				readObjects(new ObjectHandler()
+				{
+					@Override
+					protected void onChild(String name) throws Exception
+					{
+						if ("child".equals(name) || "song".equals(name) || "video".equals(name))
+						{
+							readEntries(dir, artist, false, entryListener);
+						}
+						else if ("album".equals(name) && !isAlbum)
+						{
+							readEntries(dir, artist, true, entryListener);
+						}
+						else
+						{
+							super.onChild(name);
+						}
+					}
+
+					@Override
+					protected void onEnd() throws Exception
+					{
+						if ("directory".equals(containerName) || "artist".equals(containerName))
+						{
+							dir.setName(get("name"));
+						}
+					}
+				});
+			}
+		});
+
+		updateProgress(progressListener, R.string.parser_reading_done);
+
+		long t1 = System.currentTimeMillis();
+		Log.d(TAG, "Got music directory in " + (t1 - t0) + "ms.");
+
+		return dir;
+	}
+
+	protected void readEntries(final MusicDirectory dir, final String artist, final boolean isAlbum, final EntryListener entryListener) throws Exception
+	{
+		readObjects(new ObjectHandler()
+		{
+			@Override
+			protected void onEnd() throws Exception
+			{
+				addChild(dir, parseEntry(artist, isAlbum, 0), entryListener);
+			}
+		});
+	}
+}
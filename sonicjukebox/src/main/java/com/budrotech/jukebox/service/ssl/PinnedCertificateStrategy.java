@@ -0,0 +1,122 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service.ssl;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * A trust strategy that accepts one self-signed certificate, identified by its SHA-256
+ * fingerprint. If no certificate is pinned yet, the first self-signed certificate presented
+ * is pinned and reported to the listener. Any other certificate is left to the trust manager.
+ *
+ * @author Sindre Mehus
+ */
+public class PinnedCertificateStrategy implements TrustStrategy
+{
+	private final Listener listener;
+	private String fingerprint;
+
+	/**
+	 * @param fingerprint The fingerprint of the pinned certificate, or null to pin the first
+	 *                    self-signed certificate presented.
+	 */
+	public PinnedCertificateStrategy(String fingerprint, Listener listener)
+	{
+		this.fingerprint = fingerprint;
+		this.listener = listener;
+	}
+
+	@Override
+	public synchronized boolean isTrusted(final X509Certificate[] chain, final String authType) throws CertificateException
+	{
+		if (chain.length != 1 || !isSelfSigned(chain[0]))
+		{
+			return false;
+		}
+
+		String actual = getFingerprint(chain[0]);
+
+		if (fingerprint == null)
+		{
+			fingerprint = actual;
+			listener.onPinned(actual);
+			return true;
+		}
+
+		return fingerprint.equals(actual);
+	}
+
+	private static boolean isSelfSigned(X509Certificate certificate)
+	{
+		if (!certificate.getSubjectX500Principal().equals(certificate.getIssuerX500Principal()))
+		{
+			return false;
+		}
+
+		try
+		{
+			certificate.checkValidity();
+			certificate.verify(certificate.getPublicKey());
+			return true;
+		}
+		catch (GeneralSecurityException x)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the SHA-256 fingerprint of the certificate, as colon separated hex bytes.
+	 */
+	private static String getFingerprint(X509Certificate certificate) throws CertificateException
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+			StringBuilder builder = new StringBuilder(digest.length * 3);
+
+			for (byte b : digest)
+			{
+				if (builder.length() > 0)
+				{
+					builder.append(':');
+				}
+
+				builder.append(String.format("%02X", b & 0xFF));
+			}
+
+			return builder.toString();
+		}
+		catch (GeneralSecurityException x)
+		{
+			throw new CertificateException(x);
+		}
+	}
+
+	public interface Listener
+	{
+		/**
+		 * Called when the first self-signed certificate is pinned.
+		 */
+		void onPinned(String fingerprint);
+	}
+}
@@ -32,15 +32,18 @@ import java.security.cert.X509Certificate;
 import javax.net.ssl.X509TrustManager;
 
 /**
+ * Trusts the certificates accepted by the trust strategy, and leaves the rest to the trust
+ * manager.
+ *
  * @since 4.1
  */
-class TrustManagerDecorator implements X509TrustManager
+public class TrustManagerDecorator implements X509TrustManager
 {
 
 	private final X509TrustManager trustManager;
 	private final TrustStrategy trustStrategy;
 
-	TrustManagerDecorator(final X509TrustManager trustManager, final TrustStrategy trustStrategy)
+	public TrustManagerDecorator(final X509TrustManager trustManager, final TrustStrategy trustStrategy)
 	{
 		super();
 		this.trustManager = trustManager;
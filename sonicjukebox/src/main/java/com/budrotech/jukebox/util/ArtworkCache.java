@@ -0,0 +1,106 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Artwork of the current song, decoded once per size and shared by the notification, the
+ * widgets and the lock screen.
+ * <p/>
+ * Only the bitmaps of one album art file are kept; asking for the artwork of another album
+ * drops them. The bitmaps are shared, so they must not be modified or recycled.
+ *
+ * @author Sindre Mehus
+ */
+public class ArtworkCache
+{
+	private static final String TAG = ArtworkCache.class.getSimpleName();
+
+	private static ArtworkCache instance;
+
+	private final Context context;
+	private final Map<Integer, Bitmap> bitmaps = new HashMap<Integer, Bitmap>();
+	private String path;
+	private long lastModified;
+
+	private ArtworkCache(Context context)
+	{
+		this.context = context;
+	}
+
+	public static synchronized ArtworkCache getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new ArtworkCache(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Returns the artwork of the song at the given size, or null if it has none.
+	 */
+	public synchronized Bitmap getArtwork(MusicDirectory.Entry song, int size)
+	{
+		if (song == null)
+		{
+			return null;
+		}
+
+		File file = FileUtil.getAlbumArtFile(context, song);
+
+		if (file == null || !file.exists())
+		{
+			return null;
+		}
+
+		// The album art may be downloaded again while the song plays
+		if (!file.getPath().equals(path) || file.lastModified() != lastModified)
+		{
+			bitmaps.clear();
+			path = file.getPath();
+			lastModified = file.lastModified();
+		}
+
+		Bitmap bitmap = bitmaps.get(size);
+
+		if (bitmap == null)
+		{
+			bitmap = FileUtil.getAlbumArtBitmap(context, song, size, true);
+
+			if (bitmap != null)
+			{
+				bitmaps.put(size, bitmap);
+				Log.d(TAG, String.format("Decoded %s at %d px", file, size));
+			}
+		}
+
+		return bitmap;
+	}
+}
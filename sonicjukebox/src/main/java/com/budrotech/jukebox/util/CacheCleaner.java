@@ -8,12 +8,11 @@ import android.util.Log;
 import com.budrotech.jukebox.domain.Playlist;
 import com.budrotech.jukebox.service.DownloadFile;
 import com.budrotech.jukebox.service.DownloadService;
+import com.budrotech.jukebox.service.PersistentMusicDirectoryCache;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -106,23 +105,17 @@ public class CacheCleaner
 		}
 	}
 
-	private long getMinimumDelete(List<File> files)
+	private long getMinimumDelete(long bytesUsedBySubsonic)
 	{
-		if (files.isEmpty())
+		if (bytesUsedBySubsonic == 0L)
 		{
 			return 0L;
 		}
 
 		long cacheSizeBytes = Util.getCacheSizeMB(context) * 1024L * 1024L;
-		long bytesUsedBySubsonic = 0L;
-
-		for (File file : files)
-		{
-			bytesUsedBySubsonic += file.length();
-		}
 
 		// Ensure that file system is not more than 95% full.
-		StatFs stat = new StatFs(files.get(0).getPath());
+		StatFs stat = new StatFs(FileUtil.getMusicDirectory(context).getPath());
 		long bytesTotalFs = (long) stat.getBlockCount() * (long) stat.getBlockSize();
 		long bytesAvailableFs = (long) stat.getAvailableBlocks() * (long) stat.getBlockSize();
 		long bytesUsedFs = bytesTotalFs - bytesAvailableFs;
@@ -140,43 +133,34 @@ public class CacheCleaner
 		return bytesToDelete;
 	}
 
-	private static void deleteFiles(Collection<File> files, Collection<File> doNotDelete, long bytesToDelete, boolean deletePartials)
+	private static void deletePartials(Collection<File> files, Collection<File> doNotDelete, CacheIndex cacheIndex)
 	{
-		if (files.isEmpty())
-		{
-			return;
-		}
-
 		long bytesDeleted = 0L;
+
 		for (File file : files)
 		{
-			if (!deletePartials && bytesDeleted > bytesToDelete) break;
+			String name = file.getName();
 
-			if (bytesToDelete > bytesDeleted || (deletePartials && (file.getName().endsWith(".partial") || file.getName().contains(".partial."))))
+			if ((name.endsWith(".partial") || name.contains(".partial.")) && !doNotDelete.contains(file))
 			{
-				if (!doNotDelete.contains(file) && !file.getName().equals(Constants.ALBUM_ART_FILE))
-				{
-					long size = file.length();
+				long size = file.length();
 
-					if (Util.delete(file))
-					{
-						bytesDeleted += size;
-					}
+				if (Util.delete(file))
+				{
+					cacheIndex.remove(file);
+					bytesDeleted += size;
 				}
 			}
 		}
 
-		Log.i(TAG, String.format("Deleted           : %s", Util.formatBytes(bytesDeleted)));
+		Log.i(TAG, String.format("Deleted partials  : %s", Util.formatBytes(bytesDeleted)));
 	}
 
-	private static void findCandidatesForDeletion(File file, List<File> files, List<File> dirs)
+	private static void findSongFiles(File file, List<File> files, List<File> dirs)
 	{
 		if (file.isFile())
 		{
-			String name = file.getName();
-			boolean isCacheFile = name.endsWith(".partial") || name.contains(".partial.") || name.endsWith(".complete") || name.contains(".complete.");
-
-			if (isCacheFile)
+			if (CacheIndex.isCacheFile(file.getName()) || FileUtil.isMediaFile(file))
 			{
 				files.add(file);
 			}
@@ -186,33 +170,44 @@ public class CacheCleaner
 			// Depth-first
 			for (File child : FileUtil.listFiles(file))
 			{
-				findCandidatesForDeletion(child, files, dirs);
+				findSongFiles(child, files, dirs);
 			}
 
 			dirs.add(file);
 		}
 	}
 
-	private static void sortByAscendingModificationTime(List<File> files)
+	/**
+	 * Walks the whole music directory and rebuilds the cache index, the search index, the
+	 * metadata store and the song catalog from it.
+	 */
+	private void reconcile(CacheIndex cacheIndex, List<File> files, List<File> dirs)
 	{
-		Collections.sort(files, new Comparator<File>()
-		{
-			@Override
-			public int compare(File a, File b)
-			{
-				if (a.lastModified() < b.lastModified())
-				{
-					return -1;
-				}
+		findSongFiles(FileUtil.getMusicDirectory(context), files, dirs);
+		cacheIndex.reconcile(files);
+		SearchIndex.getInstance(context).reconcile(files);
+		MetadataStore.getInstance(context).reconcile(files);
+		SongCatalog.getInstance(context).reconcile(files);
+	}
 
-				if (a.lastModified() > b.lastModified())
-				{
-					return 1;
-				}
+	private void evict(CacheIndex cacheIndex, Set<File> filesToNotDelete)
+	{
+		long bytesToDelete = getMinimumDelete(cacheIndex.getCacheSize());
 
-				return 0;
+		if (bytesToDelete > 0L)
+		{
+			List<File> deleted = new ArrayList<File>();
+			long bytesDeleted = cacheIndex.evict(FileUtil.getMusicDirectory(context), bytesToDelete, filesToNotDelete, deleted);
+			Log.i(TAG, String.format("Deleted           : %s", Util.formatBytes(bytesDeleted)));
+
+			// Only cached songs are evicted, never saved ones
+			for (File file : deleted)
+			{
+				SearchIndex.getInstance(context).remove(SearchIndex.getSongFile(file));
+				MetadataStore.getInstance(context).remove(file);
+				SongCatalog.getInstance(context).remove(file);
 			}
-		});
+		}
 	}
 
 	private Set<File> findFilesToNotDelete()
@@ -222,6 +217,7 @@ public class CacheCleaner
 		for (DownloadFile downloadFile : downloadService.getDownloads())
 		{
 			filesToNotDelete.add(downloadFile.getPartialFile());
+			filesToNotDelete.add(downloadFile.getSegmentStateFile());
 			filesToNotDelete.add(downloadFile.getCompleteFile());
 		}
 
@@ -229,6 +225,11 @@ public class CacheCleaner
 		return filesToNotDelete;
 	}
 
+	/**
+	 * Reconciles the cache index with the file system, deletes abandoned partial files and
+	 * empty directories, evicts songs as needed and trims the cached music directories. Run
+	 * occasionally, as it walks the whole music directory.
+	 */
 	private class BackgroundCleanup extends AsyncTask<Void, Void, Void>
 	{
 		@Override
@@ -245,14 +246,17 @@ public class CacheCleaner
 				Thread.currentThread().setName("BackgroundCleanup");
 				List<File> files = new ArrayList<File>();
 				List<File> dirs = new ArrayList<File>();
+				CacheIndex cacheIndex = CacheIndex.getInstance(context);
 
-				findCandidatesForDeletion(FileUtil.getMusicDirectory(context), files, dirs);
-				sortByAscendingModificationTime(files);
+				reconcile(cacheIndex, files, dirs);
 
 				Set<File> filesToNotDelete = findFilesToNotDelete();
 
-				deleteFiles(files, filesToNotDelete, getMinimumDelete(files), true);
+				deletePartials(files, filesToNotDelete, cacheIndex);
+				evict(cacheIndex, filesToNotDelete);
 				deleteEmptyDirs(dirs, filesToNotDelete);
+				cacheIndex.save();
+				new PersistentMusicDirectoryCache().trim(context);
 			}
 			catch (RuntimeException x)
 			{
@@ -263,6 +267,10 @@ public class CacheCleaner
 		}
 	}
 
+	/**
+	 * Evicts the least recently used songs if the cache is too large, using the cache index.
+	 * Run after every download.
+	 */
 	private class BackgroundSpaceCleanup extends AsyncTask<Void, Void, Void>
 	{
 		@Override
@@ -277,17 +285,15 @@ public class CacheCleaner
 			try
 			{
 				Thread.currentThread().setName("BackgroundSpaceCleanup");
-				List<File> files = new ArrayList<File>();
-				List<File> dirs = new ArrayList<File>();
-				findCandidatesForDeletion(FileUtil.getMusicDirectory(context), files, dirs);
+				CacheIndex cacheIndex = CacheIndex.getInstance(context);
 
-				long bytesToDelete = getMinimumDelete(files);
-				if (bytesToDelete > 0L)
+				if (!cacheIndex.isReconciled())
 				{
-					sortByAscendingModificationTime(files);
-					Set<File> filesToNotDelete = findFilesToNotDelete();
-					deleteFiles(files, filesToNotDelete, bytesToDelete, false);
+					reconcile(cacheIndex, new ArrayList<File>(), new ArrayList<File>());
 				}
+
+				evict(cacheIndex, findFilesToNotDelete());
+				cacheIndex.save();
 			}
 			catch (RuntimeException x)
 			{
@@ -0,0 +1,350 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Persistent index of the song files in the music cache, ordered by last access.
+ * <p/>
+ * {@link com.budrotech.jukebox.service.DownloadFile} reports every file it creates, renames,
+ * deletes or touches, so that the {@link CacheCleaner} can find the least recently used
+ * files without walking and stat-ing the whole music directory. Saved (pinned) songs are
+ * indexed too, but are never evicted. The index is only a cache of the file system; a full
+ * scan in {@link #reconcile} replaces it whenever it may have drifted.
+ *
+ * @author Sindre Mehus
+ */
+public class CacheIndex
+{
+	private static final String TAG = CacheIndex.class.getSimpleName();
+	private static final String FILE_NAME = "cacheindex.bin";
+	private static final int FORMAT_VERSION = 1;
+
+	private static CacheIndex instance;
+
+	private final File indexFile;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final TreeSet<Entry> byLastAccess = new TreeSet<Entry>(new Comparator<Entry>()
+	{
+		@Override
+		public int compare(Entry a, Entry b)
+		{
+			if (a.lastAccess != b.lastAccess)
+			{
+				return a.lastAccess < b.lastAccess ? -1 : 1;
+			}
+
+			return a.path.compareTo(b.path);
+		}
+	});
+	private long cacheSize;
+	private boolean reconciled;
+	private boolean dirty;
+
+	private CacheIndex(Context context)
+	{
+		indexFile = new File(context.getCacheDir(), FILE_NAME);
+		load();
+	}
+
+	public static synchronized CacheIndex getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new CacheIndex(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Returns whether a cache file should be indexed, as opposed to a saved song.
+	 */
+	public static boolean isCacheFile(String name)
+	{
+		return name.endsWith(".partial") || name.contains(".partial.") || name.endsWith(".complete") || name.contains(".complete.");
+	}
+
+	/**
+	 * Records the current size and modification date of the file, or forgets it if the file
+	 * no longer exists.
+	 */
+	public synchronized void update(File file)
+	{
+		long length = file.length();
+
+		if (length == 0 && !file.exists())
+		{
+			remove(file);
+			return;
+		}
+
+		put(new Entry(file.getPath(), length, file.lastModified(), !isCacheFile(file.getName())));
+	}
+
+	public synchronized void remove(File file)
+	{
+		Entry entry = entries.remove(file.getPath());
+
+		if (entry != null)
+		{
+			byLastAccess.remove(entry);
+
+			if (!entry.pinned)
+			{
+				cacheSize -= entry.size;
+			}
+
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Returns the total size of all cache files which are not pinned.
+	 */
+	public synchronized long getCacheSize()
+	{
+		return cacheSize;
+	}
+
+	/**
+	 * Returns false until the index has been built from a scan of the file system.
+	 */
+	public synchronized boolean isReconciled()
+	{
+		return reconciled;
+	}
+
+	/**
+	 * Replaces the index with the given files, as found by a full scan of the music directory.
+	 */
+	public synchronized void reconcile(Collection<File> files)
+	{
+		entries.clear();
+		byLastAccess.clear();
+		cacheSize = 0;
+
+		for (File file : files)
+		{
+			update(file);
+		}
+
+		reconciled = true;
+		dirty = true;
+		Log.i(TAG, String.format("Reconciled cache index with %d files, %s in cache", entries.size(), Util.formatBytes(cacheSize)));
+	}
+
+	/**
+	 * Deletes the least recently used cache files below the given directory until at least
+	 * the given number of bytes has been freed. The files are chosen holding the lock, but
+	 * deleted after releasing it, so that playback, which updates the index, doesn't wait.
+	 *
+	 * @param deleted Receives the deleted files.
+	 * @return The number of bytes deleted.
+	 */
+	public long evict(File root, long bytesToDelete, Collection<File> doNotDelete, Collection<File> deleted)
+	{
+		String rootPath = root.getPath() + File.separator;
+		List<Entry> victims = new ArrayList<Entry>();
+
+		synchronized (this)
+		{
+			long bytesChosen = 0L;
+			Iterator<Entry> iterator = byLastAccess.iterator();
+
+			while (bytesChosen < bytesToDelete && iterator.hasNext())
+			{
+				Entry entry = iterator.next();
+
+				if (entry.pinned || !entry.path.startsWith(rootPath) || doNotDelete.contains(new File(entry.path)))
+				{
+					continue;
+				}
+
+				bytesChosen += entry.size;
+				victims.add(entry);
+				iterator.remove();
+				entries.remove(entry.path);
+				cacheSize -= entry.size;
+				dirty = true;
+			}
+		}
+
+		long bytesDeleted = 0L;
+
+		for (Entry entry : victims)
+		{
+			File file = new File(entry.path);
+
+			if (Util.delete(file) || !file.exists())
+			{
+				bytesDeleted += entry.size;
+				deleted.add(file);
+			}
+			else
+			{
+				update(file);
+			}
+		}
+
+		return bytesDeleted;
+	}
+
+	public synchronized void save()
+	{
+		if (!dirty)
+		{
+			return;
+		}
+
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(FORMAT_VERSION);
+			out.writeBoolean(reconciled);
+			out.writeInt(entries.size());
+
+			for (Entry entry : byLastAccess)
+			{
+				out.writeUTF(entry.path);
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastAccess);
+				out.writeBoolean(entry.pinned);
+			}
+
+			out.close();
+			out = null;
+
+			Util.renameFile(tmp, indexFile);
+			dirty = false;
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to write cache index to %s", indexFile), x);
+			Util.delete(tmp);
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+
+	private void load()
+	{
+		if (!indexFile.isFile())
+		{
+			return;
+		}
+
+		DataInputStream in = null;
+
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+
+			if (in.readInt() != FORMAT_VERSION)
+			{
+				return;
+			}
+
+			boolean reconciled = in.readBoolean();
+			int count = in.readInt();
+
+			for (int i = 0; i < count; i++)
+			{
+				put(new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readBoolean()));
+			}
+
+			this.reconciled = reconciled;
+			dirty = false;
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to read cache index from %s", indexFile), x);
+			entries.clear();
+			byLastAccess.clear();
+			cacheSize = 0;
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	private void put(Entry entry)
+	{
+		Entry previous = entries.put(entry.path, entry);
+
+		if (previous != null)
+		{
+			byLastAccess.remove(previous);
+
+			if (!previous.pinned)
+			{
+				cacheSize -= previous.size;
+			}
+		}
+
+		byLastAccess.add(entry);
+
+		if (!entry.pinned)
+		{
+			cacheSize += entry.size;
+		}
+
+		dirty = true;
+	}
+
+	private static class Entry
+	{
+		private final String path;
+		private final long size;
+		private final long lastAccess;
+		private final boolean pinned;
+
+		Entry(String path, long size, long lastAccess, boolean pinned)
+		{
+			this.path = path;
+			this.size = size;
+			this.lastAccess = lastAccess;
+			this.pinned = pinned;
+		}
+	}
+}
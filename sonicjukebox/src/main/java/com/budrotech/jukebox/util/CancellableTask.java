@@ -20,10 +20,34 @@ package com.budrotech.jukebox.util;
 
 import android.util.Log;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * A task which runs on a shared pool of threads and which may be cancelled.
+ * <p/>
+ * Tasks run on one of three pools. {@link #isPlayerTask() Player tasks}, which wait for
+ * downloads on behalf of the player, have a small pool of their own, so that starting
+ * playback never waits for a transfer to finish. Tasks which {@link #waitsForTasks() wait
+ * for other tasks}, such as downloads waiting for their ranges, have a pool sized to the
+ * number of concurrent downloads, so that they can't take all threads from the tasks they
+ * wait for. The rest, the transfers, share a pool sized to the device.
+ * <p/>
+ * Within a pool, waiting tasks are started in order of {@link #getPriority() priority}. A
+ * running task is never stopped for another, but its priority may be
+ * {@link #setPriority changed}, such as when a prefetched song starts playing, and it then
+ * passes the new priority on to the tasks it waits for. Cancelling a running task
+ * interrupts its thread and calls its {@link OnCancelListener listeners}; a task cancelled
+ * while queued is skipped.
+ *
  * @author Sindre Mehus
  * @version $Id$
  */
@@ -32,26 +56,114 @@ public abstract class CancellableTask
 
 	private static final String TAG = CancellableTask.class.getSimpleName();
 
+	/**
+	 * For tasks which playback is waiting for.
+	 */
+	public static final int PRIORITY_PLAYBACK = 0;
+
+	/**
+	 * For downloads which playback is not waiting for yet.
+	 */
+	public static final int PRIORITY_DOWNLOAD = 1;
+
+	// Buffering the current song and checking the next one
+	private static final int PLAYER_POOL_SIZE = 2;
+	private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+	private static final int DEFAULT_WAITING_POOL_SIZE = 2;
+
+	private static final long KEEP_ALIVE_SECONDS = 30L;
+
+	private static final AtomicLong sequence = new AtomicLong();
+	private static final ThreadPoolExecutor playerExecutor = createExecutor(PLAYER_POOL_SIZE, "PlayerTask");
+	private static final ThreadPoolExecutor executor = createExecutor(POOL_SIZE, "CancellableTask");
+	private static final ThreadPoolExecutor waitingExecutor = createExecutor(DEFAULT_WAITING_POOL_SIZE, "WaitingTask");
+
 	private final AtomicBoolean running = new AtomicBoolean(false);
 	private final AtomicBoolean cancelled = new AtomicBoolean(false);
 	private final AtomicReference<Thread> thread = new AtomicReference<Thread>();
-	private final AtomicReference<OnCancelListener> cancelListener = new AtomicReference<OnCancelListener>();
+	private final List<OnCancelListener> cancelListeners = new CopyOnWriteArrayList<OnCancelListener>();
+	private volatile int priority = PRIORITY_DOWNLOAD;
+	private Job job;
+
+	private static ThreadPoolExecutor createExecutor(int size, final String name)
+	{
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				return new Thread(runnable, String.format("%s-%d", name, count.incrementAndGet()));
+			}
+		});
+
+		// Idle threads are released, but are reused by tasks started in quick succession
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Sizes the pool of the tasks which wait for other tasks, as one thread per download which
+	 * may run at a time.
+	 */
+	public static synchronized void setWaitingPoolSize(int size)
+	{
+		size = Math.max(1, size);
+
+		if (size == waitingExecutor.getMaximumPoolSize())
+		{
+			return;
+		}
+
+		// The core size may never exceed the maximum size, not even in between
+		if (size > waitingExecutor.getMaximumPoolSize())
+		{
+			waitingExecutor.setMaximumPoolSize(size);
+			waitingExecutor.setCorePoolSize(size);
+		}
+		else
+		{
+			waitingExecutor.setCorePoolSize(size);
+			waitingExecutor.setMaximumPoolSize(size);
+		}
+
+		Log.i(TAG, String.format("Waiting pool sized to %d threads", size));
+	}
+
+	/**
+	 * Returns the number of tasks which are running.
+	 */
+	public static int getActiveCount()
+	{
+		return playerExecutor.getActiveCount() + executor.getActiveCount() + waitingExecutor.getActiveCount();
+	}
+
+	/**
+	 * Returns the number of tasks which are waiting for a thread.
+	 */
+	public static int getQueuedCount()
+	{
+		return playerExecutor.getQueue().size() + executor.getQueue().size() + waitingExecutor.getQueue().size();
+	}
 
 	public void cancel()
 	{
 		Log.i(TAG, String.format("Cancelling %s", CancellableTask.this));
 		cancelled.set(true);
 
-		OnCancelListener listener = cancelListener.get();
-		if (listener != null)
+		for (OnCancelListener listener : cancelListeners)
 		{
-			try
-			{
-				listener.onCancel();
-			}
-			catch (Throwable x)
+			notifyCancel(listener);
+		}
+
+		synchronized (thread)
+		{
+			Thread runningThread = thread.get();
+
+			if (runningThread != null)
 			{
-				Log.w(TAG, "Error when invoking OnCancelListener.", x);
+				runningThread.interrupt();
 			}
 		}
 	}
@@ -61,11 +173,37 @@ public abstract class CancellableTask
 		return cancelled.get();
 	}
 
-	public void setOnCancelListener(OnCancelListener listener)
+	/**
+	 * Adds a listener to be called when the task is cancelled, next to those added before,
+	 * such as one per request the task makes. It is called at once if the task is already
+	 * cancelled. Listeners are dropped when the task finishes.
+	 */
+	public void addOnCancelListener(OnCancelListener listener)
+	{
+		cancelListeners.add(listener);
+
+		if (isCancelled() && cancelListeners.remove(listener))
+		{
+			notifyCancel(listener);
+		}
+	}
+
+	private static void notifyCancel(OnCancelListener listener)
 	{
-		cancelListener.set(listener);
+		try
+		{
+			listener.onCancel();
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, "Error when invoking OnCancelListener.", x);
+		}
 	}
 
+	/**
+	 * Returns true from {@link #start()} until the task has finished, including while it is
+	 * waiting for a thread.
+	 */
 	public boolean isRunning()
 	{
 		return running.get();
@@ -73,31 +211,158 @@ public abstract class CancellableTask
 
 	public abstract void execute();
 
-	public void start()
+	/**
+	 * Returns the priority of the task, where lower values run first.
+	 */
+	public int getPriority()
 	{
-		thread.set(new Thread()
+		return priority;
+	}
+
+	/**
+	 * Sets the priority of the task. If the task is waiting for a thread it is queued again at
+	 * the new priority; if it is running, {@link #onPriorityChanged} is called.
+	 */
+	public synchronized void setPriority(int priority)
+	{
+		if (this.priority == priority)
 		{
-			@Override
-			public void run()
+			return;
+		}
+
+		this.priority = priority;
+
+		if (job == null)
+		{
+			return;
+		}
+
+		ThreadPoolExecutor executor = getExecutor();
+
+		if (executor.remove(job))
+		{
+			job = new Job(priority, job.sequence);
+			executor.execute(job);
+		}
+		else
+		{
+			onPriorityChanged(priority);
+		}
+	}
+
+	/**
+	 * Called when the priority of the running task has changed, to pass it on to the tasks it
+	 * waits for.
+	 */
+	protected void onPriorityChanged(int priority)
+	{
+	}
+
+	/**
+	 * Returns whether the task is run on behalf of the player, which waits for it.
+	 */
+	protected boolean isPlayerTask()
+	{
+		return false;
+	}
+
+	/**
+	 * Returns whether the task waits for tasks it starts itself, as a segmented download waits
+	 * for its segments.
+	 */
+	protected boolean waitsForTasks()
+	{
+		return false;
+	}
+
+	private ThreadPoolExecutor getExecutor()
+	{
+		if (isPlayerTask())
+		{
+			return playerExecutor;
+		}
+
+		return waitsForTasks() ? waitingExecutor : executor;
+	}
+
+	/**
+	 * Called on the thread of the task once it is no longer running.
+	 */
+	protected void onFinished()
+	{
+	}
+
+	public synchronized void start()
+	{
+		running.set(true);
+		job = new Job(priority, sequence.incrementAndGet());
+		getExecutor().execute(job);
+		Log.i(TAG, String.format("Queued %s (%d running, %d queued)", CancellableTask.this, getActiveCount(), getQueuedCount()));
+	}
+
+	public static interface OnCancelListener
+	{
+		void onCancel();
+	}
+
+	private class Job implements Runnable, Comparable<Job>
+	{
+		private final int priority;
+		private final long sequence;
+
+		Job(int priority, long sequence)
+		{
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void run()
+		{
+			Thread currentThread = Thread.currentThread();
+			String threadName = currentThread.getName();
+			thread.set(currentThread);
+			Log.i(TAG, String.format("Starting %s", CancellableTask.this));
+
+			try
 			{
-				running.set(true);
-				Log.i(TAG, String.format("Starting thread for %s", CancellableTask.this));
-				try
+				if (!isCancelled())
 				{
 					execute();
 				}
-				finally
+			}
+			catch (Throwable x)
+			{
+				Log.e(TAG, String.format("Unexpected error in %s", CancellableTask.this), x);
+			}
+			finally
+			{
+				synchronized (thread)
 				{
-					running.set(false);
-					Log.i(TAG, String.format("Stopping thread for %s", CancellableTask.this));
+					thread.set(null);
+
+					// Don't pass an interrupt for this task on to the next task of the thread
+					Thread.interrupted();
 				}
+
+				// Tasks may rename the thread they run on
+				currentThread.setName(threadName);
+				cancelListeners.clear();
+				running.set(false);
+				Log.i(TAG, String.format("Stopping %s", CancellableTask.this));
+				onFinished();
 			}
-		});
-		thread.get().start();
-	}
+		}
 
-	public static interface OnCancelListener
-	{
-		void onCancel();
+		@Override
+		public int compareTo(Job other)
+		{
+			if (priority != other.priority)
+			{
+				return priority < other.priority ? -1 : 1;
+			}
+
+			return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+		}
 	}
-}
\ No newline at end of file
+}
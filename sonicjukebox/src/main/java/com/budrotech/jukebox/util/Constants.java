@@ -65,6 +65,9 @@ public final class Constants
 	public static final String PREFERENCES_KEY_SERVER = "server";
 	public static final String PREFERENCES_KEY_SERVER_ENABLED = "serverEnabled";
 	public static final String PREFERENCES_KEY_JUKEBOX_BY_DEFAULT = "jukeboxEnabled";
+	public static final String PREFERENCES_KEY_USE_JSON = "useJson";
+	public static final String PREFERENCES_KEY_ALLOW_SELF_SIGNED_CERTIFICATE = "allowSelfSignedCertificate";
+	public static final String PREFERENCES_KEY_PINNED_CERTIFICATE = "pinnedCertificate";
 	public static final String PREFERENCES_KEY_SERVER_INSTANCE = "serverInstanceId";
 	public static final String PREFERENCES_KEY_SERVER_NAME = "serverName";
 	public static final String PREFERENCES_KEY_SERVER_URL = "serverUrl";
@@ -127,6 +130,9 @@ public final class Constants
 	public static final String PREFERENCES_KEY_SHOW_ALL_SONGS_BY_ARTIST = "showAllSongsByArtist";
 	public static final String PREFERENCES_KEY_SCAN_MEDIA = "scanMedia";
 	public static final String PREFERENCES_KEY_IMAGE_LOADER_CONCURRENCY = "imageLoaderConcurrency";
+	public static final String PREFERENCES_KEY_DOWNLOAD_CONCURRENCY = "downloadConcurrency";
+	public static final String PREFERENCES_KEY_SEGMENTED_DOWNLOADS = "segmentedDownloads";
+	public static final String PREFERENCES_KEY_OFFLINE_SHUFFLE_MODE = "offlineShuffleMode";
 
 	// Name of the preferences file.
 	public static final String PREFERENCES_FILE_NAME = "com.budrotech.jukebox_preferences";
@@ -0,0 +1,212 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Compact binary encoding of {@link MusicDirectory} and {@link MusicDirectory.Entry}.
+ * <p/>
+ * Every entry starts with a bit mask of the fields that are present, followed by the
+ * present fields in declaration order. Unlike Java serialization no class descriptors
+ * are written, so the format is small. Fields are known by their bit and their position
+ * alone, so adding, removing or reordering a field changes the format, and the format
+ * version of every file that stores entries must then be raised.
+ */
+public final class EntryCodec
+{
+	private static final int HAS_ID = 1;
+	private static final int HAS_PARENT = 1 << 1;
+	private static final int IS_DIRECTORY = 1 << 2;
+	private static final int HAS_TITLE = 1 << 3;
+	private static final int HAS_ALBUM = 1 << 4;
+	private static final int HAS_ALBUM_ID = 1 << 5;
+	private static final int HAS_ARTIST = 1 << 6;
+	private static final int HAS_ARTIST_ID = 1 << 7;
+	private static final int HAS_TRACK = 1 << 8;
+	private static final int HAS_YEAR = 1 << 9;
+	private static final int HAS_GENRE = 1 << 10;
+	private static final int HAS_CONTENT_TYPE = 1 << 11;
+	private static final int HAS_SUFFIX = 1 << 12;
+	private static final int HAS_TRANSCODED_CONTENT_TYPE = 1 << 13;
+	private static final int HAS_TRANSCODED_SUFFIX = 1 << 14;
+	private static final int HAS_COVER_ART = 1 << 15;
+	private static final int HAS_SIZE = 1 << 16;
+	private static final int HAS_SONG_COUNT = 1 << 17;
+	private static final int HAS_DURATION = 1 << 18;
+	private static final int HAS_BIT_RATE = 1 << 19;
+	private static final int HAS_PATH = 1 << 20;
+	private static final int IS_VIDEO = 1 << 21;
+	private static final int IS_STARRED = 1 << 22;
+	private static final int HAS_DISC_NUMBER = 1 << 23;
+	private static final int HAS_TYPE = 1 << 24;
+	private static final int HAS_CREATED = 1 << 25;
+	private static final int HAS_PLAY_COUNT = 1 << 26;
+
+	private EntryCodec()
+	{
+	}
+
+	public static void writeDirectory(DataOutput out, MusicDirectory directory) throws IOException
+	{
+		writeString(out, directory.getName());
+		out.writeInt(directory.getChildren().size());
+
+		for (MusicDirectory.Entry entry : directory.getChildren())
+		{
+			writeEntry(out, entry);
+		}
+	}
+
+	public static MusicDirectory readDirectory(DataInput in) throws IOException
+	{
+		MusicDirectory directory = new MusicDirectory();
+		directory.setName(readString(in));
+
+		int count = in.readInt();
+
+		for (int i = 0; i < count; i++)
+		{
+			directory.addChild(readEntry(in));
+		}
+
+		return directory;
+	}
+
+	public static void writeEntry(DataOutput out, MusicDirectory.Entry entry) throws IOException
+	{
+		int flags = 0;
+
+		// The getters for track and year hide null, so the raw values are checked for zero instead
+		flags |= entry.getId() != null ? HAS_ID : 0;
+		flags |= entry.getParent() != null ? HAS_PARENT : 0;
+		flags |= entry.isDirectory() ? IS_DIRECTORY : 0;
+		flags |= entry.getTitle() != null ? HAS_TITLE : 0;
+		flags |= entry.getAlbum() != null ? HAS_ALBUM : 0;
+		flags |= entry.getAlbumId() != null ? HAS_ALBUM_ID : 0;
+		flags |= entry.getArtist() != null ? HAS_ARTIST : 0;
+		flags |= entry.getArtistId() != null ? HAS_ARTIST_ID : 0;
+		flags |= entry.getTrack() != 0 ? HAS_TRACK : 0;
+		flags |= entry.getYear() != 0 ? HAS_YEAR : 0;
+		flags |= entry.getGenre() != null ? HAS_GENRE : 0;
+		flags |= entry.getContentType() != null ? HAS_CONTENT_TYPE : 0;
+		flags |= entry.getSuffix() != null ? HAS_SUFFIX : 0;
+		flags |= entry.getTranscodedContentType() != null ? HAS_TRANSCODED_CONTENT_TYPE : 0;
+		flags |= entry.getTranscodedSuffix() != null ? HAS_TRANSCODED_SUFFIX : 0;
+		flags |= entry.getCoverArt() != null ? HAS_COVER_ART : 0;
+		flags |= entry.getSize() != null ? HAS_SIZE : 0;
+		flags |= entry.getSongCount() != null ? HAS_SONG_COUNT : 0;
+		flags |= entry.getDuration() != null ? HAS_DURATION : 0;
+		flags |= entry.getBitRate() != null ? HAS_BIT_RATE : 0;
+		flags |= entry.getPath() != null ? HAS_PATH : 0;
+		flags |= entry.isVideo() ? IS_VIDEO : 0;
+		flags |= entry.getStarred() ? IS_STARRED : 0;
+		flags |= entry.getDiscNumber() != null ? HAS_DISC_NUMBER : 0;
+		flags |= entry.getType() != null ? HAS_TYPE : 0;
+		flags |= entry.getCreated() != null ? HAS_CREATED : 0;
+		flags |= entry.getPlayCount() != null ? HAS_PLAY_COUNT : 0;
+
+		out.writeInt(flags);
+
+		if ((flags & HAS_ID) != 0) out.writeUTF(entry.getId());
+		if ((flags & HAS_PARENT) != 0) out.writeUTF(entry.getParent());
+		if ((flags & HAS_TITLE) != 0) out.writeUTF(entry.getTitle());
+		if ((flags & HAS_ALBUM) != 0) out.writeUTF(entry.getAlbum());
+		if ((flags & HAS_ALBUM_ID) != 0) out.writeUTF(entry.getAlbumId());
+		if ((flags & HAS_ARTIST) != 0) out.writeUTF(entry.getArtist());
+		if ((flags & HAS_ARTIST_ID) != 0) out.writeUTF(entry.getArtistId());
+		if ((flags & HAS_TRACK) != 0) out.writeInt(entry.getTrack());
+		if ((flags & HAS_YEAR) != 0) out.writeInt(entry.getYear());
+		if ((flags & HAS_GENRE) != 0) out.writeUTF(entry.getGenre());
+		if ((flags & HAS_CONTENT_TYPE) != 0) out.writeUTF(entry.getContentType());
+		if ((flags & HAS_SUFFIX) != 0) out.writeUTF(entry.getSuffix());
+		if ((flags & HAS_TRANSCODED_CONTENT_TYPE) != 0) out.writeUTF(entry.getTranscodedContentType());
+		if ((flags & HAS_TRANSCODED_SUFFIX) != 0) out.writeUTF(entry.getTranscodedSuffix());
+		if ((flags & HAS_COVER_ART) != 0) out.writeUTF(entry.getCoverArt());
+		if ((flags & HAS_SIZE) != 0) out.writeLong(entry.getSize());
+		if ((flags & HAS_SONG_COUNT) != 0) out.writeLong(entry.getSongCount());
+		if ((flags & HAS_DURATION) != 0) out.writeInt(entry.getDuration());
+		if ((flags & HAS_BIT_RATE) != 0) out.writeInt(entry.getBitRate());
+		if ((flags & HAS_PATH) != 0) out.writeUTF(entry.getPath());
+		if ((flags & HAS_DISC_NUMBER) != 0) out.writeInt(entry.getDiscNumber());
+		if ((flags & HAS_TYPE) != 0) out.writeUTF(entry.getType());
+		if ((flags & HAS_CREATED) != 0) out.writeLong(entry.getCreated().getTime());
+		if ((flags & HAS_PLAY_COUNT) != 0) out.writeLong(entry.getPlayCount());
+
+		out.writeInt(entry.getBookmarkPosition());
+	}
+
+	public static MusicDirectory.Entry readEntry(DataInput in) throws IOException
+	{
+		MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		int flags = in.readInt();
+
+		entry.setIsDirectory((flags & IS_DIRECTORY) != 0);
+		entry.setIsVideo((flags & IS_VIDEO) != 0);
+		entry.setStarred((flags & IS_STARRED) != 0);
+
+		if ((flags & HAS_ID) != 0) entry.setId(in.readUTF());
+		if ((flags & HAS_PARENT) != 0) entry.setParent(in.readUTF());
+		if ((flags & HAS_TITLE) != 0) entry.setTitle(in.readUTF());
+		if ((flags & HAS_ALBUM) != 0) entry.setAlbum(in.readUTF());
+		if ((flags & HAS_ALBUM_ID) != 0) entry.setAlbumId(in.readUTF());
+		if ((flags & HAS_ARTIST) != 0) entry.setArtist(in.readUTF());
+		if ((flags & HAS_ARTIST_ID) != 0) entry.setArtistId(in.readUTF());
+		if ((flags & HAS_TRACK) != 0) entry.setTrack(in.readInt());
+		if ((flags & HAS_YEAR) != 0) entry.setYear(in.readInt());
+		if ((flags & HAS_GENRE) != 0) entry.setGenre(in.readUTF());
+		if ((flags & HAS_CONTENT_TYPE) != 0) entry.setContentType(in.readUTF());
+		if ((flags & HAS_SUFFIX) != 0) entry.setSuffix(in.readUTF());
+		if ((flags & HAS_TRANSCODED_CONTENT_TYPE) != 0) entry.setTranscodedContentType(in.readUTF());
+		if ((flags & HAS_TRANSCODED_SUFFIX) != 0) entry.setTranscodedSuffix(in.readUTF());
+		if ((flags & HAS_COVER_ART) != 0) entry.setCoverArt(in.readUTF());
+		if ((flags & HAS_SIZE) != 0) entry.setSize(in.readLong());
+		if ((flags & HAS_SONG_COUNT) != 0) entry.setSongCount(in.readLong());
+		if ((flags & HAS_DURATION) != 0) entry.setDuration(Integer.valueOf(in.readInt()));
+		if ((flags & HAS_BIT_RATE) != 0) entry.setBitRate(in.readInt());
+		if ((flags & HAS_PATH) != 0) entry.setPath(in.readUTF());
+		if ((flags & HAS_DISC_NUMBER) != 0) entry.setDiscNumber(in.readInt());
+		if ((flags & HAS_TYPE) != 0) entry.setType(in.readUTF());
+		if ((flags & HAS_CREATED) != 0) entry.setCreated(new Date(in.readLong()));
+		if ((flags & HAS_PLAY_COUNT) != 0) entry.setPlayCount(in.readLong());
+
+		entry.setBookmarkPosition(in.readInt());
+		return entry;
+	}
+
+	public static void writeString(DataOutput out, String value) throws IOException
+	{
+		out.writeBoolean(value != null);
+
+		if (value != null)
+		{
+			out.writeUTF(value);
+		}
+	}
+
+	public static String readString(DataInput in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -501,7 +501,7 @@ public class FileUtil
 		return files;
 	}
 
-	private static boolean isMediaFile(File file)
+	public static boolean isMediaFile(File file)
 	{
 		String extension = getExtension(file.getName());
 		return MUSIC_FILE_EXTENSIONS.contains(extension) || VIDEO_FILE_EXTENSIONS.contains(extension);
@@ -25,6 +25,7 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
@@ -35,26 +36,53 @@ import com.budrotech.jukebox.domain.MusicDirectory;
 import com.budrotech.jukebox.service.MusicService;
 import com.budrotech.jukebox.service.MusicServiceFactory;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Asynchronous loading of images, with caching.
  * <p/>
+ * Requests first go to a few threads which decode images already saved on disk, and only
+ * on a miss to the network threads. Both queues are served newest first, so that the rows
+ * currently on screen are loaded before the ones scrolled past, and are bounded by dropping
+ * the oldest requests. Requests for the same image and size are merged, and a request is
+ * cancelled when all of its views have been bound to another image.
+ * <p/>
  * There should normally be only one instance of this class.
  *
  * @author Sindre Mehus
  */
-public class ImageLoader implements Runnable
+public class ImageLoader
 {
 	private static final String TAG = ImageLoader.class.getSimpleName();
 
-	private final LRUCache<String, Bitmap> cache = new LRUCache<String, Bitmap>(150);
-	private final BlockingQueue<Task> queue;
+	private static final int CACHE_SEGMENTS = 4;
+	private static final int DISK_THREADS = 2;
+	private static final int QUEUE_CAPACITY = 100;
+
+	private final LRUCache<String, Bitmap> cache = new LRUCache<String, Bitmap>(getCacheSizeInBytes(), CACHE_SEGMENTS, new LRUCache.Weigher<String, Bitmap>()
+	{
+		@Override
+		public int weigh(String key, Bitmap bitmap)
+		{
+			return bitmap.getByteCount();
+		}
+	});
+	private final BlockingDeque<Request> diskQueue = new LinkedBlockingDeque<Request>(QUEUE_CAPACITY);
+	private final BlockingDeque<Request> networkQueue = new LinkedBlockingDeque<Request>(QUEUE_CAPACITY);
+	private final Map<String, Request> requests = new HashMap<String, Request>();
+	private final Map<View, Request> viewRequests = new WeakHashMap<View, Request>();
+	private final Handler handler = new Handler(Looper.getMainLooper());
 	private int imageSizeDefault;
 	private final int imageSizeLarge;
 	private Bitmap largeUnknownImage;
@@ -68,7 +96,6 @@ public class ImageLoader implements Runnable
 	{
 		this.context = context;
 		this.concurrency = concurrency;
-		queue = new LinkedBlockingQueue<Task>(1000);
 
 		Resources resources = context.getResources();
 		Drawable drawable = resources.getDrawable(R.drawable.unknown_album);
@@ -84,6 +111,19 @@ public class ImageLoader implements Runnable
 		createUnknownAvatarImage(context);
 	}
 
+	/**
+	 * Use an eighth of the available heap for decoded images.
+	 */
+	private static int getCacheSizeInBytes()
+	{
+		return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+	}
+
+	public String getCacheStats()
+	{
+		return cache.toString();
+	}
+
 	public synchronized boolean isRunning()
 	{
 		return running.get() && !threads.isEmpty();
@@ -98,11 +138,18 @@ public class ImageLoader implements Runnable
 	{
 		running.set(true);
 
-		threads = Collections.synchronizedCollection(new ArrayList<Thread>(this.concurrency));
+		threads = Collections.synchronizedCollection(new ArrayList<Thread>(this.concurrency + DISK_THREADS));
+
+		for (int i = 0; i < DISK_THREADS; i++)
+		{
+			Thread thread = new Thread(new Worker(diskQueue, false), String.format("ImageLoader_disk_%d", i));
+			threads.add(thread);
+			thread.start();
+		}
 
 		for (int i = 0; i < this.concurrency; i++)
 		{
-			Thread thread = new Thread(this, String.format("ImageLoader_%d", i));
+			Thread thread = new Thread(new Worker(networkQueue, true), String.format("ImageLoader_%d", i));
 			threads.add(thread);
 			thread.start();
 		}
@@ -145,6 +192,7 @@ public class ImageLoader implements Runnable
 
 		if (username == null)
 		{
+			unbind(view);
 			setUnknownAvatarImage(view);
 			return;
 		}
@@ -154,17 +202,19 @@ public class ImageLoader implements Runnable
 			size = large ? imageSizeLarge : imageSizeDefault;
 		}
 
-		Bitmap bitmap = cache.get(getKey(username, size));
+		String key = getKey(username, size);
+		Bitmap bitmap = cache.get(key);
 
 		if (bitmap != null)
 		{
+			unbind(view);
 			setAvatarImageBitmap(view, username, bitmap, crossFade);
 			return;
 		}
 
 		setUnknownAvatarImage(view);
 
-		queue.offer(new Task(view, username, size, large, crossFade, highQuality));
+		request(view, key, null, username, size, large, crossFade, highQuality);
 	}
 
 	public void loadImage(View view, MusicDirectory.Entry entry, boolean large, int size, boolean crossFade, boolean highQuality)
@@ -173,6 +223,7 @@ public class ImageLoader implements Runnable
 
 		if (entry == null)
 		{
+			unbind(view);
 			setUnknownImage(view, large);
 			return;
 		}
@@ -181,6 +232,7 @@ public class ImageLoader implements Runnable
 
 		if (coverArt == null)
 		{
+			unbind(view);
 			setUnknownImage(view, large);
 			return;
 		}
@@ -190,17 +242,115 @@ public class ImageLoader implements Runnable
 			size = large ? imageSizeLarge : imageSizeDefault;
 		}
 
-		Bitmap bitmap = cache.get(getKey(coverArt, size));
+		String key = getKey(coverArt, size);
+		Bitmap bitmap = cache.get(key);
 
 		if (bitmap != null)
 		{
+			unbind(view);
 			setImageBitmap(view, entry, bitmap, crossFade);
 			return;
 		}
 
 		setUnknownImage(view, large);
 
-		queue.offer(new Task(view, entry, size, large, crossFade, highQuality));
+		request(view, key, entry, null, size, large, crossFade, highQuality);
+	}
+
+	/**
+	 * Binds the view to a request for the given image, joining a pending request for the
+	 * same image if there is one.
+	 */
+	private void request(View view, String key, MusicDirectory.Entry entry, String username, int size, boolean saveToFile, boolean crossFade, boolean highQuality)
+	{
+		Request request;
+
+		synchronized (requests)
+		{
+			Request previous = viewRequests.get(view);
+
+			if (previous != null && previous.key.equals(key))
+			{
+				return;
+			}
+
+			unbind(view);
+			request = requests.get(key);
+
+			if (request != null)
+			{
+				request.addTarget(view, crossFade);
+				viewRequests.put(view, request);
+				return;
+			}
+
+			request = new Request(key, entry, username, size, saveToFile, highQuality);
+			request.addTarget(view, crossFade);
+			requests.put(key, request);
+			viewRequests.put(view, request);
+		}
+
+		enqueue(diskQueue, request);
+	}
+
+	/**
+	 * Detaches the view from its pending request, cancelling the request if no other view
+	 * is waiting for it.
+	 */
+	private void unbind(View view)
+	{
+		synchronized (requests)
+		{
+			Request request = viewRequests.remove(view);
+
+			if (request != null && request.removeTarget(view))
+			{
+				request.cancelled = true;
+				requests.remove(request.key);
+			}
+		}
+	}
+
+	/**
+	 * Adds the request at the head of the queue, dropping the oldest requests if it is full.
+	 */
+	private void enqueue(BlockingDeque<Request> queue, Request request)
+	{
+		while (!queue.offerFirst(request))
+		{
+			Request dropped = queue.pollLast();
+
+			if (dropped != null)
+			{
+				forget(dropped);
+			}
+		}
+	}
+
+	/**
+	 * Removes the request and its views, so that it is requested anew when needed again.
+	 */
+	private List<Target> forget(Request request)
+	{
+		synchronized (requests)
+		{
+			if (requests.get(request.key) == request)
+			{
+				requests.remove(request.key);
+			}
+
+			for (Target target : request.targets)
+			{
+				View view = target.getView();
+
+				if (view != null && viewRequests.get(view) == request)
+				{
+					viewRequests.remove(view);
+				}
+			}
+
+			return new ArrayList<Target>(request.targets);
+		}
 	}
 
 	private static String getKey(String coverArtId, int size)
@@ -365,99 +515,212 @@ public class ImageLoader implements Runnable
 
 	public void clear()
 	{
-		queue.clear();
-	}
+		diskQueue.clear();
+		networkQueue.clear();
 
-	@Override
-	public void run()
-	{
-		while (running.get())
+		synchronized (requests)
 		{
-			try
-			{
-				Task task = queue.take();
-				task.execute();
-			}
-			catch (InterruptedException ignored)
+			for (Request request : requests.values())
 			{
-				running.set(false);
-				break;
+				request.cancelled = true;
 			}
-			catch (Throwable x)
+
+			requests.clear();
+			viewRequests.clear();
+		}
+	}
+
+	private class Worker implements Runnable
+	{
+		private final BlockingDeque<Request> queue;
+		private final boolean network;
+
+		Worker(BlockingDeque<Request> queue, boolean network)
+		{
+			this.queue = queue;
+			this.network = network;
+		}
+
+		@Override
+		public void run()
+		{
+			while (running.get())
 			{
-				Log.e(TAG, "Unexpected exception in ImageLoader.", x);
+				Request request = null;
+
+				try
+				{
+					request = queue.takeFirst();
+
+					if (request.cancelled)
+					{
+						continue;
+					}
+
+					if (network)
+					{
+						request.fetch();
+					}
+					else if (!request.decode())
+					{
+						enqueue(networkQueue, request);
+					}
+				}
+				catch (InterruptedException ignored)
+				{
+					running.set(false);
+					break;
+				}
+				catch (Throwable x)
+				{
+					forget(request);
+					Log.e(TAG, "Failed to load image.", x);
+				}
 			}
 		}
 	}
 
-	private class Task
+	/**
+	 * A view waiting for a request. The view is only weakly referenced, so that a pending
+	 * request doesn't keep its activity alive, just like the keys of the view requests.
+	 */
+	private static class Target
 	{
-		private final View view;
+		private final WeakReference<View> view;
+		private final boolean crossFade;
+
+		Target(View view, boolean crossFade)
+		{
+			this.view = new WeakReference<View>(view);
+			this.crossFade = crossFade;
+		}
+
+		/**
+		 * Returns the view, or null if it has been garbage collected.
+		 */
+		View getView()
+		{
+			return view.get();
+		}
+	}
+
+	private class Request
+	{
+		private final String key;
 		private final MusicDirectory.Entry entry;
 		private final String username;
-		private final Handler handler;
 		private final int size;
 		private final boolean saveToFile;
-		private final boolean crossFade;
 		private final boolean highQuality;
+		private final List<Target> targets = new ArrayList<Target>(1);
+		private volatile boolean cancelled;
 
-		public Task(View view, MusicDirectory.Entry entry, int size, boolean saveToFile, boolean crossFade, boolean highQuality)
+		Request(String key, MusicDirectory.Entry entry, String username, int size, boolean saveToFile, boolean highQuality)
 		{
-			this.view = view;
+			this.key = key;
 			this.entry = entry;
-			this.username = null;
+			this.username = username;
 			this.size = size;
 			this.saveToFile = saveToFile;
-			this.crossFade = crossFade;
 			this.highQuality = highQuality;
-			handler = new Handler();
 		}
 
-		public Task(View view, String username, int size, boolean saveToFile, boolean crossFade, boolean highQuality)
+		void addTarget(View view, boolean crossFade)
 		{
-			this.view = view;
-			this.entry = null;
-			this.username = username;
-			this.size = size;
-			this.saveToFile = saveToFile;
-			this.crossFade = crossFade;
-			this.highQuality = highQuality;
-			handler = new Handler();
+			targets.add(new Target(view, crossFade));
+		}
+
+		/**
+		 * Returns true if no views are left waiting for this request.
+		 */
+		boolean removeTarget(View view)
+		{
+			Iterator<Target> iterator = targets.iterator();
+
+			while (iterator.hasNext())
+			{
+				View targetView = iterator.next().getView();
+
+				// Views which have been garbage collected are dropped on the way
+				if (targetView == view || targetView == null)
+				{
+					iterator.remove();
+				}
+			}
+
+			return targets.isEmpty();
+		}
+
+		/**
+		 * Decodes the image if it has been saved on disk. Returns false if it must be fetched.
+		 */
+		boolean decode()
+		{
+			Bitmap bitmap = entry != null ? FileUtil.getAlbumArtBitmap(context, entry, size, highQuality) : FileUtil.getAvatarBitmap(username, size, highQuality);
+
+			if (bitmap == null)
+			{
+				return false;
+			}
+
+			complete(bitmap);
+			return true;
 		}
 
-		public void execute()
+		void fetch()
 		{
 			try
 			{
-				MusicService musicService = MusicServiceFactory.getMusicService(view.getContext());
-				final boolean isAvatar = this.username != null && this.entry == null;
-				final Bitmap bitmap = this.entry != null ? musicService.getCoverArt(view.getContext(), entry, size, saveToFile, highQuality, null) : musicService.getAvatar(view.getContext(), username, size, saveToFile, highQuality, null);
+				MusicService musicService = MusicServiceFactory.getMusicService(context);
+				Bitmap bitmap = entry != null ? musicService.getCoverArt(context, entry, size, saveToFile, highQuality, null) : musicService.getAvatar(context, username, size, saveToFile, highQuality, null);
+				complete(bitmap);
+			}
+			catch (Throwable x)
+			{
+				forget(this);
+				Log.e(TAG, "Failed to download album art.", x);
+			}
+		}
 
-				if (isAvatar)
-					addImageToCache(bitmap, username, size);
-				else
-					addImageToCache(bitmap, entry, size);
+		private void complete(final Bitmap bitmap)
+		{
+			if (bitmap != null)
+			{
+				cache.put(key, bitmap);
+			}
+
+			final List<Target> targets = forget(this);
+
+			if (bitmap == null || cancelled)
+			{
+				return;
+			}
 
-				handler.post(new Runnable()
+			handler.post(new Runnable()
+			{
+				@Override
+				public void run()
 				{
-					@Override
-					public void run()
+					for (Target target : targets)
 					{
-						if (isAvatar)
+						View view = target.getView();
+
+						if (view == null)
 						{
-							setAvatarImageBitmap(view, username, bitmap, crossFade);
+							continue;
+						}
+
+						if (entry != null)
+						{
+							setImageBitmap(view, entry, bitmap, target.crossFade);
 						}
 						else
 						{
-							setImageBitmap(view, entry, bitmap, crossFade);
+							setAvatarImageBitmap(view, username, bitmap, target.crossFade);
 						}
 					}
-				});
-			}
-			catch (Throwable x)
-			{
-				Log.e(TAG, "Failed to download album art.", x);
-			}
+				}
+			});
 		}
 	}
 }
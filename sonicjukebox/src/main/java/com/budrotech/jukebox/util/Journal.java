@@ -0,0 +1,403 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+
+/**
+ * Append-only file of the changes to a store which is held in memory, such as the
+ * {@link SearchIndex} and the {@link MetadataStore}.
+ * <p/>
+ * Every put and remove is appended as one record, so that a change doesn't rewrite the whole
+ * file. When the journal has grown well beyond the live items it is compacted, that is
+ * rewritten with one record per item to a temporary file which then replaces it. Loading
+ * replays the records into the store. Should a record be cut short by a crash, or be
+ * unreadable, the file is truncated after the last record that was read, so that the
+ * records appended later are read again. The unreadable record and any after it are lost.
+ * <p/>
+ * A journal isn't thread safe; its owner calls it holding its own lock.
+ *
+ * @author Sindre Mehus
+ */
+public class Journal<T>
+{
+	private static final String TAG = Journal.class.getSimpleName();
+
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+	private static final byte RECORD_MARK = 3;
+
+	private final File file;
+	private final int formatVersion;
+	private final Store<T> store;
+	private int records;
+
+	/**
+	 * @param formatVersion Written at the start of the file. A file of any other version is
+	 *                      deleted when loaded.
+	 */
+	public Journal(File file, int formatVersion, Store<T> store)
+	{
+		this.file = file;
+		this.formatVersion = formatVersion;
+		this.store = store;
+	}
+
+	/**
+	 * Replays the journal into the store.
+	 */
+	public void load()
+	{
+		if (!file.isFile())
+		{
+			return;
+		}
+
+		CountingInputStream counter = null;
+		DataInputStream in = null;
+		long complete = 0;
+
+		try
+		{
+			counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+			in = new DataInputStream(counter);
+
+			if (in.readInt() != formatVersion)
+			{
+				Util.close(in);
+				in = null;
+				Util.delete(file);
+				return;
+			}
+
+			while (true)
+			{
+				byte type;
+
+				try
+				{
+					type = in.readByte();
+				}
+				catch (EOFException x)
+				{
+					break;
+				}
+
+				if (type == RECORD_PUT)
+				{
+					store.onPut(store.read(in));
+				}
+				else if (type == RECORD_REMOVE)
+				{
+					store.onRemove(in.readUTF());
+				}
+				else if (type == RECORD_MARK)
+				{
+					store.onMark();
+				}
+				else
+				{
+					throw new IOException(String.format("Unknown record %d", type));
+				}
+
+				records++;
+				complete = counter.getCount();
+			}
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to read %s after %d records", file, records), x);
+			Util.close(in);
+			in = null;
+			truncate(complete);
+		}
+		finally
+		{
+			Util.close(in);
+		}
+	}
+
+	/**
+	 * Drops what follows the last complete record, or the whole file if not even the format
+	 * version could be read.
+	 */
+	private void truncate(long length)
+	{
+		if (length < 4)
+		{
+			Util.delete(file);
+			return;
+		}
+
+		RandomAccessFile raf = null;
+
+		try
+		{
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(length);
+			Log.i(TAG, String.format("Truncated %s to %d bytes", file, length));
+		}
+		catch (IOException x)
+		{
+			Log.w(TAG, String.format("Failed to truncate %s", file), x);
+			Util.delete(file);
+		}
+		finally
+		{
+			Util.close(raf);
+		}
+	}
+
+	/**
+	 * Appends an item which has been put in the store.
+	 */
+	public void appendPut(T item)
+	{
+		DataOutputStream out = open();
+
+		try
+		{
+			if (out != null)
+			{
+				out.writeByte(RECORD_PUT);
+				store.write(out, item);
+			}
+		}
+		catch (IOException x)
+		{
+			Log.w(TAG, String.format("Failed to append to %s", file), x);
+		}
+		finally
+		{
+			close(out);
+		}
+	}
+
+	/**
+	 * Appends the key of an item which has been removed from the store.
+	 */
+	public void appendRemove(String key)
+	{
+		DataOutputStream out = open();
+
+		try
+		{
+			if (out != null)
+			{
+				out.writeByte(RECORD_REMOVE);
+				out.writeUTF(key);
+			}
+		}
+		catch (IOException x)
+		{
+			Log.w(TAG, String.format("Failed to append to %s", file), x);
+		}
+		finally
+		{
+			close(out);
+		}
+	}
+
+	/**
+	 * Rewrites the journal with one record per live item, followed by a mark if the store is
+	 * marked.
+	 */
+	public void compact()
+	{
+		Collection<T> live = store.compact();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(formatVersion);
+
+			for (T item : live)
+			{
+				out.writeByte(RECORD_PUT);
+				store.write(out, item);
+			}
+
+			if (store.isMarked())
+			{
+				out.writeByte(RECORD_MARK);
+			}
+
+			out.close();
+			out = null;
+
+			Util.renameFile(tmp, file);
+			records = live.size();
+		}
+		catch (Throwable x)
+		{
+			Log.w(TAG, String.format("Failed to write %s", file), x);
+			Util.delete(tmp);
+		}
+		finally
+		{
+			Util.close(out);
+		}
+	}
+
+	/**
+	 * Opens the journal for appending, or writes it in full if it doesn't exist yet, in which
+	 * case null is returned as the change is already written.
+	 */
+	private DataOutputStream open()
+	{
+		if (!file.isFile())
+		{
+			compact();
+			return null;
+		}
+
+		try
+		{
+			return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		}
+		catch (IOException x)
+		{
+			Log.w(TAG, String.format("Failed to open %s", file), x);
+			return null;
+		}
+	}
+
+	private void close(DataOutputStream out)
+	{
+		if (out == null)
+		{
+			return;
+		}
+
+		Util.close(out);
+		records++;
+
+		if (records > 2 * store.size() + 100)
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Counts the bytes read, to find where the last complete record ends.
+	 */
+	private static class CountingInputStream extends FilterInputStream
+	{
+		private long count;
+
+		CountingInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		long getCount()
+		{
+			return count;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = super.read();
+
+			if (b != -1)
+			{
+				count++;
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+			int n = super.read(buffer, offset, length);
+
+			if (n > 0)
+			{
+				count += n;
+			}
+
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * The store a journal is kept for, which writes and applies the records.
+	 */
+	public interface Store<T>
+	{
+		void write(DataOutputStream out, T item) throws IOException;
+
+		T read(DataInputStream in) throws IOException;
+
+		/**
+		 * Applies a put while loading.
+		 */
+		void onPut(T item);
+
+		/**
+		 * Applies a remove while loading.
+		 */
+		void onRemove(String key);
+
+		/**
+		 * Applies a mark while loading. A mark is a record without data which the store gives
+		 * its own meaning.
+		 */
+		void onMark();
+
+		/**
+		 * Returns the number of live items.
+		 */
+		int size();
+
+		/**
+		 * Returns the live items to rewrite the journal with, after dropping anything kept
+		 * in memory only for removed items.
+		 */
+		Collection<T> compact();
+
+		boolean isMarked();
+	}
+}
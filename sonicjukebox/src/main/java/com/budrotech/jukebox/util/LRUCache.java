@@ -19,84 +19,252 @@
 package com.budrotech.jukebox.util;
 
 import java.lang.ref.SoftReference;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * A least-recently-used cache with constant time get, put and eviction.
+ * <p/>
+ * The capacity is expressed in units of a {@link Weigher}, which by default counts
+ * every entry as one. Values are held through soft references, so the garbage collector
+ * may still reclaim them under memory pressure. The cache can optionally be split into
+ * independently locked segments to reduce contention between threads; each segment then
+ * holds an equal share of the capacity.
+ *
  * @author Sindre Mehus
  */
 public class LRUCache<K, V>
 {
-
-	private final int capacity;
-	private final Map<K, TimestampedValue> map;
+	private final List<Segment> segments;
+	private final Weigher<? super K, ? super V> weigher;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
 
 	public LRUCache(int capacity)
 	{
-		map = new HashMap<K, TimestampedValue>(capacity);
-		this.capacity = capacity;
+		this(capacity, 1, null);
 	}
 
-	public synchronized V get(K key)
+	public LRUCache(int capacity, Weigher<? super K, ? super V> weigher)
 	{
-		TimestampedValue value = map.get(key);
+		this(capacity, 1, weigher);
+	}
 
-		V result = null;
-		if (value != null)
+	public LRUCache(int capacity, int segmentCount, Weigher<? super K, ? super V> weigher)
+	{
+		if (segmentCount < 1)
 		{
-			value.updateTimestamp();
-			result = value.getValue();
+			throw new IllegalArgumentException("segmentCount must be positive");
 		}
 
-		return result;
+		this.weigher = weigher;
+		segments = new ArrayList<Segment>(segmentCount);
+
+		int segmentCapacity = Math.max(1, capacity / segmentCount);
+
+		for (int i = 0; i < segmentCount; i++)
+		{
+			segments.add(new Segment(segmentCapacity));
+		}
 	}
 
-	public synchronized void put(K key, V value)
+	public V get(K key)
 	{
-		if (map.size() >= capacity)
+		V value = segmentFor(key).get(key);
+
+		if (value == null)
+		{
+			missCount.incrementAndGet();
+		}
+		else
 		{
-			removeOldest();
+			hitCount.incrementAndGet();
 		}
-		map.put(key, new TimestampedValue(value));
+
+		return value;
+	}
+
+	public void put(K key, V value)
+	{
+		segmentFor(key).put(key, value);
+	}
+
+	public void remove(K key)
+	{
+		segmentFor(key).remove(key);
 	}
 
 	public void clear()
 	{
-		map.clear();
+		for (Segment segment : segments)
+		{
+			segment.clear();
+		}
+	}
+
+	public long getWeight()
+	{
+		long weight = 0;
+
+		for (Segment segment : segments)
+		{
+			weight += segment.getWeight();
+		}
+
+		return weight;
+	}
+
+	public long getHitCount()
+	{
+		return hitCount.get();
+	}
+
+	public long getMissCount()
+	{
+		return missCount.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictionCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("LRUCache[weight=%d, hits=%d, misses=%d, evictions=%d]", getWeight(), getHitCount(), getMissCount(), getEvictionCount());
+	}
+
+	private Segment segmentFor(K key)
+	{
+		if (segments.size() == 1)
+		{
+			return segments.get(0);
+		}
+
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return segments.get((hash & 0x7fffffff) % segments.size());
+	}
+
+	private int weigh(K key, V value)
+	{
+		return weigher == null ? 1 : Math.max(1, weigher.weigh(key, value));
+	}
+
+	/**
+	 * Calculates the cost of keeping a value in the cache.
+	 */
+	public interface Weigher<K, V>
+	{
+		int weigh(K key, V value);
 	}
 
-	private void removeOldest()
+	private final class Segment
 	{
-		K oldestKey = null;
-		long oldestTimestamp = Long.MAX_VALUE;
+		private final int capacity;
+		private final LinkedHashMap<K, WeightedValue> map = new LinkedHashMap<K, WeightedValue>(16, 0.75F, true);
+		private long weight;
+
+		Segment(int capacity)
+		{
+			this.capacity = capacity;
+		}
 
-		for (Map.Entry<K, TimestampedValue> entry : map.entrySet())
+		synchronized V get(K key)
 		{
-			K key = entry.getKey();
-			TimestampedValue value = entry.getValue();
-			if (value.getTimestamp() < oldestTimestamp)
+			WeightedValue value = map.get(key);
+
+			if (value == null)
 			{
-				oldestTimestamp = value.getTimestamp();
-				oldestKey = key;
+				return null;
 			}
+
+			V result = value.getValue();
+
+			if (result == null)
+			{
+				// Reclaimed by the garbage collector
+				map.remove(key);
+				weight -= value.getWeight();
+			}
+
+			return result;
 		}
 
-		if (oldestKey != null)
+		synchronized void put(K key, V value)
 		{
-			map.remove(oldestKey);
+			WeightedValue previous;
+
+			if (value == null)
+			{
+				previous = map.remove(key);
+			}
+			else
+			{
+				WeightedValue weightedValue = new WeightedValue(value, weigh(key, value));
+				previous = map.put(key, weightedValue);
+				weight += weightedValue.getWeight();
+			}
+
+			if (previous != null)
+			{
+				weight -= previous.getWeight();
+			}
+
+			trimToCapacity();
+		}
+
+		synchronized void remove(K key)
+		{
+			WeightedValue previous = map.remove(key);
+
+			if (previous != null)
+			{
+				weight -= previous.getWeight();
+			}
+		}
+
+		synchronized void clear()
+		{
+			map.clear();
+			weight = 0;
+		}
+
+		synchronized long getWeight()
+		{
+			return weight;
+		}
+
+		private void trimToCapacity()
+		{
+			Iterator<Map.Entry<K, WeightedValue>> iterator = map.entrySet().iterator();
+
+			// Always keep the most recently added entry, even if it alone exceeds the capacity
+			while (weight > capacity && map.size() > 1 && iterator.hasNext())
+			{
+				WeightedValue eldest = iterator.next().getValue();
+				iterator.remove();
+				weight -= eldest.getWeight();
+				evictionCount.incrementAndGet();
+			}
 		}
 	}
 
-	private final class TimestampedValue
+	private final class WeightedValue
 	{
-
 		private final SoftReference<V> value;
-		private long timestamp;
+		private final int weight;
 
-		public TimestampedValue(V value)
+		public WeightedValue(V value, int weight)
 		{
 			this.value = new SoftReference<V>(value);
-			updateTimestamp();
+			this.weight = weight;
 		}
 
 		public V getValue()
@@ -104,14 +272,9 @@ public class LRUCache<K, V>
 			return value.get();
 		}
 
-		public long getTimestamp()
-		{
-			return timestamp;
-		}
-
-		public void updateTimestamp()
+		public int getWeight()
 		{
-			timestamp = System.currentTimeMillis();
+			return weight;
 		}
 	}
-}
\ No newline at end of file
+}
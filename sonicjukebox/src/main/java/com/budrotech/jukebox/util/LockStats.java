@@ -0,0 +1,136 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Measures how long operations wait for a lock and how long they hold it.
+ * <p/>
+ * Call {@link #requested} before entering the lock, {@link #acquired} first thing inside
+ * it, and {@link #released} before leaving it. Operations which wait for or hold the lock
+ * longer than {@link #SLOW_MILLIS} are logged as they happen; the maximum and total times
+ * per operation are available from {@link #toString()}.
+ *
+ * @author Sindre Mehus
+ */
+public class LockStats
+{
+	private static final String TAG = LockStats.class.getSimpleName();
+	private static final long SLOW_MILLIS = 50L;
+
+	private final String lockName;
+	private final Map<String, Times> times = new TreeMap<String, Times>();
+
+	public LockStats(String lockName)
+	{
+		this.lockName = lockName;
+	}
+
+	public long requested()
+	{
+		return SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Records the time spent waiting since {@link #requested}.
+	 *
+	 * @return The time the lock was acquired, to be passed to {@link #released}.
+	 */
+	public long acquired(String operation, long requestedAt)
+	{
+		long now = SystemClock.elapsedRealtime();
+		long waited = now - requestedAt;
+
+		if (waited > SLOW_MILLIS)
+		{
+			Log.w(TAG, String.format("%s waited %d ms for %s", operation, waited, lockName));
+		}
+
+		synchronized (times)
+		{
+			Times operationTimes = getTimes(operation);
+			operationTimes.count++;
+			operationTimes.totalWait += waited;
+			operationTimes.maxWait = Math.max(operationTimes.maxWait, waited);
+		}
+
+		return now;
+	}
+
+	public void released(String operation, long acquiredAt)
+	{
+		long held = SystemClock.elapsedRealtime() - acquiredAt;
+
+		if (held > SLOW_MILLIS)
+		{
+			Log.w(TAG, String.format("%s held %s for %d ms", operation, lockName, held));
+		}
+
+		synchronized (times)
+		{
+			Times operationTimes = getTimes(operation);
+			operationTimes.totalHold += held;
+			operationTimes.maxHold = Math.max(operationTimes.maxHold, held);
+		}
+	}
+
+	private Times getTimes(String operation)
+	{
+		Times operationTimes = times.get(operation);
+
+		if (operationTimes == null)
+		{
+			operationTimes = new Times();
+			times.put(operation, operationTimes);
+		}
+
+		return operationTimes;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder(lockName);
+
+		synchronized (times)
+		{
+			for (Map.Entry<String, Times> entry : times.entrySet())
+			{
+				Times operationTimes = entry.getValue();
+				builder.append(String.format("\n  %s: %d times, wait %d ms (max %d), hold %d ms (max %d)", entry.getKey(), operationTimes.count, operationTimes.totalWait, operationTimes.maxWait, operationTimes.totalHold, operationTimes.maxHold));
+			}
+		}
+
+		return builder.toString();
+	}
+
+	private static class Times
+	{
+		private long count;
+		private long totalWait;
+		private long maxWait;
+		private long totalHold;
+		private long maxHold;
+	}
+}
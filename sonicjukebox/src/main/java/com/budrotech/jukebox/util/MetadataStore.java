@@ -0,0 +1,343 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent store of the tags of the song files in the music cache.
+ * <p/>
+ * The entry the server returned for a song is stored when it is downloaded, and the tags
+ * read from any other file are stored the first time it is browsed offline, so that the
+ * tags of a file are only parsed once. Every record is stamped with the size and
+ * modification date of the file, and is ignored once the file has changed. Songs are
+ * stored by their saved name, so that the record survives pinning and unpinning.
+ * <p/>
+ * Like the {@link SearchIndex}, changes are kept in a {@link Journal} which is loaded in
+ * the background. A change of the modification date alone, as when a song is played, is
+ * kept in memory until the journal is next compacted.
+ *
+ * @author Sindre Mehus
+ */
+public class MetadataStore
+{
+	private static final String TAG = MetadataStore.class.getSimpleName();
+	private static final String FILE_NAME = "metadata.bin";
+	private static final int FORMAT_VERSION = 1;
+
+	private static MetadataStore instance;
+
+	private final Map<String, Record> records = new HashMap<String, Record>();
+	private final Journal<Record> journal;
+	private final List<Runnable> pending = new ArrayList<Runnable>();
+	private volatile boolean loaded;
+
+	private MetadataStore(Context context)
+	{
+		journal = new Journal<Record>(new File(context.getCacheDir(), FILE_NAME), FORMAT_VERSION, new RecordStore());
+	}
+
+	/**
+	 * Returns the store at once. The first call starts loading the journal in the
+	 * background. Changes made meanwhile are applied when it is loaded, while reads wait for
+	 * it.
+	 */
+	public static synchronized MetadataStore getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new MetadataStore(context.getApplicationContext());
+			instance.startLoading();
+		}
+
+		return instance;
+	}
+
+	private void startLoading()
+	{
+		Thread thread = new Thread("MetadataStoreLoader")
+		{
+			@Override
+			public void run()
+			{
+				synchronized (MetadataStore.this)
+				{
+					long start = System.currentTimeMillis();
+					journal.load();
+					loaded = true;
+
+					for (Runnable change : pending)
+					{
+						change.run();
+					}
+
+					pending.clear();
+					MetadataStore.this.notifyAll();
+					Log.i(TAG, String.format("Loaded metadata store with %d songs in %d ms", records.size(), System.currentTimeMillis() - start));
+				}
+			}
+		};
+
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Waits for the loader. Must be called holding the lock.
+	 */
+	private void awaitLoaded()
+	{
+		boolean interrupted = false;
+
+		while (!loaded)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException x)
+			{
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the stored tags of the file, or null if there are none or the file has changed
+	 * since they were stored.
+	 *
+	 * @param file The saved or complete file of the song.
+	 */
+	public synchronized MusicDirectory.Entry get(File file)
+	{
+		awaitLoaded();
+		Record record = records.get(getKey(file));
+
+		if (record == null || record.size != file.length() || record.lastModified != file.lastModified())
+		{
+			return null;
+		}
+
+		return record.entry;
+	}
+
+	/**
+	 * Stores the tags of the file, stamped with its current size and modification date.
+	 *
+	 * @param file The saved or complete file of the song.
+	 */
+	public synchronized void put(final File file, final MusicDirectory.Entry entry)
+	{
+		if (!loaded)
+		{
+			pending.add(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					put(file, entry);
+				}
+			});
+			return;
+		}
+
+		String key = getKey(file);
+		Record record = new Record(key, file.length(), file.lastModified(), entry);
+		Record previous = records.get(key);
+		records.put(key, record);
+
+		if (previous != null && previous.entry == entry && previous.size == record.size)
+		{
+			// The same tags once more, so at most the file was touched. Should the process die
+			// before the journal is compacted, the record is written again when next put.
+			return;
+		}
+
+		journal.appendPut(record);
+	}
+
+	/**
+	 * Forgets the tags of the song.
+	 *
+	 * @param file The saved or complete file of the song.
+	 */
+	public synchronized void remove(final File file)
+	{
+		if (!loaded)
+		{
+			pending.add(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					remove(file);
+				}
+			});
+			return;
+		}
+
+		String key = getKey(file);
+
+		if (records.remove(key) != null)
+		{
+			journal.appendRemove(key);
+		}
+	}
+
+	/**
+	 * Forgets the tags of all songs which aren't among the given files, as found by a full
+	 * scan of the music directory.
+	 */
+	public synchronized void reconcile(Collection<File> files)
+	{
+		awaitLoaded();
+		Set<String> keys = new HashSet<String>(files.size());
+
+		for (File file : files)
+		{
+			keys.add(getKey(file));
+		}
+
+		int count = records.size();
+		Iterator<String> iterator = records.keySet().iterator();
+
+		while (iterator.hasNext())
+		{
+			if (!keys.contains(iterator.next()))
+			{
+				iterator.remove();
+			}
+		}
+
+		if (records.size() != count)
+		{
+			journal.compact();
+		}
+
+		Log.i(TAG, String.format("Reconciled metadata store with %d songs, %d removed", records.size(), count - records.size()));
+	}
+
+	private static String getKey(File file)
+	{
+		return SearchIndex.getSongFile(file).getPath();
+	}
+
+	private static void writeRecord(DataOutputStream out, Record record) throws IOException
+	{
+		out.writeUTF(record.key);
+		out.writeLong(record.size);
+		out.writeLong(record.lastModified);
+		EntryCodec.writeEntry(out, record.entry);
+	}
+
+	private static Record readRecord(DataInputStream in) throws IOException
+	{
+		return new Record(in.readUTF(), in.readLong(), in.readLong(), EntryCodec.readEntry(in));
+	}
+
+	/**
+	 * Writes the records to the journal and replays it.
+	 */
+	private class RecordStore implements Journal.Store<Record>
+	{
+		@Override
+		public void write(DataOutputStream out, Record record) throws IOException
+		{
+			writeRecord(out, record);
+		}
+
+		@Override
+		public Record read(DataInputStream in) throws IOException
+		{
+			return readRecord(in);
+		}
+
+		@Override
+		public void onPut(Record record)
+		{
+			records.put(record.key, record);
+		}
+
+		@Override
+		public void onRemove(String key)
+		{
+			records.remove(key);
+		}
+
+		@Override
+		public void onMark()
+		{
+		}
+
+		@Override
+		public int size()
+		{
+			return records.size();
+		}
+
+		@Override
+		public Collection<Record> compact()
+		{
+			return records.values();
+		}
+
+		@Override
+		public boolean isMarked()
+		{
+			return false;
+		}
+	}
+
+	private static class Record
+	{
+		private final String key;
+		private final long size;
+		private final long lastModified;
+		private final MusicDirectory.Entry entry;
+
+		Record(String key, long size, long lastModified, MusicDirectory.Entry entry)
+		{
+			this.key = key;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.entry = entry;
+		}
+	}
+}
@@ -0,0 +1,888 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Persistent full-text index of the downloaded songs, for searching in offline mode.
+ * <p/>
+ * Every song is indexed by the words of its artist, album, title and genre, and every word
+ * of a query must match the start of a word of the song. Songs are ranked by where the
+ * words matched and whether they matched whole words. Artists and albums are found through
+ * the songs in their directories.
+ * <p/>
+ * {@link com.budrotech.jukebox.service.DownloadFile} adds a song with the tags from the
+ * server as soon as it is downloaded. Additions and removals are kept in a {@link Journal},
+ * so that a download doesn't rewrite the whole index. Songs deleted behind the back of the index are dropped
+ * by {@link #reconcile}, and when found missing by a search.
+ *
+ * @author Sindre Mehus
+ */
+public class SearchIndex
+{
+	private static final String TAG = SearchIndex.class.getSimpleName();
+	private static final String FILE_NAME = "searchindex.bin";
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int FIELD_ARTIST = 0;
+	private static final int FIELD_ALBUM = 1;
+	private static final int FIELD_TITLE = 2;
+	private static final int FIELD_GENRE = 3;
+	private static final int[] FIELD_WEIGHTS = {2, 2, 3, 1};
+
+	private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+	private static SearchIndex instance;
+
+	private final Journal<Song> journal;
+	private final List<Song> songs = new ArrayList<Song>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final TreeMap<String, Postings> words = new TreeMap<String, Postings>();
+	private final List<Runnable> pending = new ArrayList<Runnable>();
+	private int removed;
+	private boolean reconciled;
+	private volatile boolean loaded;
+
+	private SearchIndex(Context context)
+	{
+		journal = new Journal<Song>(new File(context.getCacheDir(), FILE_NAME), FORMAT_VERSION, new SongStore());
+	}
+
+	/**
+	 * Returns the index at once. The first call starts loading the journal in the background.
+	 * Songs added or removed meanwhile are applied when it is loaded, while searching and
+	 * reconciling wait for it, so callers on the UI thread should check {@link #isLoaded}.
+	 */
+	public static synchronized SearchIndex getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new SearchIndex(context.getApplicationContext());
+			instance.startLoading();
+		}
+
+		return instance;
+	}
+
+	private void startLoading()
+	{
+		Thread thread = new Thread("SearchIndexLoader")
+		{
+			@Override
+			public void run()
+			{
+				synchronized (SearchIndex.this)
+				{
+					long start = System.currentTimeMillis();
+					journal.load();
+					loaded = true;
+
+					for (Runnable change : pending)
+					{
+						change.run();
+					}
+
+					pending.clear();
+					SearchIndex.this.notifyAll();
+					Log.i(TAG, String.format("Loaded search index with %d songs in %d ms", ids.size(), System.currentTimeMillis() - start));
+				}
+			}
+		};
+
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Waits for the loader, so that nothing is read from a half loaded index. Must be called
+	 * holding the lock.
+	 */
+	private void awaitLoaded()
+	{
+		boolean interrupted = false;
+
+		while (!loaded)
+		{
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException x)
+			{
+				interrupted = true;
+			}
+		}
+
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns false while the journal is still being loaded. Doesn't block.
+	 */
+	public boolean isLoaded()
+	{
+		return loaded;
+	}
+
+	/**
+	 * Returns the file a song is indexed by, that is the name of a saved song, given the
+	 * name of its saved or its complete file.
+	 */
+	public static File getSongFile(File file)
+	{
+		return new File(file.getParent(), file.getName().replace(".complete", ""));
+	}
+
+	/**
+	 * Returns false until the index has been built from a scan of the file system.
+	 */
+	public synchronized boolean isReconciled()
+	{
+		awaitLoaded();
+		return reconciled;
+	}
+
+	/**
+	 * Indexes a downloaded song, or updates it if its tags have changed.
+	 *
+	 * @param songFile The file of the song when saved.
+	 */
+	public synchronized void add(final File songFile, final MusicDirectory.Entry entry)
+	{
+		if (!loaded)
+		{
+			pending.add(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					add(songFile, entry);
+				}
+			});
+			return;
+		}
+
+		Song song = new Song(songFile.getPath(), entry.getArtist(), entry.getAlbum(), entry.getTitle(), entry.getGenre());
+
+		if (put(song))
+		{
+			journal.appendPut(song);
+		}
+	}
+
+	public synchronized void remove(final File songFile)
+	{
+		if (!loaded)
+		{
+			pending.add(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					remove(songFile);
+				}
+			});
+			return;
+		}
+
+		String path = songFile.getPath();
+
+		if (delete(path))
+		{
+			journal.appendRemove(path);
+		}
+	}
+
+	/**
+	 * Makes the index hold exactly the given songs, as found by a full scan of the music
+	 * directory. Songs which are not indexed yet are indexed by their file and directory
+	 * names. Partial files are ignored.
+	 */
+	public synchronized void reconcile(Collection<File> files)
+	{
+		awaitLoaded();
+		Set<String> paths = new HashSet<String>();
+
+		for (File file : files)
+		{
+			String name = file.getName();
+
+			if (name.endsWith(".partial") || name.contains(".partial.") || name.equals(Constants.ALBUM_ART_FILE))
+			{
+				continue;
+			}
+
+			File songFile = getSongFile(file);
+			String path = songFile.getPath();
+			paths.add(path);
+
+			if (!ids.containsKey(path))
+			{
+				File album = songFile.getParentFile();
+				File artist = album.getParentFile();
+				put(new Song(path, artist.getName(), album.getName(), FileUtil.getBaseName(songFile.getName()), null));
+			}
+		}
+
+		for (Song song : new ArrayList<Song>(songs))
+		{
+			if (song != null && !paths.contains(song.path))
+			{
+				delete(song.path);
+			}
+		}
+
+		reconciled = true;
+		journal.compact();
+		Log.i(TAG, String.format("Reconciled search index with %d songs", ids.size()));
+	}
+
+	/**
+	 * Finds the best matching artists, albums and songs.
+	 */
+	public synchronized Result search(String query, int artistCount, int albumCount, int songCount)
+	{
+		awaitLoaded();
+		List<String> queryWords = tokenize(query);
+		Result result = new Result();
+
+		if (queryWords.isEmpty())
+		{
+			return result;
+		}
+
+		List<Match> matches = match(queryWords);
+		int n = queryWords.size();
+		Map<String, Hit> artists = new HashMap<String, Hit>();
+		Map<String, Hit> albums = new HashMap<String, Hit>();
+
+		for (Match match : matches)
+		{
+			if (match.artistWords == n || (match.albumOrArtistWords == n && match.albumWords > 0))
+			{
+				File albumDir = new File(songs.get(match.id).path).getParentFile();
+				File artistDir = albumDir.getParentFile();
+
+				if (match.artistWords == n)
+				{
+					addScore(artists, new Hit(artistDir, artistDir.getName(), null, null, null, match.artistScore));
+				}
+
+				if (match.albumOrArtistWords == n && match.albumWords > 0)
+				{
+					addScore(albums, new Hit(albumDir, artistDir.getName(), albumDir.getName(), null, null, match.albumScore));
+				}
+			}
+		}
+
+		// Hits are only created for the songs returned, which are checked for existence
+		Collections.sort(matches, Match.BY_SCORE);
+		List<String> missing = new ArrayList<String>();
+
+		for (Match match : matches)
+		{
+			if (result.songs.size() >= songCount)
+			{
+				break;
+			}
+
+			Song song = songs.get(match.id);
+			File songFile = new File(song.path);
+			File file = songFile.exists() ? songFile : getCompleteFile(songFile);
+
+			if (file.exists())
+			{
+				result.songs.add(new Hit(file, song.artist, song.album, song.title, song.genre, match.score));
+			}
+			else
+			{
+				missing.add(song.path);
+			}
+		}
+
+		result.artists.addAll(top(artists.values(), artistCount));
+		result.albums.addAll(top(albums.values(), albumCount));
+
+		for (String path : missing)
+		{
+			remove(new File(path));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Finds the songs which match every query word, and scores them.
+	 */
+	private List<Match> match(List<String> queryWords)
+	{
+		Match[] bySong = new Match[songs.size()];
+		List<Match> matches = new ArrayList<Match>();
+
+		for (int q = 0; q < queryWords.size(); q++)
+		{
+			String queryWord = queryWords.get(q);
+
+			for (Map.Entry<String, Postings> entry : words.subMap(queryWord, true, queryWord + Character.MAX_VALUE, false).entrySet())
+			{
+				boolean exact = entry.getKey().equals(queryWord);
+				Postings postings = entry.getValue();
+
+				for (int i = 0; i < postings.size; i++)
+				{
+					int posting = postings.ids[i];
+					int id = posting >>> 2;
+					Match match = bySong[id];
+
+					if (match == null)
+					{
+						// Only the first word adds songs, the others can only narrow them down
+						if (q > 0 || songs.get(id) == null)
+						{
+							continue;
+						}
+
+						match = new Match(id);
+						bySong[id] = match;
+						matches.add(match);
+					}
+
+					match.add(q, posting & 3, exact);
+				}
+			}
+
+			// Drop the songs which didn't match this word
+			List<Match> remaining = new ArrayList<Match>(matches.size());
+
+			for (Match match : matches)
+			{
+				if (match.word == q)
+				{
+					match.end();
+					remaining.add(match);
+				}
+				else
+				{
+					bySong[match.id] = null;
+				}
+			}
+
+			matches = remaining;
+		}
+
+		return matches;
+	}
+
+	private static void addScore(Map<String, Hit> hits, Hit hit)
+	{
+		String key = hit.file.getPath();
+		Hit previous = hits.get(key);
+
+		if (previous == null || previous.score < hit.score)
+		{
+			hits.put(key, hit);
+		}
+	}
+
+	private static List<Hit> top(Collection<Hit> hits, int count)
+	{
+		List<Hit> result = new ArrayList<Hit>();
+
+		for (Hit hit : hits)
+		{
+			if (hit.file.exists())
+			{
+				result.add(hit);
+			}
+		}
+
+		Collections.sort(result, Hit.BY_SCORE);
+		return result.size() > count ? result.subList(0, count) : result;
+	}
+
+	/**
+	 * Returns the complete file of a song, given the name of its saved file.
+	 */
+	public static File getCompleteFile(File songFile)
+	{
+		String name = songFile.getName();
+		return new File(songFile.getParent(), String.format("%s.complete.%s", FileUtil.getBaseName(name), FileUtil.getExtension(name)));
+	}
+
+	/**
+	 * Splits text into lower case words without accents.
+	 */
+	private static List<String> tokenize(String text)
+	{
+		List<String> result = new ArrayList<String>();
+
+		if (text == null)
+		{
+			return result;
+		}
+
+		String normalized = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.US);
+		int start = -1;
+
+		for (int i = 0; i <= normalized.length(); i++)
+		{
+			boolean letter = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+
+			if (letter && start == -1)
+			{
+				start = i;
+			}
+			else if (!letter && start != -1)
+			{
+				result.add(normalized.substring(start, i));
+				start = -1;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Adds or replaces a song in memory.
+	 *
+	 * @return false if the song was already indexed as it is.
+	 */
+	private boolean put(Song song)
+	{
+		Integer existing = ids.get(song.path);
+
+		if (existing != null)
+		{
+			if (song.equals(songs.get(existing)))
+			{
+				return false;
+			}
+
+			delete(song.path);
+		}
+
+		int id = songs.size();
+		songs.add(song);
+		ids.put(song.path, id);
+
+		addWords(id, FIELD_ARTIST, song.artist);
+		addWords(id, FIELD_ALBUM, song.album);
+		addWords(id, FIELD_TITLE, song.title);
+		addWords(id, FIELD_GENRE, song.genre);
+		return true;
+	}
+
+	private void addWords(int id, int field, String text)
+	{
+		for (String word : new HashSet<String>(tokenize(text)))
+		{
+			Postings postings = words.get(word);
+
+			if (postings == null)
+			{
+				postings = new Postings();
+				words.put(word, postings);
+			}
+
+			postings.add(id << 2 | field);
+		}
+	}
+
+	/**
+	 * Removes a song in memory. Its postings are left behind until the index is compacted.
+	 */
+	private boolean delete(String path)
+	{
+		Integer id = ids.remove(path);
+
+		if (id == null)
+		{
+			return false;
+		}
+
+		songs.set(id, null);
+		removed++;
+		return true;
+	}
+
+	private static void writeSong(DataOutputStream out, Song song) throws IOException
+	{
+		out.writeUTF(song.path);
+		writeString(out, song.artist);
+		writeString(out, song.album);
+		writeString(out, song.title);
+		writeString(out, song.genre);
+	}
+
+	private static Song readSong(DataInputStream in) throws IOException
+	{
+		return new Song(in.readUTF(), readString(in), readString(in), readString(in), readString(in));
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		out.writeBoolean(s != null);
+
+		if (s != null)
+		{
+			out.writeUTF(s);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static boolean equal(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Writes the songs to the journal and replays it. Compacting drops the removed songs and
+	 * renumbers the rest, and the mark records that the index has been reconciled.
+	 */
+	private class SongStore implements Journal.Store<Song>
+	{
+		@Override
+		public void write(DataOutputStream out, Song song) throws IOException
+		{
+			writeSong(out, song);
+		}
+
+		@Override
+		public Song read(DataInputStream in) throws IOException
+		{
+			return readSong(in);
+		}
+
+		@Override
+		public void onPut(Song song)
+		{
+			put(song);
+		}
+
+		@Override
+		public void onRemove(String path)
+		{
+			delete(path);
+		}
+
+		@Override
+		public void onMark()
+		{
+			reconciled = true;
+		}
+
+		@Override
+		public int size()
+		{
+			return ids.size();
+		}
+
+		@Override
+		public Collection<Song> compact()
+		{
+			List<Song> live = new ArrayList<Song>(ids.size());
+
+			for (Song song : songs)
+			{
+				if (song != null)
+				{
+					live.add(song);
+				}
+			}
+
+			if (removed > 0)
+			{
+				songs.clear();
+				ids.clear();
+				words.clear();
+				removed = 0;
+
+				for (Song song : live)
+				{
+					put(song);
+				}
+			}
+
+			return live;
+		}
+
+		@Override
+		public boolean isMarked()
+		{
+			return reconciled;
+		}
+	}
+
+	private static class Song
+	{
+		private final String path;
+		private final String artist;
+		private final String album;
+		private final String title;
+		private final String genre;
+
+		Song(String path, String artist, String album, String title, String genre)
+		{
+			this.path = path;
+			this.artist = artist;
+			this.album = album;
+			this.title = title;
+			this.genre = genre;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Song))
+			{
+				return false;
+			}
+
+			Song other = (Song) o;
+			return path.equals(other.path) && equal(artist, other.artist) && equal(album, other.album) && equal(title, other.title) && equal(genre, other.genre);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return path.hashCode();
+		}
+	}
+
+	/**
+	 * The ids of the songs with a word, each shifted left by two and combined with the field
+	 * the word is in.
+	 */
+	private static class Postings
+	{
+		private int[] ids = new int[2];
+		private int size;
+
+		void add(int id)
+		{
+			if (size == ids.length)
+			{
+				int[] grown = new int[size * 2];
+				System.arraycopy(ids, 0, grown, 0, size);
+				ids = grown;
+			}
+
+			ids[size++] = id;
+		}
+	}
+
+	/**
+	 * How a song matched the query words so far.
+	 */
+	private static class Match
+	{
+		private static final Comparator<Match> BY_SCORE = new Comparator<Match>()
+		{
+			@Override
+			public int compare(Match a, Match b)
+			{
+				if (a.score != b.score)
+				{
+					return a.score > b.score ? -1 : 1;
+				}
+
+				return a.id < b.id ? -1 : a.id == b.id ? 0 : 1;
+			}
+		};
+
+		private final int id;
+		private int word = -1;
+		private int fields;
+		private boolean exact;
+		private int score;
+		private int artistScore;
+		private int albumScore;
+		private int artistWords;
+		private int albumWords;
+		private int albumOrArtistWords;
+		private int wordScore;
+
+		Match(int id)
+		{
+			this.id = id;
+		}
+
+		void add(int q, int field, boolean exact)
+		{
+			if (word != q)
+			{
+				word = q;
+				fields = 0;
+				wordScore = 0;
+				this.exact = false;
+			}
+
+			fields |= 1 << field;
+			this.exact |= exact;
+			wordScore = Math.max(wordScore, FIELD_WEIGHTS[field] * (exact ? 2 : 1));
+		}
+
+		/**
+		 * Adds up the matches of the current query word.
+		 */
+		void end()
+		{
+			int wordWeight = exact ? 2 : 1;
+			score += wordScore;
+
+			if ((fields & 1 << FIELD_ARTIST) != 0)
+			{
+				artistWords++;
+				artistScore += wordWeight;
+			}
+
+			if ((fields & 1 << FIELD_ALBUM) != 0)
+			{
+				albumWords++;
+			}
+
+			if ((fields & (1 << FIELD_ARTIST | 1 << FIELD_ALBUM)) != 0)
+			{
+				albumOrArtistWords++;
+				albumScore += wordWeight;
+			}
+		}
+	}
+
+	/**
+	 * A song, album or artist found by a search.
+	 */
+	public static class Hit
+	{
+		private static final Comparator<Hit> BY_SCORE = new Comparator<Hit>()
+		{
+			@Override
+			public int compare(Hit a, Hit b)
+			{
+				if (a.score != b.score)
+				{
+					return a.score > b.score ? -1 : 1;
+				}
+
+				return a.file.getPath().compareTo(b.file.getPath());
+			}
+		};
+
+		private final File file;
+		private final String artist;
+		private final String album;
+		private final String title;
+		private final String genre;
+		private final int score;
+
+		Hit(File file, String artist, String album, String title, String genre, int score)
+		{
+			this.file = file;
+			this.artist = artist;
+			this.album = album;
+			this.title = title;
+			this.genre = genre;
+			this.score = score;
+		}
+
+		/**
+		 * Returns the song file, or the directory of the album or artist.
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		public String getArtist()
+		{
+			return artist;
+		}
+
+		public String getAlbum()
+		{
+			return album;
+		}
+
+		public String getTitle()
+		{
+			return title;
+		}
+
+		public String getGenre()
+		{
+			return genre;
+		}
+
+		public int getScore()
+		{
+			return score;
+		}
+	}
+
+	public static class Result
+	{
+		private final List<Hit> artists = new ArrayList<Hit>();
+		private final List<Hit> albums = new ArrayList<Hit>();
+		private final List<Hit> songs = new ArrayList<Hit>();
+
+		public List<Hit> getArtists()
+		{
+			return artists;
+		}
+
+		public List<Hit> getAlbums()
+		{
+			return albums;
+		}
+
+		public List<Hit> getSongs()
+		{
+			return songs;
+		}
+	}
+}
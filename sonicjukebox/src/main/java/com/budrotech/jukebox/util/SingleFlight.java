@@ -0,0 +1,194 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent loads of the same key.
+ * <p/>
+ * While a load for a key is running, later callers for that key wait for its result
+ * instead of starting a load of their own. Once the load completes the key is forgotten,
+ * so the next call starts a new load.
+ * <p/>
+ * The load reports its progress to the listeners of all callers waiting for it. A caller
+ * which is interrupted stops waiting without affecting the others. Should the caller
+ * running the load be cancelled, the callers waiting for it start over, and one of them
+ * runs the load instead.
+ *
+ * @author Sindre Mehus
+ */
+public class SingleFlight<K, V>
+{
+	private final ConcurrentMap<K, Flight> inFlight = new ConcurrentHashMap<K, Flight>();
+
+	public V execute(K key, ProgressListener progressListener, Load<V> load) throws Exception
+	{
+		while (true)
+		{
+			Flight flight = new Flight(load);
+			Flight existing = inFlight.putIfAbsent(key, flight);
+
+			if (existing == null)
+			{
+				flight.addListener(progressListener);
+
+				try
+				{
+					flight.task.run();
+				}
+				finally
+				{
+					inFlight.remove(key, flight);
+				}
+
+				return get(flight);
+			}
+
+			existing.addListener(progressListener);
+
+			try
+			{
+				return get(existing);
+			}
+			catch (Exception x)
+			{
+				if (!existing.abandoned)
+				{
+					throw x;
+				}
+
+				inFlight.remove(key, existing);
+			}
+			finally
+			{
+				existing.removeListener(progressListener);
+			}
+		}
+	}
+
+	private V get(Flight flight) throws Exception
+	{
+		try
+		{
+			return flight.task.get();
+		}
+		catch (ExecutionException x)
+		{
+			Throwable cause = x.getCause();
+
+			if (cause instanceof Exception)
+			{
+				throw (Exception) cause;
+			}
+
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+
+			throw x;
+		}
+	}
+
+	public int getInFlightCount()
+	{
+		return inFlight.size();
+	}
+
+	/**
+	 * A load which reports its progress to the given listener.
+	 */
+	public interface Load<V>
+	{
+		V load(ProgressListener progressListener) throws Exception;
+	}
+
+	/**
+	 * A running load and the listeners of the callers waiting for it.
+	 */
+	private class Flight implements ProgressListener
+	{
+		private final List<ProgressListener> listeners = new CopyOnWriteArrayList<ProgressListener>();
+		private final FutureTask<V> task;
+		private volatile boolean abandoned;
+
+		Flight(final Load<V> load)
+		{
+			task = new FutureTask<V>(new Callable<V>()
+			{
+				@Override
+				public V call() throws Exception
+				{
+					try
+					{
+						return load.load(Flight.this);
+					}
+					catch (Exception x)
+					{
+						// The caller running the load was cancelled, not the load itself
+						abandoned = x instanceof InterruptedException || x instanceof InterruptedIOException || Thread.currentThread().isInterrupted();
+						throw x;
+					}
+				}
+			});
+		}
+
+		void addListener(ProgressListener listener)
+		{
+			if (listener != null)
+			{
+				listeners.add(listener);
+			}
+		}
+
+		void removeListener(ProgressListener listener)
+		{
+			if (listener != null)
+			{
+				listeners.remove(listener);
+			}
+		}
+
+		@Override
+		public void updateProgress(String message)
+		{
+			for (ProgressListener listener : listeners)
+			{
+				listener.updateProgress(message);
+			}
+		}
+
+		@Override
+		public void updateProgress(int messageId)
+		{
+			for (ProgressListener listener : listeners)
+			{
+				listener.updateProgress(messageId);
+			}
+		}
+	}
+}
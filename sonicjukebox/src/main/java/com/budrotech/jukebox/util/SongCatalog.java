@@ -0,0 +1,456 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Catalog of the songs in the music cache, which picks the songs for offline shuffle play.
+ * <p/>
+ * The songs are kept in an array, so that a song is picked and removed in constant time.
+ * In the uniform mode the array is a deck which is shuffled as it is dealt: the songs
+ * before the cursor have been picked, and every song is picked once before any is picked
+ * again. The weighted modes pick songs in proportion to their play count, starring or age,
+ * as stored in the {@link MetadataStore}, using a binary indexed tree of the weights.
+ * <p/>
+ * The catalog is built from a scan of the music directory once, and is kept up to date by
+ * {@link com.budrotech.jukebox.service.DownloadFile} and the {@link CacheCleaner}.
+ *
+ * @author Sindre Mehus
+ */
+public class SongCatalog
+{
+	private static final String TAG = SongCatalog.class.getSimpleName();
+
+	private static final double STARRED_WEIGHT = 5.0;
+	private static final double RECENT_WEIGHT = 9.0;
+	private static final double RECENT_HALF_LIFE_DAYS = 30.0;
+	private static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
+	private static SongCatalog instance;
+
+	private final Context context;
+	private final Random random = new Random();
+	private final List<String> songs = new ArrayList<String>();
+	private final Map<String, Integer> positions = new HashMap<String, Integer>();
+	private int dealt;
+	private boolean reconciled;
+	private Mode weightMode;
+	private double[] weights;
+	private double[] tree;
+
+	public enum Mode
+	{
+		UNIFORM, PLAY_COUNT, STARRED, RECENTLY_ADDED;
+
+		public static Mode fromValue(String value)
+		{
+			if ("playCount".equals(value))
+			{
+				return PLAY_COUNT;
+			}
+
+			if ("starred".equals(value))
+			{
+				return STARRED;
+			}
+
+			if ("recentlyAdded".equals(value))
+			{
+				return RECENTLY_ADDED;
+			}
+
+			return UNIFORM;
+		}
+	}
+
+	private SongCatalog(Context context)
+	{
+		this.context = context;
+	}
+
+	public static synchronized SongCatalog getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			instance = new SongCatalog(context.getApplicationContext());
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Returns false until the catalog has been built from a scan of the file system.
+	 */
+	public synchronized boolean isReconciled()
+	{
+		return reconciled;
+	}
+
+	/**
+	 * Adds a downloaded song, if it isn't in the catalog already.
+	 *
+	 * @param file The saved or complete file of the song.
+	 */
+	public synchronized void add(File file)
+	{
+		String path = SearchIndex.getSongFile(file).getPath();
+
+		if (positions.containsKey(path))
+		{
+			return;
+		}
+
+		positions.put(path, songs.size());
+		songs.add(path);
+
+		if (weightMode != null)
+		{
+			appendWeight(getWeight(file, weightMode));
+		}
+	}
+
+	/**
+	 * Removes a deleted song.
+	 *
+	 * @param file The saved or complete file of the song.
+	 */
+	public synchronized void remove(File file)
+	{
+		remove(SearchIndex.getSongFile(file).getPath());
+	}
+
+	/**
+	 * Replaces the catalog with the songs among the given files, as found by a full scan of
+	 * the music directory.
+	 */
+	public synchronized void reconcile(Collection<File> files)
+	{
+		songs.clear();
+		positions.clear();
+		dealt = 0;
+		weightMode = null;
+		weights = null;
+		tree = null;
+
+		for (File file : files)
+		{
+			String name = file.getName();
+
+			if (FileUtil.isMediaFile(file) && !name.endsWith(".partial") && !name.contains(".partial."))
+			{
+				add(file);
+			}
+		}
+
+		reconciled = true;
+		Log.i(TAG, String.format("Reconciled song catalog with %d songs", songs.size()));
+	}
+
+	/**
+	 * Picks up to the given number of different songs.
+	 *
+	 * @return The saved or complete files of the songs.
+	 */
+	public synchronized List<File> pick(int count, Mode mode)
+	{
+		return mode == Mode.UNIFORM ? deal(count) : pickWeighted(count, mode);
+	}
+
+	private List<File> deal(int count)
+	{
+		List<File> result = new ArrayList<File>(count);
+		int start = dealt;
+
+		while (result.size() < count && result.size() < songs.size())
+		{
+			if (dealt >= songs.size())
+			{
+				// Start the next round with the songs picked by this call dealt already
+				int picked = dealt - start;
+
+				for (int i = 0; i < picked; i++)
+				{
+					swap(i, start + i);
+				}
+
+				start = 0;
+				dealt = picked;
+			}
+
+			swap(dealt + random.nextInt(songs.size() - dealt), dealt);
+			String path = songs.get(dealt++);
+			addFile(result, path);
+		}
+
+		return result;
+	}
+
+	private List<File> pickWeighted(int count, Mode mode)
+	{
+		List<File> result = new ArrayList<File>(count);
+		List<String> picked = new ArrayList<String>(count);
+		List<Double> pickedWeights = new ArrayList<Double>(count);
+		buildWeights(mode);
+
+		// Every song weighs at least 1, so less than that is left only by rounding
+		while (result.size() < count && total() >= 0.5)
+		{
+			int i = find(random.nextDouble() * total());
+			String path = songs.get(i);
+			double weight = weights[i];
+
+			if (weight == 0)
+			{
+				continue;
+			}
+
+			if (addFile(result, path))
+			{
+				// Picked songs weigh nothing until the end of the call
+				picked.add(path);
+				pickedWeights.add(weight);
+				updateWeight(i, 0);
+			}
+		}
+
+		for (int j = 0; j < picked.size(); j++)
+		{
+			Integer i = positions.get(picked.get(j));
+
+			if (i != null)
+			{
+				updateWeight(i, pickedWeights.get(j));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Adds the existing file of the song, or removes the song if it has no file.
+	 */
+	private boolean addFile(List<File> result, String path)
+	{
+		File songFile = new File(path);
+		File file = songFile.exists() ? songFile : SearchIndex.getCompleteFile(songFile);
+
+		if (file.exists())
+		{
+			result.add(file);
+			return true;
+		}
+
+		remove(path);
+		return false;
+	}
+
+	/**
+	 * Removes the song by moving the last song into its place, keeping the dealt songs in
+	 * front of the cursor.
+	 */
+	private void remove(String path)
+	{
+		Integer position = positions.get(path);
+
+		if (position == null)
+		{
+			return;
+		}
+
+		int i = position;
+
+		if (i < dealt)
+		{
+			swap(i, dealt - 1);
+			i = --dealt;
+		}
+
+		int last = songs.size() - 1;
+		swap(i, last);
+
+		if (weightMode != null)
+		{
+			updateWeight(last, 0);
+		}
+
+		songs.remove(last);
+		positions.remove(path);
+	}
+
+	private void swap(int i, int j)
+	{
+		if (i == j)
+		{
+			return;
+		}
+
+		String a = songs.get(i);
+		String b = songs.get(j);
+		songs.set(i, b);
+		songs.set(j, a);
+		positions.put(b, i);
+		positions.put(a, j);
+
+		if (weightMode != null)
+		{
+			double weightA = weights[i];
+			double weightB = weights[j];
+			updateWeight(i, weightB);
+			updateWeight(j, weightA);
+		}
+	}
+
+	private double getWeight(File file, Mode mode)
+	{
+		MusicDirectory.Entry entry = MetadataStore.getInstance(context).get(file);
+
+		if (entry == null)
+		{
+			entry = MetadataStore.getInstance(context).get(SearchIndex.getCompleteFile(file));
+		}
+
+		switch (mode)
+		{
+			case PLAY_COUNT:
+				return 1.0 + (entry == null || entry.getPlayCount() == null ? 0 : entry.getPlayCount());
+			case STARRED:
+				return entry != null && entry.getStarred() ? STARRED_WEIGHT : 1.0;
+			case RECENTLY_ADDED:
+				Date created = entry == null ? null : entry.getCreated();
+				long added = created == null ? file.lastModified() : created.getTime();
+				double days = Math.max(0, System.currentTimeMillis() - added) / (double) DAY_MILLIS;
+				return 1.0 + RECENT_WEIGHT * Math.pow(0.5, days / RECENT_HALF_LIFE_DAYS);
+			default:
+				return 1.0;
+		}
+	}
+
+	/**
+	 * Builds the binary indexed tree of the weights of the mode, unless it's built already.
+	 */
+	private void buildWeights(Mode mode)
+	{
+		if (weightMode == mode)
+		{
+			return;
+		}
+
+		int n = songs.size();
+		weights = new double[Math.max(16, n)];
+
+		for (int i = 0; i < n; i++)
+		{
+			weights[i] = getWeight(new File(songs.get(i)), mode);
+		}
+
+		tree = buildTree(weights);
+		weightMode = mode;
+	}
+
+	private void appendWeight(double weight)
+	{
+		int i = songs.size() - 1;
+
+		if (i >= weights.length)
+		{
+			double[] grown = new double[weights.length * 2];
+			System.arraycopy(weights, 0, grown, 0, weights.length);
+			weights = grown;
+			tree = buildTree(weights);
+		}
+
+		updateWeight(i, weight);
+	}
+
+	private void updateWeight(int i, double weight)
+	{
+		double delta = weight - weights[i];
+		weights[i] = weight;
+
+		for (int j = i + 1; j < tree.length; j += j & -j)
+		{
+			tree[j] += delta;
+		}
+	}
+
+	private double total()
+	{
+		double sum = 0;
+
+		for (int j = songs.size(); j > 0; j -= j & -j)
+		{
+			sum += tree[j];
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Returns the song whose weight covers the given point of the cumulative weights.
+	 */
+	private int find(double point)
+	{
+		int position = 0;
+		int step = Integer.highestOneBit(tree.length - 1);
+
+		for (; step > 0; step >>= 1)
+		{
+			int next = position + step;
+
+			if (next < tree.length && tree[next] <= point)
+			{
+				position = next;
+				point -= tree[next];
+			}
+		}
+
+		return Math.min(position, songs.size() - 1);
+	}
+
+	private static double[] buildTree(double[] weights)
+	{
+		double[] tree = new double[weights.length + 1];
+
+		for (int i = 0; i < weights.length; i++)
+		{
+			tree[i + 1] += weights[i];
+			int parent = (i + 1) + ((i + 1) & -(i + 1));
+
+			if (parent < tree.length)
+			{
+				tree[parent] += tree[i + 1];
+			}
+		}
+
+		return tree;
+	}
+}
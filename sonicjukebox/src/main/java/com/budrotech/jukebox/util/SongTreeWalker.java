@@ -0,0 +1,304 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.util.Log;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the songs of a directory and all its subdirectories, loading several
+ * subdirectories at a time.
+ * <p/>
+ * The songs are returned in the order of a depth-first walk of the tree, as if the
+ * directories had been loaded one by one. Directories earlier in that order are loaded
+ * first, and the songs are handed to the listener as soon as every directory before them
+ * has been loaded, so the first album can be played while the rest are still loading.
+ * <p/>
+ * Interrupting the walking thread stops the walk; directories being loaded at the time
+ * are left to finish in the background and their songs are dropped.
+ *
+ * @author Sindre Mehus
+ */
+public class SongTreeWalker
+{
+	private static final String TAG = SongTreeWalker.class.getSimpleName();
+
+	private final DirectoryLoader loader;
+	private final int parallelism;
+	private final int maxSongs;
+
+	private ThreadPoolExecutor executor;
+	private Exception failure;
+
+	/**
+	 * @param parallelism The number of directories loaded at a time.
+	 * @param maxSongs    The number of songs after which the walk stops.
+	 */
+	public SongTreeWalker(DirectoryLoader loader, int parallelism, int maxSongs)
+	{
+		this.loader = loader;
+		this.parallelism = parallelism;
+		this.maxSongs = maxSongs;
+	}
+
+	/**
+	 * Walks the tree below the given directory. Each walker walks one tree.
+	 *
+	 * @param listener Called on the walking thread with each run of songs in order, or null.
+	 * @return All songs, at most the maximum number.
+	 */
+	public List<MusicDirectory.Entry> walk(MusicDirectory root, Listener listener) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>();
+		LinkedList<Cursor> cursors = new LinkedList<Cursor>();
+
+		executor = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+
+		try
+		{
+			Node rootNode = new Node(null, new int[0]);
+
+			synchronized (this)
+			{
+				resolve(rootNode, root);
+			}
+
+			cursors.add(new Cursor(rootNode));
+
+			while (true)
+			{
+				List<MusicDirectory.Entry> run;
+
+				synchronized (this)
+				{
+					run = collect(cursors, songs.size());
+
+					while (run.isEmpty() && failure == null && !cursors.isEmpty() && songs.size() < maxSongs)
+					{
+						wait();
+						run = collect(cursors, songs.size());
+					}
+
+					if (failure != null)
+					{
+						throw failure;
+					}
+				}
+
+				if (run.isEmpty())
+				{
+					break;
+				}
+
+				songs.addAll(run);
+
+				if (listener != null)
+				{
+					listener.onSongs(run);
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		Log.i(TAG, String.format("Walked %d songs in %d ms", songs.size(), System.currentTimeMillis() - start));
+		return songs;
+	}
+
+	/**
+	 * Returns the songs of the loaded directories that come next in order, advancing the
+	 * cursors of the depth-first walk up to the first directory not loaded yet.
+	 */
+	private List<MusicDirectory.Entry> collect(LinkedList<Cursor> cursors, int count)
+	{
+		List<MusicDirectory.Entry> run = new ArrayList<MusicDirectory.Entry>();
+
+		while (!cursors.isEmpty() && count + run.size() < maxSongs)
+		{
+			Cursor cursor = cursors.getLast();
+
+			if (!cursor.node.loaded)
+			{
+				break;
+			}
+
+			if (!cursor.collected)
+			{
+				int limit = Math.min(cursor.node.songs.size(), maxSongs - count - run.size());
+				run.addAll(cursor.node.songs.subList(0, limit));
+				cursor.collected = true;
+			}
+
+			if (cursor.next < cursor.node.children.size())
+			{
+				cursors.add(new Cursor(cursor.node.children.get(cursor.next++)));
+			}
+			else
+			{
+				cursors.removeLast();
+			}
+		}
+
+		return run;
+	}
+
+	/**
+	 * Stores the contents of a loaded directory and queues its subdirectories for loading.
+	 */
+	private void resolve(Node node, MusicDirectory directory)
+	{
+		for (MusicDirectory.Entry song : directory.getChildren(false, true))
+		{
+			if (!song.isVideo())
+			{
+				node.songs.add(song);
+			}
+		}
+
+		List<MusicDirectory.Entry> dirs = directory.getChildren(true, false);
+
+		for (int i = 0; i < dirs.size(); i++)
+		{
+			int[] path = new int[node.path.length + 1];
+			System.arraycopy(node.path, 0, path, 0, node.path.length);
+			path[node.path.length] = i;
+
+			Node child = new Node(dirs.get(i), path);
+			node.children.add(child);
+
+			try
+			{
+				executor.execute(child);
+			}
+			catch (RejectedExecutionException x)
+			{
+				// The walk is over
+				child.loaded = true;
+			}
+		}
+
+		node.loaded = true;
+	}
+
+	private void load(Node node)
+	{
+		try
+		{
+			MusicDirectory directory = loader.load(node.dir);
+
+			synchronized (this)
+			{
+				resolve(node, directory);
+				notifyAll();
+			}
+		}
+		catch (Exception x)
+		{
+			synchronized (this)
+			{
+				if (failure == null)
+				{
+					failure = x;
+				}
+
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * A directory of the tree, ordered by its position in a depth-first walk.
+	 */
+	private class Node implements Runnable, Comparable<Node>
+	{
+		private final MusicDirectory.Entry dir;
+		private final int[] path;
+		private final List<MusicDirectory.Entry> songs = new ArrayList<MusicDirectory.Entry>();
+		private final List<Node> children = new ArrayList<Node>();
+		private boolean loaded;
+
+		private Node(MusicDirectory.Entry dir, int[] path)
+		{
+			this.dir = dir;
+			this.path = path;
+		}
+
+		@Override
+		public void run()
+		{
+			if (!Thread.currentThread().isInterrupted())
+			{
+				load(this);
+			}
+		}
+
+		@Override
+		public int compareTo(Node other)
+		{
+			int length = Math.min(path.length, other.path.length);
+
+			for (int i = 0; i < length; i++)
+			{
+				if (path[i] != other.path[i])
+				{
+					return path[i] < other.path[i] ? -1 : 1;
+				}
+			}
+
+			return path.length - other.path.length;
+		}
+	}
+
+	private static class Cursor
+	{
+		private final Node node;
+		private boolean collected;
+		private int next;
+
+		private Cursor(Node node)
+		{
+			this.node = node;
+		}
+	}
+
+	/**
+	 * Loads a subdirectory, such as an album of an artist.
+	 */
+	public interface DirectoryLoader
+	{
+		MusicDirectory load(MusicDirectory.Entry dir) throws Exception;
+	}
+
+	public interface Listener
+	{
+		void onSongs(List<MusicDirectory.Entry> songs);
+	}
+}
@@ -2,52 +2,65 @@ package com.budrotech.jukebox.util;
 
 import android.util.Log;
 
-import com.budrotech.jukebox.domain.MusicDirectory;
 import com.budrotech.jukebox.service.DownloadFile;
 import com.budrotech.jukebox.service.DownloadService;
 
-
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.net.URLDecoder;
-import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 import java.util.StringTokenizer;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the song being downloaded to the media player over HTTP on the loopback interface.
+ * <p/>
+ * The file is sent straight from the file system to the socket with
+ * {@link FileChannel#transferTo}, as far as it has been downloaded. When the player has
+ * caught up with the download, the proxy waits for download progress rather than polling.
+ * Range requests are honoured when the final size of the file is known, so that seeking
+ * does not restart the stream from the beginning.
+ */
 public class StreamProxy implements Runnable
 {
 	private static final String TAG = StreamProxy.class.getSimpleName();
 
+	// Only bounds the wait for progress, so that a stopped proxy releases its threads.
+	private static final long PROGRESS_WAIT_MILLIS = 5000L;
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final Set<SocketChannel> clients = Collections.synchronizedSet(new HashSet<SocketChannel>());
 	private Thread thread;
-	private boolean isRunning;
-	private ServerSocket socket;
+	private volatile boolean isRunning;
+	private ServerSocketChannel serverChannel;
 	private int port;
 	private DownloadService downloadService;
 
 	public StreamProxy(DownloadService downloadService)
 	{
+		this.downloadService = downloadService;
 
 		// Create listening socket
 		try
 		{
-			socket = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-			socket.setSoTimeout(5000);
-			port = socket.getLocalPort();
-			this.downloadService = downloadService;
-		}
-		catch (UnknownHostException e)
-		{ // impossible
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByAddress(new byte[]{127, 0, 0, 1}), 0));
+			port = serverChannel.socket().getLocalPort();
 		}
 		catch (IOException e)
 		{
@@ -62,106 +75,87 @@ public class StreamProxy implements Runnable
 
 	public void start()
 	{
-		thread = new Thread(this);
+		isRunning = true;
+		thread = new Thread(this, "StreamProxy");
 		thread.start();
 	}
 
 	public void stop()
 	{
 		isRunning = false;
+
+		// Closing the channels interrupts a blocking accept or transfer
+		Util.close(serverChannel);
+
+		synchronized (clients)
+		{
+			for (SocketChannel client : clients)
+			{
+				Util.close(client);
+			}
+		}
+
+		executor.shutdownNow();
 		thread.interrupt();
 	}
 
 	@Override
 	public void run()
 	{
-		isRunning = true;
 		while (isRunning)
 		{
 			try
 			{
-				Socket client = socket.accept();
-				if (client == null)
-				{
-					continue;
-				}
+				SocketChannel client = serverChannel.accept();
 				Log.i(TAG, "Client connected");
-
-				StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client);
-				if (task.processRequest())
-				{
-					new Thread(task).start();
-				}
-
+				executor.execute(new StreamToMediaPlayerTask(client));
 			}
-			catch (SocketTimeoutException e)
+			catch (ClosedChannelException e)
 			{
-				// Do nothing
+				break;
 			}
 			catch (IOException e)
 			{
 				Log.e(TAG, "Error connecting to client", e);
 			}
 		}
+
 		Log.i(TAG, "Proxy interrupted. Shutting down.");
 	}
 
 	private class StreamToMediaPlayerTask implements Runnable
 	{
+		private final SocketChannel client;
+		private String localPath;
+		private long rangeStart = -1;
+		private long rangeEnd = -1;
 
-		String localPath;
-		Socket client;
-		int cbSkip;
-
-		public StreamToMediaPlayerTask(Socket client)
+		public StreamToMediaPlayerTask(SocketChannel client)
 		{
 			this.client = client;
 		}
 
-		private String readRequest()
+		/**
+		 * Reads the request line and the Range header, if any.
+		 */
+		private boolean readRequest() throws IOException
 		{
-			InputStream is;
-			String firstLine;
-			try
-			{
-				is = client.getInputStream();
-				BufferedReader reader = new BufferedReader(new InputStreamReader(is), 8192);
-				firstLine = reader.readLine();
-			}
-			catch (IOException e)
-			{
-				Log.e(TAG, "Error parsing request", e);
-				return null;
-			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(client.socket().getInputStream()), 8192);
+			String firstLine = reader.readLine();
 
 			if (firstLine == null)
 			{
 				Log.i(TAG, "Proxy client closed connection without a request.");
-				return null;
+				return false;
 			}
 
 			StringTokenizer st = new StringTokenizer(firstLine);
-			String method = st.nextToken();
+			st.nextToken();
 			String uri = st.nextToken();
-			String realUri = uri.substring(1);
-			Log.i(TAG, realUri);
-			return realUri;
-		}
-
-		public boolean processRequest()
-		{
-			String realUri = readRequest();
-			if (realUri == null)
-			{
-				return false;
-			}
-
-			// Read HTTP headers
-			Log.i(TAG, "Processing request");
 
 			try
 			{
-				localPath = URLDecoder.decode(realUri, Constants.UTF_8);
+				localPath = URLDecoder.decode(uri.substring(1), Constants.UTF_8);
 			}
 			catch (UnsupportedEncodingException e)
 			{
@@ -169,126 +163,180 @@ public class StreamProxy implements Runnable
 				return false;
 			}
 
-			Log.i(TAG, String.format("Processing request for file %s", localPath));
-			File file = new File(localPath);
-			if (!file.exists())
+			String line;
+
+			while ((line = reader.readLine()) != null && line.length() > 0)
 			{
-				Log.e(TAG, String.format("File %s does not exist", localPath));
-				return false;
+				int colon = line.indexOf(':');
+
+				if (colon > 0 && "range".equals(line.substring(0, colon).trim().toLowerCase(Locale.US)))
+				{
+					parseRange(line.substring(colon + 1).trim());
+				}
 			}
 
+			Log.i(TAG, String.format("Processing request for file %s (range %d-%d)", localPath, rangeStart, rangeEnd));
 			return true;
 		}
 
+		private void parseRange(String range)
+		{
+			// Only a single range of the form "bytes=first-[last]" is supported
+			if (!range.startsWith("bytes=") || range.indexOf(',') != -1)
+			{
+				return;
+			}
+
+			String spec = range.substring("bytes=".length());
+			int dash = spec.indexOf('-');
+
+			if (dash <= 0)
+			{
+				return;
+			}
+
+			try
+			{
+				rangeStart = Long.parseLong(spec.substring(0, dash).trim());
+				String last = spec.substring(dash + 1).trim();
+				rangeEnd = last.length() == 0 ? -1 : Long.parseLong(last) + 1;
+			}
+			catch (NumberFormatException x)
+			{
+				rangeStart = -1;
+				rangeEnd = -1;
+			}
+		}
+
 		@Override
 		public void run()
 		{
-			Log.i(TAG, "Streaming song in background");
-			DownloadFile downloadFile = downloadService.getCurrentPlaying();
-			MusicDirectory.Entry song = downloadFile.getSong();
-			long fileSize = downloadFile.getBitRate() * ((song.getDuration() != null) ? song.getDuration() : 0) * 1000 / 8;
-			Log.i(TAG, String.format("Streaming fileSize: %d", fileSize));
-
-			// Create HTTP header
-			String headers = "HTTP/1.0 200 OK\r\n";
-			headers += "Content-Type: application/octet-stream\r\n";
-			headers += "Connection: close\r\n";
-			headers += "\r\n";
-
-			long cbToSend = fileSize - cbSkip;
-			OutputStream output = null;
-			byte[] buff = new byte[64 * 1024];
+			clients.add(client);
+			FileChannel channel = null;
 
 			try
 			{
-				output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-				output.write(headers.getBytes());
+				if (!readRequest())
+				{
+					return;
+				}
 
-				if (!downloadFile.isWorkDone())
+				DownloadFile downloadFile = downloadService.getCurrentPlaying();
+
+				if (downloadFile == null || !isRequestFor(downloadFile))
+				{
+					Log.w(TAG, String.format("%s is not the current song", localPath));
+					writeHeaders("HTTP/1.1 404 Not Found\r\nConnection: close\r\n\r\n");
+					return;
+				}
+
+				// The total size is only reliable once the file is complete, or if the server
+				// sent the original file or a Content-Length header.
+				long length = downloadFile.isCompleteFileAvailable() ? downloadFile.getCompleteFile().length() : downloadFile.getExpectedLength();
+				long start = 0;
+				long end = length;
+				StringBuilder headers = new StringBuilder();
+
+				if (length >= 0 && rangeStart >= 0)
 				{
-					// Loop as long as there's stuff to send
-					while (isRunning && !client.isClosed())
+					if (rangeStart >= length)
 					{
-						// See if there's more to send
-						File file = downloadFile.isCompleteFileAvailable() ? downloadFile.getCompleteFile() : downloadFile.getPartialFile();
-						int cbSentThisBatch = 0;
-
-						if (file.exists())
-						{
-							FileInputStream input = new FileInputStream(file);
-
-							try
-							{
-								long skip = input.skip(cbSkip);
-								int cbToSendThisBatch = input.available();
-
-								while (cbToSendThisBatch > 0)
-								{
-									int cbToRead = Math.min(cbToSendThisBatch, buff.length);
-									int cbRead = input.read(buff, 0, cbToRead);
-
-									if (cbRead == -1)
-									{
-										break;
-									}
-
-									cbToSendThisBatch -= cbRead;
-									cbToSend -= cbRead;
-									output.write(buff, 0, cbRead);
-									output.flush();
-									cbSkip += cbRead;
-									cbSentThisBatch += cbRead;
-								}
-							}
-							finally
-							{
-								input.close();
-							}
-
-							// Done regardless of whether or not it thinks it is
-							if (downloadFile.isWorkDone() && cbSkip >= file.length())
-							{
-								break;
-							}
-						}
-
-						// If we did nothing this batch, block for a second
-						if (cbSentThisBatch == 0)
-						{
-							Log.d(TAG, String.format("Blocking until more data appears (%d)", cbToSend));
-							Util.sleepQuietly(1000L);
-						}
+						writeHeaders(String.format("HTTP/1.1 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */%d\r\nConnection: close\r\n\r\n", length));
+						return;
 					}
+
+					start = rangeStart;
+					end = rangeEnd < 0 ? length : Math.min(rangeEnd, length);
+					headers.append("HTTP/1.1 206 Partial Content\r\n");
+					headers.append(String.format("Content-Range: bytes %d-%d/%d\r\n", start, end - 1, length));
 				}
 				else
 				{
-					Log.w(TAG, "Requesting data for completely downloaded file");
+					headers.append("HTTP/1.1 200 OK\r\n");
+				}
+
+				headers.append("Content-Type: application/octet-stream\r\n");
+
+				if (length >= 0)
+				{
+					headers.append("Accept-Ranges: bytes\r\n");
+					headers.append(String.format("Content-Length: %d\r\n", end - start));
+				}
+
+				headers.append("Connection: close\r\n\r\n");
+				writeHeaders(headers.toString());
+
+				Log.i(TAG, String.format("Streaming %s from %d to %d", downloadFile, start, end));
+				long position = start;
+				File file = null;
+
+				while (isRunning && (end < 0 || position < end))
+				{
+					long progressRevision = downloadFile.getProgressRevision();
+
+					// The partial file is renamed once complete. The open channel stays valid,
+					// but reading the complete file picks up a save to a different file name.
+					File current = downloadFile.isCompleteFileAvailable() ? downloadFile.getCompleteFile() : downloadFile.getPartialFile();
+
+					if (!current.equals(file) && current.exists())
+					{
+						Util.close(channel);
+						channel = new RandomAccessFile(current, "r").getChannel();
+						file = current;
+					}
+
+					long available = downloadFile.getBufferedLength();
+
+					if (channel != null && available > position)
+					{
+						long count = (end < 0 ? available : Math.min(available, end)) - position;
+						position += channel.transferTo(position, count, client);
+						continue;
+					}
+
+					if (downloadFile.isWorkDone())
+					{
+						break;
+					}
+
+					downloadFile.awaitProgress(progressRevision, PROGRESS_WAIT_MILLIS);
 				}
+
+				Log.i(TAG, String.format("Streamed %d bytes of %s", position - start, downloadFile));
 			}
-			catch (SocketException socketException)
+			catch (InterruptedException e)
+			{
+				Log.i(TAG, "Streaming task interrupted");
+			}
+			catch (IOException e)
 			{
-				Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
+				Log.i(TAG, String.format("Proxy client has probably closed, this can exit harmlessly: %s", e));
 			}
 			catch (Exception e)
 			{
-				Log.e(TAG, "Exception thrown from streaming task:");
-				Log.e(TAG, String.format("%s : %s", e.getClass().getName(), e.getLocalizedMessage()));
+				Log.e(TAG, "Exception thrown from streaming task", e);
 			}
-
-			// Cleanup
-			try
+			finally
 			{
-				if (output != null)
-				{
-					output.close();
-				}
-				client.close();
+				Util.close(channel);
+				Util.close(client);
+				clients.remove(client);
 			}
-			catch (IOException e)
+		}
+
+		private boolean isRequestFor(DownloadFile downloadFile)
+		{
+			return localPath.equals(downloadFile.getPartialFile().getPath()) || localPath.equals(downloadFile.getCompleteFile().getPath());
+		}
+
+		private void writeHeaders(String headers) throws IOException
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(headers.getBytes(Constants.UTF_8));
+
+			while (buffer.hasRemaining())
 			{
-				Log.e(TAG, "IOException while cleaning up streaming task:");
-				Log.e(TAG, String.format("%s : %s", e.getClass().getName(), e.getLocalizedMessage()));
+				client.write(buffer);
 			}
 		}
 	}
-}
\ No newline at end of file
+}
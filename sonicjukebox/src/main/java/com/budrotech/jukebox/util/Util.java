@@ -61,9 +61,9 @@ import com.budrotech.jukebox.domain.RepeatMode;
 import com.budrotech.jukebox.domain.SearchResult;
 import com.budrotech.jukebox.domain.Version;
 import com.budrotech.jukebox.receiver.MediaButtonIntentReceiver;
-import com.budrotech.jukebox.service.DownloadFile;
 import com.budrotech.jukebox.service.DownloadService;
 import com.budrotech.jukebox.service.DownloadServiceImpl;
+import com.budrotech.jukebox.service.NowPlaying;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
@@ -118,8 +118,6 @@ public class Util extends DownloadActivity
 	private static final char[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
 	private static Toast toast;
 
-	private static MusicDirectory.Entry currentSong;
-
 	private Util()
 	{
 	}
@@ -261,6 +259,47 @@ public class Util extends DownloadActivity
 		return preferences.getBoolean(Constants.PREFERENCES_KEY_JUKEBOX_BY_DEFAULT + instance, false);
 	}
 
+	public static boolean getAllowSelfSignedCertificate(Context context, int instance)
+	{
+		if (instance == 0)
+		{
+			return false;
+		}
+
+		SharedPreferences preferences = getPreferences(context);
+		return preferences.getBoolean(Constants.PREFERENCES_KEY_ALLOW_SELF_SIGNED_CERTIFICATE + instance, false);
+	}
+
+	/**
+	 * Returns the SHA-256 fingerprint of the self-signed certificate accepted for the server,
+	 * or null if none has been accepted yet.
+	 */
+	public static String getPinnedCertificate(Context context, int instance)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return preferences.getString(Constants.PREFERENCES_KEY_PINNED_CERTIFICATE + instance, null);
+	}
+
+	public static void setPinnedCertificate(Context context, int instance, String fingerprint)
+	{
+		SharedPreferences.Editor editor = getPreferences(context).edit();
+		editor.putString(Constants.PREFERENCES_KEY_PINNED_CERTIFICATE + instance, fingerprint);
+		editor.commit();
+	}
+
+	public static boolean getShouldUseJson(Context context)
+	{
+		int instance = getActiveServer(context);
+
+		if (instance == 0)
+		{
+			return false;
+		}
+
+		SharedPreferences preferences = getPreferences(context);
+		return preferences.getBoolean(Constants.PREFERENCES_KEY_USE_JSON + instance, false);
+	}
+
 	public static void setServerRestVersion(Context context, Version version)
 	{
 		SERVER_REST_VERSIONS.put(getActiveServer(context), version);
@@ -285,6 +324,9 @@ public class Util extends DownloadActivity
 		String password = preferences.getString(Constants.PREFERENCES_KEY_PASSWORD + newInstance, null);
 		boolean serverEnabled = preferences.getBoolean(Constants.PREFERENCES_KEY_SERVER_ENABLED + newInstance, true);
 		boolean jukeboxEnabled = preferences.getBoolean(Constants.PREFERENCES_KEY_JUKEBOX_BY_DEFAULT + newInstance, true);
+		boolean useJson = preferences.getBoolean(Constants.PREFERENCES_KEY_USE_JSON + newInstance, false);
+		boolean allowSelfSigned = preferences.getBoolean(Constants.PREFERENCES_KEY_ALLOW_SELF_SIGNED_CERTIFICATE + newInstance, false);
+		String pinnedCertificate = preferences.getString(Constants.PREFERENCES_KEY_PINNED_CERTIFICATE + newInstance, null);
 
 		editor.putString(Constants.PREFERENCES_KEY_SERVER + instance, server);
 		editor.putString(Constants.PREFERENCES_KEY_SERVER_NAME + instance, serverName);
@@ -293,6 +335,9 @@ public class Util extends DownloadActivity
 		editor.putString(Constants.PREFERENCES_KEY_PASSWORD + instance, password);
 		editor.putBoolean(Constants.PREFERENCES_KEY_SERVER_ENABLED + instance, serverEnabled);
 		editor.putBoolean(Constants.PREFERENCES_KEY_JUKEBOX_BY_DEFAULT + instance, jukeboxEnabled);
+		editor.putBoolean(Constants.PREFERENCES_KEY_USE_JSON + instance, useJson);
+		editor.putBoolean(Constants.PREFERENCES_KEY_ALLOW_SELF_SIGNED_CERTIFICATE + instance, allowSelfSigned);
+		editor.putString(Constants.PREFERENCES_KEY_PINNED_CERTIFICATE + instance, pinnedCertificate);
 
 		editor.putString(Constants.PREFERENCES_KEY_SERVER + newInstance, null);
 		editor.putString(Constants.PREFERENCES_KEY_SERVER_NAME + newInstance, null);
@@ -301,6 +346,9 @@ public class Util extends DownloadActivity
 		editor.putString(Constants.PREFERENCES_KEY_PASSWORD + newInstance, null);
 		editor.putBoolean(Constants.PREFERENCES_KEY_SERVER_ENABLED + newInstance, true);
 		editor.putBoolean(Constants.PREFERENCES_KEY_JUKEBOX_BY_DEFAULT + newInstance, false);
+		editor.putBoolean(Constants.PREFERENCES_KEY_USE_JSON + newInstance, false);
+		editor.putBoolean(Constants.PREFERENCES_KEY_ALLOW_SELF_SIGNED_CERTIFICATE + newInstance, false);
+		editor.putString(Constants.PREFERENCES_KEY_PINNED_CERTIFICATE + newInstance, null);
 		editor.commit();
 
 		if (instance == activeInstance)
@@ -965,27 +1013,16 @@ public class Util extends DownloadActivity
 		context.sendBroadcast(intent);
 	}
 
-	public static void broadcastA2dpMetaDataChange(Context context, DownloadService downloadService)
+	public static void broadcastA2dpMetaDataChange(Context context, NowPlaying nowPlaying)
 	{
 		if (!Util.getShouldSendBluetoothNotifications(context))
 		{
 			return;
 		}
 
-		MusicDirectory.Entry song = null;
 		Intent avrcpIntent = new Intent(CM_AVRCP_METADATA_CHANGED);
 
-		if (downloadService != null)
-		{
-			DownloadFile entry = downloadService.getCurrentPlaying();
-
-			if (entry != null)
-			{
-				song = entry.getSong();
-			}
-		}
-
-		if (downloadService == null || song == null)
+		if (nowPlaying.getSong() == null)
 		{
 			avrcpIntent.putExtra("track", "");
 			avrcpIntent.putExtra("track_name", "");
@@ -1009,126 +1046,74 @@ public class Util extends DownloadActivity
 		}
 		else
 		{
-			if (song != currentSong)
-			{
-				currentSong = song;
-			}
-
-			String title = song.getTitle();
-			String artist = song.getArtist();
-			String album = song.getAlbum();
-			Integer duration = song.getDuration();
-			Integer listSize = downloadService.getDownloads().size();
-			Integer id = downloadService.getCurrentPlayingIndex() + 1;
-			Integer playerPosition = downloadService.getPlayerPosition();
-
-			avrcpIntent.putExtra("track", title);
-			avrcpIntent.putExtra("track_name", title);
-			avrcpIntent.putExtra("artist", artist);
-			avrcpIntent.putExtra("artist_name", artist);
-			avrcpIntent.putExtra("album", album);
-			avrcpIntent.putExtra("album_name", album);
-			avrcpIntent.putExtra("album_artist", artist);
-			avrcpIntent.putExtra("album_artist_name", artist);
-
-
-			if (Util.getShouldSendBluetoothAlbumArt(context))
-			{
-				File albumArtFile = FileUtil.getAlbumArtFile(context, song);
-				avrcpIntent.putExtra("coverart", albumArtFile.getAbsolutePath());
-				avrcpIntent.putExtra("cover", albumArtFile.getAbsolutePath());
-			}
-
-			avrcpIntent.putExtra("position", (long) playerPosition);
-			avrcpIntent.putExtra("id", (long) id);
-			avrcpIntent.putExtra("ListSize", (long) listSize);
-
-			if (duration != null)
-			{
-				avrcpIntent.putExtra("duration", (long) duration);
-			}
+			putA2dpTrackInfo(context, avrcpIntent, nowPlaying);
 		}
 
 		context.sendBroadcast(avrcpIntent);
 	}
 
-	public static void broadcastA2dpPlayStatusChange(Context context, PlayerState state, DownloadService downloadService)
+	public static void broadcastA2dpPlayStatusChange(Context context, NowPlaying nowPlaying)
 	{
-		if (!Util.getShouldSendBluetoothNotifications(context) || downloadService == null)
+		if (!Util.getShouldSendBluetoothNotifications(context) || nowPlaying.getSong() == null)
 		{
 			return;
 		}
 
-		DownloadFile currentPlaying = downloadService.getCurrentPlaying();
+		Intent avrcpIntent = new Intent(CM_AVRCP_PLAYSTATE_CHANGED);
+		putA2dpTrackInfo(context, avrcpIntent, nowPlaying);
 
-		if (currentPlaying != null)
+		switch (nowPlaying.getPlayerState())
 		{
-			Intent avrcpIntent = new Intent(CM_AVRCP_PLAYSTATE_CHANGED);
-
-			MusicDirectory.Entry song = currentPlaying.getSong();
-
-			if (song == null)
-			{
-				return;
-			}
-
-			if (song != currentSong)
-			{
-				currentSong = song;
-			}
+			case STARTED:
+				avrcpIntent.putExtra("playing", true);
+				break;
+			case STOPPED:
+				avrcpIntent.putExtra("playing", false);
+				break;
+			case PAUSED:
+				avrcpIntent.putExtra("playing", false);
+				break;
+			case COMPLETED:
+				avrcpIntent.putExtra("playing", false);
+				break;
+			default:
+				return; // No need to broadcast.
+		}
 
-			String title = song.getTitle();
-			String artist = song.getArtist();
-			String album = song.getAlbum();
-			Integer duration = song.getDuration();
-			Integer listSize = downloadService.getDownloads().size();
-			Integer id = downloadService.getCurrentPlayingIndex() + 1;
-			Integer playerPosition = downloadService.getPlayerPosition();
-
-			avrcpIntent.putExtra("track", title);
-			avrcpIntent.putExtra("track_name", title);
-			avrcpIntent.putExtra("artist", artist);
-			avrcpIntent.putExtra("artist_name", artist);
-			avrcpIntent.putExtra("album", album);
-			avrcpIntent.putExtra("album_name", album);
-			avrcpIntent.putExtra("album_artist", artist);
-			avrcpIntent.putExtra("album_artist_name", artist);
+		context.sendBroadcast(avrcpIntent);
+	}
 
-			if (Util.getShouldSendBluetoothAlbumArt(context))
-			{
-				File albumArtFile = FileUtil.getAlbumArtFile(context, song);
-				avrcpIntent.putExtra("coverart", albumArtFile.getAbsolutePath());
-				avrcpIntent.putExtra("cover", albumArtFile.getAbsolutePath());
-			}
+	private static void putA2dpTrackInfo(Context context, Intent avrcpIntent, NowPlaying nowPlaying)
+	{
+		MusicDirectory.Entry song = nowPlaying.getSong();
+		String title = song.getTitle();
+		String artist = song.getArtist();
+		String album = song.getAlbum();
+		Integer duration = song.getDuration();
 
-			avrcpIntent.putExtra("position", (long) playerPosition);
-			avrcpIntent.putExtra("id", (long) id);
-			avrcpIntent.putExtra("ListSize", (long) listSize);
+		avrcpIntent.putExtra("track", title);
+		avrcpIntent.putExtra("track_name", title);
+		avrcpIntent.putExtra("artist", artist);
+		avrcpIntent.putExtra("artist_name", artist);
+		avrcpIntent.putExtra("album", album);
+		avrcpIntent.putExtra("album_name", album);
+		avrcpIntent.putExtra("album_artist", artist);
+		avrcpIntent.putExtra("album_artist_name", artist);
 
-			if (duration != null)
-			{
-				avrcpIntent.putExtra("duration", (long) duration);
-			}
+		if (Util.getShouldSendBluetoothAlbumArt(context))
+		{
+			File albumArtFile = FileUtil.getAlbumArtFile(context, song);
+			avrcpIntent.putExtra("coverart", albumArtFile.getAbsolutePath());
+			avrcpIntent.putExtra("cover", albumArtFile.getAbsolutePath());
+		}
 
-			switch (state)
-			{
-				case STARTED:
-					avrcpIntent.putExtra("playing", true);
-					break;
-				case STOPPED:
-					avrcpIntent.putExtra("playing", false);
-					break;
-				case PAUSED:
-					avrcpIntent.putExtra("playing", false);
-					break;
-				case COMPLETED:
-					avrcpIntent.putExtra("playing", false);
-					break;
-				default:
-					return; // No need to broadcast.
-			}
+		avrcpIntent.putExtra("position", (long) nowPlaying.getPosition());
+		avrcpIntent.putExtra("id", (long) nowPlaying.getIndex() + 1);
+		avrcpIntent.putExtra("ListSize", (long) nowPlaying.getQueueSize());
 
-			context.sendBroadcast(avrcpIntent);
+		if (duration != null)
+		{
+			avrcpIntent.putExtra("duration", (long) duration);
 		}
 	}
 
@@ -1655,6 +1640,24 @@ public class Util extends DownloadActivity
 		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_IMAGE_LOADER_CONCURRENCY, "5"));
 	}
 
+	public static int getDownloadConcurrency(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return Integer.parseInt(preferences.getString(Constants.PREFERENCES_KEY_DOWNLOAD_CONCURRENCY, "2"));
+	}
+
+	public static boolean getShouldUseSegmentedDownloads(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return preferences.getBoolean(Constants.PREFERENCES_KEY_SEGMENTED_DOWNLOADS, false);
+	}
+
+	public static SongCatalog.Mode getOfflineShuffleMode(Context context)
+	{
+		SharedPreferences preferences = getPreferences(context);
+		return SongCatalog.Mode.fromValue(preferences.getString(Constants.PREFERENCES_KEY_OFFLINE_SHUFFLE_MODE, "uniform"));
+	}
+
 	public static void warnIfNetworkOrStorageUnavailable(Context context)
 	{
 		if (!isExternalStoragePresent())
@@ -31,21 +31,20 @@ import android.widget.TextView;
 
 import com.budrotech.jukebox.R;
 import com.budrotech.jukebox.domain.MusicDirectory;
-import com.budrotech.jukebox.service.DownloadFile;
-import com.budrotech.jukebox.service.DownloadService;
-import com.budrotech.jukebox.service.DownloadServiceImpl;
+import com.budrotech.jukebox.service.DownloadStateStore;
 import com.budrotech.jukebox.service.MusicService;
 import com.budrotech.jukebox.service.MusicServiceFactory;
 import com.budrotech.jukebox.util.Util;
 
-import java.io.File;
-
 /**
  * Used to display songs in a {@code ListView}.
+ * <p/>
+ * The download and playback state of the song is pushed by the {@link DownloadStateStore},
+ * so the row is only refreshed when the state of its own song changes.
  *
  * @author Sindre Mehus
  */
-public class SongView extends UpdateView implements Checkable
+public class SongView extends UpdateView implements Checkable, DownloadStateStore.Listener
 {
 
 	private static final String TAG = SongView.class.getSimpleName();
@@ -66,8 +65,7 @@ public class SongView extends UpdateView implements Checkable
 	private ImageType leftImageType;
 	private ImageType rightImageType;
 	private Drawable rightImage;
-	private DownloadService downloadService;
-	private DownloadFile downloadFile;
+	private DownloadStateStore.State state;
 	private boolean playing;
 	private EntryAdapter.SongViewHolder viewHolder;
 
@@ -144,15 +142,16 @@ public class SongView extends UpdateView implements Checkable
 
 	protected void setSong(final MusicDirectory.Entry song, boolean checkable, boolean draggable)
 	{
-		updateBackground();
-
-		this.song = song;
+		DownloadStateStore stateStore = DownloadStateStore.getInstance(this.context);
 
-		if (downloadService != null)
+		if (this.song != null && !this.song.equals(song))
 		{
-			this.downloadFile = downloadService.forSong(song);
+			stateStore.removeListener(this.song, this);
 		}
 
+		this.song = song;
+		this.state = stateStore.addListener(song, this);
+
 		StringBuilder artist = new StringBuilder(60);
 
 		String bitRate = null;
@@ -287,34 +286,26 @@ public class SongView extends UpdateView implements Checkable
 	}
 
 	@Override
-	protected void updateBackground()
+	public void onStateChanged(DownloadStateStore.State state)
 	{
-		if (downloadService == null)
-		{
-			downloadService = DownloadServiceImpl.getInstance();
-		}
+		this.state = state;
+		refresh();
 	}
 
 	@Override
 	protected void update()
 	{
-		updateBackground();
-
-		if (downloadService == null)
-		{
-			return;
-		}
-
-		downloadFile = downloadService.forSong(this.song);
-		File partialFile = downloadFile.getPartialFile();
+		// Until the state of a newly bound song has been read, nothing is shown
+		DownloadStateStore.State state = this.state;
+		boolean saved = state != null && state.isSaved();
 
-		if (downloadFile.isWorkDone())
+		if (state != null && state.isWorkDone())
 		{
-			ImageType newLeftImageType = downloadFile.isSaved() ? ImageType.unpin : ImageType.downloaded;
+			ImageType newLeftImageType = saved ? ImageType.unpin : ImageType.downloaded;
 
 			if (this.leftImageType != newLeftImageType)
 			{
-				this.leftImage = downloadFile.isSaved() ? unpinImage : downloadedImage;
+				this.leftImage = saved ? unpinImage : downloadedImage;
 				this.leftImageType = newLeftImageType;
 			}
 		}
@@ -324,11 +315,11 @@ public class SongView extends UpdateView implements Checkable
 			this.leftImage = null;
 		}
 
-		if (downloadFile.isDownloading() && !downloadFile.isDownloadCancelled() && partialFile.exists())
+		if (state != null && state.isDownloading())
 		{
 			if (this.viewHolder.status != null)
 			{
-				this.viewHolder.status.setText(Util.formatLocalizedBytes(partialFile.length(), this.context));
+				this.viewHolder.status.setText(Util.formatLocalizedBytes(state.getBytesDownloaded(), this.context));
 			}
 
 			this.rightImageType = ImageType.downloading;
@@ -388,9 +379,7 @@ public class SongView extends UpdateView implements Checkable
 			}
 		}
 
-		boolean playing = downloadService.getCurrentPlaying() == downloadFile;
-
-		if (playing)
+		if (state != null && state.isPlaying())
 		{
 			if (!this.playing)
 			{
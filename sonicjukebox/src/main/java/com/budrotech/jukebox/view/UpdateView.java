@@ -1,37 +1,31 @@
 package com.budrotech.jukebox.view;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.ViewGroup;
 import android.widget.AbsListView;
 import android.widget.LinearLayout;
 
-import com.budrotech.jukebox.util.Util;
-
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.WeakHashMap;
-
+/**
+ * Base class of list rows. Rows are no longer refreshed periodically; a row which shows
+ * changing state subscribes to it, for instance in the
+ * {@link com.budrotech.jukebox.service.DownloadStateStore}, and calls {@link #refresh()}
+ * when notified.
+ */
 public class UpdateView extends LinearLayout
 {
 	private static final String TAG = UpdateView.class.getSimpleName();
-	private static final WeakHashMap<UpdateView, ?> INSTANCES = new WeakHashMap<UpdateView, Object>();
+	private static final long REFRESH_RATE_WINDOW = 1000L;
 
-	private static Handler backgroundHandler;
-	private static Handler uiHandler;
-	private static Runnable updateRunnable;
-	private static Context context;
+	private static long refreshWindowStart;
+	private static int refreshCount;
+	private static int refreshRate;
 
 	public UpdateView(Context context)
 	{
 		super(context);
-		UpdateView.context = context;
-
 		setLayoutParams(new AbsListView.LayoutParams(ViewGroup.LayoutParams.FILL_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
-		INSTANCES.put(this, null);
-		startUpdater();
 	}
 
 	@Override
@@ -40,108 +34,35 @@ public class UpdateView extends LinearLayout
 
 	}
 
-	private static synchronized void startUpdater()
-	{
-		if (uiHandler != null)
-		{
-			return;
-		}
-
-		uiHandler = new Handler();
-		updateRunnable = new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				updateAll();
-			}
-		};
-
-		new Thread(new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				Thread.currentThread().setName("startUpdater");
-				Looper.prepare();
-				backgroundHandler = new Handler(Looper.myLooper());
-				uiHandler.post(updateRunnable);
-				Looper.loop();
-			}
-		}).start();
-	}
-
-	private static void updateAll()
+	/**
+	 * Returns the number of rows refreshed during the last second in which any were.
+	 */
+	public static int getRefreshRate()
 	{
-		try
-		{
-			Collection<UpdateView> views = new ArrayList<UpdateView>();
-
-			for (UpdateView view : INSTANCES.keySet())
-			{
-				if (view.isShown())
-				{
-					views.add(view);
-				}
-			}
-
-			updateAllLive(views);
-		}
-		catch (Throwable x)
-		{
-			Log.w(TAG, "Error when updating song views.", x);
-		}
+		return refreshRate;
 	}
 
-	private static void updateAllLive(final Iterable<UpdateView> views)
+	/**
+	 * Refreshes the row after its state changed. Must be called on the main thread.
+	 */
+	protected void refresh()
 	{
-		final Runnable runnable = new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				try
-				{
-					for (UpdateView view : views)
-					{
-						view.update();
-					}
-				}
-				catch (Throwable x)
-				{
-					Log.w(TAG, "Error when updating song views.", x);
-				}
-
-				uiHandler.postDelayed(updateRunnable, Util.getViewRefreshInterval(context));
-			}
-		};
+		long now = SystemClock.uptimeMillis();
 
-		backgroundHandler.post(new Runnable()
+		if (now - refreshWindowStart >= REFRESH_RATE_WINDOW)
 		{
-			@Override
-			public void run()
+			if (refreshCount > 0)
 			{
-				try
-				{
-					Thread.currentThread().setName("updateAllLive-Background");
-
-					for (UpdateView view : views)
-					{
-						view.updateBackground();
-					}
-					uiHandler.post(runnable);
-				}
-				catch (Throwable x)
-				{
-					Log.w(TAG, "Error when updating song views.", x);
-				}
+				refreshRate = refreshCount;
+				Log.d(TAG, String.format("Refreshed %d rows per second", refreshRate));
 			}
-		});
-	}
 
-	protected void updateBackground()
-	{
+			refreshWindowStart = now;
+			refreshCount = 0;
+		}
 
+		refreshCount++;
+		update();
 	}
 
 	protected void update()
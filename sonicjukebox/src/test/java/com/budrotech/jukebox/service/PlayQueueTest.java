@@ -0,0 +1,268 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.service;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the play queue against an {@link ArrayList} given the same changes.
+ *
+ * @author Sindre Mehus
+ */
+public class PlayQueueTest
+{
+	private final Random random = new Random(42);
+	private PlayQueue queue;
+	private List<DownloadFile> oracle;
+	private int created;
+
+	@Before
+	public void setUp()
+	{
+		queue = new PlayQueue();
+		oracle = new ArrayList<DownloadFile>();
+	}
+
+	@Test
+	public void addsAtEveryPosition()
+	{
+		for (int i = 0; i < 200; i++)
+		{
+			add(random.nextInt(oracle.size() + 1));
+		}
+
+		assertSameAsOracle();
+	}
+
+	@Test
+	public void removesAtEveryPosition()
+	{
+		fill(200);
+
+		while (!oracle.isEmpty())
+		{
+			int index = random.nextInt(oracle.size());
+			assertEquals(oracle.remove(index), queue.remove(index));
+			assertSameAsOracle();
+		}
+	}
+
+	@Test
+	public void removesByObject()
+	{
+		fill(50);
+		DownloadFile downloadFile = oracle.get(17);
+
+		assertTrue(queue.remove(downloadFile));
+		oracle.remove(downloadFile);
+		assertFalse(queue.remove(downloadFile));
+		assertFalse(queue.contains(downloadFile));
+		assertEquals(-1, queue.indexOf(downloadFile));
+		assertSameAsOracle();
+	}
+
+	@Test
+	public void moves()
+	{
+		fill(100);
+
+		for (int i = 0; i < 300; i++)
+		{
+			int from = random.nextInt(oracle.size());
+			int to = random.nextInt(oracle.size());
+			queue.move(from, to);
+			oracle.add(to, oracle.remove(from));
+		}
+
+		assertSameAsOracle();
+	}
+
+	@Test
+	public void matchesOracleUnderRandomChanges()
+	{
+		for (int i = 0; i < 2000; i++)
+		{
+			int operation = oracle.isEmpty() ? 0 : random.nextInt(4);
+
+			if (operation == 0)
+			{
+				add(random.nextInt(oracle.size() + 1));
+			}
+			else if (operation == 1)
+			{
+				int index = random.nextInt(oracle.size());
+				assertEquals(oracle.remove(index), queue.remove(index));
+			}
+			else if (operation == 2)
+			{
+				int from = random.nextInt(oracle.size());
+				int to = random.nextInt(oracle.size());
+				queue.move(from, to);
+				oracle.add(to, oracle.remove(from));
+			}
+			else
+			{
+				int index = random.nextInt(oracle.size());
+				assertEquals(index, queue.indexOf(oracle.get(index)));
+			}
+
+			if (i % 100 == 0)
+			{
+				assertSameAsOracle();
+			}
+		}
+
+		assertSameAsOracle();
+	}
+
+	@Test
+	public void iteratorRemoves()
+	{
+		fill(100);
+		Iterator<DownloadFile> iterator = queue.iterator();
+		int index = 0;
+
+		while (iterator.hasNext())
+		{
+			DownloadFile downloadFile = iterator.next();
+
+			if (index++ % 3 == 0)
+			{
+				iterator.remove();
+				oracle.remove(downloadFile);
+			}
+		}
+
+		assertSameAsOracle();
+	}
+
+	@Test(expected = ConcurrentModificationException.class)
+	public void iteratorFailsAfterChange()
+	{
+		fill(10);
+		Iterator<DownloadFile> iterator = queue.iterator();
+		iterator.next();
+		queue.remove(0);
+		iterator.next();
+	}
+
+	@Test
+	public void findsSongsInQueueOrder()
+	{
+		DownloadFile first = newDownloadFile("same");
+		DownloadFile second = newDownloadFile("same");
+		fill(10);
+		queue.add(7, second);
+		queue.add(3, first);
+
+		List<DownloadFile> found = queue.find(first.getSong());
+		assertEquals(2, found.size());
+		assertTrue(found.get(0) == first);
+		assertTrue(found.get(1) == second);
+
+		queue.remove(first);
+		assertEquals(1, queue.find(first.getSong()).size());
+	}
+
+	@Test
+	public void rejectsDuplicates()
+	{
+		fill(3);
+
+		try
+		{
+			queue.add(oracle.get(1));
+			fail();
+		}
+		catch (IllegalArgumentException x)
+		{
+			// Expected
+		}
+
+		assertSameAsOracle();
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void rejectsPositionsPastTheEnd()
+	{
+		fill(3);
+		queue.add(5, newDownloadFile("other"));
+	}
+
+	private void fill(int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			add(oracle.size());
+		}
+	}
+
+	private void add(int index)
+	{
+		DownloadFile downloadFile = newDownloadFile(String.valueOf(created++));
+		queue.add(index, downloadFile);
+		oracle.add(index, downloadFile);
+	}
+
+	private static DownloadFile newDownloadFile(String id)
+	{
+		MusicDirectory.Entry song = new MusicDirectory.Entry();
+		song.setId(id);
+		DownloadFile downloadFile = mock(DownloadFile.class);
+		when(downloadFile.getSong()).thenReturn(song);
+		return downloadFile;
+	}
+
+	private void assertSameAsOracle()
+	{
+		assertEquals(oracle.size(), queue.size());
+		assertEquals(oracle, new ArrayList<DownloadFile>(queue));
+
+		List<DownloadFile> iterated = new ArrayList<DownloadFile>();
+
+		for (DownloadFile downloadFile : queue)
+		{
+			iterated.add(downloadFile);
+		}
+
+		assertEquals(oracle, iterated);
+
+		for (int i = 0; i < oracle.size(); i++)
+		{
+			assertTrue(queue.get(i) == oracle.get(i));
+			assertEquals(i, queue.indexOf(oracle.get(i)));
+		}
+	}
+}
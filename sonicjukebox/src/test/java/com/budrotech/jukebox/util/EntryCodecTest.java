@@ -0,0 +1,191 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sindre Mehus
+ */
+public class EntryCodecTest
+{
+	@Test
+	public void roundTripsEveryField() throws IOException
+	{
+		MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		entry.setId("42");
+		entry.setParent("7");
+		entry.setIsDirectory(false);
+		entry.setTitle("Title");
+		entry.setAlbum("Album");
+		entry.setAlbumId("8");
+		entry.setArtist("Artist");
+		entry.setArtistId("9");
+		entry.setTrack(3);
+		entry.setYear(1999);
+		entry.setGenre("Genre");
+		entry.setContentType("audio/mpeg");
+		entry.setSuffix("mp3");
+		entry.setTranscodedContentType("audio/ogg");
+		entry.setTranscodedSuffix("ogg");
+		entry.setCoverArt("cover");
+		entry.setSize(123456789012L);
+		entry.setSongCount(12L);
+		entry.setDuration(245);
+		entry.setBitRate(320);
+		entry.setPath("Artist/Album/03 - Title.mp3");
+		entry.setIsVideo(true);
+		entry.setStarred(true);
+		entry.setDiscNumber(2);
+		entry.setType("music");
+		entry.setCreated(new Date(1234567890000L));
+		entry.setPlayCount(17L);
+		entry.setBookmarkPosition(60000);
+
+		MusicDirectory.Entry copy = roundTrip(entry);
+
+		assertEquals("42", copy.getId());
+		assertEquals("7", copy.getParent());
+		assertFalse(copy.isDirectory());
+		assertEquals("Title", copy.getTitle());
+		assertEquals("Album", copy.getAlbum());
+		assertEquals("8", copy.getAlbumId());
+		assertEquals("Artist", copy.getArtist());
+		assertEquals("9", copy.getArtistId());
+		assertEquals(Integer.valueOf(3), copy.getTrack());
+		assertEquals(Integer.valueOf(1999), copy.getYear());
+		assertEquals("Genre", copy.getGenre());
+		assertEquals("audio/mpeg", copy.getContentType());
+		assertEquals("mp3", copy.getSuffix());
+		assertEquals("audio/ogg", copy.getTranscodedContentType());
+		assertEquals("ogg", copy.getTranscodedSuffix());
+		assertEquals("cover", copy.getCoverArt());
+		assertEquals(Long.valueOf(123456789012L), copy.getSize());
+		assertEquals(Long.valueOf(12L), copy.getSongCount());
+		assertEquals(Integer.valueOf(245), copy.getDuration());
+		assertEquals(Integer.valueOf(320), copy.getBitRate());
+		assertEquals("Artist/Album/03 - Title.mp3", copy.getPath());
+		assertTrue(copy.isVideo());
+		assertTrue(copy.getStarred());
+		assertEquals(Integer.valueOf(2), copy.getDiscNumber());
+		assertEquals("music", copy.getType());
+		assertEquals(new Date(1234567890000L), copy.getCreated());
+		assertEquals(Long.valueOf(17L), copy.getPlayCount());
+		assertEquals(60000, copy.getBookmarkPosition());
+	}
+
+	@Test
+	public void roundTripsMissingFields() throws IOException
+	{
+		MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		entry.setIsDirectory(true);
+
+		MusicDirectory.Entry copy = roundTrip(entry);
+
+		assertTrue(copy.isDirectory());
+		assertFalse(copy.isVideo());
+		assertFalse(copy.getStarred());
+		assertNull(copy.getId());
+		assertNull(copy.getTitle());
+		assertNull(copy.getArtist());
+		assertEquals(Integer.valueOf(0), copy.getTrack());
+		assertEquals(Integer.valueOf(0), copy.getYear());
+		assertNull(copy.getSize());
+		assertNull(copy.getSongCount());
+		assertNull(copy.getDuration());
+		assertNull(copy.getBitRate());
+		assertNull(copy.getDiscNumber());
+		assertNull(copy.getCreated());
+		assertNull(copy.getPlayCount());
+		assertEquals(0, copy.getBookmarkPosition());
+	}
+
+	@Test
+	public void roundTripsDirectories() throws IOException
+	{
+		MusicDirectory directory = new MusicDirectory();
+		directory.setName("Album");
+
+		for (int i = 0; i < 3; i++)
+		{
+			MusicDirectory.Entry child = new MusicDirectory.Entry();
+			child.setId(String.valueOf(i));
+			child.setTitle("Song " + i);
+			child.setTrack(i + 1);
+			directory.addChild(child);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		EntryCodec.writeDirectory(out, directory);
+		out.writeInt(-1);
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		MusicDirectory copy = EntryCodec.readDirectory(in);
+
+		// The reader must stop exactly where the directory ends
+		assertEquals(-1, in.readInt());
+		assertEquals("Album", copy.getName());
+		assertEquals(3, copy.getChildren().size());
+
+		for (int i = 0; i < 3; i++)
+		{
+			MusicDirectory.Entry child = copy.getChildren().get(i);
+			assertEquals(String.valueOf(i), child.getId());
+			assertEquals("Song " + i, child.getTitle());
+			assertEquals(Integer.valueOf(i + 1), child.getTrack());
+		}
+	}
+
+	@Test
+	public void roundTripsNullStrings() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		EntryCodec.writeString(out, null);
+		EntryCodec.writeString(out, "");
+		EntryCodec.writeString(out, "\u00e6\u00f8\u00e5");
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertNull(EntryCodec.readString(in));
+		assertEquals("", EntryCodec.readString(in));
+		assertEquals("\u00e6\u00f8\u00e5", EntryCodec.readString(in));
+	}
+
+	private static MusicDirectory.Entry roundTrip(MusicDirectory.Entry entry) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		EntryCodec.writeEntry(new DataOutputStream(bytes), entry);
+		return EntryCodec.readEntry(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+	}
+}
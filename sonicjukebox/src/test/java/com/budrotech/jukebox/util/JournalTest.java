@@ -0,0 +1,267 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sindre Mehus
+ */
+public class JournalTest
+{
+	private static final int VERSION = 1;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void replaysPutsRemovesAndMarks() throws IOException
+	{
+		File file = folder.newFile();
+		Util.delete(file);
+
+		TestStore store = new TestStore(file);
+		store.put("a=1");
+		store.put("b=2");
+		store.put("a=3");
+		store.remove("b");
+		store.put("c=4");
+
+		TestStore loaded = new TestStore(file);
+		loaded.journal.load();
+		assertEquals(store.items, loaded.items);
+		assertFalse(loaded.marked);
+
+		// Marks are only written when the journal is compacted
+		store.marked = true;
+		store.journal.compact();
+
+		loaded = new TestStore(file);
+		loaded.journal.load();
+		assertEquals(store.items, loaded.items);
+		assertTrue(loaded.marked);
+	}
+
+	@Test
+	public void compactsWhenGrown() throws IOException
+	{
+		File file = folder.newFile();
+		Util.delete(file);
+
+		TestStore store = new TestStore(file);
+
+		for (int i = 0; i < 1000; i++)
+		{
+			store.put("a=" + i);
+		}
+
+		// One item may grow the journal to 2 * 1 + 100 records before it's compacted
+		assertTrue(file.length() < 103 * 8);
+
+		TestStore loaded = new TestStore(file);
+		loaded.journal.load();
+		assertEquals(1, loaded.items.size());
+		assertEquals("999", loaded.items.get("a"));
+	}
+
+	@Test
+	public void deletesOtherVersions() throws IOException
+	{
+		File file = folder.newFile();
+		Util.delete(file);
+
+		TestStore store = new TestStore(file);
+		store.put("a=1");
+		assertTrue(file.isFile());
+
+		TestStore loaded = new TestStore(file, VERSION + 1);
+		loaded.journal.load();
+		assertTrue(loaded.items.isEmpty());
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void truncatesTornRecords() throws IOException
+	{
+		File file = folder.newFile();
+		Util.delete(file);
+
+		TestStore store = new TestStore(file);
+		store.put("a=1");
+		store.put("b=2");
+		long length = file.length();
+
+		// A put whose string is cut short, as if the app died while appending it
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[]{1, 0, 10, 'c', '='});
+		out.close();
+
+		TestStore loaded = new TestStore(file);
+		loaded.journal.load();
+		assertEquals(store.items, loaded.items);
+		assertEquals(length, file.length());
+
+		// What's appended after the truncation is read again
+		loaded.put("c=3");
+
+		TestStore reloaded = new TestStore(file);
+		reloaded.journal.load();
+		assertEquals(loaded.items, reloaded.items);
+		assertEquals("3", reloaded.items.get("c"));
+	}
+
+	@Test
+	public void truncatesUnknownRecords() throws IOException
+	{
+		File file = folder.newFile();
+		Util.delete(file);
+
+		TestStore store = new TestStore(file);
+		store.put("a=1");
+		long length = file.length();
+
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[]{42, 0, 0, 0});
+		out.close();
+
+		TestStore loaded = new TestStore(file);
+		loaded.journal.load();
+		assertEquals(store.items, loaded.items);
+		assertEquals(length, file.length());
+	}
+
+	@Test
+	public void deletesFilesWithoutVersion() throws IOException
+	{
+		File file = folder.newFile();
+
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[]{0, 0});
+		out.close();
+
+		TestStore loaded = new TestStore(file);
+		loaded.journal.load();
+		assertTrue(loaded.items.isEmpty());
+		assertFalse(file.exists());
+	}
+
+	/**
+	 * Holds "key=value" items, the way the search index and metadata store hold theirs.
+	 */
+	private static class TestStore implements Journal.Store<String>
+	{
+		private final Map<String, String> items = new LinkedHashMap<String, String>();
+		private final Journal<String> journal;
+		private boolean marked;
+
+		TestStore(File file)
+		{
+			this(file, VERSION);
+		}
+
+		TestStore(File file, int version)
+		{
+			journal = new Journal<String>(file, version, this);
+		}
+
+		void put(String item)
+		{
+			onPut(item);
+			journal.appendPut(item);
+		}
+
+		void remove(String key)
+		{
+			onRemove(key);
+			journal.appendRemove(key);
+		}
+
+		@Override
+		public void write(DataOutputStream out, String item) throws IOException
+		{
+			out.writeUTF(item);
+		}
+
+		@Override
+		public String read(DataInputStream in) throws IOException
+		{
+			return in.readUTF();
+		}
+
+		@Override
+		public void onPut(String item)
+		{
+			int separator = item.indexOf('=');
+			items.put(item.substring(0, separator), item.substring(separator + 1));
+		}
+
+		@Override
+		public void onRemove(String key)
+		{
+			items.remove(key);
+		}
+
+		@Override
+		public void onMark()
+		{
+			marked = true;
+		}
+
+		@Override
+		public int size()
+		{
+			return items.size();
+		}
+
+		@Override
+		public Collection<String> compact()
+		{
+			Collection<String> live = new ArrayList<String>();
+
+			for (Map.Entry<String, String> item : items.entrySet())
+			{
+				live.add(item.getKey() + '=' + item.getValue());
+			}
+
+			return live;
+		}
+
+		@Override
+		public boolean isMarked()
+		{
+			return marked;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sindre Mehus
+ */
+public class LRUCacheTest
+{
+	private static final LRUCache.Weigher<String, String> LENGTH = new LRUCache.Weigher<String, String>()
+	{
+		@Override
+		public int weigh(String key, String value)
+		{
+			return value.length();
+		}
+	};
+
+	@Test
+	public void evictsLeastRecentlyUsed()
+	{
+		LRUCache<String, String> cache = new LRUCache<String, String>(3);
+		cache.put("a", "A");
+		cache.put("b", "B");
+		cache.put("c", "C");
+
+		// Reading a makes b the least recently used
+		assertEquals("A", cache.get("a"));
+		cache.put("d", "D");
+
+		assertNull(cache.get("b"));
+		assertEquals("A", cache.get("a"));
+		assertEquals("C", cache.get("c"));
+		assertEquals("D", cache.get("d"));
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(3, cache.getWeight());
+	}
+
+	@Test
+	public void evictsByWeight()
+	{
+		LRUCache<String, String> cache = new LRUCache<String, String>(10, LENGTH);
+		cache.put("a", "aaaa");
+		cache.put("b", "bbbb");
+		cache.put("c", "ccc");
+
+		assertEquals(7, cache.getWeight());
+		assertNull(cache.get("a"));
+		assertEquals("bbbb", cache.get("b"));
+
+		// Replacing a value swaps its weight
+		cache.put("b", "bb");
+		assertEquals(5, cache.getWeight());
+	}
+
+	@Test
+	public void keepsAnEntryHeavierThanTheCapacity()
+	{
+		LRUCache<String, String> cache = new LRUCache<String, String>(3, LENGTH);
+		cache.put("a", "a");
+		cache.put("b", "bbbbbb");
+
+		assertNull(cache.get("a"));
+		assertEquals("bbbbbb", cache.get("b"));
+		assertEquals(6, cache.getWeight());
+	}
+
+	@Test
+	public void removesAndClears()
+	{
+		LRUCache<String, String> cache = new LRUCache<String, String>(10, LENGTH);
+		cache.put("a", "aa");
+		cache.put("b", "bbb");
+
+		cache.remove("a");
+		assertNull(cache.get("a"));
+		assertEquals(3, cache.getWeight());
+
+		// Putting null removes the entry too
+		cache.put("b", null);
+		assertNull(cache.get("b"));
+		assertEquals(0, cache.getWeight());
+
+		cache.put("c", "c");
+		cache.clear();
+		assertNull(cache.get("c"));
+		assertEquals(0, cache.getWeight());
+	}
+
+	@Test
+	public void countsHitsAndMisses()
+	{
+		LRUCache<String, String> cache = new LRUCache<String, String>(2);
+		cache.put("a", "A");
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void splitsTheCapacityBetweenSegments()
+	{
+		LRUCache<String, String> cache = new LRUCache<String, String>(16, 4, null);
+
+		for (int i = 0; i < 1000; i++)
+		{
+			String key = String.valueOf(i);
+			cache.put(key, key);
+			assertEquals(key, cache.get(key));
+			assertTrue(cache.getWeight() <= 16);
+		}
+
+		assertEquals(16, cache.getWeight());
+		assertEquals(1000 - 16, cache.getEvictionCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNoSegments()
+	{
+		new LRUCache<String, String>(16, 0, null);
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.content.Context;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * The index is a singleton, so every test adds songs with words of its own.
+ *
+ * @author Sindre Mehus
+ */
+public class SearchIndexTest
+{
+	@ClassRule
+	public static TemporaryFolder folder = new TemporaryFolder();
+
+	private static SearchIndex index;
+
+	@BeforeClass
+	public static void createIndex() throws IOException
+	{
+		Context context = mock(Context.class);
+		when(context.getApplicationContext()).thenReturn(context);
+		when(context.getCacheDir()).thenReturn(folder.newFolder("cache"));
+		index = SearchIndex.getInstance(context);
+	}
+
+	@Test
+	public void findsSongsMatchingEveryWord() throws IOException
+	{
+		File first = addSong("Miles Davis", "Kind of Blue", "So What", "Jazz");
+		File second = addSong("Miles Davis", "Kind of Blue", "Blue in Green", "Jazz");
+
+		List<SearchIndex.Hit> songs = index.search("blue green", 10, 10, 10).getSongs();
+		assertEquals(1, songs.size());
+		assertEquals(second, songs.get(0).getFile());
+		assertEquals("Blue in Green", songs.get(0).getTitle());
+
+		songs = index.search("miles davis", 10, 10, 10).getSongs();
+		assertEquals(2, songs.size());
+		assertTrue(songs.get(0).getFile().equals(first) || songs.get(1).getFile().equals(first));
+	}
+
+	@Test
+	public void findsArtistsAndAlbums() throws IOException
+	{
+		File song = addSong("Coltrane", "Giant Steps", "Naima", "Jazz");
+		File album = song.getParentFile();
+		File artist = album.getParentFile();
+
+		SearchIndex.Result result = index.search("coltrane", 10, 10, 10);
+		assertEquals(1, result.getArtists().size());
+		assertEquals(artist, result.getArtists().get(0).getFile());
+
+		result = index.search("giant steps", 10, 10, 10);
+		assertEquals(0, result.getArtists().size());
+		assertEquals(1, result.getAlbums().size());
+		assertEquals(album, result.getAlbums().get(0).getFile());
+		assertEquals("Coltrane", result.getAlbums().get(0).getArtist());
+	}
+
+	@Test
+	public void ignoresCaseAndAccents() throws IOException
+	{
+		File song = addSong("Bj\u00f6rk", "Homogenic", "J\u00f3ga", "Electronic");
+
+		List<SearchIndex.Hit> songs = index.search("BJORK joga", 10, 10, 10).getSongs();
+		assertEquals(1, songs.size());
+		assertEquals(song, songs.get(0).getFile());
+	}
+
+	@Test
+	public void matchesPrefixesBelowWholeWords() throws IOException
+	{
+		File whole = addSong("Quux", "Quuxed", "Plain", "Rock");
+		File prefix = addSong("Quuxington", "Other", "Plain", "Rock");
+
+		List<SearchIndex.Hit> songs = index.search("quux", 10, 10, 10).getSongs();
+		assertEquals(2, songs.size());
+		assertEquals(whole, songs.get(0).getFile());
+		assertEquals(prefix, songs.get(1).getFile());
+	}
+
+	@Test
+	public void ranksTitlesAboveGenres() throws IOException
+	{
+		File title = addSong("Someone", "Something", "Zydeco Nights", "Folk");
+		File genre = addSong("Someone Else", "Anything", "Dance", "Zydeco");
+
+		List<SearchIndex.Hit> songs = index.search("zydeco", 10, 10, 10).getSongs();
+		assertEquals(2, songs.size());
+		assertEquals(title, songs.get(0).getFile());
+		assertEquals(genre, songs.get(1).getFile());
+		assertTrue(songs.get(0).getScore() > songs.get(1).getScore());
+	}
+
+	@Test
+	public void limitsTheNumberOfSongs() throws IOException
+	{
+		for (int i = 0; i < 5; i++)
+		{
+			addSong("Limited", "Album", "Track " + i, null);
+		}
+
+		assertEquals(3, index.search("limited", 10, 10, 3).getSongs().size());
+	}
+
+	@Test
+	public void forgetsRemovedAndRetaggedSongs() throws IOException
+	{
+		File removed = addSong("Wombat", "Burrow", "Digging", null);
+		File retagged = addSong("Wombat", "Burrow", "Sleeping", null);
+
+		index.remove(removed);
+
+		MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		entry.setArtist("Platypus");
+		entry.setAlbum("Burrow");
+		entry.setTitle("Sleeping");
+		index.add(retagged, entry);
+
+		assertEquals(0, index.search("wombat", 10, 10, 10).getSongs().size());
+		assertEquals(0, index.search("digging", 10, 10, 10).getSongs().size());
+
+		List<SearchIndex.Hit> songs = index.search("platypus sleeping", 10, 10, 10).getSongs();
+		assertEquals(1, songs.size());
+		assertEquals(retagged, songs.get(0).getFile());
+	}
+
+	/**
+	 * Creates the song file under artist/album, and indexes it.
+	 */
+	private static File addSong(String artist, String album, String title, String genre) throws IOException
+	{
+		File directory = new File(new File(folder.getRoot(), artist), album);
+		assertTrue(directory.isDirectory() || directory.mkdirs());
+
+		File file = new File(directory, title + ".mp3");
+		assertTrue(file.isFile() || file.createNewFile());
+
+		MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		entry.setArtist(artist);
+		entry.setAlbum(album);
+		entry.setTitle(title);
+		entry.setGenre(genre);
+		index.add(file, entry);
+		return file;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ This file is part of Subsonic.
+
+ Subsonic is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Subsonic is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with Subsonic.  If not, see <http://www.gnu.org/licenses/>.
+
+ Copyright 2009 (C) Sindre Mehus
+ */
+package com.budrotech.jukebox.util;
+
+import android.content.Context;
+
+import com.budrotech.jukebox.domain.MusicDirectory;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that the song catalog deals every song once per round, and that the binary
+ * indexed tree of the weighted modes stays in step with the songs.
+ *
+ * @author Sindre Mehus
+ */
+public class SongCatalogTest
+{
+	// The catalog and the metadata store are singletons, so they share one cache directory
+	@ClassRule
+	public static final TemporaryFolder cacheDir = new TemporaryFolder();
+
+	@Rule
+	public final TemporaryFolder musicDir = new TemporaryFolder();
+
+	private Context context;
+	private SongCatalog catalog;
+
+	@Before
+	public void setUp()
+	{
+		context = mock(Context.class);
+		when(context.getApplicationContext()).thenReturn(context);
+		when(context.getCacheDir()).thenReturn(cacheDir.getRoot());
+
+		catalog = SongCatalog.getInstance(context);
+		catalog.reconcile(Collections.<File>emptyList());
+	}
+
+	@Test
+	public void dealsEverySongOncePerRound() throws IOException
+	{
+		List<File> files = addSongs(10);
+
+		for (int round = 0; round < 3; round++)
+		{
+			Set<File> dealt = new HashSet<File>();
+
+			for (int i = 0; i < 5; i++)
+			{
+				List<File> picked = catalog.pick(2, SongCatalog.Mode.UNIFORM);
+				assertEquals(2, picked.size());
+				dealt.addAll(picked);
+			}
+
+			assertEquals(new HashSet<File>(files), dealt);
+		}
+	}
+
+	@Test
+	public void picksDifferentSongsAcrossRounds() throws IOException
+	{
+		addSongs(5);
+
+		// Three songs are left in the round, so two come from the next one
+		catalog.pick(2, SongCatalog.Mode.UNIFORM);
+		List<File> picked = catalog.pick(5, SongCatalog.Mode.UNIFORM);
+
+		assertEquals(5, new HashSet<File>(picked).size());
+	}
+
+	@Test
+	public void neverPicksRemovedSongs() throws IOException
+	{
+		List<File> files = addSongs(8);
+		catalog.pick(3, SongCatalog.Mode.UNIFORM);
+		catalog.remove(files.get(0));
+		catalog.remove(files.get(5));
+
+		List<File> picked = catalog.pick(8, SongCatalog.Mode.UNIFORM);
+
+		assertEquals(6, picked.size());
+		assertFalse(picked.contains(files.get(0)));
+		assertFalse(picked.contains(files.get(5)));
+	}
+
+	@Test
+	public void weightedPickReturnsEverySongOnce() throws IOException
+	{
+		List<File> files = addSongs(20);
+		catalog.pick(1, SongCatalog.Mode.STARRED);
+
+		// Songs added and removed after the tree is built, growing it past its first size
+		List<File> more = addSongs(20, 20);
+		catalog.remove(files.get(3));
+		catalog.remove(more.get(7));
+
+		Set<File> expected = new HashSet<File>(files);
+		expected.addAll(more);
+		expected.remove(files.get(3));
+		expected.remove(more.get(7));
+
+		for (int i = 0; i < 3; i++)
+		{
+			List<File> picked = catalog.pick(100, SongCatalog.Mode.STARRED);
+			assertEquals(expected.size(), picked.size());
+			assertEquals(expected, new HashSet<File>(picked));
+		}
+	}
+
+	@Test
+	public void picksStarredSongsMoreOften() throws IOException
+	{
+		List<File> files = addSongs(2);
+		storeTag(files.get(0), true);
+		int starred = 0;
+		int picks = 3000;
+
+		for (int i = 0; i < picks; i++)
+		{
+			if (catalog.pick(1, SongCatalog.Mode.STARRED).get(0).equals(files.get(0)))
+			{
+				starred++;
+			}
+		}
+
+		// A starred song weighs five times as much, so it's picked five times in six
+		double ratio = (double) starred / picks;
+		assertTrue(String.format("Starred song picked %.3f of the time", ratio), ratio > 0.77 && ratio < 0.89);
+	}
+
+	private List<File> addSongs(int count) throws IOException
+	{
+		return addSongs(0, count);
+	}
+
+	private List<File> addSongs(int first, int count) throws IOException
+	{
+		List<File> files = new ArrayList<File>(count);
+
+		for (int i = first; i < first + count; i++)
+		{
+			File file = musicDir.newFile(String.format("song%d.mp3", i));
+			storeTag(file, false);
+			catalog.add(file);
+			files.add(file);
+		}
+
+		return files;
+	}
+
+	/**
+	 * Stores the tags the weight of a song is read from, so that it's never looked for in
+	 * another file.
+	 */
+	private void storeTag(File file, boolean starred)
+	{
+		MusicDirectory.Entry entry = new MusicDirectory.Entry();
+		entry.setId(file.getName());
+		entry.setStarred(starred);
+		MetadataStore.getInstance(context).put(file, entry);
+	}
+}